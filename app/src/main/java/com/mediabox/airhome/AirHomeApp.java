@@ -7,6 +7,8 @@ import android.util.Log;
 
 import com.mediabox.airhome.service.AirPlayService;
 import com.mediabox.airhome.util.ConfigManager;
+import com.mediabox.airhome.util.StartupOrchestrator;
+import com.mediabox.airhome.util.ThreadPolicy;
 
 /**
  * Main application class for AirHome.
@@ -18,15 +20,18 @@ public class AirHomeApp extends Application {
     @Override
     public void onCreate() {
         super.onCreate();
+        StartupOrchestrator.markProcessStart();
         Log.d(TAG, "AirHome Application starting");
         
-        // Initialize configuration
+        // Initialize configuration; the preferences file loads in the background
         ConfigManager.getInstance().init(this);
         
-        // Start the main service if enabled in settings
-        if (ConfigManager.getInstance().isAutoStartEnabled()) {
-            startAirPlayService();
-        }
+        // Reading a setting waits for that load, so check auto-start off the main thread
+        ThreadPolicy.newThread(ThreadPolicy.Stage.BACKGROUND, "AirHomeAutoStart", () -> {
+            if (ConfigManager.getInstance().isAutoStartEnabled()) {
+                startAirPlayService();
+            }
+        }).start();
     }
     
     private void startAirPlayService() {
@@ -4,16 +4,25 @@ import android.content.Context;
 import android.media.AudioAttributes;
 import android.media.AudioFormat;
 import android.media.AudioManager;
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.mediabox.airhome.util.ConfigManager;
+import com.mediabox.airhome.util.ThreadPolicy;
+import com.mediabox.airhome.util.TimerWheel;
+import com.mediabox.airhome.util.TraceRing;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Handles audio processing for AirPlay streams.
@@ -27,21 +36,135 @@ public class AudioHandler {
     private static final int DEFAULT_CHANNEL_COUNT = 2;
     private static final int DEFAULT_BIT_DEPTH = 16;
     
+    // Sessions with no audio or RTSP traffic for this long are reaped
+    private static final long SESSION_IDLE_TIMEOUT_MS = 60_000;
+    
+    // Length of the crossfade when a new sender takes over the output
+    private static final int CROSSFADE_MS = 150;
+    
+    // Frame size of 16-bit output; sessions size their input from their own format
+    private static final int BYTES_PER_FRAME = DEFAULT_CHANNEL_COUNT * DEFAULT_BIT_DEPTH / 8;
+    
+    // Output track buffer as a multiple of the device minimum. Where the
+    // platform allows, sessions start by using only part of it and grow
+    // into the rest on underruns.
+    private static final int OUTPUT_BUFFER_MULTIPLIER = 4;
+    private static final int OUTPUT_BUFFER_START_MULTIPLIER = 2;
+    private static final long OUTPUT_BUFFER_CHECK_INTERVAL_MS = 100;
+    
+    // With spilling enabled, only this much queued audio stays on the heap;
+    // the rest goes to a mapped file of the given size in the cache directory
+    private static final int SPILL_WINDOW_MS = 2000;
+    private static final int SPILL_FILE_BYTES = 32 * 1024 * 1024;
+    
+    // A finished or prewarmed output track is kept this long for the next session
+    private static final long SPARE_TRACK_TTL_MS = 5 * 60 * 1000;
+    
+    // Losses up to this many packets are concealed; longer ones are treated
+    // as a discontinuity and simply skipped
+    private static final int MAX_CONCEALED_PACKETS = 32;
+    
+    // Underruns are concealed in blocks of this length once the output
+    // track holds less than the low-water mark of this many blocks
+    private static final int UNDERRUN_BLOCK_MS = 10;
+    private static final int UNDERRUN_LOW_WATER_BLOCKS = 2;
+    
+    // After a ranged flush the output is kept running on silence for this
+    // long while the sender starts again from the new position
+    private static final long FLUSH_SILENCE_MAX_MS = 3000;
+    
+    /**
+     * Notified from audio and RTSP threads whenever playback stats change
+     */
+    public interface StatsChangeListener {
+        void onStatsChanged();
+    }
+    
+    /**
+     * Receives a copy of everything written to a session's own output track,
+     * as 16-bit stereo PCM, just before it is written. Called on the playback
+     * thread, so it must not block.
+     */
+    public interface OutputListener {
+        /**
+         * @param pcm Little-endian 16-bit stereo PCM, only valid during the call
+         * @param length Number of bytes
+         * @param sampleRate Sample rate in Hz
+         * @param playAtNanos When the first frame will reach the speaker, on the
+         *                    {@link System#nanoTime()} clock
+         */
+        void onOutput(byte[] pcm, int length, int sampleRate, long playAtNanos);
+    }
+    
     private final Context context;
-    private final Map<String, AudioSession> sessions = new HashMap<>();
-    private final Executor audioProcessingExecutor = Executors.newSingleThreadExecutor();
+    private final TimerWheel reaper;
+    private final SessionRegistry<AudioSession> sessions = new SessionRegistry<>();
+    private final ExecutorService audioProcessingExecutor = Executors.newCachedThreadPool(
+            ThreadPolicy.factory(ThreadPolicy.Stage.PLAYBACK, "AudioPlayback"));
+    
+    // Shared output for party mode, created on first use
+    private AudioMixer mixer;
+    
+    // Takeover metrics
+    private final AtomicInteger switchoverCount = new AtomicInteger();
+    private final AtomicInteger nextTraceId = new AtomicInteger();
+    private volatile long lastSwitchoverLatencyMs = -1;
+    private volatile long maxSwitchoverLatencyMs = -1;
+    
+    // Time from session start to first audio, split by whether a warm track was reused
+    private final AtomicInteger warmStartCount = new AtomicInteger();
+    private final AtomicInteger coldStartCount = new AtomicInteger();
+    private final AtomicLong warmStartTotalMs = new AtomicLong();
+    private final AtomicLong coldStartTotalMs = new AtomicLong();
+    
+    // Time from the sender connecting to first audio, split by whether it
+    // was found in the sender cache
+    private final AtomicInteger cachedSenderCount = new AtomicInteger();
+    private final AtomicInteger newSenderCount = new AtomicInteger();
+    private final AtomicLong cachedSenderTotalMs = new AtomicLong();
+    private final AtomicLong newSenderTotalMs = new AtomicLong();
+    
+    // Time from a FLUSH to audio from the new position, split by whether
+    // the output was kept running
+    private final AtomicInteger rangedFlushCount = new AtomicInteger();
+    private final AtomicInteger fullFlushCount = new AtomicInteger();
+    private final AtomicLong rangedFlushTotalMs = new AtomicLong();
+    private final AtomicLong fullFlushTotalMs = new AtomicLong();
+    
+    // Idle output track ready for the next session, guarded by this
+    private AudioTrack spareTrack;
+    private TimerWheel.Timeout spareTrackTimeout;
+    
+    // Stream stats
+    private final AtomicLong packetsLost = new AtomicLong();
+    private final AtomicLong shedAudioBytes = new AtomicLong();
+    private final AtomicLong chunkAllocations = new AtomicLong();
+    private final AtomicInteger outputBufferGrows = new AtomicInteger();
+    private final AtomicInteger outputBufferShrinks = new AtomicInteger();
+    private volatile String codec;
+    private volatile int sampleRate = DEFAULT_SAMPLE_RATE;
+    private volatile int bitDepth = DEFAULT_BIT_DEPTH;
+    private volatile StatsChangeListener statsChangeListener;
+    private volatile OutputListener[] outputListeners = new OutputListener[0];
+    
+    // Extra latency of a remote output such as a Cast device, and whether
+    // it replaces the local speaker
+    private volatile int sinkLatencyMillis;
+    private volatile boolean localOutputMuted;
     
     private AudioManager audioManager;
     private int originalVolume;
-    private boolean isInitialized = false;
+    private volatile boolean isInitialized = false;
     
     /**
      * Create a new AudioHandler
      * 
      * @param context Application context
+     * @param reaper Timer wheel used to reap abandoned sessions
      */
-    public AudioHandler(Context context) {
+    public AudioHandler(Context context, TimerWheel reaper) {
         this.context = context.getApplicationContext();
+        this.reaper = reaper;
     }
     
     /**
@@ -74,31 +197,74 @@ public class AudioHandler {
         }
         sessions.clear();
         
+        synchronized (this) {
+            if (mixer != null) {
+                mixer.stop();
+                mixer = null;
+            }
+        }
+        releaseTrack(takeSpareTrack());
+        
         isInitialized = false;
         Log.d(TAG, "AudioHandler cleaned up");
     }
     
     /**
-     * Start a new audio session with the given ID
+     * Start a new audio session with the given ID. If another session is
+     * playing it is preempted: it fades out while the new one fades in.
      * 
      * @param sessionId Unique identifier for the session
+     * @param senderName Name of the sending device, if known
+     * @param controlTimeout Reaper handle of the control connection that
+     *                       owns the session, kept alive while audio
+     *                       arrives, or null
+     * @param connectedAt Elapsed realtime of the sender's first request,
+     *                    for time to first audio, or 0 if unknown
+     * @param cachedSender Whether the sender was found in the sender cache
      */
-    public void startAudioSession(String sessionId) {
+    public void startAudioSession(String sessionId, String senderName, TimerWheel.Timeout controlTimeout,
+                                  long connectedAt, boolean cachedSender) {
         if (!isInitialized) {
             Log.e(TAG, "Cannot start session - AudioHandler not initialized");
             return;
         }
         
-        if (sessions.containsKey(sessionId)) {
+        AudioSession session = new AudioSession(sessionId, senderName, controlTimeout);
+        session.connectedAt = connectedAt;
+        session.cachedSender = cachedSender;
+        if (!sessions.add(session)) {
             Log.w(TAG, "Session already exists: " + sessionId);
+            session.idleTimeout.cancel();
             return;
         }
         
-        AudioSession session = new AudioSession(sessionId);
-        sessions.put(sessionId, session);
-        session.start();
+        // In party mode senders share the output through the mixer, which
+        // runs at the default rate; anything else takes the output alone
+        if (ConfigManager.getInstance().isPartyModeEnabled()
+                && session.inputSampleRate == DEFAULT_SAMPLE_RATE) {
+            AudioMixer.Input input = getMixer().acquireInput();
+            if (input == null) {
+                Log.w(TAG, "Mixer full, rejecting session: " + sessionId);
+                sessions.remove(session);
+                session.idleTimeout.cancel();
+                return;
+            }
+            session.mixerInput = input;
+            session.start();
+            notifyStatsChanged();
+            return;
+        }
+        
+        // Take over the output from whichever sender had it
+        AudioSession previous = sessions.takeOver(session);
+        if (previous != null) {
+            previous.onPreempted();
+            session.beginTakeover(SystemClock.elapsedRealtime());
+            TraceRing.record(TraceRing.SESSION_PREEMPTED, previous.traceId, session.traceId, 0);
+        }
         
-        Log.d(TAG, "Started audio session: " + sessionId);
+        session.start();
+        notifyStatsChanged();
     }
     
     /**
@@ -110,8 +276,462 @@ public class AudioHandler {
         AudioSession session = sessions.remove(sessionId);
         if (session != null) {
             session.stop();
-            Log.d(TAG, "Stopped audio session: " + sessionId);
+            notifyStatsChanged();
+        }
+    }
+    
+    /**
+     * Set the listener notified when playback stats change
+     * 
+     * @param listener The listener, or null to remove it
+     */
+    public void setStatsChangeListener(StatsChangeListener listener) {
+        statsChangeListener = listener;
+    }
+    
+    /**
+     * Add a listener that receives a copy of the output, used to lead
+     * multi-room playback and to feed remote outputs
+     */
+    public synchronized void addOutputListener(OutputListener listener) {
+        OutputListener[] listeners = Arrays.copyOf(outputListeners, outputListeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        outputListeners = listeners;
+    }
+    
+    public synchronized void removeOutputListener(OutputListener listener) {
+        OutputListener[] listeners = outputListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                OutputListener[] remaining = new OutputListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, remaining, 0, i);
+                System.arraycopy(listeners, i + 1, remaining, i, remaining.length - i);
+                outputListeners = remaining;
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Set how much later than the local speaker a remote output plays, so
+     * senders and the buffered receiver can schedule audio that much earlier
+     */
+    public void setSinkLatencyMillis(int latencyMillis) {
+        sinkLatencyMillis = Math.max(0, latencyMillis);
+    }
+    
+    public int getSinkLatencyMillis() {
+        return sinkLatencyMillis;
+    }
+    
+    /**
+     * Get the output latency to report to senders, in frames at the current rate
+     */
+    public int getSinkLatencyFrames() {
+        return (int) ((long) sinkLatencyMillis * sampleRate / 1000);
+    }
+    
+    /**
+     * Silence the local speaker while a remote output plays instead. The
+     * local track keeps running since it paces the playback thread.
+     */
+    public void setLocalOutputMuted(boolean muted) {
+        localOutputMuted = muted;
+    }
+    
+    private void notifyStatsChanged() {
+        StatsChangeListener listener = statsChangeListener;
+        if (listener != null) {
+            listener.onStatsChanged();
+        }
+    }
+    
+    /**
+     * Get the session that owns the output, or any mixed session in party mode
+     */
+    private AudioSession currentSession() {
+        AudioSession session = sessions.getActive();
+        if (session == null) {
+            for (AudioSession candidate : sessions.values()) {
+                return candidate;
+            }
+        }
+        return session;
+    }
+    
+    public boolean hasAudioSession(String sessionId) {
+        return sessions.contains(sessionId);
+    }
+    
+    public int getActiveSessionCount() {
+        return sessions.size();
+    }
+    
+    /**
+     * Get the name of the sender currently playing, or null if idle
+     */
+    public String getActiveSenderName() {
+        AudioSession session = currentSession();
+        return session != null ? session.senderName : null;
+    }
+    
+    public String getCodec() {
+        return codec;
+    }
+    
+    public int getSampleRate() {
+        return sampleRate;
+    }
+    
+    public int getBitDepth() {
+        return bitDepth;
+    }
+    
+    /**
+     * Get the amount of audio queued for the current session
+     */
+    public long getBufferedMillis() {
+        AudioSession session = currentSession();
+        return session != null ? session.audioBuffers.getQueuedBytes() / session.inputBytesPerMilli : 0;
+    }
+    
+    /**
+     * Estimate the time from packet arrival to the speaker: the queued audio
+     * plus the output track buffer
+     */
+    public long getLatencyMillis() {
+        AudioSession session = currentSession();
+        if (session == null) {
+            return 0;
+        }
+        return session.audioBuffers.getQueuedBytes() / session.inputBytesPerMilli + session.outputBufferMillis;
+    }
+    
+    /**
+     * Get the number of packets detected missing across all sessions
+     */
+    public long getPacketsLost() {
+        return packetsLost.get();
+    }
+    
+    /**
+     * Get the amount of old audio dropped because a session queued more
+     * than its limit, across all sessions
+     */
+    public long getShedAudioBytes() {
+        long total = shedAudioBytes.get();
+        for (AudioSession session : sessions.values()) {
+            if (session.lifecycle.get() != SessionState.STOPPED) {
+                total += session.audioBuffers.getShedBytes();
+            }
+        }
+        return total;
+    }
+    
+    /**
+     * Get how many queue chunks have been allocated across all sessions.
+     * During steady playback this should stop growing; if it keeps pace
+     * with the packet count, something on the receive path is allocating
+     * per packet again.
+     */
+    public long getChunkAllocations() {
+        long total = chunkAllocations.get();
+        for (AudioSession session : sessions.values()) {
+            if (session.lifecycle.get() != SessionState.STOPPED) {
+                total += session.audioBuffers.getChunkAllocations();
+            }
         }
+        return total;
+    }
+    
+    /**
+     * Get how many times session output buffers were grown after underruns
+     */
+    public int getOutputBufferGrows() {
+        return outputBufferGrows.get();
+    }
+    
+    /**
+     * Get how many times session output buffers were shrunk after a
+     * stable run
+     */
+    public int getOutputBufferShrinks() {
+        return outputBufferShrinks.get();
+    }
+    
+    /**
+     * Get the party mode mixer, starting it if necessary
+     */
+    private synchronized AudioMixer getMixer() {
+        if (mixer == null) {
+            mixer = new AudioMixer();
+            mixer.start();
+        }
+        return mixer;
+    }
+    
+    /**
+     * Get the number of sender takeovers since the handler was created
+     */
+    public int getSwitchoverCount() {
+        return switchoverCount.get();
+    }
+    
+    /**
+     * Get the time from the most recent takeover until the new sender's
+     * first audio reached the output, or -1 if no takeover has completed
+     */
+    public long getLastSwitchoverLatencyMs() {
+        return lastSwitchoverLatencyMs;
+    }
+    
+    /**
+     * Get the worst takeover latency observed, or -1 if none has completed
+     */
+    public long getMaxSwitchoverLatencyMs() {
+        return maxSwitchoverLatencyMs;
+    }
+    
+    public int getWarmStartCount() {
+        return warmStartCount.get();
+    }
+    
+    public int getColdStartCount() {
+        return coldStartCount.get();
+    }
+    
+    /**
+     * Get the average time from session start to first audio when a warm
+     * output track was reused, or -1 if there were none
+     */
+    public long getAverageWarmStartMs() {
+        int count = warmStartCount.get();
+        return count > 0 ? warmStartTotalMs.get() / count : -1;
+    }
+    
+    /**
+     * Get the average time from session start to first audio when the
+     * output track had to be created, or -1 if there were none
+     */
+    public long getAverageColdStartMs() {
+        int count = coldStartCount.get();
+        return count > 0 ? coldStartTotalMs.get() / count : -1;
+    }
+    
+    public int getCachedSenderStartCount() {
+        return cachedSenderCount.get();
+    }
+    
+    public int getNewSenderStartCount() {
+        return newSenderCount.get();
+    }
+    
+    /**
+     * Get the average time from a sender found in the sender cache
+     * connecting to its first audio, or -1 if there were none
+     */
+    public long getAverageCachedSenderStartMs() {
+        int count = cachedSenderCount.get();
+        return count > 0 ? cachedSenderTotalMs.get() / count : -1;
+    }
+    
+    /**
+     * Get the average time from a sender not in the sender cache
+     * connecting to its first audio, or -1 if there were none
+     */
+    public long getAverageNewSenderStartMs() {
+        int count = newSenderCount.get();
+        return count > 0 ? newSenderTotalMs.get() / count : -1;
+    }
+    
+    /**
+     * Get the average time from a ranged FLUSH to the first audio from the
+     * new position, or -1 if there were none
+     */
+    public long getAverageRangedFlushResumeMs() {
+        int count = rangedFlushCount.get();
+        return count > 0 ? rangedFlushTotalMs.get() / count : -1;
+    }
+    
+    /**
+     * Get the average time from a full FLUSH to the first audio after it,
+     * or -1 if there were none
+     */
+    public long getAverageFullFlushResumeMs() {
+        int count = fullFlushCount.get();
+        return count > 0 ? fullFlushTotalMs.get() / count : -1;
+    }
+    
+    private void recordFlushResume(boolean ranged, long latencyMs) {
+        if (ranged) {
+            rangedFlushCount.incrementAndGet();
+            rangedFlushTotalMs.addAndGet(latencyMs);
+        } else {
+            fullFlushCount.incrementAndGet();
+            fullFlushTotalMs.addAndGet(latencyMs);
+        }
+    }
+    
+    private void recordFirstAudio(boolean warm, long latencyMs) {
+        if (warm) {
+            warmStartCount.incrementAndGet();
+            warmStartTotalMs.addAndGet(latencyMs);
+        } else {
+            coldStartCount.incrementAndGet();
+            coldStartTotalMs.addAndGet(latencyMs);
+        }
+    }
+    
+    private void recordFirstAudioSinceConnect(boolean cached, long latencyMs) {
+        if (cached) {
+            cachedSenderCount.incrementAndGet();
+            cachedSenderTotalMs.addAndGet(latencyMs);
+        } else {
+            newSenderCount.incrementAndGet();
+            newSenderTotalMs.addAndGet(latencyMs);
+        }
+    }
+    
+    /**
+     * Create an output track in the background so the next session can
+     * start without waiting for it. Used when a known sender connects.
+     */
+    public void prewarmOutput() {
+        if (ConfigManager.getInstance().isPartyModeEnabled()) {
+            // Mixed sessions share the mixer's track
+            return;
+        }
+        
+        audioProcessingExecutor.execute(() -> {
+            synchronized (this) {
+                if (spareTrack != null) {
+                    return;
+                }
+            }
+            AudioTrack track = openOutputTrack(sampleRate);
+            if (track != null) {
+                parkSpareTrack(track);
+            }
+        });
+    }
+    
+    /**
+     * Keep an idle output track for the next session, releasing it if
+     * nothing claims it in time
+     */
+    private void parkSpareTrack(AudioTrack track) {
+        AudioTrack replaced;
+        synchronized (this) {
+            replaced = spareTrack;
+            if (spareTrackTimeout != null) {
+                spareTrackTimeout.cancel();
+            }
+            spareTrack = track;
+            spareTrackTimeout = reaper.schedule(SPARE_TRACK_TTL_MS, () -> {
+                AudioTrack expired;
+                synchronized (AudioHandler.this) {
+                    expired = spareTrack == track ? takeSpareTrack() : null;
+                }
+                releaseTrack(expired);
+            });
+        }
+        releaseTrack(replaced);
+    }
+    
+    /**
+     * Claim the spare output track, if there is one
+     */
+    private synchronized AudioTrack takeSpareTrack() {
+        AudioTrack track = spareTrack;
+        spareTrack = null;
+        if (spareTrackTimeout != null) {
+            spareTrackTimeout.cancel();
+            spareTrackTimeout = null;
+        }
+        return track;
+    }
+    
+    private static void releaseTrack(AudioTrack track) {
+        if (track != null) {
+            try {
+                track.release();
+            } catch (Exception e) {
+                Log.e(TAG, "Error releasing AudioTrack", e);
+            }
+        }
+    }
+    
+    private void recordSwitchover(int traceId, long latencyMs) {
+        switchoverCount.incrementAndGet();
+        lastSwitchoverLatencyMs = latencyMs;
+        if (latencyMs > maxSwitchoverLatencyMs) {
+            maxSwitchoverLatencyMs = latencyMs;
+        }
+        TraceRing.record(TraceRing.SWITCHOVER, traceId, latencyMs, 0);
+    }
+    
+    /**
+     * Record control-channel activity for a session so it is not reaped
+     * while the sender is paused
+     * 
+     * @param sessionId The session ID
+     */
+    public void touchAudioSession(String sessionId) {
+        AudioSession session = sessions.get(sessionId);
+        if (session != null) {
+            session.idleTimeout.touch();
+        }
+    }
+    
+    /**
+     * Process an incoming audio packet, tracking its sequence number to
+     * detect loss. Late or duplicate packets are dropped.
+     * 
+     * @param sessionId The session ID
+     * @param seqNo The 16-bit RTP sequence number
+     * @param audioData The raw audio data
+     * @param offset Starting offset in the data
+     * @param length Length of data to process
+     */
+    public void processAudioPacket(String sessionId, int seqNo, byte[] audioData, int offset, int length) {
+        AudioSession session = sessions.get(sessionId);
+        if (session == null) {
+            return;
+        }
+        
+        int flushUntil = session.flushUntilSeqNo;
+        if (flushUntil >= 0) {
+            if (((seqNo - flushUntil) & 0xFFFF) >= 0x8000) {
+                // Sent before the flush point and still in flight
+                return;
+            }
+            // First packet from the new position; the jump is not a loss
+            session.flushUntilSeqNo = -1;
+            session.lastSeqNo = -1;
+        }
+        
+        if (session.lastSeqNo >= 0) {
+            int gap = (seqNo - session.lastSeqNo - 1) & 0xFFFF;
+            if (gap >= 0x8000) {
+                // Behind the last packet: late or duplicate
+                return;
+            }
+            if (gap > 0) {
+                packetsLost.addAndGet(gap);
+                TraceRing.record(TraceRing.PACKETS_LOST, session.traceId, gap, seqNo);
+                
+                // Leave room for the missing packets, assuming they were the
+                // same size as this one, for the playback thread to conceal.
+                // Longer losses are skipped but still counted, so a ranged
+                // FLUSH finds its sequence number in the queue
+                int gapLength = gap <= MAX_CONCEALED_PACKETS
+                        ? gap * (length - length % session.inputBytesPerFrame) : 0;
+                session.queueGap(gapLength, gap);
+            }
+        }
+        session.lastSeqNo = seqNo;
+        
+        processAudioData(sessionId, audioData, offset, length);
     }
     
     /**
@@ -125,7 +745,13 @@ public class AudioHandler {
     public void processAudioData(String sessionId, byte[] audioData, int offset, int length) {
         AudioSession session = sessions.get(sessionId);
         if (session != null) {
-            session.queueAudioData(Arrays.copyOfRange(audioData, offset, offset + length));
+            session.idleTimeout.touch();
+            if (session.controlTimeout != null) {
+                // A sender streaming without RTSP traffic is still connected
+                session.controlTimeout.touch();
+            }
+            session.queueAudioData(audioData, offset, length);
+            notifyStatsChanged();
         }
     }
     
@@ -138,6 +764,25 @@ public class AudioHandler {
         AudioSession session = sessions.get(sessionId);
         if (session != null) {
             session.flush();
+            TraceRing.record(TraceRing.SESSION_FLUSHED, session.traceId, 0, 0);
+        }
+    }
+    
+    /**
+     * Flush a session up to a point in the stream, as a FLUSH with RTP-Info
+     * asks on seek or skip. Queued audio from before that point is dropped,
+     * as are packets from before it still in flight, but the output keeps
+     * running on silence so audio from the new position starts without the
+     * track being restarted and primed again.
+     * 
+     * @param sessionId The session ID to flush
+     * @param untilSeqNo 16-bit RTP sequence number of the first packet to keep
+     */
+    public void flushAudioBuffer(String sessionId, int untilSeqNo) {
+        AudioSession session = sessions.get(sessionId);
+        if (session != null) {
+            session.flushUntil(untilSeqNo);
+            TraceRing.record(TraceRing.SESSION_FLUSHED, session.traceId, 1, untilSeqNo);
         }
     }
     
@@ -148,8 +793,24 @@ public class AudioHandler {
      * @param sampleRate The sample rate in Hz
      */
     public void setAudioFormat(String codec, int sampleRate) {
-        Log.d(TAG, "Setting audio format: " + codec + ", " + sampleRate + "Hz");
+        setAudioFormat(codec, sampleRate, DEFAULT_BIT_DEPTH);
+    }
+    
+    /**
+     * Set audio format for decoding, for senders offering more than 16 bits.
+     * Sessions started afterwards play at this rate and depth.
+     * 
+     * @param codec The audio codec name
+     * @param sampleRate The sample rate in Hz
+     * @param bitDepth Bits per sample: 16, 24 or 32
+     */
+    public void setAudioFormat(String codec, int sampleRate, int bitDepth) {
+        TraceRing.record(TraceRing.FORMAT_CHANGED, 0, sampleRate, bitDepth);
         // In a real implementation, this would configure the decoder
+        this.codec = codec;
+        this.sampleRate = sampleRate;
+        this.bitDepth = bitDepth == 24 || bitDepth == 32 ? bitDepth : DEFAULT_BIT_DEPTH;
+        notifyStatsChanged();
     }
     
     /**
@@ -179,7 +840,35 @@ public class AudioHandler {
         int androidVolume = Math.round(normalizedVolume * maxVolume);
         audioManager.setStreamVolume(AudioManager.STREAM_MUSIC, androidVolume, 0);
         
-        Log.d(TAG, "Volume set: " + volume + " dB -> " + androidVolume + "/" + maxVolume);
+        TraceRing.record(TraceRing.VOLUME_CHANGED, 0, Math.round(volume * 1000), androidVolume);
+    }
+    
+    /**
+     * Set the volume of a single sender. Mixed sessions get their own gain
+     * so one sender cannot change the volume of another; otherwise this
+     * controls the device volume.
+     * 
+     * @param sessionId The session ID
+     * @param volume The volume level in dB (AirPlay uses -30 to 0 dB)
+     */
+    public void setSessionVolume(String sessionId, float volume) {
+        AudioSession session = sessionId != null ? sessions.get(sessionId) : null;
+        if (session == null || session.mixerInput == null) {
+            setVolume(volume);
+            return;
+        }
+        
+        float gain;
+        if (volume <= -30f) {
+            gain = 0f;
+        } else if (volume >= 0f) {
+            gain = 1f;
+        } else {
+            gain = (float) Math.pow(10, volume / 20);
+        }
+        session.mixerInput.setGain(gain);
+        
+        TraceRing.record(TraceRing.VOLUME_CHANGED, session.traceId, Math.round(volume * 1000), 0);
     }
     
     /**
@@ -189,148 +878,700 @@ public class AudioHandler {
      */
     public void updateCoverArt(byte[] imageData) {
         // In a real implementation, this would update the UI with the cover art
-        Log.d(TAG, "Cover art updated: " + imageData.length + " bytes");
+        TraceRing.record(TraceRing.COVER_ART, 0, imageData.length, 0);
+    }
+    
+    /**
+     * Create a streaming 16-bit stereo output track at the default rate
+     * 
+     * @return The track, or null if the device cannot provide one
+     */
+    static AudioTrack createOutputTrack() {
+        return createOutputTrack(DEFAULT_SAMPLE_RATE, AudioFormat.ENCODING_PCM_16BIT);
+    }
+    
+    /**
+     * Create a stereo output track for a session, preferring float output so
+     * the pipeline's samples reach the device without being requantized,
+     * and falling back to 16-bit where float is refused
+     * 
+     * @param sampleRate The sample rate in Hz
+     * @return The track, or null if the device cannot provide one
+     */
+    static AudioTrack openOutputTrack(int sampleRate) {
+        try {
+            AudioTrack track = createOutputTrack(sampleRate, AudioFormat.ENCODING_PCM_FLOAT, true);
+            if (track != null && track.getState() == AudioTrack.STATE_INITIALIZED) {
+                return track;
+            }
+            releaseTrack(track);
+        } catch (IllegalArgumentException | UnsupportedOperationException e) {
+            Log.w(TAG, "Float output unavailable, using 16-bit", e);
+        }
+        return createOutputTrack(sampleRate, AudioFormat.ENCODING_PCM_16BIT, true);
+    }
+    
+    /**
+     * Create a streaming stereo output track
+     * 
+     * @param sampleRate The sample rate in Hz
+     * @param encoding An {@link AudioFormat} PCM encoding
+     * @return The track, or null if the device cannot provide one
+     */
+    public static AudioTrack createOutputTrack(int sampleRate, int encoding) {
+        return createOutputTrack(sampleRate, encoding, false);
+    }
+    
+    /**
+     * Create a streaming stereo output track
+     * 
+     * @param sampleRate The sample rate in Hz
+     * @param encoding An {@link AudioFormat} PCM encoding
+     * @param lowLatency Whether to ask for the low-latency output path, for
+     *                   tracks whose buffer size is managed while playing
+     * @return The track, or null if the device cannot provide one
+     */
+    static AudioTrack createOutputTrack(int sampleRate, int encoding, boolean lowLatency) {
+        int bufferSize = getOutputBufferSize(sampleRate, encoding);
+        
+        if (bufferSize <= 0) {
+            Log.e(TAG, "Unable to determine minimum buffer size for audio playback");
+            return null;
+        }
+        
+        // Create AudioTrack
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            AudioTrack.Builder builder = new AudioTrack.Builder()
+                    .setAudioAttributes(new AudioAttributes.Builder()
+                            .setUsage(AudioAttributes.USAGE_MEDIA)
+                            .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                            .build())
+                    .setAudioFormat(new AudioFormat.Builder()
+                            .setSampleRate(sampleRate)
+                            .setEncoding(encoding)
+                            .setChannelMask(AudioFormat.CHANNEL_OUT_STEREO)
+                            .build())
+                    .setBufferSizeInBytes(bufferSize)
+                    .setTransferMode(AudioTrack.MODE_STREAM);
+            if (lowLatency && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                builder.setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY);
+            }
+            return builder.build();
+        } else {
+            return new AudioTrack(
+                    AudioManager.STREAM_MUSIC,
+                    sampleRate,
+                    AudioFormat.CHANNEL_OUT_STEREO,
+                    encoding,
+                    bufferSize,
+                    AudioTrack.MODE_STREAM);
+        }
+    }
+    
+    /**
+     * Estimate when the next frame written to a playing track will reach the
+     * speaker, from the track's timestamp where it has one and otherwise from
+     * how much it has buffered
+     * 
+     * @param track The track
+     * @param timestamp Scratch timestamp to fill
+     * @param framesWritten Frames written to the track since it was created or flushed
+     * @param sampleRate Sample rate of the track in Hz
+     * @return Time on the {@link System#nanoTime()} clock
+     */
+    public static long getPresentationNanos(AudioTrack track, AudioTimestamp timestamp,
+                                            long framesWritten, int sampleRate) {
+        if (track.getTimestamp(timestamp)) {
+            return timestamp.nanoTime + (framesWritten - timestamp.framePosition) * 1_000_000_000L / sampleRate;
+        }
+        long played = track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+        return System.nanoTime() + (framesWritten - played) * 1_000_000_000L / sampleRate;
+    }
+    
+    /**
+     * Get the output track buffer size in bytes, or a non-positive value if
+     * the device cannot report a minimum
+     */
+    static int getOutputBufferSize(int sampleRate, int encoding) {
+        int minBufferSize = AudioTrack.getMinBufferSize(
+                sampleRate,
+                AudioFormat.CHANNEL_OUT_STEREO,
+                encoding);
+        
+        // Larger buffer for smoother playback
+        return minBufferSize > 0 ? minBufferSize * OUTPUT_BUFFER_MULTIPLIER : minBufferSize;
+    }
+    
+    /**
+     * Apply a linear gain ramp to stereo float samples in place
+     * 
+     * @param samples Interleaved samples
+     * @param count Number of valid samples in the buffer
+     * @param startFrame Position of the first frame within the ramp
+     * @param lengthFrames Length of the whole ramp
+     * @param fadeIn True to ramp up from silence, false to ramp down to it
+     * @return Number of frames the ramp advanced
+     */
+    private static int applyCrossfadeRamp(float[] samples, int count, int startFrame, int lengthFrames,
+                                          boolean fadeIn) {
+        int frames = count / DEFAULT_CHANNEL_COUNT;
+        int rampFrames = Math.min(frames, lengthFrames - startFrame);
+        
+        for (int frame = 0; frame < frames; frame++) {
+            int position = startFrame + frame;
+            float gain;
+            if (position >= lengthFrames) {
+                gain = fadeIn ? 1f : 0f;
+            } else {
+                gain = (float) position / lengthFrames;
+                if (!fadeIn) {
+                    gain = 1f - gain;
+                }
+            }
+            
+            int offset = frame * DEFAULT_CHANNEL_COUNT;
+            for (int i = offset; i < offset + DEFAULT_CHANNEL_COUNT; i++) {
+                samples[i] *= gain;
+            }
+        }
+        
+        return Math.max(rampFrames, 0);
+    }
+    
+    /**
+     * Writes to a platform track. Resizing needs API 24; before that the
+     * buffer keeps the size the track was created with.
+     */
+    private static final class TrackSink implements OutputSink {
+        private final AudioTrack track;
+        
+        TrackSink(AudioTrack track) {
+            this.track = track;
+        }
+        
+        @Override
+        public int write(ByteBuffer data, int bytes) {
+            return track.write(data, bytes, AudioTrack.WRITE_BLOCKING);
+        }
+        
+        @Override
+        public long getFramesPlayed() {
+            return track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+        }
+        
+        @Override
+        public int getUnderrunCount() {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ? track.getUnderrunCount() : 0;
+        }
+        
+        @Override
+        public int getBufferCapacityInFrames() {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ? track.getBufferCapacityInFrames() : 0;
+        }
+        
+        @Override
+        public int setBufferSizeInFrames(int frames) {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ? track.setBufferSizeInFrames(frames) : 0;
+        }
     }
     
     /**
-     * Inner class representing a single audio playback session
+     * Inner class representing a single audio playback session.
+     * The playback thread owns the AudioTrack; other threads only change
+     * the session state and queue, so the track is never touched concurrently.
      */
-    private class AudioSession {
+    private class AudioSession implements SessionRegistry.Session {
         private final String sessionId;
-        private final ConcurrentLinkedQueue<byte[]> audioBuffers = new ConcurrentLinkedQueue<>();
+        private final String senderName;
+        private final int traceId = nextTraceId.incrementAndGet();
+        private final AudioSpillQueue audioBuffers;
+        private final TimerWheel.Timeout idleTimeout;
+        private final TimerWheel.Timeout controlTimeout;
+        private final SessionLifecycle lifecycle = new SessionLifecycle();
+        private volatile boolean flushRequested = false;
+        private volatile int outputBufferMillis;
+        
+        // Format of queued audio, fixed when the session is created
+        private final int inputSampleRate = sampleRate;
+        private final int inputBitDepth = bitDepth;
+        private final int inputBytesPerFrame = DEFAULT_CHANNEL_COUNT * inputBitDepth / 8;
+        private final int inputBytesPerMilli = Math.max(1, inputSampleRate * inputBytesPerFrame / 1000);
+        
+        // Fades and underrun blocks at the session's own rate
+        private final int crossfadeFrames = inputSampleRate * CROSSFADE_MS / 1000;
+        private final int underrunBlockFrames = inputSampleRate * UNDERRUN_BLOCK_MS / 1000;
+        private final int underrunLowWaterFrames = UNDERRUN_LOW_WATER_BLOCKS * underrunBlockFrames;
+        
+        // Last RTP sequence number seen, written by the receiving thread only
+        private volatile int lastSeqNo = -1;
+        
+        // Packets before this sequence number are dropped, after a ranged flush
+        private volatile int flushUntilSeqNo = -1;
+        
+        // When the last flush was asked for, cleared once audio from after it
+        // has been written; and whether it kept the output running
+        private volatile long flushedAt = 0;
+        private volatile boolean rangedFlush;
+        private volatile boolean rangedFlushRequested;
+        private long silenceUntil;
+        private final float[] silenceBuffer = new float[underrunBlockFrames * DEFAULT_CHANNEL_COUNT];
+        
+        // Set before start() when this session is taking over from another
+        private volatile long takeoverStartedAt = 0;
+        
+        // For time-to-first-audio, cleared once audio has been written
+        private long createdAt = SystemClock.elapsedRealtime();
+        private boolean warmStart;
+        private long connectedAt;
+        private boolean cachedSender;
+        
+        // Set in party mode, in which case no AudioTrack is created
+        private volatile AudioMixer.Input mixerInput;
+        
+        // Owned by the playback thread; audio is written through the sink
         private AudioTrack audioTrack;
-        private boolean isRunning = false;
+        private OutputSink output;
+        private int fadeInFrames = crossfadeFrames;
+        private int fadeOutFrames = 0;
+        private final LossConcealer concealer = new LossConcealer();
+        private final DspChain dsp = new DspChain(inputSampleRate);
+        private final float[] concealBuffer = new float[underrunBlockFrames * DEFAULT_CHANNEL_COUNT];
+        private long framesWritten;
         
-        public AudioSession(String sessionId) {
+        // Float working buffer and 16-bit output, grown to the largest chunk seen
+        private final SampleConverter converter = new SampleConverter();
+        private float[] samples = new float[0];
+        private byte[] pcm16 = new byte[0];
+        private boolean floatOutput;
+        private boolean trackMuted;
+        private final AudioTimestamp timestamp = new AudioTimestamp();
+        
+        // Track writes go through a direct buffer, which the platform can
+        // read in place instead of copying a Java array across JNI
+        private ByteBuffer directOutput;
+        private FloatBuffer directFloats;
+        
+        // Sizes the track's buffer while playing, where the platform allows
+        private OutputBufferController bufferController;
+        private boolean starvedSinceCheck;
+        private long nextBufferCheckAt;
+        
+        public AudioSession(String sessionId, String senderName, TimerWheel.Timeout controlTimeout) {
             this.sessionId = sessionId;
+            this.senderName = senderName;
+            this.controlTimeout = controlTimeout;
+            this.audioBuffers = new AudioSpillQueue(
+                    ConfigManager.getInstance().isAudioSpillEnabled() ? context.getCacheDir() : null,
+                    SPILL_WINDOW_MS * inputBytesPerMilli, SPILL_FILE_BYTES,
+                    ConfigManager.getInstance().getMaxQueuedAudioBytes());
+            this.idleTimeout = reaper.schedule(SESSION_IDLE_TIMEOUT_MS, () -> {
+                Log.w(TAG, "Reaping idle audio session: " + sessionId);
+                TraceRing.record(TraceRing.SESSION_REAPED, traceId, 0, 0);
+                stopAudioSession(sessionId);
+            });
+        }
+        
+        public void beginTakeover(long startedAt) {
+            takeoverStartedAt = startedAt;
+            fadeInFrames = 0;
+        }
+        
+        @Override
+        public String getSessionId() {
+            return sessionId;
+        }
+        
+        @Override
+        public SessionLifecycle getLifecycle() {
+            return lifecycle;
         }
         
         public void start() {
-            if (isRunning) {
-                return;
-            }
-            
-            // Initialize AudioTrack
-            int bufferSize = AudioTrack.getMinBufferSize(
-                    DEFAULT_SAMPLE_RATE,
-                    AudioFormat.CHANNEL_OUT_STEREO,
-                    AudioFormat.ENCODING_PCM_16BIT);
-            
-            if (bufferSize <= 0) {
-                Log.e(TAG, "Unable to determine minimum buffer size for audio playback");
+            if (!lifecycle.start()) {
                 return;
             }
             
-            // Create AudioTrack
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                audioTrack = new AudioTrack.Builder()
-                        .setAudioAttributes(new AudioAttributes.Builder()
-                                .setUsage(AudioAttributes.USAGE_MEDIA)
-                                .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
-                                .build())
-                        .setAudioFormat(new AudioFormat.Builder()
-                                .setSampleRate(DEFAULT_SAMPLE_RATE)
-                                .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
-                                .setChannelMask(AudioFormat.CHANNEL_OUT_STEREO)
-                                .build())
-                        .setBufferSizeInBytes(bufferSize * 4) // Larger buffer for smoother playback
-                        .setTransferMode(AudioTrack.MODE_STREAM)
-                        .build();
-            } else {
-                audioTrack = new AudioTrack(
-                        AudioManager.STREAM_MUSIC,
-                        DEFAULT_SAMPLE_RATE,
-                        AudioFormat.CHANNEL_OUT_STEREO,
-                        AudioFormat.ENCODING_PCM_16BIT,
-                        bufferSize * 4,
-                        AudioTrack.MODE_STREAM);
-            }
-            
-            audioTrack.play();
-            isRunning = true;
-            
             // Start audio processing thread
             audioProcessingExecutor.execute(this::processAudioLoop);
             
-            Log.d(TAG, "Audio session started: " + sessionId);
+            TraceRing.record(TraceRing.SESSION_STARTED, traceId, mixerInput != null ? 1 : 0, 0);
+        }
+        
+        /**
+         * Called once another session has taken the output. The playback
+         * thread fades out what is already queued and then stops itself.
+         */
+        public void onPreempted() {
+            idleTimeout.cancel();
+            notifyStatsChanged();
         }
         
         public void stop() {
-            isRunning = false;
+            SessionState previous = lifecycle.stop();
+            idleTimeout.cancel();
+            clearQueue();
             
+            if (previous != SessionState.STOPPED) {
+                TraceRing.record(TraceRing.SESSION_STOPPED, traceId, 0, 0);
+            }
+        }
+        
+        public void queueAudioData(byte[] data, int offset, int length) {
+            if (lifecycle.get() == SessionState.PLAYING) {
+                audioBuffers.offer(data, offset, length);
+            }
+        }
+        
+        public void queueGap(int length, int packets) {
+            if (lifecycle.get() == SessionState.PLAYING) {
+                audioBuffers.offerGap(length, packets);
+            }
+        }
+        
+        public void flush() {
+            clearQueue();
+            flushUntilSeqNo = -1;
+            rangedFlush = false;
+            flushedAt = SystemClock.elapsedRealtime();
+            flushRequested = true;
+        }
+        
+        /**
+         * Drop audio before the given sequence number. Packets already
+         * queued from that point on, if the sender got ahead of its FLUSH,
+         * are kept.
+         */
+        public void flushUntil(int seqNo) {
+            int last = lastSeqNo;
+            int keep = last >= 0 ? ((last - seqNo) & 0xFFFF) + 1 : 0;
+            if (keep == 0 || keep >= 0x8000) {
+                // Nothing from the new position has arrived yet
+                keep = 0;
+                flushUntilSeqNo = seqNo;
+            }
+            audioBuffers.retainNewest(keep);
+            rangedFlush = true;
+            flushedAt = SystemClock.elapsedRealtime();
+            rangedFlushRequested = true;
+        }
+        
+        private byte[] pollQueue() {
+            return audioBuffers.poll();
+        }
+        
+        private void clearQueue() {
+            audioBuffers.clear();
+        }
+        
+        private void releaseAudioTrack() {
             if (audioTrack != null) {
                 try {
                     audioTrack.pause();
                     audioTrack.flush();
-                    audioTrack.release();
+                    // Hand the silent track to whichever session comes next
+                    parkSpareTrack(audioTrack);
                 } catch (Exception e) {
                     Log.e(TAG, "Error releasing AudioTrack", e);
+                    releaseTrack(audioTrack);
                 }
                 audioTrack = null;
+                output = null;
+            }
+        }
+        
+        private void processAudioLoop() {
+            if (mixerInput == null) {
+                audioTrack = takeSpareTrack();
+                if (audioTrack != null && audioTrack.getSampleRate() != inputSampleRate) {
+                    // Parked for a different format
+                    releaseTrack(audioTrack);
+                    audioTrack = null;
+                }
+                warmStart = audioTrack != null;
+                if (audioTrack == null) {
+                    audioTrack = openOutputTrack(inputSampleRate);
+                }
+                if (audioTrack == null) {
+                    stopAudioSession(sessionId);
+                    return;
+                }
+                output = new TrackSink(audioTrack);
+                audioTrack.play();
+                framesWritten = output.getFramesPlayed();
+                floatOutput = audioTrack.getAudioFormat() == AudioFormat.ENCODING_PCM_FLOAT;
+                int encoding = floatOutput ? AudioFormat.ENCODING_PCM_FLOAT : AudioFormat.ENCODING_PCM_16BIT;
+                int bytesPerFrame = floatOutput ? DEFAULT_CHANNEL_COUNT * 4 : BYTES_PER_FRAME;
+                outputBufferMillis = (int) (getOutputBufferSize(inputSampleRate, encoding) * 1000L
+                        / ((long) inputSampleRate * bytesPerFrame));
+                startBufferController();
             }
             
-            audioBuffers.clear();
-            Log.d(TAG, "Audio session stopped: " + sessionId);
+            try {
+                byte[] buffer;
+                SessionState current;
+                
+                while ((current = lifecycle.get()) != SessionState.STOPPED) {
+                    if (flushRequested) {
+                        flushRequested = false;
+                        if (audioTrack != null) {
+                            audioTrack.pause();
+                            audioTrack.flush();
+                            audioTrack.play();
+                            framesWritten = output.getFramesPlayed();
+                        }
+                        // The flush itself can count as an underrun
+                        starvedSinceCheck = true;
+                    }
+                    if (rangedFlushRequested) {
+                        rangedFlushRequested = false;
+                        // Ramp the new position in over whatever concealment
+                        // or silence is playing when it arrives
+                        fadeInFrames = 0;
+                        silenceUntil = SystemClock.elapsedRealtime() + FLUSH_SILENCE_MAX_MS;
+                    }
+                    
+                    buffer = pollQueue();
+                    
+                    if (current == SessionState.PREEMPTED) {
+                        // Fade out whatever is queued; once the fade is done
+                        // or nothing is left, give up the output
+                        if (buffer == null || fadeOutFrames >= crossfadeFrames) {
+                            break;
+                        }
+                        int count = decode(buffer);
+                        audioBuffers.recycle(buffer);
+                        dsp.process(samples, count);
+                        fadeOutFrames += applyCrossfadeRamp(samples, count, fadeOutFrames, crossfadeFrames, false);
+                        write(samples, count);
+                        continue;
+                    }
+                    
+                    if (buffer != null) {
+                        int count = decode(buffer);
+                        audioBuffers.recycle(buffer);
+                        
+                        // Fill lost packets from what came before, and blend
+                        // real audio back in over any concealment
+                        if (audioBuffers.wasGap()) {
+                            concealer.conceal(samples, count);
+                        } else {
+                            concealer.accept(samples, count);
+                        }
+                        dsp.process(samples, count);
+                        
+                        if (fadeInFrames < crossfadeFrames) {
+                            fadeInFrames += applyCrossfadeRamp(samples, count, fadeInFrames, crossfadeFrames, true);
+                        }
+                        
+                        boolean written = write(samples, count);
+                        if (written && createdAt != 0 && mixerInput == null) {
+                            long now = SystemClock.elapsedRealtime();
+                            recordFirstAudio(warmStart, now - createdAt);
+                            if (connectedAt != 0) {
+                                recordFirstAudioSinceConnect(cachedSender, now - connectedAt);
+                            }
+                            createdAt = 0;
+                        }
+                        if (written && takeoverStartedAt != 0) {
+                            recordSwitchover(traceId, SystemClock.elapsedRealtime() - takeoverStartedAt);
+                            takeoverStartedAt = 0;
+                        }
+                        if (written && flushedAt != 0) {
+                            recordFlushResume(rangedFlush, SystemClock.elapsedRealtime() - flushedAt);
+                            flushedAt = 0;
+                            silenceUntil = 0;
+                        }
+                        if (written) {
+                            adjustOutputBuffer();
+                        }
+                    } else if (isOutputRunningDry() && concealer.canConcealMore()) {
+                        // Keep the track fed rather than let it underrun and
+                        // click; this fades out and stops on its own
+                        starvedSinceCheck = true;
+                        concealer.conceal(concealBuffer, concealBuffer.length);
+                        dsp.process(concealBuffer, concealBuffer.length);
+                        write(concealBuffer, concealBuffer.length);
+                    } else if (silenceUntil != 0 && isOutputRunningDry()
+                            && SystemClock.elapsedRealtime() < silenceUntil) {
+                        // Waiting for the sender after a ranged flush: keep
+                        // the track playing so it need not be primed again
+                        starvedSinceCheck = true;
+                        write(silenceBuffer, silenceBuffer.length);
+                    } else {
+                        // No data available, wait a bit
+                        starvedSinceCheck = true;
+                        try {
+                            Thread.sleep(10);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                }
+            } finally {
+                lifecycle.stop();
+                shedAudioBytes.addAndGet(audioBuffers.getShedBytes());
+                chunkAllocations.addAndGet(audioBuffers.getChunkAllocations());
+                audioBuffers.close();
+                releaseAudioTrack();
+                if (mixerInput != null) {
+                    mixerInput.close();
+                }
+            }
         }
         
-        public void queueAudioData(byte[] data) {
-            if (isRunning) {
-                audioBuffers.add(data);
+        /**
+         * Start sizing the output track's buffer from its underruns, using
+         * part of its capacity to begin with. Needs the platform to report
+         * underruns and allow resizing.
+         */
+        private void startBufferController() {
+            bufferController = null;
+            int capacity = output.getBufferCapacityInFrames();
+            if (capacity <= 0) {
+                return;
             }
+            long now = SystemClock.elapsedRealtime();
+            bufferController = new OutputBufferController(
+                    capacity * OUTPUT_BUFFER_START_MULTIPLIER / OUTPUT_BUFFER_MULTIPLIER, capacity, now);
+            bufferController.start(output, now);
+            nextBufferCheckAt = now + OUTPUT_BUFFER_CHECK_INTERVAL_MS;
+            outputBufferMillis = (int) (bufferController.getTargetFrames() * 1000L / inputSampleRate);
         }
         
-        public void flush() {
-            audioBuffers.clear();
-            if (audioTrack != null) {
-                audioTrack.flush();
+        /**
+         * Let the controller resize the output buffer after the latest
+         * underruns, at most every check interval
+         */
+        private void adjustOutputBuffer() {
+            if (bufferController == null) {
+                return;
+            }
+            long now = SystemClock.elapsedRealtime();
+            if (now < nextBufferCheckAt) {
+                return;
+            }
+            nextBufferCheckAt = now + OUTPUT_BUFFER_CHECK_INTERVAL_MS;
+            
+            int previous = bufferController.getTargetFrames();
+            int frames = bufferController.check(output, starvedSinceCheck, now);
+            starvedSinceCheck = false;
+            if (frames > 0) {
+                (frames > previous ? outputBufferGrows : outputBufferShrinks).incrementAndGet();
+                outputBufferMillis = (int) (bufferController.getTargetFrames() * 1000L / inputSampleRate);
             }
         }
         
-        private void processAudioLoop() {
-            byte[] buffer;
+        /**
+         * Whether the output track is close to running out of audio
+         */
+        private boolean isOutputRunningDry() {
+            if (output == null) {
+                return false;
+            }
+            long buffered = framesWritten - output.getFramesPlayed();
+            return buffered < underrunLowWaterFrames;
+        }
+        
+        /**
+         * Decode a queued chunk into the float working buffer
+         * 
+         * @return Number of samples decoded
+         */
+        private int decode(byte[] buffer) {
+            int count = buffer.length / (inputBitDepth / 8);
+            if (samples.length < count) {
+                samples = new float[count];
+            }
+            return SampleConverter.decode(buffer, 0, buffer.length, inputBitDepth, samples);
+        }
+        
+        /**
+         * Convert float samples to whatever the output accepts and write them
+         */
+        private boolean write(float[] buffer, int count) {
+            OutputListener[] listeners = mixerInput == null ? outputListeners : null;
+            boolean hasListeners = listeners != null && listeners.length > 0;
+            if (!floatOutput || mixerInput != null || hasListeners) {
+                if (pcm16.length < count * 2) {
+                    pcm16 = new byte[count * 2];
+                }
+                converter.encodePcm16(buffer, count, pcm16);
+            }
             
-            while (isRunning) {
-                buffer = audioBuffers.poll();
-                
-                if (buffer != null && audioTrack != null) {
-                    try {
-                        // Write audio data to AudioTrack
-                        audioTrack.write(buffer, 0, buffer.length);
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error writing to AudioTrack", e);
+            if (mixerInput != null) {
+                return writeToMixer(pcm16, count * 2);
+            }
+            
+            if (hasListeners) {
+                long playAt = getPresentationNanos(audioTrack, timestamp, framesWritten, inputSampleRate);
+                for (OutputListener listener : listeners) {
+                    listener.onOutput(pcm16, count * 2, inputSampleRate, playAt);
+                }
+            }
+            
+            if (trackMuted != localOutputMuted) {
+                trackMuted = localOutputMuted;
+                audioTrack.setVolume(trackMuted ? 0f : 1f);
+            }
+            
+            try {
+                // Write audio data to the track
+                int written;
+                if (floatOutput) {
+                    SampleConverter.clip(buffer, count);
+                    ByteBuffer direct = prepareDirectOutput(count * 4);
+                    directFloats.put(buffer, 0, count);
+                    written = output.write(direct, count * 4);
+                    if (written > 0) {
+                        framesWritten += written / (DEFAULT_CHANNEL_COUNT * 4);
                     }
                 } else {
-                    // No data available, wait a bit
-                    try {
-                        Thread.sleep(10);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        break;
+                    ByteBuffer direct = prepareDirectOutput(count * 2);
+                    direct.put(pcm16, 0, count * 2).flip();
+                    written = output.write(direct, count * 2);
+                    if (written > 0) {
+                        framesWritten += written / BYTES_PER_FRAME;
                     }
                 }
+                return written > 0;
+            } catch (Exception e) {
+                Log.e(TAG, "Error writing to AudioTrack", e);
+                return false;
             }
         }
-    }
-    
-    /**
-     * Inner class for decoding AAC audio
-     * This is a placeholder - real implementation would use MediaCodec
-     */
-    private class AACDecoder {
-        // In a real implementation, this would use Android's MediaCodec API
-        // to decode AAC audio to PCM
-        
-        public AACDecoder() {
-            // Initialize decoder
-        }
         
-        public byte[] decode(byte[] aacData) {
-            // Placeholder - would decode AAC to PCM
-            return aacData; // Just pass through for now
+        /**
+         * Get the direct output buffer cleared for a write of the given
+         * size, growing it if needed. Float writes fill it through
+         * {@link #directFloats}, which shares its content.
+         */
+        private ByteBuffer prepareDirectOutput(int bytes) {
+            if (directOutput == null || directOutput.capacity() < bytes) {
+                directOutput = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+                directFloats = directOutput.asFloatBuffer();
+            }
+            directOutput.clear();
+            directOutput.limit(bytes);
+            directFloats.clear();
+            return directOutput;
         }
         
-        public void release() {
-            // Clean up resources
+        private boolean writeToMixer(byte[] buffer, int length) {
+            int offset = 0;
+            while (offset < length && lifecycle.get() != SessionState.STOPPED) {
+                offset += mixerInput.write(buffer, offset, length - offset);
+                if (offset < length) {
+                    // Input ring is full, let the mixer drain it
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+            }
+            return offset > 0;
         }
     }
 }
\ No newline at end of file
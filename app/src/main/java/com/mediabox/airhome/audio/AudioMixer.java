@@ -0,0 +1,346 @@
+package com.mediabox.airhome.audio;
+
+import android.media.AudioTrack;
+import android.util.Log;
+
+import com.mediabox.airhome.util.ThreadPolicy;
+
+/**
+ * Mixes several session streams into a single output track.
+ *
+ * Used in party mode, where more than one sender plays into the room at
+ * once. Every input is a preallocated single-producer ring of 16-bit
+ * stereo frames, and the mixer thread sums one period at a time into a
+ * preallocated accumulator, so steady-state mixing does not allocate.
+ */
+public class AudioMixer {
+    private static final String TAG = "AudioMixer";
+
+    /** Maximum number of streams that can be mixed at once */
+    public static final int MAX_INPUTS = 3;
+
+    private static final int CHANNELS = 2;
+    private static final int BYTES_PER_FRAME = CHANNELS * 2;
+
+    // 10 ms mix period at 44.1 kHz
+    private static final int PERIOD_FRAMES = 441;
+
+    // Each input holds up to half a second and starts mixing once primed
+    private static final int INPUT_CAPACITY_FRAMES = 22050;
+    private static final int TARGET_FILL_FRAMES = 4410;
+    private static final int FILL_TOLERANCE_FRAMES = 441;
+
+    // Unity gain in Q15 fixed point
+    private static final int UNITY_GAIN = 1 << 15;
+
+    private final Input[] inputs = new Input[MAX_INPUTS];
+    private final int[] accumulator = new int[PERIOD_FRAMES * CHANNELS];
+    private final short[] output = new short[PERIOD_FRAMES * CHANNELS];
+
+    private volatile boolean isRunning = false;
+    private Thread mixerThread;
+    private volatile AudioTrack audioTrack;
+
+    // Mixing cost metrics, written by the mixer thread
+    private volatile long totalMixNanos;
+    private volatile long totalStreamPeriods;
+
+    public AudioMixer() {
+        for (int i = 0; i < MAX_INPUTS; i++) {
+            inputs[i] = new Input();
+        }
+    }
+
+    /**
+     * Start the mixer thread and its output track
+     */
+    public synchronized void start() {
+        if (isRunning) {
+            return;
+        }
+
+        isRunning = true;
+        mixerThread = ThreadPolicy.newThread(ThreadPolicy.Stage.PLAYBACK, "AudioMixerThread", this::mixLoop);
+        mixerThread.start();
+        Log.d(TAG, "Audio mixer started");
+    }
+
+    /**
+     * Stop the mixer thread and release every input
+     */
+    public synchronized void stop() {
+        if (!isRunning) {
+            return;
+        }
+
+        isRunning = false;
+        if (mixerThread != null) {
+            mixerThread.interrupt();
+            mixerThread = null;
+        }
+
+        for (Input input : inputs) {
+            input.close();
+        }
+        Log.d(TAG, "Audio mixer stopped");
+    }
+
+    /**
+     * Claim a free input for a new stream
+     *
+     * @return The input, or null if every input is in use
+     */
+    public synchronized Input acquireInput() {
+        for (Input input : inputs) {
+            if (!input.inUse) {
+                input.open();
+                return input;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the number of streams currently attached
+     */
+    public synchronized int getActiveInputCount() {
+        int count = 0;
+        for (Input input : inputs) {
+            if (input.inUse) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of output tracks held by the mixer, which is at most
+     * one no matter how many streams are attached
+     */
+    public int getOutputTrackCount() {
+        return audioTrack != null ? 1 : 0;
+    }
+
+    /**
+     * Get the average cost of mixing one stream for one period
+     */
+    public long getMixNanosPerStreamPeriod() {
+        long periods = totalStreamPeriods;
+        return periods > 0 ? totalMixNanos / periods : 0;
+    }
+
+    private void mixLoop() {
+        audioTrack = AudioHandler.createOutputTrack();
+        if (audioTrack == null) {
+            isRunning = false;
+            return;
+        }
+        audioTrack.play();
+
+        try {
+            while (isRunning) {
+                long startNanos = System.nanoTime();
+                int mixed = mixPeriod();
+
+                if (mixed == 0) {
+                    // Nothing primed yet, wait for data rather than spinning
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    continue;
+                }
+
+                totalMixNanos += System.nanoTime() - startNanos;
+                totalStreamPeriods += mixed;
+
+                // Blocking write paces the loop at the output rate
+                audioTrack.write(output, 0, output.length);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error in mixer loop", e);
+        } finally {
+            try {
+                audioTrack.pause();
+                audioTrack.flush();
+                audioTrack.release();
+            } catch (Exception e) {
+                Log.e(TAG, "Error releasing AudioTrack", e);
+            }
+            audioTrack = null;
+        }
+    }
+
+    /**
+     * Mix one period from every primed input into the output buffer.
+     * Called on the mixer thread; tests drive it directly.
+     *
+     * @return Number of streams that contributed
+     */
+    int mixPeriod() {
+        int contributors = 0;
+
+        for (int i = 0; i < accumulator.length; i++) {
+            accumulator[i] = 0;
+        }
+
+        for (Input input : inputs) {
+            if (input.inUse && input.mixInto(accumulator)) {
+                contributors++;
+            }
+        }
+
+        // Saturate the sum back to 16 bits
+        for (int i = 0; i < accumulator.length; i++) {
+            int sample = accumulator[i];
+            if (sample > Short.MAX_VALUE) {
+                sample = Short.MAX_VALUE;
+            } else if (sample < Short.MIN_VALUE) {
+                sample = Short.MIN_VALUE;
+            }
+            output[i] = (short) sample;
+        }
+
+        return contributors;
+    }
+
+    /**
+     * Get the last period mixed, as interleaved 16-bit stereo
+     */
+    short[] getPeriodOutput() {
+        return output;
+    }
+
+    /**
+     * A single stream feeding the mixer. Written by one producer thread and
+     * read by the mixer thread only.
+     */
+    public static final class Input {
+        private final short[] ring = new short[INPUT_CAPACITY_FRAMES * CHANNELS];
+
+        // Monotonic frame counters; the ring index is the counter modulo capacity
+        private volatile long writeFrame;
+        private volatile long readFrame;
+
+        private volatile boolean inUse;
+        private volatile int gainQ15 = UNITY_GAIN;
+
+        // Bumped each time the input is handed to a new stream
+        private volatile int generation;
+
+        // Mixer thread only
+        private boolean primed;
+        private int mixedGeneration;
+
+        private Input() {
+        }
+
+        private void open() {
+            writeFrame = 0;
+            readFrame = 0;
+            gainQ15 = UNITY_GAIN;
+            // The mixer thread sees this and primes the new stream afresh
+            generation++;
+            inUse = true;
+        }
+
+        /**
+         * Detach this input from the mixer so another stream can use it
+         */
+        public void close() {
+            inUse = false;
+        }
+
+        /**
+         * Set the linear gain applied to this stream
+         *
+         * @param gain Gain between 0 and 1
+         */
+        public void setGain(float gain) {
+            gainQ15 = Math.round(Math.max(0f, Math.min(1f, gain)) * UNITY_GAIN);
+        }
+
+        /**
+         * Copy 16-bit little-endian stereo PCM into the ring
+         *
+         * @return Number of bytes consumed, which is less than length when
+         *         the ring is full
+         */
+        public int write(byte[] pcm, int offset, int length) {
+            long write = writeFrame;
+            int free = INPUT_CAPACITY_FRAMES - (int) (write - readFrame);
+            int frames = Math.min(length / BYTES_PER_FRAME, free);
+
+            int index = (int) (write % INPUT_CAPACITY_FRAMES) * CHANNELS;
+            int in = offset;
+            for (int i = 0; i < frames * CHANNELS; i++) {
+                ring[index] = (short) ((pcm[in] & 0xFF) | (pcm[in + 1] << 8));
+                in += 2;
+                if (++index == ring.length) {
+                    index = 0;
+                }
+            }
+
+            writeFrame = write + frames;
+            return frames * BYTES_PER_FRAME;
+        }
+
+        /**
+         * Add one period of this stream into the accumulator, nudging the
+         * read position by a frame when the fill level drifts from its
+         * target so that senders with slightly different clocks stay aligned
+         *
+         * @return True if the stream contributed audio
+         */
+        private boolean mixInto(int[] accumulator) {
+            long read = readFrame;
+            int fill = (int) (writeFrame - read);
+
+            int current = generation;
+            if (current != mixedGeneration) {
+                mixedGeneration = current;
+                primed = false;
+            }
+
+            if (!primed) {
+                if (fill < TARGET_FILL_FRAMES) {
+                    return false;
+                }
+                primed = true;
+            }
+
+            if (fill < PERIOD_FRAMES) {
+                // Underrun: drop out and re-prime rather than click
+                primed = false;
+                return false;
+            }
+
+            int gain = gainQ15;
+            int index = (int) (read % INPUT_CAPACITY_FRAMES) * CHANNELS;
+            int frames = PERIOD_FRAMES;
+            int out = 0;
+
+            // Sender clock running fast: skip a frame. Running slow: repeat one.
+            int consumed = frames;
+            if (fill > TARGET_FILL_FRAMES + FILL_TOLERANCE_FRAMES) {
+                consumed = frames + 1;
+                index = (index + CHANNELS) % ring.length;
+            } else if (fill < TARGET_FILL_FRAMES - FILL_TOLERANCE_FRAMES) {
+                consumed = frames - 1;
+                accumulator[out++] += (ring[index] * gain) >> 15;
+                accumulator[out++] += (ring[index + 1] * gain) >> 15;
+            }
+
+            while (out < accumulator.length) {
+                accumulator[out++] += (ring[index] * gain) >> 15;
+                if (++index == ring.length) {
+                    index = 0;
+                }
+            }
+
+            readFrame = read + consumed;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,563 @@
+package com.mediabox.airhome.audio;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Queue of audio chunks for one session that keeps only a small window in
+ * memory and spills the rest to a memory-mapped file.
+ *
+ * Chunks are held on the heap until the window is full; later chunks are
+ * appended to a ring in a file in the cache directory instead. Pages of the
+ * mapping are file backed, so under memory pressure the kernel can write
+ * them back and evict them rather than killing the service, as it would for
+ * the same amount of heap. As the reader drains the window below half full,
+ * it refills it from the file in one sequential pass so playout reads
+ * from memory and page faults are taken well ahead of time.
+ *
+ * Without a spill directory the queue is memory only. Either way the
+ * total is capped: audio offered past the cap pushes out the oldest, so a
+ * sender that runs ahead loses stale audio rather than exhausting the
+ * heap. One thread offers and one thread polls.
+ *
+ * Gaps left by lost packets are queued in order with the audio, as
+ * zero-filled chunks of the missing length that the reader recognizes
+ * with {@link #wasGap()} and fills in with concealment. Each chunk of
+ * audio is one packet and each gap remembers how many packets it stands
+ * for, so {@link #retainNewest(int)} can cut the queue at a sequence
+ * number even when a run of lost packets straddles it. A loss too long to
+ * conceal is queued as an empty gap that the reader never sees but that
+ * still counts its packets.
+ *
+ * Audio is copied into chunks the reader hands back with
+ * {@link #recycle(byte[])} once it is done with them. A stream's packets
+ * are all the same size, so after the first few chunks a steady stream
+ * queues audio without allocating. Spares are kept up to the size of the
+ * window, so refilling it from the file reuses them too.
+ *
+ * A closed queue hands its mapping on to the next queue that spills, so
+ * sessions coming and going reuse one file rather than each leaving a
+ * mapping behind for the garbage collector. A mapping that cannot be
+ * handed on is unmapped right away where the runtime allows it.
+ */
+public class AudioSpillQueue {
+    private static final String TAG = "AudioSpillQueue";
+
+    // Each chunk in the file is prefixed by its length; gaps are stored
+    // as a flagged length followed by their packet count, with no data
+    private static final int LENGTH_PREFIX_BYTES = 4;
+    private static final int GAP_COUNT_BYTES = 4;
+    private static final int GAP_RECORD_BYTES = LENGTH_PREFIX_BYTES + GAP_COUNT_BYTES;
+    private static final int GAP_FLAG = 0x80000000;
+
+    // One mapping left by a closed queue, for the next queue to spill
+    private static final Object IDLE_LOCK = new Object();
+    private static RandomAccessFile idleAccess;
+    private static MappedByteBuffer idleSpill;
+    private static int mappingsCreated;
+
+    private final File spillDirectory;
+    private final int windowBytes;
+    private final int spillCapacity;
+    private final long maxQueuedBytes;
+
+    // Oldest audio is always in memory; the file only holds what follows it
+    private final ArrayDeque<byte[]> window = new ArrayDeque<>();
+    private int windowQueuedBytes;
+
+    // Gap chunks in the window and the packets each stands for, in queue order
+    private final ArrayDeque<byte[]> gaps = new ArrayDeque<>();
+    private final ArrayDeque<Integer> gapPackets = new ArrayDeque<>();
+    private boolean lastWasGap;
+    private boolean removedGap;
+
+    // Chunks handed back by the reader, for reuse
+    private final ArrayDeque<byte[]> spare = new ArrayDeque<>();
+    private int spareBytes;
+    private long chunkAllocations;
+
+    // Spill ring, created on first overflow
+    private RandomAccessFile spillAccess;
+    private MappedByteBuffer spill;
+    private int spillHead;
+    private int spillTail;
+    private int spillUsed;
+    private int spillChunks;
+    private boolean spillFailed;
+
+    private volatile long queuedBytes;
+    private long queuedPackets;
+    private long droppedBytes;
+    private volatile long shedBytes;
+
+    /**
+     * Create a new queue
+     *
+     * @param spillDirectory Directory for the spill file, or null to keep
+     *                       everything in memory
+     * @param windowBytes Amount of audio held in memory before spilling
+     * @param spillCapacity Size of the spill file
+     * @param maxQueuedBytes Most audio queued before the oldest is dropped
+     */
+    public AudioSpillQueue(File spillDirectory, int windowBytes, int spillCapacity, long maxQueuedBytes) {
+        this.spillDirectory = spillDirectory;
+        this.windowBytes = windowBytes;
+        this.spillCapacity = spillCapacity;
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * Append a copy of the given audio. If the spill file is full the audio
+     * is dropped.
+     */
+    public synchronized void offer(byte[] data, int offset, int length) {
+        shedOldest(length);
+        if (spillChunks == 0 && (windowQueuedBytes < windowBytes || !ensureSpill())) {
+            byte[] chunk = takeChunk(length);
+            System.arraycopy(data, offset, chunk, 0, length);
+            window.addLast(chunk);
+            windowQueuedBytes += length;
+        } else if (!writeSpill(data, offset, length)) {
+            if (droppedBytes == 0) {
+                Log.w(TAG, "Spill file full, dropping audio");
+            }
+            droppedBytes += length;
+            return;
+        }
+        queuedBytes += length;
+        queuedPackets++;
+    }
+
+    /**
+     * Append a gap where packets were lost
+     *
+     * @param length Length of the missing audio, or 0 to only count the
+     *               packets of a loss that is not concealed
+     * @param packets Number of packets missing, each the same length
+     */
+    public synchronized void offerGap(int length, int packets) {
+        shedOldest(length);
+        if (spillChunks == 0 && (windowQueuedBytes < windowBytes || !ensureSpill())) {
+            byte[] gap = new byte[length];
+            window.addLast(gap);
+            gaps.addLast(gap);
+            gapPackets.addLast(packets);
+            windowQueuedBytes += length;
+        } else if (!writeSpillGap(length, packets)) {
+            return;
+        }
+        queuedBytes += length;
+        queuedPackets += packets;
+    }
+
+    /**
+     * Remove the oldest chunk, or return null if empty
+     */
+    public synchronized byte[] poll() {
+        byte[] data = removeOldest();
+        while (data != null && data.length == 0) {
+            data = removeOldest();
+        }
+        lastWasGap = removedGap;
+        return data;
+    }
+
+    /**
+     * Hand back a chunk returned by {@link #poll()} once it has been
+     * consumed, so later audio can reuse it
+     */
+    public synchronized void recycle(byte[] chunk) {
+        // A window's worth covers a refill from the file as well as a
+        // burst of packets arriving at once
+        if (chunk.length > 0 && spareBytes + chunk.length <= windowBytes) {
+            spare.addLast(chunk);
+            spareBytes += chunk.length;
+        }
+    }
+
+    /**
+     * Drop the oldest audio until at most the given number of packets are
+     * left. A gap that straddles the cut is shortened to the packets that
+     * follow it.
+     */
+    public synchronized void retainNewest(int packets) {
+        while (queuedPackets > packets) {
+            if (windowQueuedBytes < windowBytes / 2 && spillChunks > 0) {
+                prefetch();
+            }
+            byte[] oldest = window.peekFirst();
+            if (oldest == null) {
+                return;
+            }
+            int excess = (int) Math.min(queuedPackets - packets, Integer.MAX_VALUE);
+            if (gaps.peekFirst() == oldest && gapPackets.peekFirst() > excess) {
+                trimOldestGap(excess);
+                return;
+            }
+            recycle(removeOldest());
+        }
+    }
+
+    /**
+     * Whether the chunk returned by the last {@link #poll()} is a gap to conceal
+     */
+    public synchronized boolean wasGap() {
+        return lastWasGap;
+    }
+
+    public synchronized void clear() {
+        window.clear();
+        gaps.clear();
+        gapPackets.clear();
+        windowQueuedBytes = 0;
+        spillHead = 0;
+        spillTail = 0;
+        spillUsed = 0;
+        spillChunks = 0;
+        queuedBytes = 0;
+        queuedPackets = 0;
+    }
+
+    /**
+     * Get the total amount of audio queued, in memory and spilled
+     */
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * Get the amount of old audio dropped to stay under the cap
+     */
+    public long getShedBytes() {
+        return shedBytes;
+    }
+
+    /**
+     * Get how many chunks have been allocated, which stops growing once a
+     * steady stream has warmed up the spares
+     */
+    public synchronized long getChunkAllocations() {
+        return chunkAllocations;
+    }
+
+    /**
+     * Discard everything and unmap the spill file
+     */
+    public synchronized void close() {
+        clear();
+        releaseSpill();
+    }
+
+    private byte[] removeOldest() {
+        if (windowQueuedBytes < windowBytes / 2 && spillChunks > 0) {
+            prefetch();
+        }
+
+        byte[] data = window.pollFirst();
+        removedGap = data != null && gaps.peekFirst() == data;
+        if (removedGap) {
+            gaps.pollFirst();
+            queuedPackets -= gapPackets.pollFirst();
+        } else if (data != null) {
+            queuedPackets--;
+        }
+        if (data != null) {
+            windowQueuedBytes -= data.length;
+            queuedBytes -= data.length;
+        }
+        return data;
+    }
+
+    /**
+     * Replace the gap at the head of the window with a shorter one, without
+     * the given number of its oldest packets
+     */
+    private void trimOldestGap(int packets) {
+        byte[] gap = window.pollFirst();
+        gaps.pollFirst();
+        int gapCount = gapPackets.pollFirst();
+        int remaining = gapCount - packets;
+        byte[] shorter = new byte[gap.length / gapCount * remaining];
+        window.addFirst(shorter);
+        gaps.addFirst(shorter);
+        gapPackets.addFirst(remaining);
+
+        int removed = gap.length - shorter.length;
+        windowQueuedBytes -= removed;
+        queuedBytes -= removed;
+        queuedPackets -= packets;
+    }
+
+    /**
+     * Drop the oldest chunks until the given amount fits under the cap.
+     * The reader's view of the last chunk it polled is left alone.
+     */
+    private void shedOldest(int incoming) {
+        while (queuedBytes > 0 && queuedBytes + incoming > maxQueuedBytes) {
+            byte[] dropped = removeOldest();
+            if (dropped == null) {
+                return;
+            }
+            if (shedBytes == 0) {
+                Log.w(TAG, "Audio queue full, dropping oldest audio");
+            }
+            shedBytes += dropped.length;
+            recycle(dropped);
+        }
+    }
+
+    /**
+     * Take a spare chunk of exactly the given length, or allocate one
+     */
+    private byte[] takeChunk(int length) {
+        // Rotate rather than iterate so a hit costs no iterator; in a
+        // steady stream the first spare already fits
+        for (int i = spare.size(); i > 0; i--) {
+            byte[] chunk = spare.pollFirst();
+            if (chunk.length == length) {
+                spareBytes -= length;
+                return chunk;
+            }
+            spare.addLast(chunk);
+        }
+        chunkAllocations++;
+        return new byte[length];
+    }
+
+    /**
+     * Get how many spill files have been mapped in this process, for tests
+     */
+    static int getMappingsCreated() {
+        synchronized (IDLE_LOCK) {
+            return mappingsCreated;
+        }
+    }
+
+    /**
+     * Hand the mapping on to the next queue, or unmap it if one is
+     * already waiting
+     */
+    private void releaseSpill() {
+        if (spill != null) {
+            synchronized (IDLE_LOCK) {
+                if (idleSpill == null) {
+                    idleSpill = spill;
+                    idleAccess = spillAccess;
+                    spill = null;
+                    spillAccess = null;
+                    return;
+                }
+            }
+            unmap(spill);
+            spill = null;
+        }
+        closeSpillFile(spillAccess);
+        spillAccess = null;
+    }
+
+    private static void closeSpillFile(RandomAccessFile access) {
+        if (access != null) {
+            try {
+                access.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing spill file", e);
+            }
+        }
+    }
+
+    /**
+     * Unmap a mapping now rather than when it is collected. Neither route
+     * is public API, so this falls back to the collector when both fail;
+     * the buffer must not be touched afterwards.
+     */
+    static boolean unmap(ByteBuffer buffer) {
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(field.get(null), buffer);
+            return true;
+        } catch (Exception | LinkageError e) {
+            // Not available, try the buffer's own cleaner
+        }
+        try {
+            // Android and Java 8
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+                return true;
+            }
+        } catch (Exception | LinkageError e) {
+            Log.d(TAG, "Cannot unmap spill file, leaving it to the collector");
+        }
+        return false;
+    }
+
+    private boolean ensureSpill() {
+        if (spill != null) {
+            return true;
+        }
+        if (spillDirectory == null || spillFailed) {
+            return false;
+        }
+
+        RandomAccessFile staleAccess = null;
+        MappedByteBuffer staleSpill = null;
+        synchronized (IDLE_LOCK) {
+            if (idleSpill != null) {
+                if (idleSpill.capacity() == spillCapacity) {
+                    spill = idleSpill;
+                    spillAccess = idleAccess;
+                } else {
+                    staleSpill = idleSpill;
+                    staleAccess = idleAccess;
+                }
+                idleSpill = null;
+                idleAccess = null;
+            }
+        }
+        if (staleSpill != null) {
+            unmap(staleSpill);
+            closeSpillFile(staleAccess);
+        }
+        if (spill != null) {
+            // Whatever the last queue left is never read: the ring starts empty
+            return true;
+        }
+
+        File spillFile = null;
+        try {
+            spillFile = File.createTempFile("audio-spill", ".pcm", spillDirectory);
+            spillAccess = new RandomAccessFile(spillFile, "rw");
+            spillAccess.setLength(spillCapacity);
+            spill = spillAccess.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, spillCapacity);
+            synchronized (IDLE_LOCK) {
+                mappingsCreated++;
+            }
+            Log.d(TAG, "Spilling audio to " + spillFile);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not create spill file, buffering in memory", e);
+            spillFailed = true;
+            releaseSpill();
+            return false;
+        } finally {
+            // The mapping keeps the data alive; unlinking now means nothing
+            // is left behind if the process is killed
+            if (spillFile != null) {
+                spillFile.delete();
+            }
+        }
+    }
+
+    private boolean writeSpill(byte[] data, int offset, int length) {
+        int needed = LENGTH_PREFIX_BYTES + length;
+        if (spillCapacity - spillUsed < needed) {
+            return false;
+        }
+
+        spillTail = putWrapped(spillTail, length);
+        spillTail = putWrapped(spillTail, data, offset, length);
+        spillUsed += needed;
+        spillChunks++;
+        return true;
+    }
+
+    private boolean writeSpillGap(int length, int packets) {
+        if (spillCapacity - spillUsed < GAP_RECORD_BYTES) {
+            return false;
+        }
+
+        spillTail = putWrapped(spillTail, length | GAP_FLAG);
+        spillTail = putWrapped(spillTail, packets);
+        spillUsed += GAP_RECORD_BYTES;
+        spillChunks++;
+        return true;
+    }
+
+    /**
+     * Move chunks from the file back into memory until the window is full
+     */
+    private void prefetch() {
+        while (spillChunks > 0 && windowQueuedBytes < windowBytes) {
+            int prefix = getWrappedInt(spillHead);
+            int length = prefix & ~GAP_FLAG;
+            boolean isGap = (prefix & GAP_FLAG) != 0;
+            // Gaps must read as silence, so they never reuse a chunk
+            byte[] data = isGap ? new byte[length] : takeChunk(length);
+            spillHead = (spillHead + LENGTH_PREFIX_BYTES) % spillCapacity;
+            spillUsed -= LENGTH_PREFIX_BYTES;
+            spillChunks--;
+
+            if (isGap) {
+                gaps.addLast(data);
+                gapPackets.addLast(getWrappedInt(spillHead));
+                spillHead = (spillHead + GAP_COUNT_BYTES) % spillCapacity;
+                spillUsed -= GAP_COUNT_BYTES;
+            } else {
+                spillHead = getWrapped(spillHead, data);
+                spillUsed -= length;
+            }
+
+            window.addLast(data);
+            windowQueuedBytes += length;
+        }
+
+        if (spillChunks == 0) {
+            spillHead = 0;
+            spillTail = 0;
+        }
+    }
+
+    private int putWrapped(int position, int value) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            spill.put(position, (byte) (value >>> shift));
+            position = (position + 1) % spillCapacity;
+        }
+        return position;
+    }
+
+    private int putWrapped(int position, byte[] data, int offset, int length) {
+        int first = Math.min(length, spillCapacity - position);
+        spill.position(position);
+        spill.put(data, offset, first);
+        if (first < length) {
+            spill.position(0);
+            spill.put(data, offset + first, length - first);
+        }
+        return (position + length) % spillCapacity;
+    }
+
+    private int getWrappedInt(int position) {
+        int value = 0;
+        for (int i = 0; i < LENGTH_PREFIX_BYTES; i++) {
+            value = (value << 8) | (spill.get(position) & 0xFF);
+            position = (position + 1) % spillCapacity;
+        }
+        return value;
+    }
+
+    private int getWrapped(int position, byte[] data) {
+        int first = Math.min(data.length, spillCapacity - position);
+        spill.position(position);
+        spill.get(data, 0, first);
+        if (first < data.length) {
+            spill.position(0);
+            spill.get(data, first, data.length - first);
+        }
+        return (position + data.length) % spillCapacity;
+    }
+}
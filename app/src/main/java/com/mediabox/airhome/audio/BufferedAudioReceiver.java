@@ -0,0 +1,320 @@
+package com.mediabox.airhome.audio;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.mediabox.airhome.pairing.ChaChaCipher;
+import com.mediabox.airhome.util.ThreadPolicy;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Receiver for AirPlay 2 buffered audio (stream type 103).
+ *
+ * The sender pushes audio well ahead of playout over a TCP connection.
+ * Packets are read straight from the socket channel into an off-heap
+ * {@link BufferedAudioRing}, and a playout thread releases them to the
+ * {@link AudioHandler} session when they fall due according to the anchor
+ * set by SETRATEANCHORTIME. When the sender supplied a shared key, each
+ * payload is decrypted with ChaCha20-Poly1305 as it is released.
+ *
+ * Only linear PCM streams are set up, so each payload is 16-bit stereo
+ * PCM in network byte order and is swapped to the little-endian order the
+ * session plays. There is no AAC or ALAC decoder in the app, so the
+ * compressed buffered streams most senders ask for are refused at SETUP.
+ */
+public class BufferedAudioReceiver {
+    private static final String TAG = "BufferedAudioReceiver";
+
+    // Off-heap buffer, advertised to the sender as its audioBufferSize:
+    // about 47 s of 44.1 kHz 16-bit stereo PCM, the only format set up
+    private static final int RING_CAPACITY_BYTES = 8 * 1024 * 1024;
+    private static final int RING_MAX_PACKETS = 32768;
+
+    // Each packet is prefixed by its total length, including the prefix
+    private static final int LENGTH_PREFIX_BYTES = 2;
+    private static final int RTP_HEADER_BYTES = 12;
+    private static final int MAX_PACKET_BYTES = 0xFFFF;
+
+    // Encrypted packets end with the tag and an 8-byte nonce; the RTP
+    // timestamp and SSRC are authenticated as additional data
+    private static final int NONCE_BYTES = 8;
+    private static final int AAD_OFFSET = 4;
+    private static final int AAD_BYTES = 8;
+
+    // Packets are handed to the session this far ahead of their playout
+    // time to cover the output track's own buffering
+    private static final long OUTPUT_LEAD_NANOS = 100_000_000L;
+
+    // Packets this late are dropped rather than played
+    private static final long LATE_DROP_NANOS = 500_000_000L;
+
+    private final AudioHandler audioHandler;
+    private final String sessionId;
+    private final int sampleRate;
+    private final BufferedAudioRing ring = new BufferedAudioRing(RING_CAPACITY_BYTES, RING_MAX_PACKETS);
+    private final ByteBuffer lengthBuffer = ByteBuffer.allocateDirect(LENGTH_PREFIX_BYTES);
+    private final ChaChaCipher cipher;
+
+    private ServerSocketChannel serverChannel;
+    private Thread receiveThread;
+    private Thread playoutThread;
+    private volatile boolean isRunning;
+
+    // Playout anchor: rtpTime plays at anchorNanos on the elapsed realtime clock
+    private final Object anchorLock = new Object();
+    private float rate;
+    private long anchorRtpTime;
+    private long anchorNanos;
+    private boolean hasAnchor;
+
+    /**
+     * Create a new buffered audio receiver
+     *
+     * @param audioHandler Handler that plays the released audio
+     * @param sessionId Session the audio belongs to
+     * @param sampleRate Sample rate used to convert RTP time to wall time
+     * @param sharedKey Audio key from SETUP, or null if payloads are not encrypted
+     */
+    public BufferedAudioReceiver(AudioHandler audioHandler, String sessionId, int sampleRate,
+                                 byte[] sharedKey) {
+        this.audioHandler = audioHandler;
+        this.sessionId = sessionId;
+        this.sampleRate = sampleRate;
+        this.cipher = sharedKey != null && sharedKey.length == ChaChaCipher.KEY_LENGTH
+                ? new ChaChaCipher(sharedKey) : null;
+    }
+
+    /**
+     * Bind the data port and start the receive and playout threads
+     *
+     * @return The TCP port the sender should connect to
+     */
+    public int start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(0));
+        isRunning = true;
+
+        receiveThread = ThreadPolicy.newThread(ThreadPolicy.Stage.AUDIO_RECEIVE, "BufferedAudioReceive", this::receiveLoop);
+        playoutThread = ThreadPolicy.newThread(ThreadPolicy.Stage.AUDIO_RECEIVE, "BufferedAudioPlayout", this::playoutLoop);
+        receiveThread.start();
+        playoutThread.start();
+
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Stop both threads and release the port. The off-heap buffer is freed
+     * with this object.
+     */
+    public void stop() {
+        isRunning = false;
+        ring.close();
+
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing data channel", e);
+        }
+
+        if (receiveThread != null) {
+            receiveThread.interrupt();
+        }
+        if (playoutThread != null) {
+            playoutThread.interrupt();
+        }
+    }
+
+    /**
+     * Get the size of the buffer advertised to the sender
+     */
+    public int getBufferSize() {
+        return ring.getCapacity();
+    }
+
+    /**
+     * Get the amount of audio currently held ahead of playout
+     */
+    public int getBufferedBytes() {
+        return ring.getBufferedBytes();
+    }
+
+    /**
+     * Set the playout rate and anchor from SETRATEANCHORTIME
+     *
+     * @param rate 1 to play, 0 to pause
+     * @param rtpTime RTP time that plays at the anchor, or -1 to keep the
+     *                current anchor (e.g. when pausing)
+     */
+    public void setRateAnchor(float rate, long rtpTime) {
+        synchronized (anchorLock) {
+            this.rate = rate;
+            if (rtpTime >= 0) {
+                // Without a shared network clock, the anchor plays now
+                anchorRtpTime = rtpTime;
+                anchorNanos = SystemClock.elapsedRealtimeNanos();
+                hasAnchor = true;
+            }
+            anchorLock.notifyAll();
+        }
+    }
+
+    /**
+     * Drop buffered packets before the given sequence number, or all of them
+     *
+     * @param untilSeqNo 24-bit sequence number, or -1 to drop everything
+     */
+    public void flush(int untilSeqNo) {
+        if (untilSeqNo < 0) {
+            ring.clear();
+        } else {
+            ring.flushUntil(untilSeqNo);
+        }
+    }
+
+    private void receiveLoop() {
+        while (isRunning) {
+            try (SocketChannel channel = serverChannel.accept()) {
+                Log.i(TAG, "Buffered audio stream connected for session " + sessionId);
+                readPackets(channel);
+            } catch (IOException e) {
+                if (isRunning) {
+                    Log.e(TAG, "Buffered audio stream error", e);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    private void readPackets(SocketChannel channel) throws IOException, InterruptedException {
+        while (isRunning) {
+            lengthBuffer.clear();
+            readFully(channel, lengthBuffer);
+            int length = (lengthBuffer.getShort(0) & 0xFFFF) - LENGTH_PREFIX_BYTES;
+            if (length < RTP_HEADER_BYTES) {
+                throw new IOException("Invalid buffered packet length: " + length);
+            }
+
+            // Read straight into off-heap storage
+            int offset = ring.reserve(length);
+            if (offset < 0) {
+                return;
+            }
+            ByteBuffer view = ring.writeView(offset, length);
+            readFully(channel, view);
+
+            int seqNo = ((view.get(offset + 1) & 0xFF) << 16)
+                    | ((view.get(offset + 2) & 0xFF) << 8)
+                    | (view.get(offset + 3) & 0xFF);
+            long rtpTime = view.getInt(offset + 4) & 0xFFFFFFFFL;
+            ring.commit(offset, length, rtpTime, seqNo);
+        }
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Buffered audio stream closed");
+            }
+        }
+    }
+
+    /**
+     * Decrypt the payload of a packet
+     *
+     * @return Payload length, or -1 if the packet is malformed or fails authentication
+     */
+    private int decrypt(byte[] packet, int length, byte[] nonce, byte[] payload) {
+        int sealedLength = length - RTP_HEADER_BYTES - NONCE_BYTES;
+        if (sealedLength < ChaChaCipher.TAG_LENGTH) {
+            return -1;
+        }
+
+        System.arraycopy(packet, length - NONCE_BYTES, nonce, 0, NONCE_BYTES);
+        try {
+            return cipher.open(nonce, packet, AAD_OFFSET, AAD_BYTES,
+                    packet, RTP_HEADER_BYTES, sealedLength, payload, 0);
+        } catch (InvalidCipherTextException e) {
+            Log.w(TAG, "Dropping buffered audio packet that failed authentication");
+            return -1;
+        }
+    }
+
+    private void playoutLoop() {
+        byte[] packet = new byte[MAX_PACKET_BYTES];
+        byte[] payload = new byte[MAX_PACKET_BYTES];
+        byte[] nonce = new byte[NONCE_BYTES];
+
+        try {
+            while (isRunning) {
+                long dueNanos;
+                synchronized (anchorLock) {
+                    while (isRunning && (!hasAnchor || rate == 0f)) {
+                        anchorLock.wait();
+                    }
+                    long rtpTime = ring.peekRtpTime();
+                    if (rtpTime < 0) {
+                        dueNanos = -1;
+                    } else {
+                        // Signed 32-bit difference handles RTP wraparound
+                        int frames = (int) (rtpTime - anchorRtpTime);
+                        dueNanos = anchorNanos + frames * 1_000_000_000L / sampleRate;
+                    }
+                }
+
+                if (dueNanos < 0) {
+                    ring.awaitData(10);
+                    continue;
+                }
+
+                // A remote output that plays late needs its audio that much earlier
+                long lead = OUTPUT_LEAD_NANOS + audioHandler.getSinkLatencyMillis() * 1_000_000L;
+                long now = SystemClock.elapsedRealtimeNanos();
+                if (dueNanos + LATE_DROP_NANOS < now) {
+                    // From before the anchor or hopelessly late
+                    ring.drop();
+                } else if (dueNanos - lead <= now) {
+                    int seqNo = ring.peekSeqNo();
+                    int length = ring.read(0, 0, packet);
+                    if (cipher == null) {
+                        if (length > RTP_HEADER_BYTES) {
+                            toLittleEndian(packet, RTP_HEADER_BYTES, length - RTP_HEADER_BYTES);
+                            audioHandler.processAudioPacket(sessionId, seqNo & 0xFFFF, packet,
+                                    RTP_HEADER_BYTES, length - RTP_HEADER_BYTES);
+                        }
+                    } else {
+                        int payloadLength = decrypt(packet, length, nonce, payload);
+                        if (payloadLength > 0) {
+                            toLittleEndian(payload, 0, payloadLength);
+                            audioHandler.processAudioPacket(sessionId, seqNo & 0xFFFF, payload, 0, payloadLength);
+                        }
+                    }
+                } else {
+                    Thread.sleep(Math.min(10, (dueNanos - lead - now) / 1_000_000L + 1));
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopping
+        }
+    }
+
+    /**
+     * Swap big-endian 16-bit samples in place
+     */
+    static void toLittleEndian(byte[] data, int offset, int length) {
+        int end = offset + (length & ~1);
+        for (int i = offset; i < end; i += 2) {
+            byte high = data[i];
+            data[i] = data[i + 1];
+            data[i + 1] = high;
+        }
+    }
+}
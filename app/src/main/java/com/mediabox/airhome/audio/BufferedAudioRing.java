@@ -0,0 +1,245 @@
+package com.mediabox.airhome.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Off-heap ring of whole packets for buffered (AirPlay 2 type 103) audio.
+ *
+ * Packet bytes live in a single direct buffer so minutes of audio do not
+ * count against the small Java heap of a TV box; only a fixed index of
+ * offsets, lengths and RTP times is kept on the heap. Packets are stored
+ * contiguously: when one does not fit before the end of the buffer it is
+ * placed at the start and the tail is left unused until the reader passes it.
+ *
+ * One thread writes with {@link #reserve(int)} and {@link #commit}, and one
+ * thread reads. The writer blocks while the ring is full, which pushes
+ * back on the sender through TCP flow control.
+ */
+public class BufferedAudioRing {
+    private final ByteBuffer data;
+    private final ByteBuffer writeView;
+    private final ByteBuffer readView;
+    private final int capacity;
+
+    // Packet index, a ring of maxPackets entries starting at head
+    private final int maxPackets;
+    private final int[] packetOffsets;
+    private final int[] packetLengths;
+    private final long[] packetRtpTimes;
+    private final int[] packetSeqNos;
+    private int head;
+    private int count;
+
+    // Byte positions of the oldest stored byte and the next write
+    private int dataHead;
+    private int dataTail;
+    private int bufferedBytes;
+
+    private boolean closed;
+
+    /**
+     * Create a new ring
+     *
+     * @param capacityBytes Size of the off-heap packet store
+     * @param maxPackets Maximum number of packets held at once
+     */
+    public BufferedAudioRing(int capacityBytes, int maxPackets) {
+        this.capacity = capacityBytes;
+        this.data = ByteBuffer.allocateDirect(capacityBytes);
+        this.writeView = data.duplicate();
+        this.readView = data.duplicate();
+        this.maxPackets = maxPackets;
+        this.packetOffsets = new int[maxPackets];
+        this.packetLengths = new int[maxPackets];
+        this.packetRtpTimes = new long[maxPackets];
+        this.packetSeqNos = new int[maxPackets];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Reserve contiguous space for a packet, blocking while the ring is full
+     *
+     * @param length Packet length in bytes
+     * @return Offset of the reserved space, or -1 if the ring was closed
+     */
+    public synchronized int reserve(int length) throws InterruptedException {
+        if (length > capacity / 2) {
+            throw new IllegalArgumentException("Packet too large: " + length);
+        }
+
+        while (!closed) {
+            int offset = findSpace(length);
+            if (offset >= 0) {
+                return offset;
+            }
+            wait();
+        }
+        return -1;
+    }
+
+    /**
+     * Get a view positioned over reserved space for the writer to fill.
+     * The same view is reused, so it is only valid until the next call.
+     */
+    public ByteBuffer writeView(int offset, int length) {
+        writeView.limit(offset + length).position(offset);
+        return writeView;
+    }
+
+    /**
+     * Publish a packet written into reserved space
+     */
+    public synchronized void commit(int offset, int length, long rtpTime, int seqNo) {
+        if (count == 0) {
+            // The reader may have drained the ring since reserve()
+            dataHead = offset;
+        }
+
+        int index = (head + count) % maxPackets;
+        packetOffsets[index] = offset;
+        packetLengths[index] = length;
+        packetRtpTimes[index] = rtpTime;
+        packetSeqNos[index] = seqNo;
+        count++;
+
+        dataTail = offset + length;
+        bufferedBytes += length;
+        notifyAll();
+    }
+
+    /**
+     * Get the RTP time of the oldest packet, or -1 if empty
+     */
+    public synchronized long peekRtpTime() {
+        return count > 0 ? packetRtpTimes[head] : -1;
+    }
+
+    /**
+     * Get the sequence number of the oldest packet, or -1 if empty
+     */
+    public synchronized int peekSeqNo() {
+        return count > 0 ? packetSeqNos[head] : -1;
+    }
+
+    /**
+     * Copy part of the oldest packet out and remove it from the ring
+     *
+     * @param skip Leading bytes of the packet to leave out
+     * @param trim Trailing bytes of the packet to leave out
+     * @param dst Destination array, large enough for the packet
+     * @return Number of bytes copied, or -1 if empty
+     */
+    public synchronized int read(int skip, int trim, byte[] dst) {
+        if (count == 0) {
+            return -1;
+        }
+
+        int length = Math.max(0, packetLengths[head] - skip - trim);
+        int offset = packetOffsets[head] + skip;
+        readView.limit(offset + length).position(offset);
+        readView.get(dst, 0, length);
+
+        removeOldest();
+        return length;
+    }
+
+    /**
+     * Drop the oldest packet
+     */
+    public synchronized void drop() {
+        if (count > 0) {
+            removeOldest();
+        }
+    }
+
+    /**
+     * Drop packets older than the given 24-bit sequence number
+     *
+     * @return Number of packets dropped
+     */
+    public synchronized int flushUntil(int untilSeqNo) {
+        int dropped = 0;
+        while (count > 0 && ((untilSeqNo - packetSeqNos[head]) & 0xFFFFFF) < 0x800000
+                && packetSeqNos[head] != untilSeqNo) {
+            removeOldest();
+            dropped++;
+        }
+        return dropped;
+    }
+
+    public synchronized void clear() {
+        head = 0;
+        count = 0;
+        dataHead = 0;
+        dataTail = 0;
+        bufferedBytes = 0;
+        notifyAll();
+    }
+
+    /**
+     * Wake any blocked writer and refuse further writes
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    public synchronized int getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    public synchronized int getPacketCount() {
+        return count;
+    }
+
+    /**
+     * Block until a packet is available or the timeout passes
+     */
+    public synchronized void awaitData(long timeoutMillis) throws InterruptedException {
+        if (count == 0 && !closed) {
+            wait(timeoutMillis);
+        }
+    }
+
+    private int findSpace(int length) {
+        if (count == maxPackets) {
+            return -1;
+        }
+        if (count == 0) {
+            dataHead = 0;
+            dataTail = 0;
+            return 0;
+        }
+
+        if (dataTail > dataHead) {
+            // Free space at the end, and before the head once we wrap
+            if (capacity - dataTail >= length) {
+                return dataTail;
+            }
+            if (dataHead > length) {
+                return 0;
+            }
+            return -1;
+        }
+
+        // Already wrapped: free space lies between tail and head
+        return dataHead - dataTail > length ? dataTail : -1;
+    }
+
+    private void removeOldest() {
+        bufferedBytes -= packetLengths[head];
+        head = (head + 1) % maxPackets;
+        count--;
+
+        if (count == 0) {
+            dataHead = 0;
+            dataTail = 0;
+        } else {
+            dataHead = packetOffsets[head];
+        }
+        notifyAll();
+    }
+}
@@ -0,0 +1,247 @@
+package com.mediabox.airhome.audio;
+
+import android.util.Log;
+
+import com.mediabox.airhome.util.ConfigManager;
+
+/**
+ * Output processing for one session: parametric EQ followed by loudness
+ * normalization with a peak limiter, on interleaved stereo float samples.
+ *
+ * The EQ is a cascade of peaking biquads (RBJ cookbook, transposed direct
+ * form II). Loudness normalization rides a slowly smoothed gain towards a
+ * target RMS level, measured over a few seconds so it evens out tracks
+ * without pumping within them, and ignores near-silence so quiet passages
+ * are not dragged up. The limiter has instant attack and a short release
+ * and keeps the boosted signal below full scale.
+ *
+ * Settings are read from {@link ConfigManager} and picked up between
+ * buffers when they change. All filter and level state is preallocated;
+ * with nothing enabled {@link #process} returns at once. Owned by the
+ * playback thread.
+ */
+class DspChain {
+    private static final String TAG = "DspChain";
+
+    private static final int CHANNELS = 2;
+    static final int MAX_BANDS = 8;
+
+    // Loudness measurement and gain smoothing time constants
+    private static final float LOUDNESS_WINDOW_SECONDS = 3f;
+    private static final float GAIN_SMOOTHING_SECONDS = 0.5f;
+
+    // Quieter than this is not measured, and gain stays within +/-12 dB
+    private static final float GATE_DB = -50f;
+    private static final float MAX_GAIN = 3.981f;
+    private static final float MIN_GAIN = 0.251f;
+
+    // Limiter ceiling and release
+    static final float LIMITER_CEILING = 0.944f;
+    private static final float LIMITER_RELEASE_SECONDS = 0.05f;
+
+    private final ConfigManager config;
+    private final int sampleRate;
+    private int configRevision = -1;
+
+    // EQ coefficients per band and state per band and channel
+    private int bandCount;
+    private final float[] b0 = new float[MAX_BANDS];
+    private final float[] b1 = new float[MAX_BANDS];
+    private final float[] b2 = new float[MAX_BANDS];
+    private final float[] a1 = new float[MAX_BANDS];
+    private final float[] a2 = new float[MAX_BANDS];
+    private final float[] z1 = new float[MAX_BANDS * CHANNELS];
+    private final float[] z2 = new float[MAX_BANDS * CHANNELS];
+
+    // Loudness state
+    private boolean loudnessEnabled;
+    private float targetEnergy;
+    private final float gateEnergy;
+    private final float energyCoeff;
+    private final float gainCoeff;
+    private final float releaseCoeff;
+    private float energy;
+    private float gain = 1f;
+    private float limiterGain = 1f;
+
+    /**
+     * Create a chain for a session
+     *
+     * @param sampleRate Sample rate of the session in Hz
+     */
+    DspChain(int sampleRate) {
+        this(sampleRate, ConfigManager.getInstance());
+    }
+
+    /**
+     * Create a chain that follows the given settings, or, with null, one
+     * that is only set up through {@link #configure(String, boolean, float)}
+     * as tests do
+     */
+    DspChain(int sampleRate, ConfigManager config) {
+        this.config = config;
+        this.sampleRate = sampleRate;
+        this.gateEnergy = dbToEnergy(GATE_DB);
+        this.energyCoeff = onePoleCoeff(LOUDNESS_WINDOW_SECONDS, sampleRate);
+        this.gainCoeff = onePoleCoeff(GAIN_SMOOTHING_SECONDS, sampleRate);
+        this.releaseCoeff = onePoleCoeff(LIMITER_RELEASE_SECONDS, sampleRate);
+    }
+
+    /**
+     * Process samples in place
+     *
+     * @param samples Interleaved stereo samples
+     * @param count Number of samples
+     */
+    void process(float[] samples, int count) {
+        if (config != null) {
+            int revision = config.getRevision();
+            if (revision != configRevision) {
+                configRevision = revision;
+                configure(config.getEqBands(), config.isLoudnessEnabled(), config.getLoudnessTargetDb());
+            }
+        }
+
+        if (bandCount > 0) {
+            equalize(samples, count);
+        }
+        if (loudnessEnabled) {
+            normalize(samples, count);
+        }
+    }
+
+    private void equalize(float[] samples, int count) {
+        for (int band = 0; band < bandCount; band++) {
+            float c0 = b0[band];
+            float c1 = b1[band];
+            float c2 = b2[band];
+            float d1 = a1[band];
+            float d2 = a2[band];
+
+            for (int channel = 0; channel < CHANNELS; channel++) {
+                int state = band * CHANNELS + channel;
+                float s1 = z1[state];
+                float s2 = z2[state];
+                for (int i = channel; i < count; i += CHANNELS) {
+                    float in = samples[i];
+                    float out = c0 * in + s1;
+                    s1 = c1 * in - d1 * out + s2;
+                    s2 = c2 * in - d2 * out;
+                    samples[i] = out;
+                }
+                z1[state] = s1;
+                z2[state] = s2;
+            }
+        }
+    }
+
+    private void normalize(float[] samples, int count) {
+        // The measurement moves slowly enough to update the target per buffer
+        float wanted = gain;
+        if (energy > gateEnergy) {
+            wanted = Math.max(MIN_GAIN, Math.min(MAX_GAIN, (float) Math.sqrt(targetEnergy / energy)));
+        }
+
+        for (int i = 0; i + 1 < count; i += CHANNELS) {
+            float left = samples[i];
+            float right = samples[i + 1];
+
+            // Track the level of the mono sum, skipping near-silence
+            float mono = (left + right) * 0.5f;
+            float power = mono * mono;
+            if (power > gateEnergy) {
+                energy += (power - energy) * energyCoeff;
+            }
+
+            gain += (wanted - gain) * gainCoeff;
+            left *= gain;
+            right *= gain;
+
+            // Pull the peak down to the ceiling at once, recover slowly
+            float peak = Math.max(Math.abs(left), Math.abs(right)) * limiterGain;
+            if (peak > LIMITER_CEILING) {
+                limiterGain *= LIMITER_CEILING / peak;
+            } else {
+                limiterGain += (1f - limiterGain) * releaseCoeff;
+            }
+
+            samples[i] = left * limiterGain;
+            samples[i + 1] = right * limiterGain;
+        }
+    }
+
+    /**
+     * Apply settings, keeping the filter state of bands that remain so a
+     * settings change does not click
+     *
+     * @param spec EQ bands in the format of {@link ConfigManager#getEqBands()}
+     * @param loudness Whether loudness normalization is on
+     * @param targetDb Loudness target in dB
+     */
+    void configure(String spec, boolean loudness, float targetDb) {
+        int bands = 0;
+        if (spec != null && !spec.isEmpty()) {
+            for (String band : spec.split(";")) {
+                if (bands == MAX_BANDS) {
+                    Log.w(TAG, "Ignoring EQ bands beyond " + MAX_BANDS);
+                    break;
+                }
+                String[] parts = band.trim().split(":");
+                try {
+                    if (parts.length == 3 && setBand(bands, Float.parseFloat(parts[0]),
+                            Float.parseFloat(parts[1]), Float.parseFloat(parts[2]))) {
+                        bands++;
+                    }
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Invalid EQ band: " + band);
+                }
+            }
+        }
+        for (int state = bands * CHANNELS; state < bandCount * CHANNELS; state++) {
+            z1[state] = 0f;
+            z2[state] = 0f;
+        }
+        bandCount = bands;
+
+        boolean wasEnabled = loudnessEnabled;
+        loudnessEnabled = loudness;
+        targetEnergy = dbToEnergy(targetDb);
+        if (loudnessEnabled && !wasEnabled) {
+            energy = 0f;
+            gain = 1f;
+            limiterGain = 1f;
+        }
+    }
+
+    /**
+     * Compute peaking filter coefficients for one band
+     *
+     * @return False if the band is flat or out of range and should be skipped
+     */
+    private boolean setBand(int band, float frequency, float gainDb, float q) {
+        if (gainDb == 0f || q <= 0f || frequency <= 0f || frequency >= sampleRate / 2f) {
+            return false;
+        }
+
+        double a = Math.pow(10, gainDb / 40.0);
+        double w0 = 2 * Math.PI * frequency / sampleRate;
+        double alpha = Math.sin(w0) / (2 * q);
+        double cos = Math.cos(w0);
+        double a0 = 1 + alpha / a;
+
+        b0[band] = (float) ((1 + alpha * a) / a0);
+        b1[band] = (float) (-2 * cos / a0);
+        b2[band] = (float) ((1 - alpha * a) / a0);
+        a1[band] = (float) (-2 * cos / a0);
+        a2[band] = (float) ((1 - alpha / a) / a0);
+        return true;
+    }
+
+    private static float dbToEnergy(float db) {
+        return (float) Math.pow(10, db / 10);
+    }
+
+    private static float onePoleCoeff(float seconds, int sampleRate) {
+        return (float) (1 - Math.exp(-1.0 / (seconds * sampleRate)));
+    }
+}
@@ -0,0 +1,175 @@
+package com.mediabox.airhome.audio;
+
+/**
+ * Packet loss concealment for stereo float samples.
+ *
+ * Remembers the last few tens of milliseconds of real audio. When a gap
+ * has to be filled, it finds the pitch period by waveform similarity
+ * against that history and repeats the last period, fading it towards
+ * silence over 60 ms so a long dropout never turns into a drone. When real
+ * audio resumes it is overlap-added with the continuing concealment
+ * instead of cutting in, and if the concealment had already reached
+ * silence that overlap is simply a fade-in.
+ *
+ * All buffers are allocated up front; the playback thread that owns an
+ * instance never allocates. Not thread-safe.
+ */
+class LossConcealer {
+    private static final int CHANNELS = 2;
+
+    // At 44.1 kHz: ~46 ms of history, periods between 2.5 and 20 ms,
+    // matched over a 5 ms template
+    private static final int HISTORY_FRAMES = 2048;
+    private static final int MIN_PERIOD_FRAMES = 110;
+    private static final int MAX_PERIOD_FRAMES = 882;
+    private static final int MATCH_FRAMES = 220;
+    private static final int SEARCH_STEP = 2;
+
+    // Concealment fades to silence over this long
+    private static final int FADE_OUT_FRAMES = 2646;
+
+    // Crossfade from concealment back to real audio
+    private static final int OVERLAP_FRAMES = 110;
+
+    // Ring of the most recent real audio, interleaved
+    private final float[] history = new float[HISTORY_FRAMES * CHANNELS];
+    private int historyEnd;
+    private int historyFrames;
+
+    // Current concealment episode
+    private boolean concealing;
+    private int period;
+    private int periodStart;
+    private int phase;
+    private int concealedFrames;
+
+    /**
+     * Whether concealing more would still produce sound: either no episode
+     * is in progress or the current one has not yet faded to silence
+     */
+    boolean canConcealMore() {
+        return !concealing || (period > 0 && concealedFrames < FADE_OUT_FRAMES);
+    }
+
+    /**
+     * Fill a buffer with concealment audio, continuing the current episode
+     * or starting a new one
+     *
+     * @param samples Interleaved buffer to overwrite
+     * @param count Number of samples to fill
+     */
+    void conceal(float[] samples, int count) {
+        if (!concealing) {
+            concealing = true;
+            period = findPeriod();
+            periodStart = ringFrame(historyEnd - period);
+            phase = 0;
+            concealedFrames = 0;
+        }
+
+        int frames = count / CHANNELS;
+        for (int frame = 0; frame < frames; frame++) {
+            int offset = frame * CHANNELS;
+            for (int channel = 0; channel < CHANNELS; channel++) {
+                samples[offset + channel] = nextConcealedSample(channel);
+            }
+            advance();
+        }
+    }
+
+    /**
+     * Pass real audio through, blending it in over any concealment in
+     * progress, and remember it for future concealment
+     *
+     * @param samples Interleaved real audio, modified in place
+     * @param count Number of samples
+     */
+    void accept(float[] samples, int count) {
+        int frames = count / CHANNELS;
+
+        if (concealing) {
+            int overlap = Math.min(OVERLAP_FRAMES, frames);
+            for (int frame = 0; frame < overlap; frame++) {
+                int offset = frame * CHANNELS;
+                float weight = (frame + 1) / (float) (OVERLAP_FRAMES + 1);
+                for (int channel = 0; channel < CHANNELS; channel++) {
+                    int index = offset + channel;
+                    float hidden = nextConcealedSample(channel);
+                    samples[index] = samples[index] * weight + hidden * (1f - weight);
+                }
+                advance();
+            }
+            concealing = false;
+        }
+
+        for (int frame = 0; frame < frames; frame++) {
+            int offset = frame * CHANNELS;
+            int index = historyEnd * CHANNELS;
+            history[index] = samples[offset];
+            history[index + 1] = samples[offset + 1];
+            historyEnd = (historyEnd + 1) % HISTORY_FRAMES;
+        }
+        historyFrames = Math.min(HISTORY_FRAMES, historyFrames + frames);
+    }
+
+    private float nextConcealedSample(int channel) {
+        if (period == 0 || concealedFrames >= FADE_OUT_FRAMES) {
+            return 0f;
+        }
+        int frame = (periodStart + phase) % HISTORY_FRAMES;
+        float gain = (FADE_OUT_FRAMES - concealedFrames) / (float) FADE_OUT_FRAMES;
+        return history[frame * CHANNELS + channel] * gain;
+    }
+
+    private void advance() {
+        if (period > 0) {
+            phase = (phase + 1) % period;
+        }
+        concealedFrames++;
+    }
+
+    /**
+     * Find the lag at which the recent history best matches the last
+     * template, by normalized cross-correlation of the mono downmix
+     *
+     * @return Period in frames, or 0 if there is not enough history
+     */
+    private int findPeriod() {
+        if (historyFrames < MAX_PERIOD_FRAMES + MATCH_FRAMES) {
+            return 0;
+        }
+
+        int bestPeriod = MIN_PERIOD_FRAMES;
+        double bestScore = Double.NEGATIVE_INFINITY;
+
+        for (int lag = MIN_PERIOD_FRAMES; lag <= MAX_PERIOD_FRAMES; lag += SEARCH_STEP) {
+            double correlation = 0;
+            double energy = 0;
+            for (int i = 0; i < MATCH_FRAMES; i += SEARCH_STEP) {
+                float template = mono(historyEnd - MATCH_FRAMES + i);
+                float candidate = mono(historyEnd - MATCH_FRAMES - lag + i);
+                correlation += template * candidate;
+                energy += candidate * candidate;
+            }
+            if (energy == 0) {
+                continue;
+            }
+
+            double score = correlation / Math.sqrt(energy);
+            if (score > bestScore) {
+                bestScore = score;
+                bestPeriod = lag;
+            }
+        }
+        return bestPeriod;
+    }
+
+    private float mono(int frame) {
+        int index = ringFrame(frame) * CHANNELS;
+        return (history[index] + history[index + 1]) * 0.5f;
+    }
+
+    private static int ringFrame(int frame) {
+        return ((frame % HISTORY_FRAMES) + HISTORY_FRAMES) % HISTORY_FRAMES;
+    }
+}
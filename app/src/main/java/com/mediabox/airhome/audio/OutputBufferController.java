@@ -0,0 +1,113 @@
+package com.mediabox.airhome.audio;
+
+/**
+ * Chooses how much of an output track's buffer to use from how the track
+ * is behaving.
+ *
+ * The track is created with room for its largest buffer but starts out
+ * using only part of it, for lower latency. Each underrun the device
+ * reports grows the buffer by half; after a long enough run without one
+ * it shrinks back a step at a time toward the starting size. Underruns
+ * while the session had no audio to write are the sender's doing, not
+ * the buffer's, and are ignored.
+ *
+ * Plain Java, fed observations by the playback thread through an
+ * {@link OutputSink}, so the policy does not depend on the platform track.
+ */
+final class OutputBufferController {
+    // Run without underruns before the buffer is allowed to shrink
+    static final long STABLE_MILLIS = 10_000;
+
+    private final int minFrames;
+    private final int maxFrames;
+    private int targetFrames;
+
+    private int lastUnderrunCount;
+    private long lastChangeAt;
+
+    /**
+     * @param minFrames Smallest buffer to use, and the starting size
+     * @param maxFrames The track's buffer capacity
+     * @param nowMillis Current time
+     */
+    OutputBufferController(int minFrames, int maxFrames, long nowMillis) {
+        this.minFrames = Math.min(minFrames, maxFrames);
+        this.maxFrames = maxFrames;
+        this.targetFrames = this.minFrames;
+        this.lastChangeAt = nowMillis;
+    }
+
+    /**
+     * Take in the track's state after a write
+     *
+     * @param underrunCount Underruns the track has reported so far
+     * @param starved Whether the session ran out of audio to write since
+     *                the last update
+     * @param nowMillis Current time
+     * @return The new buffer size in frames, or -1 if it should not change
+     */
+    int update(int underrunCount, boolean starved, long nowMillis) {
+        boolean underrun = underrunCount > lastUnderrunCount && !starved;
+        lastUnderrunCount = underrunCount;
+
+        if (underrun) {
+            if (targetFrames >= maxFrames) {
+                lastChangeAt = nowMillis;
+                return -1;
+            }
+            targetFrames = Math.min(maxFrames, targetFrames + Math.max(1, targetFrames / 2));
+            lastChangeAt = nowMillis;
+            return targetFrames;
+        }
+
+        if (targetFrames > minFrames && nowMillis - lastChangeAt >= STABLE_MILLIS) {
+            targetFrames = Math.max(minFrames, targetFrames - Math.max(1, targetFrames / 8));
+            lastChangeAt = nowMillis;
+            return targetFrames;
+        }
+        return -1;
+    }
+
+    /**
+     * Take the sink's underruns so far as the baseline and size its
+     * buffer to the starting size
+     */
+    void start(OutputSink sink, long nowMillis) {
+        update(sink.getUnderrunCount(), true, nowMillis);
+        resize(sink, targetFrames);
+    }
+
+    /**
+     * Resize the sink's buffer if its underruns since the last check call
+     * for it
+     *
+     * @param starved Whether the session ran out of audio to write since
+     *                the last check
+     * @return The size asked for, or -1 if unchanged
+     */
+    int check(OutputSink sink, boolean starved, long nowMillis) {
+        int frames = update(sink.getUnderrunCount(), starved, nowMillis);
+        if (frames > 0) {
+            resize(sink, frames);
+        }
+        return frames;
+    }
+
+    private void resize(OutputSink sink, int frames) {
+        int granted = sink.setBufferSizeInFrames(frames);
+        if (granted > 0) {
+            setTargetFrames(granted);
+        }
+    }
+
+    /**
+     * Take on the size the track actually granted
+     */
+    void setTargetFrames(int frames) {
+        targetFrames = Math.max(1, Math.min(maxFrames, frames));
+    }
+
+    int getTargetFrames() {
+        return targetFrames;
+    }
+}
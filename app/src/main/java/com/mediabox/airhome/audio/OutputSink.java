@@ -0,0 +1,45 @@
+package com.mediabox.airhome.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where a playing session's audio goes: the platform track, or a stand-in
+ * in tests. Covers writing and what {@link OutputBufferController} needs
+ * to size the buffer; starting and stopping stay with the owner.
+ */
+interface OutputSink {
+    /**
+     * Write audio from a direct buffer, blocking until it has all been
+     * taken
+     *
+     * @param data Audio from position 0
+     * @param bytes Number of bytes to write
+     * @return Bytes written, or a negative error code
+     */
+    int write(ByteBuffer data, int bytes);
+
+    /**
+     * Get the number of frames played since the sink was created or
+     * flushed
+     */
+    long getFramesPlayed();
+
+    /**
+     * Get the number of underruns reported so far, or 0 where the
+     * platform does not report them
+     */
+    int getUnderrunCount();
+
+    /**
+     * Get the largest buffer size the sink can be set to, or 0 if its
+     * buffer cannot be resized
+     */
+    int getBufferCapacityInFrames();
+
+    /**
+     * Ask for a buffer of the given size
+     *
+     * @return The size granted, or a non-positive value if refused
+     */
+    int setBufferSizeInFrames(int frames);
+}
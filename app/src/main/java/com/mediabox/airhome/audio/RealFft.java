@@ -0,0 +1,121 @@
+package com.mediabox.airhome.audio;
+
+/**
+ * Magnitude spectrum of a block of real samples, without allocating.
+ *
+ * A block of N real samples is packed into N/2 complex values, even
+ * samples as real parts and odd ones as imaginary, and transformed with
+ * an in-place radix-2 FFT of half the size. The two interleaved spectra
+ * are then separated and combined into the spectrum of the real block.
+ * Twiddle factors and the bit-reversal order are computed once.
+ */
+final class RealFft {
+    private final int size;
+    private final int half;
+    private final float[] re;
+    private final float[] im;
+    private final int[] bitReversed;
+
+    // Twiddles for the half-size FFT, and for the final split
+    private final float[] cos;
+    private final float[] sin;
+    private final float[] splitCos;
+    private final float[] splitSin;
+
+    /**
+     * @param size Block size, a power of two of at least 4
+     */
+    RealFft(int size) {
+        if (size < 4 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+        }
+        this.size = size;
+        this.half = size / 2;
+        re = new float[half];
+        im = new float[half];
+
+        bitReversed = new int[half];
+        int bits = Integer.numberOfTrailingZeros(half);
+        for (int i = 0; i < half; i++) {
+            bitReversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+
+        cos = new float[half / 2];
+        sin = new float[half / 2];
+        for (int i = 0; i < half / 2; i++) {
+            double angle = -2 * Math.PI * i / half;
+            cos[i] = (float) Math.cos(angle);
+            sin[i] = (float) Math.sin(angle);
+        }
+
+        splitCos = new float[half];
+        splitSin = new float[half];
+        for (int k = 0; k < half; k++) {
+            double angle = -2 * Math.PI * k / size;
+            splitCos[k] = (float) Math.cos(angle);
+            splitSin[k] = (float) Math.sin(angle);
+        }
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Compute the magnitudes of bins 0 to N/2 - 1
+     *
+     * @param input N samples, left unchanged
+     * @param magnitudes Receives N/2 magnitudes
+     */
+    void magnitudes(float[] input, float[] magnitudes) {
+        for (int i = 0; i < half; i++) {
+            int j = bitReversed[i];
+            re[j] = input[2 * i];
+            im[j] = input[2 * i + 1];
+        }
+        transform();
+
+        for (int k = 0; k < half; k++) {
+            int mirror = k == 0 ? 0 : half - k;
+            float a = re[k];
+            float b = im[k];
+            float c = re[mirror];
+            float d = im[mirror];
+
+            // Spectra of the even and odd samples
+            float evenRe = (a + c) * 0.5f;
+            float evenIm = (b - d) * 0.5f;
+            float oddRe = (b + d) * 0.5f;
+            float oddIm = (c - a) * 0.5f;
+
+            float wr = splitCos[k];
+            float wi = splitSin[k];
+            float outRe = evenRe + wr * oddRe - wi * oddIm;
+            float outIm = evenIm + wr * oddIm + wi * oddRe;
+            magnitudes[k] = (float) Math.sqrt(outRe * outRe + outIm * outIm);
+        }
+    }
+
+    /**
+     * In-place iterative FFT of the bit-reversed values in re and im
+     */
+    private void transform() {
+        for (int span = 1; span < half; span <<= 1) {
+            int step = half / (span * 2);
+            for (int start = 0; start < half; start += span * 2) {
+                for (int i = 0; i < span; i++) {
+                    int top = start + i;
+                    int bottom = top + span;
+                    float wr = cos[i * step];
+                    float wi = sin[i * step];
+                    float tr = wr * re[bottom] - wi * im[bottom];
+                    float ti = wr * im[bottom] + wi * re[bottom];
+                    re[bottom] = re[top] - tr;
+                    im[bottom] = im[top] - ti;
+                    re[top] += tr;
+                    im[top] += ti;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.mediabox.airhome.audio;
+
+/**
+ * Conversion between packed little-endian PCM and the float samples the
+ * playback pipeline works in, nominally in [-1, 1).
+ *
+ * Decoding is exact for every supported depth. Encoding to 16 bits adds
+ * triangular (TPDF) dither of one LSB peak before rounding, so gain
+ * changes, ramps and concealment done in float do not leave correlated
+ * truncation distortion behind. Each instance keeps its own dither state
+ * and belongs to a single thread; the kernels never allocate.
+ */
+final class SampleConverter {
+    private static final float SCALE_16 = 1f / 32768f;
+    private static final float SCALE_24 = 1f / 8388608f;
+    private static final float SCALE_32 = 1f / 2147483648f;
+
+    // Maps a 24-bit random value to [0, 1) of a 16-bit LSB
+    private static final float DITHER_SCALE = 1f / (1 << 24);
+
+    // xorshift32 state; any non-zero seed will do
+    private int seed = 0x2545F491;
+
+    /**
+     * Decode packed little-endian PCM into float samples
+     *
+     * @param in Packed PCM
+     * @param offset Offset of the first sample
+     * @param length Number of bytes
+     * @param bitDepth 16, 24 or 32
+     * @param out Destination, at least {@code length / (bitDepth / 8)} long
+     * @return Number of samples decoded
+     */
+    static int decode(byte[] in, int offset, int length, int bitDepth, float[] out) {
+        int count;
+        switch (bitDepth) {
+            case 24:
+                count = length / 3;
+                for (int i = 0, p = offset; i < count; i++, p += 3) {
+                    int sample = (in[p] & 0xFF) | ((in[p + 1] & 0xFF) << 8) | (in[p + 2] << 16);
+                    out[i] = sample * SCALE_24;
+                }
+                return count;
+            case 32:
+                count = length / 4;
+                for (int i = 0, p = offset; i < count; i++, p += 4) {
+                    int sample = (in[p] & 0xFF) | ((in[p + 1] & 0xFF) << 8)
+                            | ((in[p + 2] & 0xFF) << 16) | (in[p + 3] << 24);
+                    out[i] = sample * SCALE_32;
+                }
+                return count;
+            default:
+                count = length / 2;
+                for (int i = 0, p = offset; i < count; i++, p += 2) {
+                    out[i] = (short) ((in[p] & 0xFF) | (in[p + 1] << 8)) * SCALE_16;
+                }
+                return count;
+        }
+    }
+
+    /**
+     * Encode float samples as 16-bit little-endian PCM with TPDF dither,
+     * saturating anything out of range
+     *
+     * @param in Float samples
+     * @param count Number of samples
+     * @param out Destination, at least {@code count * 2} bytes long
+     */
+    void encodePcm16(float[] in, int count, byte[] out) {
+        int state = seed;
+        for (int i = 0, p = 0; i < count; i++, p += 2) {
+            // Difference of two uniform values gives a triangular distribution
+            state ^= state << 13;
+            state ^= state >>> 17;
+            state ^= state << 5;
+            float first = (state >>> 8) * DITHER_SCALE;
+            state ^= state << 13;
+            state ^= state >>> 17;
+            state ^= state << 5;
+            float second = (state >>> 8) * DITHER_SCALE;
+
+            int sample = (int) Math.floor(in[i] * 32768f + first - second + 0.5f);
+            if (sample > Short.MAX_VALUE) {
+                sample = Short.MAX_VALUE;
+            } else if (sample < Short.MIN_VALUE) {
+                sample = Short.MIN_VALUE;
+            }
+            out[p] = (byte) sample;
+            out[p + 1] = (byte) (sample >> 8);
+        }
+        seed = state;
+    }
+
+    /**
+     * Clamp float samples to [-1, 1] in place for a float output track,
+     * which needs no dither
+     */
+    static void clip(float[] samples, int count) {
+        for (int i = 0; i < count; i++) {
+            float sample = samples[i];
+            if (sample > 1f) {
+                samples[i] = 1f;
+            } else if (sample < -1f) {
+                samples[i] = -1f;
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.mediabox.airhome.audio;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A session's {@link SessionState}, moved forward atomically so that the
+ * sender's RTSP thread, a taking-over sender and the playback thread can
+ * all race on it safely.
+ */
+final class SessionLifecycle {
+    private final AtomicReference<SessionState> state = new AtomicReference<>(SessionState.CREATED);
+
+    SessionState get() {
+        return state.get();
+    }
+
+    /**
+     * Begin playing
+     *
+     * @return True if the session had not been preempted or stopped first
+     */
+    boolean start() {
+        return state.compareAndSet(SessionState.CREATED, SessionState.PLAYING);
+    }
+
+    /**
+     * Give up the output to another session
+     *
+     * @return True if the session was created or playing and is now preempted
+     */
+    boolean preempt() {
+        // Retry rather than try each state in turn: the session may start
+        // between the two, and must not be left playing unpreempted
+        while (true) {
+            SessionState current = state.get();
+            if (current != SessionState.CREATED && current != SessionState.PLAYING) {
+                return false;
+            }
+            if (state.compareAndSet(current, SessionState.PREEMPTED)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Stop for good
+     *
+     * @return The state before stopping
+     */
+    SessionState stop() {
+        return state.getAndSet(SessionState.STOPPED);
+    }
+}
@@ -0,0 +1,106 @@
+package com.mediabox.airhome.audio;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Live sessions by ID, and which of them owns the output.
+ *
+ * A starting session takes the output with a single atomic swap, so of
+ * any number of senders starting at once each previous owner is handed
+ * to exactly one of them to preempt. A preempted session is no longer
+ * addressable by its sender. Lookups never lock.
+ *
+ * @param <S> Session type
+ */
+final class SessionRegistry<S extends SessionRegistry.Session> {
+    /**
+     * What the registry needs from a session
+     */
+    interface Session {
+        String getSessionId();
+
+        SessionLifecycle getLifecycle();
+    }
+
+    private final Map<String, S> sessions = new ConcurrentHashMap<>();
+    private final AtomicReference<S> active = new AtomicReference<>();
+
+    /**
+     * Register a session
+     *
+     * @return False if one with the same ID is already registered
+     */
+    boolean add(S session) {
+        return sessions.putIfAbsent(session.getSessionId(), session) == null;
+    }
+
+    S get(String sessionId) {
+        return sessions.get(sessionId);
+    }
+
+    boolean contains(String sessionId) {
+        return sessions.containsKey(sessionId);
+    }
+
+    int size() {
+        return sessions.size();
+    }
+
+    Collection<S> values() {
+        return sessions.values();
+    }
+
+    /**
+     * Get the session that owns the output, or null
+     */
+    S getActive() {
+        return active.get();
+    }
+
+    /**
+     * Give the output to a registered session, preempting its owner
+     *
+     * @return The session it was taken from, now preempted and
+     *         unregistered, or null if there was none still playing
+     */
+    S takeOver(S session) {
+        S previous = active.getAndSet(session);
+        if (session.getLifecycle().get() == SessionState.STOPPED) {
+            // Stopped by its sender while taking over; don't leave it owning
+            active.compareAndSet(session, null);
+        }
+        if (previous == null || previous == session || !previous.getLifecycle().preempt()) {
+            return null;
+        }
+        sessions.remove(previous.getSessionId(), previous);
+        return previous;
+    }
+
+    /**
+     * Unregister a session by ID, releasing the output if it owned it
+     *
+     * @return The session, or null if none was registered
+     */
+    S remove(String sessionId) {
+        S session = sessions.remove(sessionId);
+        if (session != null) {
+            active.compareAndSet(session, null);
+        }
+        return session;
+    }
+
+    /**
+     * Unregister the given session if it is still the one under its ID
+     */
+    void remove(S session) {
+        sessions.remove(session.getSessionId(), session);
+    }
+
+    void clear() {
+        sessions.clear();
+        active.set(null);
+    }
+}
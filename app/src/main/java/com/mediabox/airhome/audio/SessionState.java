@@ -0,0 +1,19 @@
+package com.mediabox.airhome.audio;
+
+/**
+ * Lifecycle states of an audio session.
+ *
+ * Sessions only move forward through these states:
+ * CREATED -> PLAYING -> PREEMPTED -> STOPPED, where PREEMPTED is skipped
+ * when a session is torn down by its own sender rather than taken over.
+ */
+public enum SessionState {
+    /** Registered but the playback thread has not started yet */
+    CREATED,
+    /** Owns the output and is playing queued audio */
+    PLAYING,
+    /** Another sender took over; fading out whatever is still queued */
+    PREEMPTED,
+    /** Output released, no further audio is accepted */
+    STOPPED
+}
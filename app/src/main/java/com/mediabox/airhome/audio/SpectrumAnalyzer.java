@@ -0,0 +1,251 @@
+package com.mediabox.airhome.audio;
+
+import android.util.Log;
+
+import com.mediabox.airhome.util.ThreadPolicy;
+
+import java.io.PrintWriter;
+
+/**
+ * Live spectrum of what the local output is playing, for a visualizer.
+ *
+ * The analyzer taps the output as an {@link AudioHandler.OutputListener}.
+ * On the playback thread it only mixes each block down to mono into a
+ * snapshot and hands full snapshots over through a {@link TripleBuffer},
+ * which never blocks. A low-priority thread windows the latest snapshot,
+ * runs an FFT and reduces it to log-spaced bands with a falling peak,
+ * published the same way for the view to read at display rate. Nothing
+ * on either thread allocates once running.
+ */
+public class SpectrumAnalyzer implements AudioHandler.OutputListener {
+    private static final String TAG = "SpectrumAnalyzer";
+
+    public static final int BANDS = 32;
+
+    private static final int FFT_SIZE = 1024;
+    private static final int BINS = FFT_SIZE / 2;
+    private static final float MIN_FREQUENCY = 40f;
+    private static final float MAX_FREQUENCY = 16000f;
+
+    // Levels are shown over this range below full scale
+    private static final float RANGE_DB = 60f;
+
+    // How far a band may fall per analysis, as a fraction of full height
+    private static final float FALL_PER_FRAME = 0.04f;
+
+    // Roughly the display rate
+    private static final long ANALYSIS_INTERVAL_MS = 16;
+
+    private final AudioHandler audioHandler;
+
+    // Filled on the playback thread
+    private final TripleBuffer<float[]> snapshots = new TripleBuffer<>(
+            new float[][] {new float[FFT_SIZE], new float[FFT_SIZE], new float[FFT_SIZE]});
+    private int snapshotFill;
+    private volatile int sampleRate;
+
+    // Owned by the analysis thread
+    private final RealFft fft = new RealFft(FFT_SIZE);
+    private final float[] window = new float[FFT_SIZE];
+    private final float[] windowed = new float[FFT_SIZE];
+    private final float[] magnitudes = new float[BINS];
+    private final float[] levels = new float[BANDS];
+    private final int[] bandStart = new int[BANDS];
+    private final int[] bandEnd = new int[BANDS];
+    private int bandSampleRate;
+
+    private final TripleBuffer<float[]> bands = new TripleBuffer<>(
+            new float[][] {new float[BANDS], new float[BANDS], new float[BANDS]});
+
+    private volatile Thread analysisThread;
+    private volatile boolean isRunning;
+
+    // Cost on the playback thread and on the analysis thread
+    private volatile long tapCount;
+    private volatile long tapTotalNanos;
+    private volatile long tapMaxNanos;
+    private volatile long fftCount;
+    private volatile long fftTotalNanos;
+    private volatile long fftMaxNanos;
+
+    public SpectrumAnalyzer(AudioHandler audioHandler) {
+        this.audioHandler = audioHandler;
+        // Hann window, which keeps loud bands from smearing into quiet ones
+        for (int i = 0; i < FFT_SIZE; i++) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / (FFT_SIZE - 1)));
+        }
+    }
+
+    /**
+     * Start tapping the output, while something is showing the spectrum
+     */
+    public synchronized void start() {
+        if (isRunning) {
+            return;
+        }
+        isRunning = true;
+        analysisThread = ThreadPolicy.newThread(ThreadPolicy.Stage.METADATA, "SpectrumAnalyzer",
+                this::analysisLoop);
+        analysisThread.start();
+        audioHandler.addOutputListener(this);
+    }
+
+    public synchronized void stop() {
+        if (!isRunning) {
+            return;
+        }
+        isRunning = false;
+        audioHandler.removeOutputListener(this);
+        analysisThread.interrupt();
+        analysisThread = null;
+    }
+
+    /**
+     * Copy the latest band levels, each from 0 to 1. Call from one thread
+     * only, normally the UI thread.
+     *
+     * @param out Receives {@link #BANDS} levels
+     */
+    public void readBands(float[] out) {
+        bands.take();
+        System.arraycopy(bands.readSlot(), 0, out, 0, BANDS);
+    }
+
+    @Override
+    public void onOutput(byte[] pcm, int length, int sampleRate, long playAtNanos) {
+        long startedAt = System.nanoTime();
+        this.sampleRate = sampleRate;
+
+        // During a takeover two sessions may briefly play at once; the fill
+        // is kept in bounds so that can only mix their audio in a snapshot
+        float[] snapshot = snapshots.writeSlot();
+        int fill = Math.min(snapshotFill, FFT_SIZE - 1);
+        for (int i = 0; i + 3 < length; i += 4) {
+            int left = (short) ((pcm[i] & 0xFF) | (pcm[i + 1] << 8));
+            int right = (short) ((pcm[i + 2] & 0xFF) | (pcm[i + 3] << 8));
+            snapshot[fill++] = (left + right) * (0.5f / 32768f);
+            if (fill == FFT_SIZE) {
+                snapshots.publish();
+                snapshot = snapshots.writeSlot();
+                fill = 0;
+            }
+        }
+        snapshotFill = fill;
+
+        long elapsed = System.nanoTime() - startedAt;
+        tapCount++;
+        tapTotalNanos += elapsed;
+        if (elapsed > tapMaxNanos) {
+            tapMaxNanos = elapsed;
+        }
+    }
+
+    public void dump(PrintWriter writer) {
+        long taps = tapCount;
+        long ffts = fftCount;
+        writer.println("Spectrum: " + (isRunning ? "running" : "stopped")
+                + ", tap avg " + (taps > 0 ? tapTotalNanos / taps / 1000 : 0) + " us max "
+                + tapMaxNanos / 1000 + " us, FFT avg " + (ffts > 0 ? fftTotalNanos / ffts / 1000 : 0)
+                + " us max " + fftMaxNanos / 1000 + " us over " + ffts + " frames");
+    }
+
+    private void analysisLoop() {
+        try {
+            // A restart replaces the thread, and the old one stops here
+            while (analysisThread == Thread.currentThread()) {
+                analyzeOnce();
+                Thread.sleep(ANALYSIS_INTERVAL_MS);
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Spectrum analysis failed", e);
+        }
+    }
+
+    /**
+     * Analyze the latest snapshot if there is a new one, or let the bars
+     * fall if not. One pass of the analysis thread, run directly by tests.
+     */
+    void analyzeOnce() {
+        if (snapshots.take()) {
+            long startedAt = System.nanoTime();
+            analyze(snapshots.readSlot());
+            long elapsed = System.nanoTime() - startedAt;
+            fftCount++;
+            fftTotalNanos += elapsed;
+            if (elapsed > fftMaxNanos) {
+                fftMaxNanos = elapsed;
+            }
+        } else {
+            // Nothing playing: let the bars fall
+            decay();
+        }
+    }
+
+    private void analyze(float[] snapshot) {
+        int rate = sampleRate;
+        if (rate != bandSampleRate && rate > 0) {
+            computeBands(rate);
+        }
+
+        for (int i = 0; i < FFT_SIZE; i++) {
+            windowed[i] = snapshot[i] * window[i];
+        }
+        fft.magnitudes(windowed, magnitudes);
+
+        // A full-scale sine peaks at a quarter of the block with this window
+        float fullScale = FFT_SIZE / 4f;
+        for (int band = 0; band < BANDS; band++) {
+            float peak = 0;
+            for (int bin = bandStart[band]; bin < bandEnd[band]; bin++) {
+                if (magnitudes[bin] > peak) {
+                    peak = magnitudes[bin];
+                }
+            }
+            float db = peak > 0 ? 20f * (float) Math.log10(peak / fullScale) : -RANGE_DB;
+            float level = Math.max(0f, Math.min(1f, 1f + db / RANGE_DB));
+            levels[band] = Math.max(level, levels[band] - FALL_PER_FRAME);
+        }
+        publishLevels();
+    }
+
+    private void decay() {
+        boolean changed = false;
+        for (int band = 0; band < BANDS; band++) {
+            if (levels[band] > 0) {
+                levels[band] = Math.max(0f, levels[band] - FALL_PER_FRAME);
+                changed = true;
+            }
+        }
+        if (changed) {
+            publishLevels();
+        }
+    }
+
+    private void publishLevels() {
+        System.arraycopy(levels, 0, bands.writeSlot(), 0, BANDS);
+        bands.publish();
+    }
+
+    /**
+     * Split the bins into bands evenly spaced in log frequency, each at
+     * least one bin wide
+     */
+    private void computeBands(int rate) {
+        float binHz = (float) rate / FFT_SIZE;
+        float ratio = (float) Math.pow(MAX_FREQUENCY / MIN_FREQUENCY, 1.0 / BANDS);
+        float low = MIN_FREQUENCY;
+        int previousEnd = 1;
+        for (int band = 0; band < BANDS; band++) {
+            float high = low * ratio;
+            int start = Math.max(previousEnd, Math.round(low / binHz));
+            int end = Math.max(start + 1, Math.round(high / binHz));
+            bandStart[band] = Math.min(start, BINS - 1);
+            bandEnd[band] = Math.min(end, BINS);
+            previousEnd = end;
+            low = high;
+        }
+        bandSampleRate = rate;
+    }
+}
@@ -0,0 +1,70 @@
+package com.mediabox.airhome.audio;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands the latest of a stream of snapshots from one thread to another
+ * without locks, blocking or allocation.
+ *
+ * There are three slots: the writer fills its own, the reader reads its
+ * own, and the third sits between them. Publishing swaps the writer's
+ * slot with the middle one; taking swaps the reader's slot with the
+ * middle one if something new was published there. Neither side ever
+ * waits for the other, and snapshots the reader is too slow for are
+ * simply overwritten.
+ *
+ * @param <T> Snapshot type, reused in place
+ */
+final class TripleBuffer<T> {
+    private static final int FRESH = 4;
+    private static final int INDEX = 3;
+
+    private final T[] slots;
+
+    // Slot index in the middle, flagged FRESH when not yet taken
+    private final AtomicInteger middle = new AtomicInteger(1);
+    private int writing = 0;
+    private int reading = 2;
+
+    TripleBuffer(T[] slots) {
+        if (slots.length != 3) {
+            throw new IllegalArgumentException("Three slots are needed");
+        }
+        this.slots = slots;
+    }
+
+    /**
+     * Get the slot to fill, owned by the writer until {@link #publish()}
+     */
+    T writeSlot() {
+        return slots[writing];
+    }
+
+    /**
+     * Publish the filled slot and take another to fill
+     */
+    void publish() {
+        writing = middle.getAndSet(writing | FRESH) & INDEX;
+    }
+
+    /**
+     * Take the latest published snapshot if there is a new one
+     *
+     * @return True if {@link #readSlot()} changed
+     */
+    boolean take() {
+        if ((middle.get() & FRESH) == 0) {
+            return false;
+        }
+        reading = middle.getAndSet(reading) & INDEX;
+        return true;
+    }
+
+    /**
+     * Get the last snapshot taken, owned by the reader until the next
+     * {@link #take()}
+     */
+    T readSlot() {
+        return slots[reading];
+    }
+}
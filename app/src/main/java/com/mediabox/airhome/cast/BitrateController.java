@@ -0,0 +1,114 @@
+package com.mediabox.airhome.cast;
+
+import java.util.Arrays;
+
+/**
+ * Chooses the bitrate to encode a network stream at from how well the
+ * connection is keeping up.
+ *
+ * The stream starts at the highest step. Audio dropped because the ring
+ * was full, or audio waiting in the ring for longer than the connection
+ * should allow, means the link cannot carry the current rate: the rate
+ * steps down to what was actually sent over the last interval, with some
+ * headroom, and at least one step. After a long enough run with the
+ * backlog low and nothing dropped it probes one step back up. A probe
+ * that runs into trouble doubles the run needed before that step is
+ * tried again, so a link between two steps settles on the lower one
+ * instead of swinging between them.
+ *
+ * Plain Java, fed observations by the serving thread, so the policy does
+ * not depend on the platform encoder.
+ */
+final class BitrateController {
+    static final int[] BITRATES = {24_000, 32_000, 48_000, 64_000, 96_000, 128_000};
+
+    // Backlog above which the link is falling behind, and below which it is keeping up
+    static final long LAG_HIGH_MILLIS = 750;
+    static final long LAG_LOW_MILLIS = 150;
+
+    // Time for a lower rate to drain the backlog before stepping down again
+    static final long HOLD_MILLIS = 3_000;
+
+    // Run without trouble before probing a higher rate, and the most it
+    // grows to for a step whose probes keep failing
+    static final long STABLE_MILLIS = 10_000;
+    static final long MAX_STABLE_MILLIS = 160_000;
+
+    // Fraction of the measured throughput a new rate may use
+    private static final float HEADROOM = 0.8f;
+
+    private int step = BITRATES.length - 1;
+    private long lastDropped;
+    private long lastSentBytes;
+    private long lastUpdateAt;
+    private long lastChangeAt;
+    private long lastTroubleAt;
+    private final long[] probeWaitMillis = new long[BITRATES.length];
+    private boolean probing;
+
+    /**
+     * @param nowMillis Current time
+     */
+    BitrateController(long nowMillis) {
+        lastUpdateAt = nowMillis;
+        lastChangeAt = nowMillis;
+        lastTroubleAt = nowMillis;
+        Arrays.fill(probeWaitMillis, STABLE_MILLIS);
+    }
+
+    /**
+     * Take in the stream's state, about once a second
+     *
+     * @param lagMillis How long the oldest unsent audio has been waiting
+     * @param droppedBytes Audio dropped so far because the ring was full
+     * @param sentBytes Encoded bytes written to the connection so far
+     * @param nowMillis Current time
+     * @return The new bitrate in bits per second, or -1 if it should not change
+     */
+    int update(long lagMillis, long droppedBytes, long sentBytes, long nowMillis) {
+        boolean dropped = droppedBytes > lastDropped;
+        long elapsed = nowMillis - lastUpdateAt;
+        long sentBitsPerSecond = elapsed > 0 ? (sentBytes - lastSentBytes) * 8_000L / elapsed : 0;
+        lastDropped = droppedBytes;
+        lastSentBytes = sentBytes;
+        lastUpdateAt = nowMillis;
+
+        if (dropped || lagMillis > LAG_HIGH_MILLIS) {
+            lastTroubleAt = nowMillis;
+            if (probing) {
+                probeWaitMillis[step] = Math.min(probeWaitMillis[step] * 2, MAX_STABLE_MILLIS);
+                probing = false;
+            }
+            if (step == 0 || nowMillis - lastChangeAt < HOLD_MILLIS) {
+                return -1;
+            }
+            int next = step - 1;
+            while (next > 0 && BITRATES[next] > sentBitsPerSecond * HEADROOM) {
+                next--;
+            }
+            return changeTo(next, nowMillis);
+        }
+
+        if (lagMillis < LAG_LOW_MILLIS && step < BITRATES.length - 1
+                && nowMillis - lastTroubleAt >= probeWaitMillis[step + 1]
+                && nowMillis - lastChangeAt >= probeWaitMillis[step + 1]) {
+            if (probing) {
+                // The last probe held
+                probeWaitMillis[step] = STABLE_MILLIS;
+            }
+            probing = true;
+            return changeTo(step + 1, nowMillis);
+        }
+        return -1;
+    }
+
+    int getBitrate() {
+        return BITRATES[step];
+    }
+
+    private int changeTo(int next, long nowMillis) {
+        step = next;
+        lastChangeAt = nowMillis;
+        return BITRATES[step];
+    }
+}
@@ -0,0 +1,166 @@
+package com.mediabox.airhome.cast;
+
+import android.util.Log;
+
+import com.mediabox.airhome.util.ThreadPolicy;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * TLS connection to a Cast device carrying length-prefixed
+ * {@link CastMessage}s.
+ *
+ * Cast devices present certificates signed by Google's device CA rather
+ * than a public one, so the certificate is not checked; the connection
+ * only carries playback commands. Heartbeat pings from the device are
+ * answered here, and every other message goes to the listener on the
+ * reader thread.
+ */
+class CastChannel implements Closeable {
+    private static final String TAG = "CastChannel";
+
+    static final String SOURCE_ID = "sender-0";
+    static final String NAMESPACE_CONNECTION = "urn:x-cast:com.google.cast.tp.connection";
+    static final String NAMESPACE_HEARTBEAT = "urn:x-cast:com.google.cast.tp.heartbeat";
+    static final String NAMESPACE_RECEIVER = "urn:x-cast:com.google.cast.receiver";
+    static final String NAMESPACE_MEDIA = "urn:x-cast:com.google.cast.media";
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int MAX_MESSAGE_BYTES = 64 * 1024;
+
+    /**
+     * Receives messages from the device on the reader thread
+     */
+    interface MessageListener {
+        void onMessage(CastMessage message);
+
+        void onClosed();
+    }
+
+    private final InetSocketAddress address;
+    private final MessageListener listener;
+    private SSLSocket socket;
+    private OutputStream output;
+    private Thread readThread;
+    private volatile boolean isOpen;
+
+    CastChannel(InetSocketAddress address, MessageListener listener) {
+        this.address = address;
+        this.listener = listener;
+    }
+
+    /**
+     * Connect and start the reader thread
+     */
+    void connect() throws IOException {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, new TrustManager[] {new AcceptAllTrustManager()}, null);
+            socket = (SSLSocket) context.getSocketFactory().createSocket();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to set up TLS for Cast", e);
+        }
+
+        socket.connect(address, CONNECT_TIMEOUT_MS);
+        socket.setTcpNoDelay(true);
+        socket.startHandshake();
+        output = socket.getOutputStream();
+        isOpen = true;
+
+        readThread = ThreadPolicy.newThread(ThreadPolicy.Stage.CONTROL, "CastChannelRead", this::readLoop);
+        readThread.start();
+    }
+
+    /**
+     * Get the address of our end of the connection, which the device can
+     * reach us on
+     */
+    InetAddress getLocalAddress() {
+        return socket.getLocalAddress();
+    }
+
+    /**
+     * Send a string message
+     */
+    synchronized void send(String destinationId, String namespace, String payload) throws IOException {
+        byte[] body = new CastMessage(SOURCE_ID, destinationId, namespace, payload).encode();
+        byte[] frame = new byte[4 + body.length];
+        frame[0] = (byte) (body.length >>> 24);
+        frame[1] = (byte) (body.length >>> 16);
+        frame[2] = (byte) (body.length >>> 8);
+        frame[3] = (byte) body.length;
+        System.arraycopy(body, 0, frame, 4, body.length);
+        output.write(frame);
+        output.flush();
+    }
+
+    @Override
+    public void close() {
+        isOpen = false;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing Cast connection", e);
+            }
+        }
+    }
+
+    private void readLoop() {
+        byte[] buffer = new byte[MAX_MESSAGE_BYTES];
+        try {
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            while (isOpen) {
+                int length = input.readInt();
+                if (length < 0 || length > MAX_MESSAGE_BYTES) {
+                    throw new IOException("Cast message too long: " + length);
+                }
+                input.readFully(buffer, 0, length);
+                CastMessage message = CastMessage.decode(buffer, length);
+
+                if (NAMESPACE_HEARTBEAT.equals(message.namespace) && message.payload.contains("\"PING\"")) {
+                    send(message.sourceId, NAMESPACE_HEARTBEAT, "{\"type\":\"PONG\"}");
+                } else {
+                    listener.onMessage(message);
+                }
+            }
+        } catch (EOFException e) {
+            Log.i(TAG, "Cast device closed the connection");
+        } catch (IOException e) {
+            if (isOpen) {
+                Log.e(TAG, "Error reading from Cast device", e);
+            }
+        } finally {
+            isOpen = false;
+            listener.onClosed();
+        }
+    }
+
+    private static final class AcceptAllTrustManager implements X509TrustManager {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.mediabox.airhome.cast;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The Cast v2 {@code CastMessage} protobuf, limited to string payloads.
+ *
+ * Only the handful of fields the sender side needs are encoded and
+ * decoded, by hand, so the app does not need a protobuf runtime:
+ *
+ * <pre>
+ * 1 protocol_version  varint (0 = CASTV2_1_0)
+ * 2 source_id         string
+ * 3 destination_id    string
+ * 4 namespace         string
+ * 5 payload_type      varint (0 = STRING)
+ * 6 payload_utf8      string
+ * </pre>
+ */
+final class CastMessage {
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+    private static final int WIRE_FIXED32 = 5;
+
+    final String sourceId;
+    final String destinationId;
+    final String namespace;
+    final String payload;
+
+    CastMessage(String sourceId, String destinationId, String namespace, String payload) {
+        this.sourceId = sourceId;
+        this.destinationId = destinationId;
+        this.namespace = namespace;
+        this.payload = payload;
+    }
+
+    /**
+     * Serialize to protobuf, without the length prefix used on the wire
+     */
+    byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + payload.length());
+        writeTag(out, 1, WIRE_VARINT);
+        writeVarint(out, 0);
+        writeString(out, 2, sourceId);
+        writeString(out, 3, destinationId);
+        writeString(out, 4, namespace);
+        writeTag(out, 5, WIRE_VARINT);
+        writeVarint(out, 0);
+        writeString(out, 6, payload);
+        return out.toByteArray();
+    }
+
+    /**
+     * Parse a message, ignoring fields and payload types we do not use
+     */
+    static CastMessage decode(byte[] data, int length) throws IOException {
+        String source = "";
+        String destination = "";
+        String namespace = "";
+        String payload = "";
+
+        int[] position = {0};
+        while (position[0] < length) {
+            long tag = readVarint(data, length, position);
+            int field = (int) (tag >>> 3);
+            switch ((int) (tag & 7)) {
+                case WIRE_VARINT:
+                    readVarint(data, length, position);
+                    break;
+                case WIRE_FIXED64:
+                    position[0] += 8;
+                    break;
+                case WIRE_FIXED32:
+                    position[0] += 4;
+                    break;
+                case WIRE_LENGTH_DELIMITED:
+                    int size = (int) readVarint(data, length, position);
+                    if (size < 0 || size > length - position[0]) {
+                        throw new IOException("Truncated Cast message");
+                    }
+                    String value = new String(data, position[0], size, StandardCharsets.UTF_8);
+                    position[0] += size;
+                    if (field == 2) {
+                        source = value;
+                    } else if (field == 3) {
+                        destination = value;
+                    } else if (field == 4) {
+                        namespace = value;
+                    } else if (field == 6) {
+                        payload = value;
+                    }
+                    break;
+                default:
+                    throw new IOException("Unsupported wire type in Cast message");
+            }
+        }
+        return new CastMessage(source, destination, namespace, payload);
+    }
+
+    private static void writeTag(ByteArrayOutputStream out, int field, int wireType) {
+        writeVarint(out, (field << 3) | wireType);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, int field, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeTag(out, field, WIRE_LENGTH_DELIMITED);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(byte[] data, int length, int[] position) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position[0] >= length) {
+                throw new IOException("Truncated varint in Cast message");
+            }
+            int b = data[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in Cast message");
+    }
+}
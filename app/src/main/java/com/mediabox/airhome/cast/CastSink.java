@@ -0,0 +1,342 @@
+package com.mediabox.airhome.cast;
+
+import android.util.Log;
+
+import com.mediabox.airhome.audio.AudioHandler;
+import com.mediabox.airhome.service.MDNSManager;
+import com.mediabox.airhome.util.ConfigManager;
+import com.mediabox.airhome.util.ThreadPolicy;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+
+/**
+ * Plays the live session through a Google Cast device.
+ *
+ * The device is found over mDNS by its friendly name, or addressed
+ * directly as host:port so a local stand-in receiver can be used. The
+ * Default Media Receiver is launched and told to load an endless WAV
+ * stream served by {@link CastStreamServer}. The playback thread only
+ * hands PCM to the server's ring; connecting, framing and sending all
+ * happen on other threads.
+ *
+ * The receiver buffers a few seconds before it plays, so the amount it
+ * lags behind what has been delivered is measured from its media status
+ * and reported to {@link AudioHandler} as sink latency. Senders and the
+ * buffered receiver then schedule audio that much earlier, and the local
+ * speaker is muted while the Cast device is playing.
+ *
+ * With transcoding enabled and an Opus encoder on the device, the stream
+ * is Ogg Opus instead, at a bitrate that follows what the network to the
+ * receiver can carry.
+ */
+public class CastSink implements AudioHandler.OutputListener, CastChannel.MessageListener {
+    private static final String TAG = "CastSink";
+
+    private static final String DEFAULT_MEDIA_RECEIVER = "CC1AD845";
+    private static final String PLATFORM_RECEIVER = "receiver-0";
+
+    private static final long LAUNCH_TIMEOUT_MS = 10_000;
+    private static final long HEARTBEAT_INTERVAL_MS = 5_000;
+    private static final long STATUS_INTERVAL_MS = 2_000;
+    private static final long RETRY_DELAY_MS = 10_000;
+
+    // Receiver latency outside this range is a measurement glitch
+    private static final int MAX_LATENCY_MILLIS = 10_000;
+    private static final int LATENCY_SMOOTHING = 8;
+
+    private final AudioHandler audioHandler;
+    private final MDNSManager mdnsManager;
+    private final String deviceName;
+    private final CastStreamServer streamServer = new CastStreamServer();
+
+    private Thread workerThread;
+    private volatile boolean isRunning;
+    private volatile CastChannel channel;
+    private volatile boolean channelClosed;
+    private int requestId;
+
+    // Set from device messages on the channel's reader thread
+    private volatile String transportId;
+    private volatile int mediaSessionId;
+    private volatile String playerState = "IDLE";
+    private volatile int receiverLatencyMillis;
+    private volatile boolean latencyMeasured;
+
+    public CastSink(AudioHandler audioHandler, MDNSManager mdnsManager, String deviceName) {
+        this.audioHandler = audioHandler;
+        this.mdnsManager = mdnsManager;
+        this.deviceName = deviceName;
+    }
+
+    /**
+     * Start serving audio and connect to the device in the background,
+     * retrying until stopped
+     */
+    public void start() {
+        isRunning = true;
+        workerThread = ThreadPolicy.newThread(ThreadPolicy.Stage.CONTROL, "CastSink", this::workerLoop);
+        workerThread.start();
+    }
+
+    public void stop() {
+        isRunning = false;
+        if (workerThread != null) {
+            workerThread.interrupt();
+            workerThread = null;
+        }
+        closeChannel();
+        streamServer.stop();
+        restoreLocalOutput();
+    }
+
+    /**
+     * Hand a buffer of output to the stream server. Called on the playback
+     * thread; only copies into a ring.
+     */
+    @Override
+    public void onOutput(byte[] pcm, int length, int sampleRate, long playAtNanos) {
+        if (isRunning) {
+            streamServer.offer(pcm, length, sampleRate);
+        }
+    }
+
+    /**
+     * Print connection state, receiver latency and delivery metrics
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("Cast output " + deviceName + ": " + (channel != null ? playerState : "disconnected")
+                + ", receiver latency " + receiverLatencyMillis + " ms");
+        writer.println("  Delivery lag " + streamServer.getDeliveryLagMillis() + " ms, "
+                + streamServer.getThroughputBytesPerSecond() / 1024 + " KB/s, "
+                + streamServer.getBytesDropped() + " bytes dropped");
+        int bitrate = streamServer.getOpusBitrate();
+        if (bitrate > 0) {
+            writer.println("  Opus " + bitrate / 1000 + " kbps, "
+                    + streamServer.getOpusBitrateChanges() + " bitrate changes");
+        }
+    }
+
+    @Override
+    public void onMessage(CastMessage message) {
+        try {
+            JSONObject payload = new JSONObject(message.payload);
+            String type = payload.optString("type");
+            if ("RECEIVER_STATUS".equals(type)) {
+                handleReceiverStatus(payload);
+            } else if ("MEDIA_STATUS".equals(type)) {
+                handleMediaStatus(payload);
+            } else if ("CLOSE".equals(type)) {
+                Log.i(TAG, "Cast receiver closed the session");
+                closeChannel();
+            } else if ("LOAD_FAILED".equals(type) || "LAUNCH_ERROR".equals(type)) {
+                Log.w(TAG, "Cast device rejected request: " + message.payload);
+                closeChannel();
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Ignoring malformed Cast message on " + message.namespace);
+        }
+    }
+
+    @Override
+    public void onClosed() {
+        channelClosed = true;
+    }
+
+    private void workerLoop() {
+        try {
+            streamServer.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to start Cast stream server", e);
+            return;
+        }
+
+        while (isRunning) {
+            try {
+                runSession();
+            } catch (IOException e) {
+                if (isRunning) {
+                    Log.w(TAG, "Cast output to " + deviceName + " failed: " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                closeChannel();
+                restoreLocalOutput();
+            }
+
+            try {
+                Thread.sleep(RETRY_DELAY_MS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Connect, launch the media receiver, load the stream and keep it
+     * alive until the connection drops
+     */
+    private void runSession() throws IOException, InterruptedException {
+        InetSocketAddress address = mdnsManager.findCastDevice(deviceName);
+        if (address == null) {
+            throw new IOException("Cast device not found");
+        }
+
+        transportId = null;
+        mediaSessionId = 0;
+        playerState = "IDLE";
+        latencyMeasured = false;
+        channelClosed = false;
+
+        CastChannel connection = new CastChannel(address, this);
+        channel = connection;
+        connection.connect();
+        Log.i(TAG, "Connected to Cast device at " + address);
+
+        connection.send(PLATFORM_RECEIVER, CastChannel.NAMESPACE_CONNECTION, "{\"type\":\"CONNECT\"}");
+        connection.send(PLATFORM_RECEIVER, CastChannel.NAMESPACE_RECEIVER,
+                "{\"type\":\"LAUNCH\",\"appId\":\"" + DEFAULT_MEDIA_RECEIVER + "\",\"requestId\":"
+                + nextRequestId() + "}");
+
+        long deadline = System.currentTimeMillis() + LAUNCH_TIMEOUT_MS;
+        while (transportId == null) {
+            if (channelClosed || System.currentTimeMillis() > deadline) {
+                throw new IOException("Media receiver did not launch");
+            }
+            Thread.sleep(50);
+        }
+        connection.send(transportId, CastChannel.NAMESPACE_CONNECTION, "{\"type\":\"CONNECT\"}");
+
+        boolean opus = ConfigManager.getInstance().isTranscodingEnabled() && OpusStreamEncoder.isAvailable();
+        String streamUrl = "http://" + connection.getLocalAddress().getHostAddress() + ":"
+                + streamServer.getPort() + (opus ? CastStreamServer.PATH_OPUS : CastStreamServer.PATH);
+        String contentType = opus ? "audio/ogg" : "audio/wav";
+        int loadedRate = streamServer.getSampleRate();
+        load(connection, streamUrl, contentType);
+
+        long nextHeartbeat = 0;
+        long nextStatus = 0;
+        while (isRunning && !channelClosed) {
+            long now = System.currentTimeMillis();
+            if (now >= nextHeartbeat) {
+                connection.send(PLATFORM_RECEIVER, CastChannel.NAMESPACE_HEARTBEAT, "{\"type\":\"PING\"}");
+                nextHeartbeat = now + HEARTBEAT_INTERVAL_MS;
+            }
+            if (now >= nextStatus && mediaSessionId != 0) {
+                connection.send(transportId, CastChannel.NAMESPACE_MEDIA,
+                        "{\"type\":\"GET_STATUS\",\"mediaSessionId\":" + mediaSessionId
+                        + ",\"requestId\":" + nextRequestId() + "}");
+                nextStatus = now + STATUS_INTERVAL_MS;
+            }
+
+            // The WAV header carries the rate, so a new rate needs a new
+            // stream; Opus is always resampled to 48 kHz
+            int rate = streamServer.getSampleRate();
+            if (!opus && rate > 0 && rate != loadedRate) {
+                Log.i(TAG, "Sample rate changed to " + rate + ", reloading Cast stream");
+                loadedRate = rate;
+                latencyMeasured = false;
+                load(connection, streamUrl, contentType);
+            }
+
+            Thread.sleep(100);
+        }
+    }
+
+    private void load(CastChannel connection, String streamUrl, String contentType) throws IOException {
+        try {
+            JSONObject media = new JSONObject();
+            media.put("contentId", streamUrl);
+            media.put("streamType", "LIVE");
+            media.put("contentType", contentType);
+
+            JSONObject request = new JSONObject();
+            request.put("type", "LOAD");
+            request.put("requestId", nextRequestId());
+            request.put("media", media);
+            request.put("autoplay", true);
+            connection.send(transportId, CastChannel.NAMESPACE_MEDIA, request.toString());
+        } catch (JSONException e) {
+            throw new IOException("Unable to build LOAD request", e);
+        }
+    }
+
+    private void handleReceiverStatus(JSONObject payload) {
+        JSONObject status = payload.optJSONObject("status");
+        JSONArray applications = status != null ? status.optJSONArray("applications") : null;
+        if (applications == null) {
+            return;
+        }
+        for (int i = 0; i < applications.length(); i++) {
+            JSONObject application = applications.optJSONObject(i);
+            if (application != null && DEFAULT_MEDIA_RECEIVER.equals(application.optString("appId"))) {
+                String id = application.optString("transportId");
+                if (!id.isEmpty()) {
+                    transportId = id;
+                }
+            }
+        }
+    }
+
+    /**
+     * Track the player state and estimate how far the receiver's playback
+     * position trails the audio it has been sent
+     */
+    private void handleMediaStatus(JSONObject payload) {
+        JSONArray statuses = payload.optJSONArray("status");
+        JSONObject status = statuses != null ? statuses.optJSONObject(0) : null;
+        if (status == null) {
+            return;
+        }
+        mediaSessionId = status.optInt("mediaSessionId", mediaSessionId);
+        playerState = status.optString("playerState", playerState);
+
+        boolean playing = "PLAYING".equals(playerState);
+        audioHandler.setLocalOutputMuted(playing);
+        int rate = streamServer.getSampleRate();
+        if (!playing || rate <= 0 || !status.has("currentTime")) {
+            return;
+        }
+
+        long deliveredMillis = streamServer.getBytesDelivered() * 1000L / (rate * 4L);
+        long playedMillis = (long) (status.optDouble("currentTime", 0) * 1000);
+        int sample = (int) (deliveredMillis - playedMillis);
+        if (sample < 0 || sample > MAX_LATENCY_MILLIS) {
+            return;
+        }
+
+        int latency = latencyMeasured
+                ? receiverLatencyMillis + (sample - receiverLatencyMillis) / LATENCY_SMOOTHING
+                : sample;
+        latencyMeasured = true;
+        receiverLatencyMillis = latency;
+        audioHandler.setSinkLatencyMillis(latency + (int) streamServer.getDeliveryLagMillis());
+    }
+
+    private synchronized int nextRequestId() {
+        return ++requestId;
+    }
+
+    private void closeChannel() {
+        CastChannel connection = channel;
+        channel = null;
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Put playback back on the local speaker at its normal timing
+     */
+    private void restoreLocalOutput() {
+        audioHandler.setLocalOutputMuted(false);
+        audioHandler.setSinkLatencyMillis(0);
+        receiverLatencyMillis = 0;
+    }
+}
@@ -0,0 +1,334 @@
+package com.mediabox.airhome.cast;
+
+import android.util.Log;
+
+import com.mediabox.airhome.util.ThreadPolicy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the live session to a Cast receiver as an endless WAV stream
+ * over HTTP, or as Ogg Opus for links too slow for PCM.
+ *
+ * The playback thread only copies PCM into a preallocated ring; framing
+ * and socket writes happen on the server's own thread, so a slow network
+ * never stalls local playback. When the ring is full new audio is
+ * dropped and counted rather than blocking. A receiver that connects
+ * starts from the newest audio instead of a stale backlog.
+ *
+ * The Opus stream is encoded on the serving thread, from the same ring,
+ * at a bitrate a {@link BitrateController} adapts to how well that
+ * connection keeps up.
+ */
+class CastStreamServer {
+    private static final String TAG = "CastStreamServer";
+
+    static final String PATH = "/live.wav";
+    static final String PATH_OPUS = "/live.ogg";
+
+    // About three seconds at 44.1 kHz stereo
+    private static final int RING_BYTES = 512 * 1024;
+    private static final int SEND_CHUNK_BYTES = 8192;
+    private static final int CHANNELS = 2;
+    private static final int BYTES_PER_FRAME = 4;
+
+    private static final long BITRATE_CHECK_INTERVAL_MS = 1_000;
+
+    private final byte[] ring = new byte[RING_BYTES];
+    private final Object lock = new Object();
+
+    // Monotonic byte counters, guarded by lock
+    private long writePosition;
+    private long readPosition;
+    private int sampleRate;
+    private boolean streaming;
+
+    private ServerSocket serverSocket;
+    private volatile int port;
+    private Thread acceptThread;
+    private volatile boolean isRunning;
+
+    // Delivery metrics; delivered counts PCM taken from the ring, sent
+    // counts bytes written to the connection
+    private volatile long bytesDelivered;
+    private volatile long bytesSent;
+    private volatile long bytesDropped;
+    private volatile long deliveryLagMillis;
+    private volatile long streamStartedAt;
+    private volatile OpusStreamEncoder opusEncoder;
+
+    /**
+     * Start listening on an ephemeral port
+     *
+     * @return The port
+     */
+    int start() throws IOException {
+        serverSocket = new ServerSocket(0);
+        isRunning = true;
+        acceptThread = ThreadPolicy.newThread(ThreadPolicy.Stage.CONTROL, "CastStreamServer", this::acceptLoop);
+        acceptThread.start();
+        port = serverSocket.getLocalPort();
+        return port;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    void stop() {
+        isRunning = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing stream server", e);
+        }
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Queue PCM for the receiver. Called on the playback thread; never blocks.
+     *
+     * @param pcm Little-endian 16-bit stereo PCM
+     * @param length Number of bytes
+     * @param rate Sample rate of the PCM
+     */
+    void offer(byte[] pcm, int length, int rate) {
+        synchronized (lock) {
+            sampleRate = rate;
+            int free = RING_BYTES - (int) (writePosition - readPosition);
+            if (length > free) {
+                if (streaming) {
+                    bytesDropped += length;
+                    return;
+                }
+                // Nobody is listening yet: keep only the newest audio
+                readPosition += length - free;
+            }
+
+            int index = (int) (writePosition % RING_BYTES);
+            int first = Math.min(length, RING_BYTES - index);
+            System.arraycopy(pcm, 0, ring, index, first);
+            System.arraycopy(pcm, first, ring, 0, length - first);
+            writePosition += length;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Get the sample rate of the audio being offered, or 0 before any has been
+     */
+    int getSampleRate() {
+        synchronized (lock) {
+            return sampleRate;
+        }
+    }
+
+    /**
+     * Get how much PCM has been sent since the receiver connected, before
+     * any encoding
+     */
+    long getBytesDelivered() {
+        return bytesDelivered;
+    }
+
+    long getBytesDropped() {
+        return bytesDropped;
+    }
+
+    /**
+     * Get how long audio waited in the ring before it was sent, as of the
+     * last send
+     */
+    long getDeliveryLagMillis() {
+        return deliveryLagMillis;
+    }
+
+    /**
+     * Get the average rate audio has been delivered at since the receiver connected
+     */
+    long getThroughputBytesPerSecond() {
+        long started = streamStartedAt;
+        long elapsed = System.nanoTime() - started;
+        return started != 0 && elapsed > 0 ? bytesSent * 1_000_000_000L / elapsed : 0;
+    }
+
+    /**
+     * Get the Opus bitrate in bits per second, or 0 when not streaming Opus
+     */
+    int getOpusBitrate() {
+        OpusStreamEncoder encoder = opusEncoder;
+        return encoder != null ? encoder.getBitrate() : 0;
+    }
+
+    /**
+     * Get how often the Opus bitrate has changed on the current connection
+     */
+    int getOpusBitrateChanges() {
+        OpusStreamEncoder encoder = opusEncoder;
+        return encoder != null ? encoder.getBitrateChanges() : 0;
+    }
+
+    private void acceptLoop() {
+        while (isRunning) {
+            try {
+                Socket client = serverSocket.accept();
+                // One receiver at a time; it reconnects if the stream drops
+                serve(client);
+            } catch (IOException e) {
+                if (isRunning) {
+                    Log.e(TAG, "Error accepting stream connection", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        OpusStreamEncoder encoder = null;
+        try {
+            client.setTcpNoDelay(true);
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(client.getInputStream(), StandardCharsets.US_ASCII));
+            String requestLine = reader.readLine();
+            String header;
+            while ((header = reader.readLine()) != null && !header.isEmpty()) {
+                // Headers are not needed
+            }
+
+            OutputStream output = client.getOutputStream();
+            boolean opus = requestLine != null && requestLine.startsWith("GET " + PATH_OPUS)
+                    && OpusStreamEncoder.isAvailable();
+            if (!opus && (requestLine == null || !requestLine.startsWith("GET " + PATH))) {
+                output.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+                        .getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+
+            int rate;
+            synchronized (lock) {
+                // Start from the newest audio
+                readPosition = writePosition;
+                streaming = true;
+                rate = sampleRate > 0 ? sampleRate : 44100;
+            }
+            output.write(("HTTP/1.1 200 OK\r\nContent-Type: " + (opus ? "audio/ogg" : "audio/wav")
+                    + "\r\nCache-Control: no-cache\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            streamStartedAt = System.nanoTime();
+            bytesDelivered = 0;
+            bytesSent = 0;
+
+            OggOpusWriter opusWriter = null;
+            BitrateController bitrateController = null;
+            long nextBitrateCheck = 0;
+            if (opus) {
+                opusWriter = new OggOpusWriter(output);
+                bitrateController = new BitrateController(System.currentTimeMillis());
+                encoder = new OpusStreamEncoder(opusWriter);
+                encoder.start(rate, bitrateController.getBitrate());
+                opusEncoder = encoder;
+                nextBitrateCheck = System.currentTimeMillis() + BITRATE_CHECK_INTERVAL_MS;
+            } else {
+                output.write(wavHeader(rate));
+            }
+
+            byte[] chunk = new byte[SEND_CHUNK_BYTES];
+            while (isRunning) {
+                int length;
+                int chunkRate;
+                synchronized (lock) {
+                    while (isRunning && writePosition == readPosition) {
+                        lock.wait();
+                    }
+                    int available = (int) (writePosition - readPosition);
+                    length = Math.min(available, SEND_CHUNK_BYTES);
+                    length -= length % BYTES_PER_FRAME;
+                    int index = (int) (readPosition % RING_BYTES);
+                    int first = Math.min(length, RING_BYTES - index);
+                    System.arraycopy(ring, index, chunk, 0, first);
+                    System.arraycopy(ring, 0, chunk, first, length - first);
+                    readPosition += length;
+                    chunkRate = sampleRate > 0 ? sampleRate : rate;
+                    deliveryLagMillis = (available / BYTES_PER_FRAME) * 1000L / rate;
+                }
+
+                if (encoder != null) {
+                    encoder.encode(chunk, length, chunkRate);
+                    bytesSent = opusWriter.getBytesWritten();
+                    long now = System.currentTimeMillis();
+                    if (now >= nextBitrateCheck) {
+                        int bitrate = bitrateController.update(deliveryLagMillis, bytesDropped, bytesSent, now);
+                        if (bitrate > 0) {
+                            encoder.setBitrate(bitrate);
+                        }
+                        nextBitrateCheck = now + BITRATE_CHECK_INTERVAL_MS;
+                    }
+                } else {
+                    output.write(chunk, 0, length);
+                    bytesSent += length;
+                }
+                bytesDelivered += length;
+            }
+        } catch (IOException e) {
+            Log.i(TAG, "Cast receiver stream ended: " + e.getMessage());
+        } catch (InterruptedException e) {
+            // Stopping
+        } finally {
+            synchronized (lock) {
+                streaming = false;
+            }
+            streamStartedAt = 0;
+            opusEncoder = null;
+            if (encoder != null) {
+                encoder.release();
+            }
+            try {
+                client.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing stream connection", e);
+            }
+        }
+    }
+
+    /**
+     * WAV header for an open-ended 16-bit stereo stream, with the sizes set
+     * to their maximum since the length is unknown
+     */
+    private static byte[] wavHeader(int rate) {
+        byte[] header = new byte[44];
+        putAscii(header, 0, "RIFF");
+        putLittleEndian(header, 4, 0xFFFFFFFF, 4);
+        putAscii(header, 8, "WAVEfmt ");
+        putLittleEndian(header, 16, 16, 4);
+        putLittleEndian(header, 20, 1, 2);
+        putLittleEndian(header, 22, CHANNELS, 2);
+        putLittleEndian(header, 24, rate, 4);
+        putLittleEndian(header, 28, rate * BYTES_PER_FRAME, 4);
+        putLittleEndian(header, 32, BYTES_PER_FRAME, 2);
+        putLittleEndian(header, 34, 16, 2);
+        putAscii(header, 36, "data");
+        putLittleEndian(header, 40, 0xFFFFFFFF - 36, 4);
+        return header;
+    }
+
+    private static void putAscii(byte[] buffer, int offset, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            buffer[offset + i] = (byte) value.charAt(i);
+        }
+    }
+
+    private static void putLittleEndian(byte[] buffer, int offset, int value, int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            buffer[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.mediabox.airhome.cast;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Writes Opus packets to a stream as an endless Ogg Opus file (RFC 7845).
+ *
+ * Each packet gets a page of its own, so a receiver never waits for a
+ * page to fill. Granule positions count 48 kHz samples, taken from each
+ * packet's table-of-contents byte rather than trusted to the encoder's
+ * timestamps. The page buffer is reused, so writing does not allocate.
+ */
+final class OggOpusWriter {
+    static final int OPUS_RATE = 48000;
+
+    // The largest packet one page can hold, in 255 lacing segments
+    private static final int MAX_PACKET_BYTES = 255 * 255 - 1;
+    private static final int HEADER_BYTES = 27;
+
+    private static final int FLAG_FIRST_PAGE = 0x02;
+
+    // SILK frames of 10, 20, 40 and 60 ms
+    private static final int[] SILK_FRAME_SAMPLES = {480, 960, 1920, 2880};
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        // Ogg's CRC-32: polynomial 0x04C11DB7, not reflected, no final xor
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private final OutputStream output;
+    private final int serial = new Random().nextInt();
+    private final byte[] page = new byte[HEADER_BYTES + 255 + MAX_PACKET_BYTES];
+    private int pageSequence;
+    private long granulePosition;
+    private long bytesWritten;
+
+    OggOpusWriter(OutputStream output) {
+        this.output = output;
+    }
+
+    /**
+     * Write the identification and comment headers, before any audio
+     *
+     * @param channels Number of channels
+     * @param preSkip Samples at 48 kHz the decoder should discard at the start
+     * @param inputRate Sample rate of the original audio, for information
+     */
+    void writeHeaders(int channels, int preSkip, int inputRate) throws IOException {
+        byte[] head = new byte[19];
+        putAscii(head, 0, "OpusHead");
+        head[8] = 1;
+        head[9] = (byte) channels;
+        putLittleEndian(head, 10, preSkip, 2);
+        putLittleEndian(head, 12, inputRate, 4);
+        // Output gain 0 and channel mapping family 0 are already zero
+        writePage(head, head.length, FLAG_FIRST_PAGE);
+
+        byte[] vendor = "AirHome".getBytes(StandardCharsets.US_ASCII);
+        byte[] tags = new byte[8 + 4 + vendor.length + 4];
+        putAscii(tags, 0, "OpusTags");
+        putLittleEndian(tags, 8, vendor.length, 4);
+        System.arraycopy(vendor, 0, tags, 12, vendor.length);
+        // No user comments
+        writePage(tags, tags.length, 0);
+    }
+
+    /**
+     * Write one encoded Opus packet on a page of its own
+     */
+    void writePacket(byte[] packet, int length) throws IOException {
+        if (length <= 0) {
+            return;
+        }
+        if (length > MAX_PACKET_BYTES) {
+            throw new IOException("Opus packet too large: " + length);
+        }
+        granulePosition += packetSamples(packet, length);
+        writePage(packet, length, 0);
+    }
+
+    /**
+     * Get the number of bytes written, headers included
+     */
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Get the duration of a packet in 48 kHz samples from its TOC byte
+     * (RFC 6716 section 3.1)
+     */
+    static int packetSamples(byte[] packet, int length) {
+        int toc = packet[0] & 0xFF;
+        int config = toc >> 3;
+        int frameSamples;
+        if (config < 12) {
+            frameSamples = SILK_FRAME_SAMPLES[config & 3];
+        } else if (config < 16) {
+            // Hybrid: 10 or 20 ms
+            frameSamples = (config & 1) == 0 ? 480 : 960;
+        } else {
+            // CELT: 2.5, 5, 10 or 20 ms
+            frameSamples = 120 << (config & 3);
+        }
+
+        int frames;
+        switch (toc & 3) {
+            case 0:
+                frames = 1;
+                break;
+            case 1:
+            case 2:
+                frames = 2;
+                break;
+            default:
+                frames = length > 1 ? packet[1] & 0x3F : 0;
+                break;
+        }
+        return frames * frameSamples;
+    }
+
+    private void writePage(byte[] packet, int length, int flags) throws IOException {
+        int segments = length / 255 + 1;
+        putAscii(page, 0, "OggS");
+        page[4] = 0;
+        page[5] = (byte) flags;
+        putLittleEndian(page, 6, (int) granulePosition, 4);
+        putLittleEndian(page, 10, (int) (granulePosition >>> 32), 4);
+        putLittleEndian(page, 14, serial, 4);
+        putLittleEndian(page, 18, pageSequence++, 4);
+        putLittleEndian(page, 22, 0, 4);
+        page[26] = (byte) segments;
+        for (int i = 0; i < segments - 1; i++) {
+            page[HEADER_BYTES + i] = (byte) 255;
+        }
+        page[HEADER_BYTES + segments - 1] = (byte) (length % 255);
+        int dataOffset = HEADER_BYTES + segments;
+        System.arraycopy(packet, 0, page, dataOffset, length);
+
+        int pageLength = dataOffset + length;
+        putLittleEndian(page, 22, crc(page, pageLength), 4);
+        output.write(page, 0, pageLength);
+        bytesWritten += pageLength;
+    }
+
+    private static int crc(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ data[i]) & 0xFF];
+        }
+        return crc;
+    }
+
+    private static void putAscii(byte[] buffer, int offset, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            buffer[offset + i] = (byte) value.charAt(i);
+        }
+    }
+
+    private static void putLittleEndian(byte[] buffer, int offset, int value, int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            buffer[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+}
@@ -0,0 +1,447 @@
+package com.mediabox.airhome.cast;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes a live PCM stream to Ogg Opus with the platform's Opus encoder,
+ * at a bitrate that can be changed while streaming.
+ *
+ * Opus only takes a few sample rates, so 44.1 kHz audio is resampled to
+ * 48 kHz on the way in with linear interpolation.
+ *
+ * A bitrate change is first asked of the running encoder, which some
+ * devices honour; whether this one does is judged from the size of the
+ * packets that follow the first step down. Otherwise the current encoder
+ * is drained and another started at the new rate, its packets carrying
+ * on in the same Ogg stream. The decoder only skips lookahead at the
+ * start of the stream, so that costs a gap: the encoder is only ever
+ * given whole frames, so the old one ends without padding, and the
+ * lookahead it still holds is fed again to the new one, so no audio is
+ * lost, but the new encoder's own lookahead plays as about 6.5 ms of
+ * silence, faded back in.
+ *
+ * Runs entirely on the caller's thread, and reuses its buffers once they
+ * have grown to the block size.
+ */
+final class OpusStreamEncoder {
+    private static final String TAG = "OpusStreamEncoder";
+
+    private static final int CHANNELS = 2;
+    private static final int BYTES_PER_FRAME = 4;
+
+    // The encoder's lookahead at 48 kHz, which the decoder skips
+    private static final int PRE_SKIP = 312;
+
+    // Opus frames are 20 ms, and the encoder is only given whole ones
+    private static final int FRAME_BYTES = 960 * BYTES_PER_FRAME;
+    private static final int LOOKAHEAD_BYTES = PRE_SKIP * BYTES_PER_FRAME;
+
+    // Length of the fade-in after a restart, at 48 kHz
+    private static final int FADE_FRAMES = 120;
+
+    // Audio encoded after an in-place step down before judging whether
+    // the encoder took it
+    private static final long VERIFY_FRAMES = OggOpusWriter.OPUS_RATE;
+
+    private static final long INPUT_TIMEOUT_US = 10_000;
+    private static final long DRAIN_TIMEOUT_US = 10_000;
+
+    // Waits for the end of stream before giving up on a draining encoder
+    private static final int MAX_DRAIN_WAITS = 20;
+
+    private final OggOpusWriter writer;
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    private MediaCodec codec;
+    private int bitrate;
+    private long framesQueued;
+    private long encodedBytes;
+
+    // Audio not yet making a whole frame, and the last lookahead's worth
+    // given to the encoder
+    private final byte[] pending = new byte[FRAME_BYTES];
+    private int pendingBytes;
+    private final byte[] lookahead = new byte[LOOKAHEAD_BYTES];
+    private final byte[] carry = new byte[LOOKAHEAD_BYTES + FRAME_BYTES];
+
+    // Whether the encoder was seen to take or to ignore an in-place
+    // change, and the one being judged
+    private boolean inPlaceWorks;
+    private boolean inPlaceIgnored;
+    private int verifyingFrom;
+    private long verifyFramesStart;
+    private long verifyBytesStart;
+
+    private byte[] resampled = new byte[0];
+    private byte[] packet = new byte[0];
+
+    // Resampler state: position of the next output frame relative to the
+    // start of the next input block, and the previous block's last frame
+    private double resamplePosition;
+    private int lastLeft;
+    private int lastRight;
+
+    private int bitrateChanges;
+
+    OpusStreamEncoder(OggOpusWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Check whether the device has an Opus encoder, which arrived in Android 10
+     */
+    static boolean isAvailable() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && findEncoder(64_000) != null;
+    }
+
+    /**
+     * Write the stream headers and start encoding
+     *
+     * @param inputRate Sample rate of the PCM that will be offered
+     * @param bitrate Starting bitrate in bits per second
+     */
+    void start(int inputRate, int bitrate) throws IOException {
+        writer.writeHeaders(CHANNELS, PRE_SKIP, inputRate);
+        codec = createCodec(bitrate);
+        this.bitrate = bitrate;
+    }
+
+    /**
+     * Encode a block of PCM and write whatever packets are ready
+     *
+     * @param pcm Little-endian 16-bit stereo PCM
+     * @param length Number of bytes
+     * @param rate Sample rate of the PCM
+     */
+    void encode(byte[] pcm, int length, int rate) throws IOException {
+        try {
+            if (rate == OggOpusWriter.OPUS_RATE) {
+                queueInput(pcm, length);
+            } else {
+                queueInput(resampled, resample(pcm, length, rate));
+            }
+        } catch (IllegalStateException e) {
+            throw new IOException("Opus encoder failed", e);
+        }
+    }
+
+    /**
+     * Switch to a new bitrate, in place if the encoder allows it and
+     * otherwise by restarting it
+     */
+    void setBitrate(int newBitrate) throws IOException {
+        if (newBitrate == bitrate) {
+            return;
+        }
+        try {
+            if (!inPlaceIgnored && requestBitrate(newBitrate)) {
+                if (!inPlaceWorks && newBitrate < bitrate) {
+                    // Only a step down can be told apart from quiet audio
+                    verifyingFrom = bitrate;
+                    verifyFramesStart = framesQueued;
+                    verifyBytesStart = encodedBytes;
+                }
+            } else {
+                restartCodec(newBitrate);
+            }
+        } catch (IllegalStateException e) {
+            throw new IOException("Unable to change Opus bitrate", e);
+        }
+        Log.i(TAG, "Opus bitrate " + bitrate / 1000 + " -> " + newBitrate / 1000 + " kbps");
+        bitrate = newBitrate;
+        bitrateChanges++;
+    }
+
+    int getBitrate() {
+        return bitrate;
+    }
+
+    int getBitrateChanges() {
+        return bitrateChanges;
+    }
+
+    void release() {
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                // Already failed
+            }
+            codec.release();
+            codec = null;
+        }
+    }
+
+    /**
+     * Ask the running encoder for a new bitrate. Audio encoders take the
+     * video key where they take one at all.
+     *
+     * @return Whether the request was accepted, which does not mean it
+     *         has any effect
+     */
+    private boolean requestBitrate(int newBitrate) {
+        Bundle parameters = new Bundle();
+        parameters.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, newBitrate);
+        try {
+            codec.setParameters(parameters);
+            return true;
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            Log.i(TAG, "Opus encoder refused an in-place bitrate change: " + e.getMessage());
+            inPlaceIgnored = true;
+            return false;
+        }
+    }
+
+    /**
+     * Once enough audio has followed an in-place step down, check that
+     * the packets shrank, and restart at the rate if they did not
+     */
+    private void checkInPlaceChange() throws IOException {
+        long frames = framesQueued - verifyFramesStart;
+        if (verifyingFrom == 0 || frames < VERIFY_FRAMES) {
+            return;
+        }
+        long measured = (encodedBytes - verifyBytesStart) * 8 * OggOpusWriter.OPUS_RATE / frames;
+        int previous = verifyingFrom;
+        verifyingFrom = 0;
+        if (measured < (previous + bitrate) / 2) {
+            inPlaceWorks = true;
+            return;
+        }
+        Log.i(TAG, "Opus encoder ignored an in-place bitrate change: " + measured / 1000 + " kbps after asking for "
+                + bitrate / 1000);
+        inPlaceIgnored = true;
+        restartCodec(bitrate);
+    }
+
+    /**
+     * Replace the encoder with one at the given rate. The old one has only
+     * had whole frames, so it ends without padding, but the last lookahead
+     * of audio never comes out of it; that is fed to the new encoder ahead
+     * of the held-back partial frame, with a fade-in over the new
+     * encoder's own lookahead.
+     */
+    private void restartCodec(int newBitrate) throws IOException {
+        System.arraycopy(lookahead, 0, carry, 0, LOOKAHEAD_BYTES);
+        System.arraycopy(pending, 0, carry, LOOKAHEAD_BYTES, pendingBytes);
+        int carryBytes = LOOKAHEAD_BYTES + pendingBytes;
+        pendingBytes = 0;
+        for (int i = 0; i < FADE_FRAMES; i++) {
+            float gain = (float) i / FADE_FRAMES;
+            int offset = i * BYTES_PER_FRAME;
+            putSample(carry, offset, Math.round(sample(carry, offset) * gain));
+            putSample(carry, offset + 2, Math.round(sample(carry, offset + 2) * gain));
+        }
+
+        finishCodec();
+        codec = createCodec(newBitrate);
+        queueInput(carry, carryBytes);
+    }
+
+    private static String findEncoder(int bitrate) {
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_OPUS,
+                OggOpusWriter.OPUS_RATE, CHANNELS);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+        return new MediaCodecList(MediaCodecList.REGULAR_CODECS).findEncoderForFormat(format);
+    }
+
+    private static MediaCodec createCodec(int bitrate) throws IOException {
+        String name = findEncoder(bitrate);
+        if (name == null) {
+            throw new IOException("No Opus encoder for " + bitrate + " bps");
+        }
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_OPUS,
+                OggOpusWriter.OPUS_RATE, CHANNELS);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+        MediaCodec created = MediaCodec.createByCodecName(name);
+        try {
+            created.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            created.start();
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            created.release();
+            throw new IOException("Unable to start Opus encoder", e);
+        }
+        return created;
+    }
+
+    /**
+     * Resample a block to 48 kHz into the resampled buffer
+     *
+     * @return Number of bytes produced
+     */
+    private int resample(byte[] pcm, int length, int rate) {
+        int frames = length / BYTES_PER_FRAME;
+        double step = (double) rate / OggOpusWriter.OPUS_RATE;
+        int capacity = ((int) (frames / step) + 2) * BYTES_PER_FRAME;
+        if (resampled.length < capacity) {
+            resampled = new byte[capacity];
+        }
+
+        int out = 0;
+        double position = resamplePosition;
+        while (position < frames - 1) {
+            int index = (int) Math.floor(position);
+            float fraction = (float) (position - index);
+            int left0;
+            int right0;
+            if (index < 0) {
+                left0 = lastLeft;
+                right0 = lastRight;
+            } else {
+                left0 = sample(pcm, index * BYTES_PER_FRAME);
+                right0 = sample(pcm, index * BYTES_PER_FRAME + 2);
+            }
+            int left1 = sample(pcm, (index + 1) * BYTES_PER_FRAME);
+            int right1 = sample(pcm, (index + 1) * BYTES_PER_FRAME + 2);
+            putSample(resampled, out, Math.round(left0 + (left1 - left0) * fraction));
+            putSample(resampled, out + 2, Math.round(right0 + (right1 - right0) * fraction));
+            out += BYTES_PER_FRAME;
+            position += step;
+        }
+
+        if (frames > 0) {
+            lastLeft = sample(pcm, (frames - 1) * BYTES_PER_FRAME);
+            lastRight = sample(pcm, (frames - 1) * BYTES_PER_FRAME + 2);
+            resamplePosition = position - frames;
+        }
+        return out;
+    }
+
+    private static int sample(byte[] pcm, int offset) {
+        return (short) ((pcm[offset] & 0xFF) | (pcm[offset + 1] << 8));
+    }
+
+    private static void putSample(byte[] pcm, int offset, int value) {
+        pcm[offset] = (byte) value;
+        pcm[offset + 1] = (byte) (value >> 8);
+    }
+
+    /**
+     * Give the encoder whole frames, holding back the rest until the
+     * next block completes them
+     */
+    private void queueInput(byte[] data, int length) throws IOException {
+        int offset = 0;
+        if (pendingBytes > 0) {
+            offset = Math.min(length, FRAME_BYTES - pendingBytes);
+            System.arraycopy(data, 0, pending, pendingBytes, offset);
+            pendingBytes += offset;
+            if (pendingBytes < FRAME_BYTES) {
+                return;
+            }
+            queueFrames(pending, 0, FRAME_BYTES);
+            pendingBytes = 0;
+        }
+        int whole = (length - offset) / FRAME_BYTES * FRAME_BYTES;
+        queueFrames(data, offset, whole);
+        offset += whole;
+        pendingBytes = length - offset;
+        System.arraycopy(data, offset, pending, 0, pendingBytes);
+        drainOutput(false);
+        checkInPlaceChange();
+    }
+
+    private void queueFrames(byte[] data, int start, int length) throws IOException {
+        if (length >= LOOKAHEAD_BYTES) {
+            System.arraycopy(data, start + length - LOOKAHEAD_BYTES, lookahead, 0, LOOKAHEAD_BYTES);
+        } else {
+            System.arraycopy(lookahead, length, lookahead, 0, LOOKAHEAD_BYTES - length);
+            System.arraycopy(data, start, lookahead, LOOKAHEAD_BYTES - length, length);
+        }
+
+        int offset = start;
+        int end = start + length;
+        while (offset < end) {
+            drainOutput(false);
+            int index = codec.dequeueInputBuffer(INPUT_TIMEOUT_US);
+            if (index < 0) {
+                continue;
+            }
+            ByteBuffer buffer = codec.getInputBuffer(index);
+            buffer.clear();
+            int count = Math.min(end - offset, buffer.remaining());
+            count -= count % BYTES_PER_FRAME;
+            if (count <= 0) {
+                throw new IOException("Opus encoder input buffer too small");
+            }
+            buffer.put(data, offset, count);
+            codec.queueInputBuffer(index, 0, count, presentationTimeUs(), 0);
+            framesQueued += count / BYTES_PER_FRAME;
+            offset += count;
+        }
+    }
+
+    /**
+     * Signal the end of input and write out everything the encoder holds,
+     * then release it
+     */
+    private void finishCodec() throws IOException {
+        int waits = 0;
+        int index;
+        while ((index = codec.dequeueInputBuffer(INPUT_TIMEOUT_US)) < 0) {
+            drainOutput(false);
+            if (++waits > MAX_DRAIN_WAITS) {
+                break;
+            }
+        }
+        if (index >= 0) {
+            codec.queueInputBuffer(index, 0, 0, presentationTimeUs(),
+                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            drainOutput(true);
+        }
+        release();
+    }
+
+    /**
+     * Write finished packets to the Ogg stream
+     *
+     * @param untilEnd Wait for the end of stream rather than taking only
+     *                 what is ready
+     */
+    private void drainOutput(boolean untilEnd) throws IOException {
+        int waits = 0;
+        while (true) {
+            int index = codec.dequeueOutputBuffer(info, untilEnd ? DRAIN_TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!untilEnd || ++waits > MAX_DRAIN_WAITS) {
+                    return;
+                }
+                continue;
+            }
+            if (index < 0) {
+                // Format change; the Ogg headers were written up front
+                continue;
+            }
+
+            try {
+                // The codec's own headers are not needed in an Ogg stream
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+                    if (packet.length < info.size) {
+                        packet = new byte[info.size];
+                    }
+                    ByteBuffer output = codec.getOutputBuffer(index);
+                    output.position(info.offset);
+                    output.get(packet, 0, info.size);
+                    writer.writePacket(packet, info.size);
+                    encodedBytes += info.size;
+                }
+            } finally {
+                codec.releaseOutputBuffer(index, false);
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                return;
+            }
+        }
+    }
+
+    private long presentationTimeUs() {
+        return framesQueued * 1_000_000L / OggOpusWriter.OPUS_RATE;
+    }
+}
@@ -0,0 +1,87 @@
+package com.mediabox.airhome.mirror;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * AES-128 in counter mode as one continuous keystream across the whole
+ * mirroring stream, applied in place.
+ *
+ * The JCE's ByteBuffer path copies direct buffers through temporary
+ * arrays; here each keystream block is produced into a small scratch
+ * array and XORed into the buffer eight bytes at a time, so decrypting
+ * neither copies the payload nor allocates.
+ */
+final class AesCtrStream {
+    private static final int BLOCK_BYTES = 16;
+
+    private final BlockCipher aes = AESEngine.newInstance();
+    private final byte[] counter = new byte[BLOCK_BYTES];
+    private final byte[] keystream = new byte[BLOCK_BYTES];
+    private long keystreamHigh;
+    private long keystreamLow;
+
+    // Keystream bytes of the current block already used, carried across calls
+    private int used = BLOCK_BYTES;
+
+    AesCtrStream(byte[] key, byte[] iv) {
+        aes.init(true, new KeyParameter(key));
+        System.arraycopy(iv, 0, counter, 0, BLOCK_BYTES);
+    }
+
+    /**
+     * XOR the keystream into the buffer between its position and limit,
+     * leaving position and limit unchanged
+     */
+    void apply(ByteBuffer buffer) {
+        int position = buffer.position();
+        int end = buffer.limit();
+
+        // Finish the block left over from the previous call
+        while (used < BLOCK_BYTES && position < end) {
+            buffer.put(position, (byte) (buffer.get(position) ^ keystream[used++]));
+            position++;
+        }
+
+        // Whole blocks, as two big-endian longs each
+        while (end - position >= BLOCK_BYTES) {
+            nextBlock();
+            used = BLOCK_BYTES;
+            buffer.putLong(position, buffer.getLong(position) ^ keystreamHigh);
+            buffer.putLong(position + 8, buffer.getLong(position + 8) ^ keystreamLow);
+            position += BLOCK_BYTES;
+        }
+
+        // Start of a block whose remainder the next call uses
+        if (position < end) {
+            nextBlock();
+            used = 0;
+            while (position < end) {
+                buffer.put(position, (byte) (buffer.get(position) ^ keystream[used++]));
+                position++;
+            }
+        }
+    }
+
+    private void nextBlock() {
+        aes.processBlock(counter, 0, keystream, 0);
+        keystreamHigh = toLong(keystream, 0);
+        keystreamLow = toLong(keystream, 8);
+        for (int i = BLOCK_BYTES - 1; i >= 0; i--) {
+            if (++counter[i] != 0) {
+                break;
+            }
+        }
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
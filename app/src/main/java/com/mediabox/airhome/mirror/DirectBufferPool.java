@@ -0,0 +1,86 @@
+package com.mediabox.airhome.mirror;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Pool of direct buffers reused for stream payloads.
+ *
+ * Buffers are allocated in power-of-two sizes so a few of them cover
+ * every frame size a stream produces, and each one carries a reusable
+ * view for handing out slices without allocating. Used by one thread.
+ */
+final class DirectBufferPool {
+    private static final int MIN_BUFFER_BYTES = 64 * 1024;
+
+    /**
+     * A pooled buffer and a view of it for callers to position freely
+     */
+    static final class Entry {
+        final ByteBuffer buffer;
+        final ByteBuffer view;
+
+        Entry(int capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+            view = buffer.duplicate();
+        }
+    }
+
+    private final ArrayDeque<Entry> free = new ArrayDeque<>();
+    private final int maxPooled;
+    private long allocations;
+
+    DirectBufferPool(int maxPooled) {
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Take a buffer of at least the given size, cleared with its limit at
+     * the size
+     */
+    Entry acquire(int size) {
+        Iterator<Entry> iterator = free.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.buffer.capacity() >= size) {
+                iterator.remove();
+                entry.buffer.clear().limit(size);
+                return entry;
+            }
+        }
+
+        allocations++;
+        Entry entry = new Entry(Math.max(MIN_BUFFER_BYTES, Integer.highestOneBit(size - 1) << 1));
+        entry.buffer.limit(size);
+        return entry;
+    }
+
+    /**
+     * Return a buffer. The smallest pooled buffer is dropped when the
+     * pool is full, so the pool keeps the sizes the stream needs.
+     */
+    void release(Entry entry) {
+        if (free.size() >= maxPooled) {
+            Entry smallest = entry;
+            for (Entry candidate : free) {
+                if (candidate.buffer.capacity() < smallest.buffer.capacity()) {
+                    smallest = candidate;
+                }
+            }
+            if (smallest == entry) {
+                return;
+            }
+            free.remove(smallest);
+        }
+        free.addFirst(entry);
+    }
+
+    /**
+     * Get how many buffers have been allocated, which stops growing once
+     * the pool has warmed up
+     */
+    long getAllocations() {
+        return allocations;
+    }
+}
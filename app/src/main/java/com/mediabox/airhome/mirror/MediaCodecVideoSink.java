@@ -0,0 +1,155 @@
+package com.mediabox.airhome.mirror;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Decodes the mirrored stream with the platform H.264 decoder straight to
+ * a {@link Surface}.
+ *
+ * Frames arrive already in Annex B form, so each one goes into a codec
+ * input buffer with a single copy. The decoder is recreated whenever the
+ * parameter sets change. When the decoder has no free input buffer the
+ * frame is dropped rather than stalling the network read.
+ */
+public class MediaCodecVideoSink implements VideoSink {
+    private static final String TAG = "MediaCodecVideoSink";
+
+    // Only used to size buffers; the real size comes from the SPS
+    private static final int DEFAULT_WIDTH = 1920;
+    private static final int DEFAULT_HEIGHT = 1080;
+
+    private static final long INPUT_TIMEOUT_US = 10_000;
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private final Surface surface;
+    private final MediaCodec.BufferInfo outputInfo = new MediaCodec.BufferInfo();
+    private MediaCodec codec;
+    private byte[] configuredSps;
+    private byte[] configuredPps;
+    private long firstPresentationNanos = -1;
+    private long framesDropped;
+
+    public MediaCodecVideoSink(Surface surface) {
+        this.surface = surface;
+    }
+
+    @Override
+    public void onCodecConfig(ByteBuffer sps, ByteBuffer pps) {
+        byte[] spsBytes = toArray(sps);
+        byte[] ppsBytes = toArray(pps);
+        if (codec != null && Arrays.equals(spsBytes, configuredSps)
+                && Arrays.equals(ppsBytes, configuredPps)) {
+            return;
+        }
+
+        releaseCodec();
+        try {
+            MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC,
+                    DEFAULT_WIDTH, DEFAULT_HEIGHT);
+            format.setByteBuffer("csd-0", withStartCode(spsBytes));
+            format.setByteBuffer("csd-1", withStartCode(ppsBytes));
+            codec = MediaCodec.createDecoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+            codec.configure(format, surface, null, 0);
+            codec.start();
+            configuredSps = spsBytes;
+            configuredPps = ppsBytes;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Unable to start H.264 decoder", e);
+            releaseCodec();
+        }
+    }
+
+    @Override
+    public void onNalUnit(ByteBuffer nal, long presentationNanos) {
+        // Whole frames are queued instead
+    }
+
+    @Override
+    public void onFrame(ByteBuffer frame, long presentationNanos) {
+        if (codec == null) {
+            return;
+        }
+        if (firstPresentationNanos < 0) {
+            firstPresentationNanos = presentationNanos;
+        }
+
+        try {
+            int index = codec.dequeueInputBuffer(INPUT_TIMEOUT_US);
+            if (index < 0) {
+                framesDropped++;
+            } else {
+                ByteBuffer input = codec.getInputBuffer(index);
+                int size = frame.remaining();
+                if (input == null || size > input.capacity()) {
+                    codec.queueInputBuffer(index, 0, 0, 0, 0);
+                    framesDropped++;
+                } else {
+                    input.clear();
+                    input.put(frame);
+                    codec.queueInputBuffer(index, 0, size,
+                            (presentationNanos - firstPresentationNanos) / 1000, 0);
+                }
+            }
+            drainOutput();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "H.264 decoder failed", e);
+            releaseCodec();
+        }
+    }
+
+    @Override
+    public void close() {
+        releaseCodec();
+        if (framesDropped > 0) {
+            Log.i(TAG, "Dropped " + framesDropped + " frames the decoder could not take");
+        }
+    }
+
+    /**
+     * Render every decoded frame that is ready
+     */
+    private void drainOutput() {
+        while (true) {
+            int index = codec.dequeueOutputBuffer(outputInfo, 0);
+            if (index >= 0) {
+                codec.releaseOutputBuffer(index, true);
+            } else if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                return;
+            }
+        }
+    }
+
+    private void releaseCodec() {
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                // Already failed
+            }
+            codec.release();
+            codec = null;
+        }
+        configuredSps = null;
+        configuredPps = null;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static ByteBuffer withStartCode(byte[] nal) {
+        ByteBuffer buffer = ByteBuffer.allocate(START_CODE.length + nal.length);
+        buffer.put(START_CODE).put(nal);
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,31 @@
+package com.mediabox.airhome.mirror;
+
+import android.view.Surface;
+
+/**
+ * Where mirrored video is shown. A screen that wants to show mirroring
+ * hands its surface here; while none is set, streams are still received
+ * and counted so the sender sees a working receiver.
+ */
+public final class MirrorDisplay {
+    private static volatile Surface surface;
+
+    private MirrorDisplay() {
+    }
+
+    /**
+     * Set the surface new mirroring streams decode to, or null to stop
+     * showing them
+     */
+    public static void setSurface(Surface newSurface) {
+        surface = newSurface;
+    }
+
+    /**
+     * Create a sink for a new mirroring stream
+     */
+    public static VideoSink createSink() {
+        Surface current = surface;
+        return current != null && current.isValid() ? new MediaCodecVideoSink(current) : new NullVideoSink();
+    }
+}
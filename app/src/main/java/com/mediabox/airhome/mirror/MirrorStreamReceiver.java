@@ -0,0 +1,282 @@
+package com.mediabox.airhome.mirror;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.mediabox.airhome.util.ThreadPolicy;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Receiver for the screen mirroring data stream (stream type 110).
+ *
+ * The sender connects to our data port and sends packets, each with a
+ * 128-byte header followed by the payload:
+ *
+ * <pre>
+ * 0  payload size      32-bit little-endian
+ * 4  payload type      16-bit little-endian: 0 video, 1 codec config, 2 heartbeat
+ * 8  timestamp         64-bit little-endian NTP time
+ * </pre>
+ *
+ * Video payloads are AES-CTR encrypted as one continuous stream and hold
+ * NAL units with 4-byte big-endian length prefixes. Payloads are read
+ * with NIO into pooled direct buffers and decrypted in place. NAL units
+ * are handed to the {@link VideoSink} as views into that buffer, and each
+ * length prefix is then overwritten with a start code, so the sink also
+ * gets the whole frame in Annex B form without a copy.
+ */
+public class MirrorStreamReceiver {
+    private static final String TAG = "MirrorStreamReceiver";
+
+    private static final int HEADER_BYTES = 128;
+    private static final int TYPE_VIDEO = 0;
+    private static final int TYPE_CODEC_CONFIG = 1;
+
+    // Larger payloads are treated as a corrupt stream
+    private static final int MAX_PAYLOAD_BYTES = 8 * 1024 * 1024;
+    private static final int NAL_LENGTH_BYTES = 4;
+    private static final int START_CODE = 1;
+    private static final int POOLED_BUFFERS = 4;
+
+    private final VideoSink sink;
+    private final AesCtrStream cipher;
+    private final DirectBufferPool pool = new DirectBufferPool(POOLED_BUFFERS);
+    private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+    private ServerSocketChannel serverChannel;
+    private Thread receiveThread;
+    private volatile boolean isRunning;
+
+    // Demux stats
+    private volatile long framesReceived;
+    private volatile long bytesReceived;
+    private volatile long framesDropped;
+    private volatile long firstFrameAt;
+
+    /**
+     * Create a receiver
+     *
+     * @param sink Where the demuxed stream goes
+     * @param sessionKey The 16-byte AES key of the session, or null if the
+     *                   stream is not encrypted
+     * @param streamConnectionId The stream's streamConnectionID from SETUP
+     */
+    public MirrorStreamReceiver(VideoSink sink, byte[] sessionKey, long streamConnectionId) {
+        this.sink = sink;
+        this.cipher = sessionKey != null
+                ? new AesCtrStream(deriveKey("AirPlayStreamKey", streamConnectionId, sessionKey),
+                        deriveKey("AirPlayStreamIV", streamConnectionId, sessionKey))
+                : null;
+    }
+
+    /**
+     * Bind the data port and start receiving
+     *
+     * @return The TCP port the sender should connect to
+     */
+    public int start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(0));
+        isRunning = true;
+
+        receiveThread = ThreadPolicy.newThread(ThreadPolicy.Stage.VIDEO, "MirrorStreamReceive", this::receiveLoop);
+        receiveThread.start();
+
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void stop() {
+        isRunning = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing mirroring data channel", e);
+        }
+        if (receiveThread != null) {
+            receiveThread.interrupt();
+        }
+    }
+
+    public long getFramesReceived() {
+        return framesReceived;
+    }
+
+    public long getFramesDropped() {
+        return framesDropped;
+    }
+
+    /**
+     * Get how many payload buffers have been allocated, which stops
+     * growing once the pool has warmed up
+     */
+    long getBufferAllocations() {
+        return pool.getAllocations();
+    }
+
+    /**
+     * Get the average frame rate since the first frame
+     */
+    public float getFramesPerSecond() {
+        long elapsed = SystemClock.elapsedRealtime() - firstFrameAt;
+        return firstFrameAt != 0 && elapsed > 0 ? framesReceived * 1000f / elapsed : 0;
+    }
+
+    /**
+     * Derive a stream key or IV: the first 16 bytes of
+     * SHA-512(label + decimal streamConnectionID + session key)
+     */
+    static byte[] deriveKey(String label, long streamConnectionId, byte[] sessionKey) {
+        try {
+            MessageDigest sha512 = MessageDigest.getInstance("SHA-512");
+            // The ID is an unsigned 64-bit number
+            String id = streamConnectionId >= 0 ? Long.toString(streamConnectionId)
+                    : new BigInteger(1, ByteBuffer.allocate(8).putLong(0, streamConnectionId).array()).toString();
+            sha512.update((label + id).getBytes(StandardCharsets.US_ASCII));
+            sha512.update(sessionKey);
+            byte[] key = new byte[16];
+            System.arraycopy(sha512.digest(), 0, key, 0, key.length);
+            return key;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-512 unavailable", e);
+        }
+    }
+
+    private void receiveLoop() {
+        try (SocketChannel channel = serverChannel.accept()) {
+            channel.socket().setTcpNoDelay(true);
+            Log.i(TAG, "Mirroring stream connected from " + channel.socket().getInetAddress());
+            while (isRunning) {
+                readPacket(channel);
+            }
+        } catch (EOFException e) {
+            Log.i(TAG, "Mirroring stream ended");
+        } catch (IOException e) {
+            if (isRunning) {
+                Log.e(TAG, "Error receiving mirroring stream", e);
+            }
+        } finally {
+            sink.close();
+            Log.i(TAG, "Mirroring received " + framesReceived + " frames, " + bytesReceived + " bytes, "
+                    + framesDropped + " dropped, " + pool.getAllocations() + " buffers allocated");
+        }
+    }
+
+    private void readPacket(SocketChannel channel) throws IOException {
+        header.clear();
+        readFully(channel, header);
+        int size = header.getInt(0);
+        int type = header.getShort(4) & 0xFFFF;
+        long timestamp = ntpToNanos(header.getLong(8));
+        if (size < 0 || size > MAX_PAYLOAD_BYTES) {
+            throw new IOException("Invalid mirroring payload size: " + size);
+        }
+
+        DirectBufferPool.Entry entry = pool.acquire(size);
+        try {
+            ByteBuffer payload = entry.buffer;
+            readFully(channel, payload);
+            payload.flip();
+
+            if (type == TYPE_VIDEO) {
+                if (cipher != null) {
+                    cipher.apply(payload);
+                }
+                demuxFrame(payload, entry.view, timestamp);
+            } else if (type == TYPE_CODEC_CONFIG) {
+                parseCodecConfig(payload, entry.view);
+            }
+            // Heartbeats and reports carry nothing we use
+        } finally {
+            pool.release(entry);
+        }
+    }
+
+    /**
+     * Hand each NAL unit to the sink, then the whole frame with start codes
+     * written over the length prefixes
+     */
+    private void demuxFrame(ByteBuffer payload, ByteBuffer view, long timestamp) {
+        int end = payload.limit();
+        int position = 0;
+        while (position + NAL_LENGTH_BYTES <= end) {
+            int length = payload.getInt(position);
+            int nalStart = position + NAL_LENGTH_BYTES;
+            if (length <= 0 || length > end - nalStart) {
+                Log.w(TAG, "Dropping frame with invalid NAL length " + length);
+                framesDropped++;
+                return;
+            }
+            view.limit(nalStart + length).position(nalStart);
+            sink.onNalUnit(view, timestamp);
+            payload.putInt(position, START_CODE);
+            position = nalStart + length;
+        }
+
+        view.limit(position).position(0);
+        sink.onFrame(view, timestamp);
+        framesReceived++;
+        bytesReceived += end;
+        if (firstFrameAt == 0) {
+            firstFrameAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Pull the first SPS and PPS out of an AVCDecoderConfigurationRecord
+     */
+    private void parseCodecConfig(ByteBuffer config, ByteBuffer view) {
+        int end = config.limit();
+        if (end < 8) {
+            return;
+        }
+        int spsCount = config.get(5) & 0x1F;
+        int spsLength = config.getShort(6) & 0xFFFF;
+        int spsStart = 8;
+        int ppsCountAt = spsStart + spsLength;
+        if (spsCount == 0 || ppsCountAt + 3 > end) {
+            Log.w(TAG, "Invalid mirroring codec config");
+            return;
+        }
+        int ppsLength = config.getShort(ppsCountAt + 1) & 0xFFFF;
+        int ppsStart = ppsCountAt + 3;
+        if (ppsStart + ppsLength > end) {
+            Log.w(TAG, "Invalid mirroring codec config");
+            return;
+        }
+
+        // The view frames the SPS; a second view for the PPS is fine here
+        // since parameter sets only arrive at stream start and on resize
+        ByteBuffer pps = config.duplicate();
+        pps.limit(ppsStart + ppsLength).position(ppsStart);
+        view.limit(spsStart + spsLength).position(spsStart);
+        sink.onCodecConfig(view, pps);
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Mirroring stream closed");
+            }
+        }
+    }
+
+    /**
+     * Convert a 32.32 fixed-point NTP time to nanoseconds
+     */
+    private static long ntpToNanos(long ntp) {
+        long seconds = ntp >>> 32;
+        long fraction = ntp & 0xFFFFFFFFL;
+        return seconds * 1_000_000_000L + ((fraction * 1_000_000_000L) >>> 32);
+    }
+}
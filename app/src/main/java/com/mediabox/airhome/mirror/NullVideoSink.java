@@ -0,0 +1,44 @@
+package com.mediabox.airhome.mirror;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sink that only counts what it is given, used when nothing is showing
+ * the mirrored screen so the sender still sees a working receiver
+ */
+public class NullVideoSink implements VideoSink {
+    private volatile long nalUnits;
+    private volatile long frames;
+    private volatile long bytes;
+
+    @Override
+    public void onCodecConfig(ByteBuffer sps, ByteBuffer pps) {
+    }
+
+    @Override
+    public void onNalUnit(ByteBuffer nal, long presentationNanos) {
+        nalUnits++;
+    }
+
+    @Override
+    public void onFrame(ByteBuffer frame, long presentationNanos) {
+        frames++;
+        bytes += frame.remaining();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public long getNalUnits() {
+        return nalUnits;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,38 @@
+package com.mediabox.airhome.mirror;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the H.264 elementary stream demuxed from a mirroring session.
+ *
+ * All callbacks run on the receive thread and are handed views into the
+ * receiver's own buffers: position and limit frame the data, and the
+ * contents are only valid until the callback returns.
+ */
+public interface VideoSink {
+    /**
+     * The stream's parameter sets, sent at the start and whenever the
+     * resolution changes
+     *
+     * @param sps Sequence parameter set, without a start code
+     * @param pps Picture parameter set, without a start code
+     */
+    void onCodecConfig(ByteBuffer sps, ByteBuffer pps);
+
+    /**
+     * One NAL unit of the current frame, without its length prefix or a
+     * start code
+     */
+    void onNalUnit(ByteBuffer nal, long presentationNanos);
+
+    /**
+     * The whole frame once every NAL unit has been delivered, in Annex B
+     * form with a start code before each unit
+     */
+    void onFrame(ByteBuffer frame, long presentationNanos);
+
+    /**
+     * The stream has ended
+     */
+    void close();
+}
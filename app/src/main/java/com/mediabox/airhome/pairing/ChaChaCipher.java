@@ -0,0 +1,96 @@
+package com.mediabox.airhome.pairing;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.modes.ChaCha20Poly1305;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+import java.util.Arrays;
+
+/**
+ * ChaCha20-Poly1305 with a fixed key.
+ *
+ * The engine, key schedule and nonce buffer are created once and reused
+ * for every message, so sealing or opening a frame allocates only the
+ * small parameter holder the engine requires. Not thread-safe.
+ */
+public class ChaChaCipher {
+    public static final int KEY_LENGTH = 32;
+    public static final int NONCE_LENGTH = 12;
+    public static final int TAG_LENGTH = 16;
+
+    private final ChaCha20Poly1305 engine = new ChaCha20Poly1305();
+    private final KeyParameter key;
+    private final byte[] nonce = new byte[NONCE_LENGTH];
+
+    public ChaChaCipher(byte[] key) {
+        this.key = new KeyParameter(key, 0, KEY_LENGTH);
+    }
+
+    /**
+     * Encrypt and append the tag
+     *
+     * @param nonceValue Nonce, right-aligned in 12 bytes with leading zeros
+     * @param aad Additional authenticated data, or null
+     * @return Number of bytes written to out, the plaintext length plus the tag
+     */
+    public int seal(byte[] nonceValue, byte[] aad, int aadOffset, int aadLength,
+                    byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+        init(true, nonceValue, aad, aadOffset, aadLength);
+        int written = engine.processBytes(in, inOffset, length, out, outOffset);
+        try {
+            return written + engine.doFinal(out, outOffset + written);
+        } catch (InvalidCipherTextException e) {
+            // Only raised when decrypting
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Check the tag and decrypt
+     *
+     * @param nonceValue Nonce, right-aligned in 12 bytes with leading zeros
+     * @param length Ciphertext length including the trailing tag
+     * @return Number of plaintext bytes written to out
+     * @throws InvalidCipherTextException If the tag does not match
+     */
+    public int open(byte[] nonceValue, byte[] aad, int aadOffset, int aadLength,
+                    byte[] in, int inOffset, int length, byte[] out, int outOffset)
+            throws InvalidCipherTextException {
+        init(false, nonceValue, aad, aadOffset, aadLength);
+        int written = engine.processBytes(in, inOffset, length, out, outOffset);
+        return written + engine.doFinal(out, outOffset + written);
+    }
+
+    /**
+     * Convenience form of {@link #seal} for whole arrays
+     */
+    public byte[] seal(byte[] nonceValue, byte[] plaintext) {
+        byte[] out = new byte[plaintext.length + TAG_LENGTH];
+        seal(nonceValue, null, 0, 0, plaintext, 0, plaintext.length, out, 0);
+        return out;
+    }
+
+    /**
+     * Convenience form of {@link #open} for whole arrays
+     */
+    public byte[] open(byte[] nonceValue, byte[] ciphertext) throws InvalidCipherTextException {
+        if (ciphertext.length < TAG_LENGTH) {
+            throw new InvalidCipherTextException("Ciphertext shorter than tag");
+        }
+        byte[] out = new byte[ciphertext.length - TAG_LENGTH];
+        open(nonceValue, null, 0, 0, ciphertext, 0, ciphertext.length, out, 0);
+        return out;
+    }
+
+    private void init(boolean forEncryption, byte[] nonceValue, byte[] aad, int aadOffset, int aadLength) {
+        Arrays.fill(nonce, (byte) 0);
+        int length = Math.min(nonceValue.length, NONCE_LENGTH);
+        System.arraycopy(nonceValue, nonceValue.length - length, nonce, NONCE_LENGTH - length, length);
+
+        engine.init(forEncryption, new ParametersWithIV(key, nonce));
+        if (aad != null && aadLength > 0) {
+            engine.processAADBytes(aad, aadOffset, aadLength);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.mediabox.airhome.pairing;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Streams for an RTSP control connection that switch from plaintext to
+ * framed ChaCha20-Poly1305 once pairing completes.
+ *
+ * Each frame is a 2-byte little-endian length of at most 1024, which is
+ * also the additional authenticated data, followed by the ciphertext and
+ * its tag. The nonce is a per-direction frame counter. Ciphers and frame
+ * buffers are allocated once when encryption is enabled and reused for
+ * every frame.
+ */
+public class EncryptedControlChannel {
+    private static final int MAX_FRAME = 1024;
+    private static final int LENGTH_BYTES = 2;
+
+    private final InputStream rawInput;
+    private final OutputStream rawOutput;
+    private final Input input = new Input();
+    private final Output output = new Output();
+
+    private ChaChaCipher readCipher;
+    private ChaChaCipher writeCipher;
+    private long readCounter;
+    private long writeCounter;
+    private final byte[] readNonce = new byte[8];
+    private final byte[] writeNonce = new byte[8];
+
+    // Frame buffers, allocated when encryption is enabled
+    private byte[] readFrame;
+    private byte[] readPlain;
+    private int readPosition;
+    private int readLimit;
+    private byte[] writeFrame;
+    private byte[] writePlain;
+    private int writeLength;
+
+    /**
+     * Wrap the raw socket streams. The input should be buffered.
+     */
+    public EncryptedControlChannel(InputStream rawInput, OutputStream rawOutput) {
+        this.rawInput = rawInput;
+        this.rawOutput = rawOutput;
+    }
+
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    public boolean isEncrypted() {
+        return readCipher != null;
+    }
+
+    /**
+     * Encrypt everything read and written from now on. Anything already
+     * written is flushed in plaintext first.
+     *
+     * @param readKey Key the peer encrypts with
+     * @param writeKey Key we encrypt with
+     */
+    public void enable(byte[] readKey, byte[] writeKey) throws IOException {
+        rawOutput.flush();
+
+        readFrame = new byte[MAX_FRAME + ChaChaCipher.TAG_LENGTH];
+        readPlain = new byte[MAX_FRAME];
+        writeFrame = new byte[LENGTH_BYTES + MAX_FRAME + ChaChaCipher.TAG_LENGTH];
+        writePlain = new byte[MAX_FRAME];
+        readCounter = 0;
+        writeCounter = 0;
+
+        readCipher = new ChaChaCipher(readKey);
+        writeCipher = new ChaChaCipher(writeKey);
+    }
+
+    private boolean fillReadFrame() throws IOException {
+        int low = rawInput.read();
+        if (low < 0) {
+            return false;
+        }
+        int high = rawInput.read();
+        if (high < 0) {
+            throw new EOFException("Truncated frame header");
+        }
+        int length = low | (high << 8);
+        if (length > MAX_FRAME) {
+            throw new IOException("Encrypted frame too long: " + length);
+        }
+
+        readFully(readFrame, length + ChaChaCipher.TAG_LENGTH);
+        byte[] aad = {(byte) low, (byte) high};
+        setCounter(readNonce, readCounter++);
+        try {
+            readLimit = readCipher.open(readNonce, aad, 0, LENGTH_BYTES,
+                    readFrame, 0, length + ChaChaCipher.TAG_LENGTH, readPlain, 0);
+        } catch (InvalidCipherTextException e) {
+            throw new IOException("Encrypted frame failed authentication", e);
+        }
+        readPosition = 0;
+        return true;
+    }
+
+    private void readFully(byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int count = rawInput.read(buffer, read, length - read);
+            if (count < 0) {
+                throw new EOFException("Truncated encrypted frame");
+            }
+            read += count;
+        }
+    }
+
+    private void writeFrame() throws IOException {
+        writeFrame[0] = (byte) writeLength;
+        writeFrame[1] = (byte) (writeLength >> 8);
+        setCounter(writeNonce, writeCounter++);
+        int sealed = writeCipher.seal(writeNonce, writeFrame, 0, LENGTH_BYTES,
+                writePlain, 0, writeLength, writeFrame, LENGTH_BYTES);
+        rawOutput.write(writeFrame, 0, LENGTH_BYTES + sealed);
+        writeLength = 0;
+    }
+
+    private static void setCounter(byte[] nonce, long counter) {
+        for (int i = 0; i < nonce.length; i++) {
+            nonce[i] = (byte) (counter >>> (8 * i));
+        }
+    }
+
+    private class Input extends InputStream {
+        @Override
+        public int read() throws IOException {
+            if (readCipher == null) {
+                return rawInput.read();
+            }
+            if (readPosition == readLimit && !fillReadFrame()) {
+                return -1;
+            }
+            return readPlain[readPosition++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (readCipher == null) {
+                return rawInput.read(buffer, offset, length);
+            }
+            if (length == 0) {
+                return 0;
+            }
+            if (readPosition == readLimit && !fillReadFrame()) {
+                return -1;
+            }
+            int count = Math.min(length, readLimit - readPosition);
+            System.arraycopy(readPlain, readPosition, buffer, offset, count);
+            readPosition += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            rawInput.close();
+        }
+    }
+
+    private class Output extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            if (writeCipher == null) {
+                rawOutput.write(b);
+                return;
+            }
+            writePlain[writeLength++] = (byte) b;
+            if (writeLength == MAX_FRAME) {
+                writeFrame();
+            }
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            if (writeCipher == null) {
+                rawOutput.write(buffer, offset, length);
+                return;
+            }
+            while (length > 0) {
+                int count = Math.min(length, MAX_FRAME - writeLength);
+                System.arraycopy(buffer, offset, writePlain, writeLength, count);
+                writeLength += count;
+                offset += count;
+                length -= count;
+                if (writeLength == MAX_FRAME) {
+                    writeFrame();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (writeCipher != null && writeLength > 0) {
+                writeFrame();
+            }
+            rawOutput.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            rawOutput.close();
+        }
+    }
+}
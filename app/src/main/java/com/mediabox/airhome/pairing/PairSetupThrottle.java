@@ -0,0 +1,84 @@
+package com.mediabox.airhome.pairing;
+
+/**
+ * Limits how fast codes can be guessed in pair-setups that would store a
+ * controller.
+ *
+ * Each attempt gets a new random code, so a guess succeeds one time in
+ * ten thousand. A few failed proofs are allowed for typing mistakes;
+ * after that each failure doubles the wait before the next pair-setup
+ * may start, and past {@link #MAX_ATTEMPTS} failures pair-setup is
+ * refused until the service restarts. A stored pairing that completes
+ * clears the count.
+ *
+ * Shared by every connection, since an attacker can open as many as it
+ * likes. For the same reason only the latest attempt, whose code is the
+ * one on screen, may complete; otherwise codes could be fetched in
+ * parallel and guessed at leisure.
+ */
+final class PairSetupThrottle {
+    // Failed proofs allowed before backing off
+    static final int FREE_ATTEMPTS = 3;
+
+    // Failed proofs after which pair-setup is refused outright
+    static final int MAX_ATTEMPTS = 100;
+
+    // Wait after the first failure past the free ones, and the most it grows to
+    static final long BASE_DELAY_MILLIS = 2_000;
+    static final long MAX_DELAY_MILLIS = 10 * 60_000;
+
+    private int failures;
+    private long blockedUntil;
+    private int attempt;
+
+    /**
+     * Get how long until another pair-setup may start
+     *
+     * @param nowMillis Current time
+     * @return Milliseconds to wait, 0 if one may start now, or
+     *         {@link Long#MAX_VALUE} if pair-setup is no longer allowed
+     */
+    synchronized long getRetryDelay(long nowMillis) {
+        if (failures >= MAX_ATTEMPTS) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, blockedUntil - nowMillis);
+    }
+
+    /**
+     * Start an attempt, superseding any other in progress
+     *
+     * @return The attempt's number
+     */
+    synchronized int startAttempt() {
+        return ++attempt;
+    }
+
+    /**
+     * Check that no attempt has started since the given one
+     */
+    synchronized boolean isCurrent(int number) {
+        return number == attempt;
+    }
+
+    /**
+     * Count a rejected proof
+     *
+     * @param nowMillis Current time
+     */
+    synchronized void recordFailure(long nowMillis) {
+        failures++;
+        if (failures >= FREE_ATTEMPTS) {
+            int doublings = Math.min(failures - FREE_ATTEMPTS, 20);
+            blockedUntil = nowMillis + Math.min(BASE_DELAY_MILLIS << doublings, MAX_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Clear the count once a controller has paired
+     */
+    synchronized void recordSuccess() {
+        failures = 0;
+        blockedUntil = 0;
+    }
+}
@@ -0,0 +1,125 @@
+package com.mediabox.airhome.pairing;
+
+import android.util.Log;
+
+import com.mediabox.airhome.util.ConfigManager;
+
+import org.bouncycastle.math.ec.rfc8032.Ed25519;
+
+import java.security.SecureRandom;
+import java.util.List;
+
+/**
+ * The receiver's long-term Ed25519 identity and the keys of controllers
+ * that have completed pair-setup with it. Both are persisted through
+ * {@link ConfigManager}. Uses the Singleton pattern for global access.
+ *
+ * At most {@link #MAX_CONTROLLERS} controllers are kept; pairing one more
+ * forgets the one that paired longest ago, so repeated pair-setups cannot
+ * grow the stored preferences without bound.
+ */
+public class PairingIdentity {
+    private static final String TAG = "PairingIdentity";
+
+    static final int MAX_CONTROLLERS = 16;
+
+    // Controllers identify themselves with a UUID or similar
+    private static final int MAX_IDENTIFIER_LENGTH = 64;
+
+    private static PairingIdentity instance;
+
+    private final byte[] secretKey = new byte[Ed25519.SECRET_KEY_SIZE];
+    private final byte[] publicKey = new byte[Ed25519.PUBLIC_KEY_SIZE];
+
+    private PairingIdentity() {
+        ConfigManager config = ConfigManager.getInstance();
+        String stored = config.getPairingSecret();
+
+        if (stored != null && stored.length() == secretKey.length * 2) {
+            fromHex(stored, secretKey);
+        } else {
+            Ed25519.generatePrivateKey(new SecureRandom(), secretKey);
+            config.setPairingSecret(toHex(secretKey));
+        }
+        Ed25519.generatePublicKey(secretKey, 0, publicKey, 0);
+    }
+
+    public static synchronized PairingIdentity getInstance() {
+        if (instance == null) {
+            instance = new PairingIdentity();
+        }
+        return instance;
+    }
+
+    public byte[] getPublicKey() {
+        return publicKey.clone();
+    }
+
+    /**
+     * Sign a message with the long-term key
+     */
+    public byte[] sign(byte[] message) {
+        byte[] signature = new byte[Ed25519.SIGNATURE_SIZE];
+        Ed25519.sign(secretKey, 0, message, 0, message.length, signature, 0);
+        return signature;
+    }
+
+    /**
+     * Get the long-term public key of a paired controller, or null if it never paired
+     */
+    public byte[] getControllerKey(String identifier) {
+        String stored = ConfigManager.getInstance().getPairedControllerKey(identifier);
+        if (stored == null || stored.length() != Ed25519.PUBLIC_KEY_SIZE * 2) {
+            return null;
+        }
+        byte[] key = new byte[Ed25519.PUBLIC_KEY_SIZE];
+        fromHex(stored, key);
+        return key;
+    }
+
+    /**
+     * Store a newly paired controller, forgetting the oldest past the limit
+     *
+     * @return False if the identifier is not acceptable
+     */
+    public synchronized boolean addController(String identifier, byte[] key) {
+        if (identifier.isEmpty() || identifier.length() > MAX_IDENTIFIER_LENGTH
+                || identifier.indexOf('\n') >= 0) {
+            return false;
+        }
+        ConfigManager config = ConfigManager.getInstance();
+        List<String> paired = config.getPairedControllers();
+        paired.remove(identifier);
+        while (paired.size() >= MAX_CONTROLLERS) {
+            String oldest = paired.remove(0);
+            Log.i(TAG, "Forgetting controller " + oldest + " to make room");
+            config.removePairedController(oldest);
+        }
+        config.setPairedControllerKey(identifier, toHex(key));
+        return true;
+    }
+
+    /**
+     * Check an Ed25519 signature
+     */
+    static boolean verify(byte[] key, byte[] message, byte[] signature) {
+        return key != null && key.length == Ed25519.PUBLIC_KEY_SIZE
+                && signature != null && signature.length == Ed25519.SIGNATURE_SIZE
+                && Ed25519.verify(signature, 0, key, 0, message, 0, message.length);
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+            builder.append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    private static void fromHex(String hex, byte[] out) {
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+    }
+}
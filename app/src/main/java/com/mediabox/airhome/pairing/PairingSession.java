@@ -0,0 +1,450 @@
+package com.mediabox.airhome.pairing;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.mediabox.airhome.util.ConfigManager;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.digests.SHA512Digest;
+import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
+import org.bouncycastle.crypto.params.HKDFParameters;
+import org.bouncycastle.math.ec.rfc7748.X25519;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+
+/**
+ * Pair-setup and pair-verify state for one control connection.
+ *
+ * Pair-setup authenticates the sender with SRP against a PIN and, unless
+ * the sender asks for a transient pairing, exchanges long-term Ed25519
+ * keys. A transient pairing uses the fixed code senders assume without
+ * asking the user, and so can never store a controller; a pairing that
+ * will be stored gets a random code for each attempt, shown on the
+ * receiver through the {@link PinListener}, and failed attempts at it
+ * are throttled by a {@link PairSetupThrottle}. Pair-verify then proves
+ * both identities over an X25519 exchange. Either way the session ends
+ * up with a shared secret from which the control channel keys are
+ * derived.
+ *
+ * A sender that reconnects can be handed the controller it verified as
+ * last time, which spares reading and decoding the stored key again.
+ */
+public class PairingSession {
+    private static final String TAG = "PairingSession";
+
+    private static final String SETUP_USERNAME = "Pair-Setup";
+    private static final String TRANSIENT_PIN = "3939";
+    private static final int PIN_DIGITS = 4;
+
+    // Pair-setup flag requesting a session-only pairing without key exchange
+    private static final int FLAG_TRANSIENT = 0x10;
+
+    private static final byte[] NONCE_SETUP_M5 = ascii("PS-Msg05");
+    private static final byte[] NONCE_SETUP_M6 = ascii("PS-Msg06");
+    private static final byte[] NONCE_VERIFY_M2 = ascii("PV-Msg02");
+    private static final byte[] NONCE_VERIFY_M3 = ascii("PV-Msg03");
+
+    /**
+     * Shows the PIN of a pair-setup in progress to the user
+     */
+    public interface PinListener {
+        /**
+         * @param pin The code to enter on the sender, or null once pair-setup has ended
+         */
+        void onPinChanged(String pin);
+    }
+
+    /**
+     * A controller that completed pair-verify, as remembered for its
+     * sender between connections. The key is only trusted while the
+     * settings it was read from are unchanged, so a controller forgotten
+     * since is looked up, and refused, again.
+     */
+    public static final class VerifiedController {
+        final String identifier;
+        final byte[] key;
+        final int revision;
+
+        /**
+         * @param revision {@link ConfigManager#getRevision()} from before
+         *                 the key was read
+         */
+        public VerifiedController(String identifier, byte[] key, int revision) {
+            this.identifier = identifier;
+            this.key = key;
+            this.revision = revision;
+        }
+
+        public String getIdentifier() {
+            return identifier;
+        }
+    }
+
+    private static volatile PinListener pinListener;
+
+    private static final PairSetupThrottle SETUP_THROTTLE = new PairSetupThrottle();
+
+    private final String accessoryId;
+    private final PairSetupThrottle throttle;
+    private final PairingIdentity identity = PairingIdentity.getInstance();
+    private final SecureRandom random = new SecureRandom();
+
+    // Pair-setup state
+    private Srp6aServer srp;
+    private boolean transientPairing;
+    private int setupAttempt;
+
+    // Pair-verify state
+    private byte[] verifyPublicKey;
+    private byte[] controllerVerifyKey;
+    private byte[] verifySecret;
+    private VerifiedController knownController;
+    private VerifiedController verifiedController;
+
+    // Shared secret the control channel keys are derived from, once paired
+    private byte[] sessionSecret;
+
+    /**
+     * Create a new pairing session
+     *
+     * @param accessoryId Identifier this receiver advertises
+     */
+    public PairingSession(String accessoryId) {
+        this(accessoryId, SETUP_THROTTLE);
+    }
+
+    /**
+     * Create with a throttle of its own, as tests do
+     */
+    PairingSession(String accessoryId, PairSetupThrottle throttle) {
+        this.accessoryId = accessoryId;
+        this.throttle = throttle;
+    }
+
+    /**
+     * Handle a POST /pair-setup body
+     *
+     * @return The TLV8 response body
+     */
+    public byte[] handlePairSetup(byte[] body) throws IOException {
+        byte[][] items = Tlv8.decode(body);
+        int state = Tlv8.byteValue(items, Tlv8.STATE);
+
+        switch (state) {
+            case 1:
+                return setupStartResponse(items);
+            case 3:
+                return setupVerifyResponse(items);
+            case 5:
+                return setupExchangeResponse(items);
+            default:
+                Log.w(TAG, "Unexpected pair-setup state: " + state);
+                return error(state + 1, Tlv8.ERROR_UNKNOWN);
+        }
+    }
+
+    /**
+     * Handle a POST /pair-verify body
+     *
+     * @return The TLV8 response body
+     */
+    public byte[] handlePairVerify(byte[] body) throws IOException {
+        byte[][] items = Tlv8.decode(body);
+        int state = Tlv8.byteValue(items, Tlv8.STATE);
+
+        switch (state) {
+            case 1:
+                return verifyStartResponse(items);
+            case 3:
+                return verifyFinishResponse(items);
+            default:
+                Log.w(TAG, "Unexpected pair-verify state: " + state);
+                return error(state + 1, Tlv8.ERROR_UNKNOWN);
+        }
+    }
+
+    public static void setPinListener(PinListener listener) {
+        pinListener = listener;
+    }
+
+    /**
+     * Whether pairing has completed and the control channel should be encrypted
+     */
+    public boolean isEstablished() {
+        return sessionSecret != null;
+    }
+
+    /**
+     * Use the controller this sender verified as last time, if its key is
+     * still current, instead of looking the key up
+     */
+    public void setKnownController(VerifiedController controller) {
+        knownController = controller;
+    }
+
+    /**
+     * Get the controller that completed pair-verify on this session, or
+     * null if none has
+     */
+    public VerifiedController getVerifiedController() {
+        return verifiedController;
+    }
+
+    /**
+     * Key for decrypting what the sender writes on the control channel
+     */
+    public byte[] getReadKey() {
+        return hkdf(sessionSecret, "Control-Salt", "Control-Write-Encryption-Key");
+    }
+
+    /**
+     * Key for encrypting what we write on the control channel
+     */
+    public byte[] getWriteKey() {
+        return hkdf(sessionSecret, "Control-Salt", "Control-Read-Encryption-Key");
+    }
+
+    // M1 -> M2: send the SRP salt and public key
+    private byte[] setupStartResponse(byte[][] items) {
+        byte[] flags = items[Tlv8.FLAGS];
+        transientPairing = flags != null && flags.length > 0 && (flags[0] & FLAG_TRANSIENT) != 0;
+        String pin = TRANSIENT_PIN;
+        srp = null;
+        if (!transientPairing) {
+            long delay = throttle.getRetryDelay(SystemClock.elapsedRealtime());
+            if (delay == Long.MAX_VALUE) {
+                Log.w(TAG, "Pair-setup refused after too many failed attempts");
+                return error(2, Tlv8.ERROR_MAX_TRIES);
+            }
+            if (delay > 0) {
+                Log.w(TAG, "Pair-setup refused for another " + delay + " ms after failed attempts");
+                return new Tlv8.Writer()
+                        .add(Tlv8.STATE, 2)
+                        .add(Tlv8.ERROR, Tlv8.ERROR_BACKOFF)
+                        .add(Tlv8.RETRY_DELAY, (int) Math.min(255, (delay + 999) / 1000))
+                        .toByteArray();
+            }
+            setupAttempt = throttle.startAttempt();
+            pin = randomPin();
+            showPin(pin);
+        }
+        srp = new Srp6aServer(SETUP_USERNAME, pin, random);
+
+        return new Tlv8.Writer()
+                .add(Tlv8.STATE, 2)
+                .add(Tlv8.SALT, srp.getSalt())
+                .add(Tlv8.PUBLIC_KEY, srp.getPublicKey())
+                .toByteArray();
+    }
+
+    // M3 -> M4: check the sender's SRP proof and return ours
+    private byte[] setupVerifyResponse(byte[][] items) {
+        byte[] clientKey = items[Tlv8.PUBLIC_KEY];
+        byte[] clientProof = items[Tlv8.PROOF];
+        if (srp != null && !transientPairing && (!throttle.isCurrent(setupAttempt)
+                || throttle.getRetryDelay(SystemClock.elapsedRealtime()) > 0)) {
+            Log.w(TAG, "Pair-setup proof refused: attempt superseded or backing off");
+            srp = null;
+            return error(4, Tlv8.ERROR_BACKOFF);
+        }
+        if (srp == null || clientKey == null || clientProof == null
+                || !srp.verifyClient(clientKey, clientProof)) {
+            Log.w(TAG, "Pair-setup proof rejected");
+            if (srp != null && !transientPairing) {
+                throttle.recordFailure(SystemClock.elapsedRealtime());
+            }
+            srp = null;
+            showPin(null);
+            return error(4, Tlv8.ERROR_AUTHENTICATION);
+        }
+        showPin(null);
+
+        byte[] serverProof = srp.getServerProof();
+        if (transientPairing) {
+            // No long-term keys are exchanged; the SRP key secures the
+            // session, and with the code known to all there is no M5
+            sessionSecret = srp.getSessionKey();
+            srp = null;
+        }
+
+        return new Tlv8.Writer()
+                .add(Tlv8.STATE, 4)
+                .add(Tlv8.PROOF, serverProof)
+                .toByteArray();
+    }
+
+    // M5 -> M6: store the sender's long-term key and send ours
+    private byte[] setupExchangeResponse(byte[][] items) throws IOException {
+        if (transientPairing) {
+            Log.w(TAG, "Pair-setup exchange refused after a transient pairing");
+            return error(6, Tlv8.ERROR_AUTHENTICATION);
+        }
+        if (srp == null || srp.getSessionKey() == null || items[Tlv8.ENCRYPTED_DATA] == null) {
+            return error(6, Tlv8.ERROR_UNKNOWN);
+        }
+        byte[] srpKey = srp.getSessionKey();
+        ChaChaCipher cipher = new ChaChaCipher(
+                hkdf(srpKey, "Pair-Setup-Encrypt-Salt", "Pair-Setup-Encrypt-Info"));
+
+        byte[][] request;
+        try {
+            request = Tlv8.decode(cipher.open(NONCE_SETUP_M5, items[Tlv8.ENCRYPTED_DATA]));
+        } catch (InvalidCipherTextException e) {
+            Log.w(TAG, "Pair-setup exchange failed to decrypt");
+            return error(6, Tlv8.ERROR_AUTHENTICATION);
+        }
+
+        byte[] controllerId = request[Tlv8.IDENTIFIER];
+        byte[] controllerKey = request[Tlv8.PUBLIC_KEY];
+        byte[] controllerX = hkdf(srpKey, "Pair-Setup-Controller-Sign-Salt", "Pair-Setup-Controller-Sign-Info");
+        if (controllerId == null || controllerKey == null || !PairingIdentity.verify(controllerKey,
+                concat(controllerX, controllerId, controllerKey), request[Tlv8.SIGNATURE])) {
+            Log.w(TAG, "Pair-setup controller signature rejected");
+            return error(6, Tlv8.ERROR_AUTHENTICATION);
+        }
+        if (!identity.addController(new String(controllerId, StandardCharsets.UTF_8), controllerKey)) {
+            Log.w(TAG, "Pair-setup controller identifier rejected");
+            return error(6, Tlv8.ERROR_UNKNOWN);
+        }
+
+        byte[] accessoryIdBytes = ascii(accessoryId);
+        byte[] accessoryKey = identity.getPublicKey();
+        byte[] accessoryX = hkdf(srpKey, "Pair-Setup-Accessory-Sign-Salt", "Pair-Setup-Accessory-Sign-Info");
+        byte[] response = new Tlv8.Writer()
+                .add(Tlv8.IDENTIFIER, accessoryIdBytes)
+                .add(Tlv8.PUBLIC_KEY, accessoryKey)
+                .add(Tlv8.SIGNATURE, identity.sign(concat(accessoryX, accessoryIdBytes, accessoryKey)))
+                .toByteArray();
+
+        srp = null;
+        throttle.recordSuccess();
+        return new Tlv8.Writer()
+                .add(Tlv8.STATE, 6)
+                .add(Tlv8.ENCRYPTED_DATA, cipher.seal(NONCE_SETUP_M6, response))
+                .toByteArray();
+    }
+
+    // M1 -> M2: X25519 exchange, signed with our long-term key
+    private byte[] verifyStartResponse(byte[][] items) {
+        controllerVerifyKey = items[Tlv8.PUBLIC_KEY];
+        if (controllerVerifyKey == null || controllerVerifyKey.length != X25519.POINT_SIZE) {
+            return error(2, Tlv8.ERROR_UNKNOWN);
+        }
+
+        byte[] privateKey = new byte[X25519.SCALAR_SIZE];
+        X25519.generatePrivateKey(random, privateKey);
+        verifyPublicKey = new byte[X25519.POINT_SIZE];
+        X25519.generatePublicKey(privateKey, 0, verifyPublicKey, 0);
+
+        verifySecret = new byte[X25519.POINT_SIZE];
+        if (!X25519.calculateAgreement(privateKey, 0, controllerVerifyKey, 0, verifySecret, 0)) {
+            return error(2, Tlv8.ERROR_AUTHENTICATION);
+        }
+
+        byte[] accessoryIdBytes = ascii(accessoryId);
+        byte[] response = new Tlv8.Writer()
+                .add(Tlv8.IDENTIFIER, accessoryIdBytes)
+                .add(Tlv8.SIGNATURE, identity.sign(concat(verifyPublicKey, accessoryIdBytes, controllerVerifyKey)))
+                .toByteArray();
+
+        return new Tlv8.Writer()
+                .add(Tlv8.STATE, 2)
+                .add(Tlv8.PUBLIC_KEY, verifyPublicKey)
+                .add(Tlv8.ENCRYPTED_DATA, verifyCipher().seal(NONCE_VERIFY_M2, response))
+                .toByteArray();
+    }
+
+    // M3 -> M4: check the sender's signature with its stored long-term key
+    private byte[] verifyFinishResponse(byte[][] items) throws IOException {
+        if (verifySecret == null || items[Tlv8.ENCRYPTED_DATA] == null) {
+            return error(4, Tlv8.ERROR_UNKNOWN);
+        }
+
+        byte[][] request;
+        try {
+            request = Tlv8.decode(verifyCipher().open(NONCE_VERIFY_M3, items[Tlv8.ENCRYPTED_DATA]));
+        } catch (InvalidCipherTextException e) {
+            Log.w(TAG, "Pair-verify finish failed to decrypt");
+            return error(4, Tlv8.ERROR_AUTHENTICATION);
+        }
+
+        byte[] controllerId = request[Tlv8.IDENTIFIER];
+        String identifier = controllerId != null ? new String(controllerId, StandardCharsets.UTF_8) : null;
+        // Read before the key, so a controller removed after the lookup
+        // leaves the remembered key out of date
+        int revision = ConfigManager.getInstance().getRevision();
+        byte[] controllerKey = identifier != null ? getControllerKey(identifier, revision) : null;
+        if (controllerKey == null || !PairingIdentity.verify(controllerKey,
+                concat(controllerVerifyKey, controllerId, verifyPublicKey), request[Tlv8.SIGNATURE])) {
+            Log.w(TAG, "Pair-verify rejected an unknown or invalid controller");
+            return error(4, Tlv8.ERROR_AUTHENTICATION);
+        }
+
+        sessionSecret = verifySecret;
+        verifiedController = new VerifiedController(identifier, controllerKey, revision);
+        return new Tlv8.Writer()
+                .add(Tlv8.STATE, 4)
+                .toByteArray();
+    }
+
+    private byte[] getControllerKey(String identifier, int revision) {
+        VerifiedController known = knownController;
+        if (known != null && known.revision == revision && known.identifier.equals(identifier)) {
+            return known.key;
+        }
+        return identity.getControllerKey(identifier);
+    }
+
+    private String randomPin() {
+        StringBuilder pin = new StringBuilder(PIN_DIGITS);
+        for (int i = 0; i < PIN_DIGITS; i++) {
+            pin.append((char) ('0' + random.nextInt(10)));
+        }
+        return pin.toString();
+    }
+
+    private static void showPin(String pin) {
+        PinListener listener = pinListener;
+        if (listener != null) {
+            listener.onPinChanged(pin);
+        }
+    }
+
+    private ChaChaCipher verifyCipher() {
+        return new ChaChaCipher(hkdf(verifySecret, "Pair-Verify-Encrypt-Salt", "Pair-Verify-Encrypt-Info"));
+    }
+
+    private static byte[] error(int state, int code) {
+        return new Tlv8.Writer()
+                .add(Tlv8.STATE, state)
+                .add(Tlv8.ERROR, code)
+                .toByteArray();
+    }
+
+    /**
+     * HKDF-SHA-512 producing a 32-byte key
+     */
+    static byte[] hkdf(byte[] secret, String salt, String info) {
+        HKDFBytesGenerator generator = new HKDFBytesGenerator(new SHA512Digest());
+        generator.init(new HKDFParameters(secret, ascii(salt), ascii(info)));
+        byte[] key = new byte[ChaChaCipher.KEY_LENGTH];
+        generator.generateBytes(key, 0, key.length);
+        return key;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,154 @@
+package com.mediabox.airhome.pairing;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Server side of SRP-6a as used by pair-setup: the 3072-bit group from
+ * RFC 5054 with SHA-512, and the client proof
+ * M1 = H(H(N) xor H(g), H(I), s, A, B, K).
+ */
+class Srp6aServer {
+
+    static final BigInteger N = new BigInteger(
+            "FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E088A67CC74"
+            + "020BBEA63B139B22514A08798E3404DDEF9519B3CD3A431B302B0A6DF25F1437"
+            + "4FE1356D6D51C245E485B576625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7ED"
+            + "EE386BFB5A899FA5AE9F24117C4B1FE649286651ECE45B3DC2007CB8A163BF05"
+            + "98DA48361C55D39A69163FA8FD24CF5F83655D23DCA3AD961C62F356208552BB"
+            + "9ED529077096966D670C354E4ABC9804F1746C08CA18217C32905E462E36CE3B"
+            + "E39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9DE2BCBF695581718"
+            + "3995497CEA956AE515D2261898FA051015728E5A8AAAC42DAD33170D04507A33"
+            + "A85521ABDF1CBA64ECFB850458DBEF0A8AEA71575D060C7DB3970F85A6E1E4C7"
+            + "ABF5AE8CDB0933D71E8C94E04A25619DCEE3D2261AD2EE6BF12FFA06D98A0864"
+            + "D87602733EC86A64521F2B18177B200CBBE117577A615D6C770988C0BAD946E2"
+            + "08E24FA074E5AB3143DB5BFCE0FD108E4B82D120A93AD2CAFFFFFFFFFFFFFFFF", 16);
+    static final BigInteger G = BigInteger.valueOf(5);
+    private static final int N_BYTES = 384;
+
+    private final MessageDigest digest;
+    private final byte[] username;
+    private final byte[] salt = new byte[16];
+    private final BigInteger verifier;
+    private final BigInteger privateKey;
+    private final BigInteger publicKey;
+
+    private byte[] sessionKey;
+    private byte[] serverProof;
+
+    /**
+     * Generate the salt, verifier and ephemeral key for one handshake
+     */
+    Srp6aServer(String username, String password, SecureRandom random) {
+        try {
+            digest = MessageDigest.getInstance("SHA-512");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-512 unavailable", e);
+        }
+        this.username = ascii(username);
+        random.nextBytes(salt);
+
+        byte[] identityHash = hash(ascii(username + ":" + password));
+        BigInteger x = new BigInteger(1, hash(salt, identityHash));
+        verifier = G.modPow(x, N);
+
+        BigInteger k = new BigInteger(1, hash(pad(N), pad(G)));
+        byte[] b = new byte[32];
+        random.nextBytes(b);
+        privateKey = new BigInteger(1, b);
+        publicKey = k.multiply(verifier).add(G.modPow(privateKey, N)).mod(N);
+    }
+
+    byte[] getSalt() {
+        return salt;
+    }
+
+    byte[] getPublicKey() {
+        return pad(publicKey);
+    }
+
+    /**
+     * Check the client's proof and derive the session key
+     *
+     * @param clientPublicKey The client's public value A
+     * @param clientProof The client's proof M1
+     * @return True if the client knows the password
+     */
+    boolean verifyClient(byte[] clientPublicKey, byte[] clientProof) {
+        BigInteger a = new BigInteger(1, clientPublicKey);
+        if (a.mod(N).signum() == 0) {
+            return false;
+        }
+
+        BigInteger u = new BigInteger(1, hash(pad(a), pad(publicKey)));
+        if (u.signum() == 0) {
+            // RFC 5054: abort, or the session key would not depend on the verifier
+            return false;
+        }
+        BigInteger s = a.multiply(verifier.modPow(u, N)).modPow(privateKey, N);
+        byte[] key = hash(unsigned(s));
+
+        byte[] hashN = hash(unsigned(N));
+        byte[] hashG = hash(unsigned(G));
+        for (int i = 0; i < hashN.length; i++) {
+            hashN[i] ^= hashG[i];
+        }
+        byte[] expected = hash(hashN, hash(username), salt, unsigned(a), unsigned(publicKey), key);
+        if (!MessageDigest.isEqual(expected, clientProof)) {
+            return false;
+        }
+
+        sessionKey = key;
+        serverProof = hash(unsigned(a), clientProof, key);
+        return true;
+    }
+
+    /**
+     * Get the server proof M2, once the client has been verified
+     */
+    byte[] getServerProof() {
+        return serverProof;
+    }
+
+    /**
+     * Get the shared session key K, once the client has been verified
+     */
+    byte[] getSessionKey() {
+        return sessionKey;
+    }
+
+    private byte[] hash(byte[]... parts) {
+        digest.reset();
+        for (byte[] part : parts) {
+            digest.update(part);
+        }
+        return digest.digest();
+    }
+
+    private static byte[] pad(BigInteger value) {
+        byte[] bytes = unsigned(value);
+        if (bytes.length == N_BYTES) {
+            return bytes;
+        }
+        byte[] padded = new byte[N_BYTES];
+        System.arraycopy(bytes, 0, padded, N_BYTES - bytes.length, bytes.length);
+        return padded;
+    }
+
+    private static byte[] unsigned(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0) {
+            byte[] trimmed = new byte[bytes.length - 1];
+            System.arraycopy(bytes, 1, trimmed, 0, trimmed.length);
+            return trimmed;
+        }
+        return bytes;
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,117 @@
+package com.mediabox.airhome.pairing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Encoder and decoder for the TLV8 format used by pair-setup and pair-verify.
+ *
+ * Each item is a type byte, a length byte and up to 255 bytes of value;
+ * longer values are split into consecutive items of the same type.
+ */
+public final class Tlv8 {
+
+    // Item types
+    public static final int METHOD = 0x00;
+    public static final int IDENTIFIER = 0x01;
+    public static final int SALT = 0x02;
+    public static final int PUBLIC_KEY = 0x03;
+    public static final int PROOF = 0x04;
+    public static final int ENCRYPTED_DATA = 0x05;
+    public static final int STATE = 0x06;
+    public static final int ERROR = 0x07;
+    public static final int RETRY_DELAY = 0x08;
+    public static final int SIGNATURE = 0x0A;
+    public static final int FLAGS = 0x13;
+
+    // Error codes
+    public static final int ERROR_UNKNOWN = 0x01;
+    public static final int ERROR_AUTHENTICATION = 0x02;
+    public static final int ERROR_BACKOFF = 0x03;
+    public static final int ERROR_MAX_TRIES = 0x05;
+
+    private static final int MAX_FRAGMENT = 255;
+
+    private Tlv8() {
+        // Static utility
+    }
+
+    /**
+     * Decode a TLV8 body, joining fragmented values
+     *
+     * @return Values indexed by item type; absent types are null
+     * @throws IOException If an item runs past the end of the data
+     */
+    public static byte[][] decode(byte[] data) throws IOException {
+        byte[][] items = new byte[256][];
+        int lastType = -1;
+        int offset = 0;
+
+        while (offset < data.length) {
+            if (offset + 2 > data.length) {
+                throw new IOException("Truncated TLV8 item header");
+            }
+            int type = data[offset] & 0xFF;
+            int length = data[offset + 1] & 0xFF;
+            offset += 2;
+            if (offset + length > data.length) {
+                throw new IOException("Truncated TLV8 item of type " + type);
+            }
+
+            byte[] previous = items[type];
+            if (type == lastType && previous != null) {
+                // Continuation of a value longer than one item
+                byte[] joined = new byte[previous.length + length];
+                System.arraycopy(previous, 0, joined, 0, previous.length);
+                System.arraycopy(data, offset, joined, previous.length, length);
+                items[type] = joined;
+            } else {
+                byte[] value = new byte[length];
+                System.arraycopy(data, offset, value, 0, length);
+                items[type] = value;
+            }
+
+            lastType = type;
+            offset += length;
+        }
+        return items;
+    }
+
+    /**
+     * Get a single-byte value, or -1 if it is absent or empty
+     */
+    public static int byteValue(byte[][] items, int type) {
+        byte[] value = items[type];
+        return value != null && value.length > 0 ? value[0] & 0xFF : -1;
+    }
+
+    /**
+     * Builder for TLV8 bodies
+     */
+    public static class Writer {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+
+        public Writer add(int type, int value) {
+            out.write(type);
+            out.write(1);
+            out.write(value);
+            return this;
+        }
+
+        public Writer add(int type, byte[] value) {
+            int offset = 0;
+            do {
+                int length = Math.min(MAX_FRAGMENT, value.length - offset);
+                out.write(type);
+                out.write(length);
+                out.write(value, offset, length);
+                offset += length;
+            } while (offset < value.length);
+            return this;
+        }
+
+        public byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+}
@@ -8,6 +8,7 @@ import android.util.Log;
 
 import com.mediabox.airhome.service.AirPlayService;
 import com.mediabox.airhome.util.ConfigManager;
+import com.mediabox.airhome.util.ThreadPolicy;
 
 /**
  * BroadcastReceiver that starts the AirPlay service when the device boots up,
@@ -24,18 +25,28 @@ public class BootReceiver extends BroadcastReceiver {
             // Initialize configuration manager
             ConfigManager.getInstance().init(context);
             
-            // Check if auto-start is enabled
-            if (ConfigManager.getInstance().isAutoStartEnabled()) {
-                Log.d(TAG, "Auto-start is enabled, starting AirPlay service");
-                
-                // Start the service
-                Intent serviceIntent = new Intent(context, AirPlayService.class);
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                    context.startForegroundService(serviceIntent);
-                } else {
-                    context.startService(serviceIntent);
+            // Loading the settings can be slow right after boot, so keep it
+            // off the main thread; the broadcast stays alive until we finish
+            PendingResult result = goAsync();
+            Context appContext = context.getApplicationContext();
+            ThreadPolicy.newThread(ThreadPolicy.Stage.BACKGROUND, "AirHomeBootStart", () -> {
+                try {
+                    // Check if auto-start is enabled
+                    if (ConfigManager.getInstance().isAutoStartEnabled()) {
+                        Log.d(TAG, "Auto-start is enabled, starting AirPlay service");
+                        
+                        // Start the service
+                        Intent serviceIntent = new Intent(appContext, AirPlayService.class);
+                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                            appContext.startForegroundService(serviceIntent);
+                        } else {
+                            appContext.startService(serviceIntent);
+                        }
+                    }
+                } finally {
+                    result.finish();
                 }
-            }
+            }).start();
         }
     }
 }
\ No newline at end of file
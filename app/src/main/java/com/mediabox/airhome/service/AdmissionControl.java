@@ -0,0 +1,302 @@
+package com.mediabox.airhome.service;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.mediabox.airhome.util.ConfigManager;
+import com.mediabox.airhome.util.TraceRing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which connections and audio sessions the server takes on, so
+ * a misbehaving client or a burst of reconnects cannot exhaust threads
+ * or heap.
+ *
+ * Limits come from {@link ConfigManager} and are read when the server
+ * starts. When they are hit the policy is:
+ * <ul>
+ * <li>A client connecting faster than its allowed rate is rejected.</li>
+ * <li>When every connection slot is taken, the connection that has been
+ * idle longest without an audio session is closed to make room. If none
+ * has been idle long enough, the new connection is rejected.</li>
+ * <li>A RECORD beyond the session limit is refused.</li>
+ * <li>A request body beyond the size limit is refused by the connection,
+ * which then closes.</li>
+ * </ul>
+ * Rejections are answered with {@code 453 Not Enough Bandwidth}. Queued
+ * audio beyond the byte limit is shed oldest first by the session queue.
+ *
+ * Rate windows are kept for a bounded number of clients. A flood from
+ * many addresses evicts the least recently seen ones, which at worst
+ * gives an evicted client a fresh window.
+ */
+public class AdmissionControl {
+    private static final String TAG = "AdmissionControl";
+
+    static final String NOT_ENOUGH_BANDWIDTH = "453 Not Enough Bandwidth";
+
+    // Reasons recorded in the trace with CONNECTION_REJECTED
+    static final int REJECT_RATE = 1;
+    static final int REJECT_FULL = 2;
+
+    // A connection must be quiet this long before it can be closed to make room
+    private static final long MIN_IDLE_TO_SHED_MS = 5_000;
+
+    // Rate windows kept; past this the least recently seen client is forgotten
+    static final int MAX_TRACKED_CLIENTS = 256;
+
+    private static final long RATE_WINDOW_MS = 60_000;
+
+    /**
+     * An admitted connection. The connection handler reports activity so
+     * the idlest one can be chosen when shedding.
+     */
+    static final class Ticket {
+        private final Socket socket;
+        private volatile long lastActivity = SystemClock.elapsedRealtime();
+        private volatile boolean hasSession;
+
+        Ticket(Socket socket) {
+            this.socket = socket;
+        }
+
+        void touch() {
+            lastActivity = SystemClock.elapsedRealtime();
+        }
+
+        void setHasSession(boolean hasSession) {
+            this.hasSession = hasSession;
+        }
+    }
+
+    /**
+     * Connection attempts from one client in the current window, guarded
+     * by the map
+     */
+    private static final class RateWindow {
+        long startedAt;
+        int count;
+    }
+
+    private final int maxConnections;
+    private final int maxConnectsPerMinute;
+    private final int maxAudioSessions;
+    private final int maxRequestBodyBytes;
+
+    private final Map<Integer, Ticket> tickets = new ConcurrentHashMap<>();
+
+    // Access-ordered, so the eldest entry is the least recently seen client
+    private final Map<InetAddress, RateWindow> rateWindows =
+            new LinkedHashMap<InetAddress, RateWindow>(MAX_TRACKED_CLIENTS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<InetAddress, RateWindow> eldest) {
+                    return size() > MAX_TRACKED_CLIENTS;
+                }
+            };
+
+    private final AtomicLong connectionsRejected = new AtomicLong();
+    private final AtomicLong connectionsRateLimited = new AtomicLong();
+    private final AtomicLong idleConnectionsClosed = new AtomicLong();
+    private final AtomicLong sessionsRejected = new AtomicLong();
+
+    public AdmissionControl() {
+        this(ConfigManager.getInstance());
+    }
+
+    private AdmissionControl(ConfigManager config) {
+        this(config.getMaxConnections(), config.getMaxConnectsPerMinute(), config.getMaxAudioSessions(),
+                config.getMaxRequestBodyBytes());
+    }
+
+    /**
+     * Create with the given limits instead of the configured ones, as tests do
+     */
+    AdmissionControl(int maxConnections, int maxConnectsPerMinute, int maxAudioSessions, int maxRequestBodyBytes) {
+        this.maxConnections = Math.max(1, maxConnections);
+        this.maxConnectsPerMinute = Math.max(1, maxConnectsPerMinute);
+        this.maxAudioSessions = Math.max(1, maxAudioSessions);
+        this.maxRequestBodyBytes = Math.max(0, maxRequestBodyBytes);
+    }
+
+    int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Get the largest request body a connection accepts
+     */
+    int getMaxRequestBodyBytes() {
+        return maxRequestBodyBytes;
+    }
+
+    /**
+     * Get how many admitted connections have not been released
+     */
+    int getConnectionCount() {
+        return tickets.size();
+    }
+
+    /**
+     * Get how many clients' connection rates are being tracked
+     */
+    int getTrackedClients() {
+        synchronized (rateWindows) {
+            return rateWindows.size();
+        }
+    }
+
+    /**
+     * Decide whether to take a newly accepted connection. Called on the
+     * accept thread, so it never blocks.
+     *
+     * @param traceAddress Client address as recorded in the trace
+     * @return A ticket to release when the connection ends, or null if the
+     *         connection should be rejected
+     */
+    Ticket admit(Socket socket, int connectionId, long traceAddress) {
+        long now = SystemClock.elapsedRealtime();
+        if (!withinRate(socket.getInetAddress(), now)) {
+            connectionsRateLimited.incrementAndGet();
+            TraceRing.record(TraceRing.CONNECTION_REJECTED, connectionId, REJECT_RATE, traceAddress);
+            return null;
+        }
+
+        if (tickets.size() >= maxConnections && !closeIdlest(now)) {
+            connectionsRejected.incrementAndGet();
+            TraceRing.record(TraceRing.CONNECTION_REJECTED, connectionId, REJECT_FULL, traceAddress);
+            return null;
+        }
+
+        Ticket ticket = new Ticket(socket);
+        tickets.put(connectionId, ticket);
+        return ticket;
+    }
+
+    void release(int connectionId) {
+        tickets.remove(connectionId);
+    }
+
+    /**
+     * Decide whether a connection may start another audio session
+     *
+     * @param activeSessions Number of sessions already playing
+     */
+    boolean admitSession(int activeSessions) {
+        if (activeSessions >= maxAudioSessions) {
+            sessionsRejected.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Refuse a connection before reading from it. The response goes out
+     * without waiting for a request, so a flood cannot tie up a thread per
+     * rejected client; senders see their first request fail.
+     */
+    static void reject(Socket socket) {
+        try {
+            socket.setSoLinger(true, 0);
+            OutputStream output = socket.getOutputStream();
+            output.write(("RTSP/1.0 " + NOT_ENOUGH_BANDWIDTH + "\r\nServer: AirHome/1.0\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            output.flush();
+        } catch (IOException e) {
+            // Client already gone
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing rejected socket", e);
+            }
+        }
+    }
+
+    public long getConnectionsRejected() {
+        return connectionsRejected.get();
+    }
+
+    public long getConnectionsRateLimited() {
+        return connectionsRateLimited.get();
+    }
+
+    public long getIdleConnectionsClosed() {
+        return idleConnectionsClosed.get();
+    }
+
+    public long getSessionsRejected() {
+        return sessionsRejected.get();
+    }
+
+    /**
+     * Print limits, current usage and rejection counters
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("Connections: " + tickets.size() + "/" + maxConnections
+                + ", " + connectionsRejected.get() + " rejected full, "
+                + connectionsRateLimited.get() + " rate limited (" + maxConnectsPerMinute + "/min per client), "
+                + idleConnectionsClosed.get() + " idle closed");
+        writer.println("Audio sessions limit " + maxAudioSessions + ", "
+                + sessionsRejected.get() + " rejected");
+        writer.println("Request body limit " + maxRequestBodyBytes + " bytes, "
+                + getTrackedClients() + " clients rate tracked");
+    }
+
+    private boolean withinRate(InetAddress address, long now) {
+        synchronized (rateWindows) {
+            RateWindow window = rateWindows.get(address);
+            if (window == null) {
+                window = new RateWindow();
+                window.startedAt = now;
+                rateWindows.put(address, window);
+            } else if (now - window.startedAt >= RATE_WINDOW_MS) {
+                window.startedAt = now;
+                window.count = 0;
+            }
+            return ++window.count <= maxConnectsPerMinute;
+        }
+    }
+
+    /**
+     * Close the connection idle longest among those without an audio
+     * session, if one has been idle long enough
+     *
+     * @return True if a slot was freed
+     */
+    private boolean closeIdlest(long now) {
+        Ticket idlest = null;
+        int idlestId = 0;
+        for (Map.Entry<Integer, Ticket> entry : tickets.entrySet()) {
+            Ticket ticket = entry.getValue();
+            if (!ticket.hasSession && now - ticket.lastActivity >= MIN_IDLE_TO_SHED_MS
+                    && (idlest == null || ticket.lastActivity < idlest.lastActivity)) {
+                idlest = ticket;
+                idlestId = entry.getKey();
+            }
+        }
+        if (idlest == null || tickets.remove(idlestId) == null) {
+            return false;
+        }
+
+        Log.w(TAG, "Connection limit reached, closing idle connection from "
+                + idlest.socket.getInetAddress().getHostAddress());
+        idleConnectionsClosed.incrementAndGet();
+        try {
+            // The connection's handler sees the socket close and cleans up
+            idlest.socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing idle connection", e);
+        }
+        return true;
+    }
+}
@@ -4,12 +4,20 @@ import android.content.Context;
 import android.util.Log;
 
 import com.mediabox.airhome.audio.AudioHandler;
+import com.mediabox.airhome.util.ThreadPolicy;
+import com.mediabox.airhome.util.TimerWheel;
+import com.mediabox.airhome.util.TraceRing;
 
 import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Main AirPlay server implementation that listens for incoming connections
@@ -19,12 +27,29 @@ public class AirPlayServer {
     private static final String TAG = "AirPlayServer";
     private static final int PORT = 5000;
     
+    // Connections with no RTSP traffic or session audio for this long are
+    // closed by the reaper
+    static final long CONNECTION_IDLE_TIMEOUT_MS = 120_000;
+    
+    // Handler threads beyond the core stay this long between connections
+    private static final long HANDLER_KEEP_ALIVE_SECONDS = 60;
+    
+    // Threads of connections closed to make room may still be unwinding
+    static final int HANDLER_THREAD_HEADROOM = 4;
+    
     private final Context context;
-    private final ExecutorService threadPool;
+    private final int port;
+    // Created when the port is bound, so settings are not read on the main thread
+    private ThreadPoolExecutor threadPool;
+    private volatile AdmissionControl admission;
     private final AudioHandler audioHandler;
+    private final TimerWheel reaper;
+    private final AtomicInteger nextConnectionId = new AtomicInteger();
+    private final SenderCache senderCache = new SenderCache();
+    private final NowPlayingPublisher nowPlaying;
     
     private ServerSocket serverSocket;
-    private boolean isRunning;
+    private volatile boolean isRunning;
     private Thread serverThread;
     
     /**
@@ -32,17 +57,58 @@ public class AirPlayServer {
      * 
      * @param context Context used for system resources
      * @param audioHandler Handler for audio processing
+     * @param reaper Timer wheel used to close idle connections
+     * @param nowPlaying Publisher for what senders are playing
+     */
+    public AirPlayServer(Context context, AudioHandler audioHandler, TimerWheel reaper,
+                         NowPlayingPublisher nowPlaying) {
+        this(context, audioHandler, reaper, nowPlaying, PORT);
+    }
+    
+    /**
+     * Create a server on the given port instead of the AirPlay one, or on
+     * any free port if 0, as tests do
      */
-    public AirPlayServer(Context context, AudioHandler audioHandler) {
+    AirPlayServer(Context context, AudioHandler audioHandler, TimerWheel reaper,
+                  NowPlayingPublisher nowPlaying, int port) {
         this.context = context.getApplicationContext();
-        this.threadPool = Executors.newCachedThreadPool();
+        this.port = port;
         this.audioHandler = audioHandler;
+        this.reaper = reaper;
+        this.nowPlaying = nowPlaying;
     }
     
     /**
-     * Start the AirPlay server and begin listening for connections
+     * Bind the listening port. Senders that connect before {@link #start()}
+     * wait in the accept backlog, so the port can be bound and announced
+     * while the rest of the service is still starting.
      */
-    public void start() {
+    public synchronized void bind() throws IOException {
+        if (serverSocket != null) {
+            return;
+        }
+        
+        admission = new AdmissionControl();
+        // One thread per admitted connection, never many more
+        threadPool = new ThreadPoolExecutor(0, admission.getMaxConnections() + HANDLER_THREAD_HEADROOM,
+                HANDLER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                ThreadPolicy.factory(ThreadPolicy.Stage.CONTROL, "RAOPConnection"));
+        serverSocket = new ServerSocket(port);
+        Log.i(TAG, "AirPlay server bound to port " + serverSocket.getLocalPort());
+    }
+    
+    /**
+     * Get the port the server is bound to
+     */
+    synchronized int getPort() {
+        return serverSocket.getLocalPort();
+    }
+    
+    /**
+     * Start the AirPlay server and begin accepting connections, binding
+     * the port first if {@link #bind()} has not been called
+     */
+    public synchronized void start() {
         Log.d(TAG, "Starting AirPlay server");
         
         if (isRunning) {
@@ -50,10 +116,33 @@ public class AirPlayServer {
             return;
         }
         
-        serverThread = new Thread(this::runServer, "AirPlayServerThread");
+        try {
+            bind();
+        } catch (IOException e) {
+            Log.e(TAG, "Error starting server", e);
+            return;
+        }
+        
+        isRunning = true;
+        serverThread = ThreadPolicy.newThread(ThreadPolicy.Stage.CONTROL, "AirPlayServerThread", this::runServer);
         serverThread.start();
     }
     
+    /**
+     * Get the cache of recently seen senders
+     */
+    public SenderCache getSenderCache() {
+        return senderCache;
+    }
+    
+    /**
+     * Get the admission control, for its limits and rejection counters, or
+     * null before the port is bound
+     */
+    public AdmissionControl getAdmissionControl() {
+        return admission;
+    }
+    
     /**
      * Stop the AirPlay server and clean up resources
      */
@@ -70,7 +159,9 @@ public class AirPlayServer {
             }
         }
         
-        threadPool.shutdown();
+        if (threadPool != null) {
+            threadPool.shutdown();
+        }
     }
     
     /**
@@ -79,21 +170,34 @@ public class AirPlayServer {
      */
     private void runServer() {
         try {
-            serverSocket = new ServerSocket(PORT);
-            isRunning = true;
-            
-            Log.i(TAG, "AirPlay server started on port " + PORT);
+            Log.i(TAG, "AirPlay server started on port " + serverSocket.getLocalPort());
             
             while (isRunning) {
                 try {
                     // Wait for incoming connections
                     Socket clientSocket = serverSocket.accept();
+                    int connectionId = nextConnectionId.incrementAndGet();
                     
-                    Log.d(TAG, "New client connection from: " + 
-                           clientSocket.getInetAddress().getHostAddress());
+                    long address = ipv4ToLong(clientSocket.getInetAddress());
+                    AdmissionControl.Ticket ticket = admission.admit(clientSocket, connectionId, address);
+                    if (ticket == null) {
+                        AdmissionControl.reject(clientSocket);
+                        continue;
+                    }
+                    
+                    TraceRing.record(TraceRing.CONNECTION_ACCEPTED, connectionId,
+                            address, clientSocket.getPort());
                     
                     // Handle client connection in a separate thread
-                    threadPool.execute(() -> handleClient(clientSocket));
+                    try {
+                        threadPool.execute(() -> handleClient(clientSocket, connectionId, ticket));
+                    } catch (RejectedExecutionException e) {
+                        // A closed connection's thread has not returned to the pool yet
+                        admission.release(connectionId);
+                        TraceRing.record(TraceRing.CONNECTION_REJECTED, connectionId,
+                                AdmissionControl.REJECT_FULL, address);
+                        AdmissionControl.reject(clientSocket);
+                    }
                     
                 } catch (IOException e) {
                     if (isRunning) {
@@ -102,8 +206,6 @@ public class AirPlayServer {
                 }
             }
             
-        } catch (IOException e) {
-            Log.e(TAG, "Error starting server", e);
         } finally {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 try {
@@ -120,11 +222,27 @@ public class AirPlayServer {
      * Handle an individual client connection
      * 
      * @param clientSocket The socket connected to the client
+     * @param connectionId Numeric id used in the trace
+     * @param ticket The connection's admission
      */
-    private void handleClient(Socket clientSocket) {
+    private void handleClient(Socket clientSocket, int connectionId, AdmissionControl.Ticket ticket) {
+        // Closing the socket unblocks the reader if the sender vanishes
+        // without a TEARDOWN
+        TimerWheel.Timeout idleTimeout = reaper.schedule(CONNECTION_IDLE_TIMEOUT_MS, () -> {
+            Log.w(TAG, "Reaping idle connection from: " +
+                    clientSocket.getInetAddress().getHostAddress());
+            TraceRing.record(TraceRing.CONNECTION_REAPED, connectionId, 0, 0);
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing idle client socket", e);
+            }
+        });
+        
         try {
             // Create a new RAOP connection handler for this client
-            RAOPConnection connection = new RAOPConnection(clientSocket, audioHandler);
+            RAOPConnection connection = new RAOPConnection(
+                    clientSocket, connectionId, audioHandler, idleTimeout, senderCache, admission, ticket, nowPlaying);
             
             // Process the connection (this will block until the connection ends)
             connection.process();
@@ -132,6 +250,9 @@ public class AirPlayServer {
         } catch (Exception e) {
             Log.e(TAG, "Error handling client", e);
         } finally {
+            idleTimeout.cancel();
+            admission.release(connectionId);
+            TraceRing.record(TraceRing.CONNECTION_CLOSED, connectionId, 0, 0);
             try {
                 clientSocket.close();
             } catch (IOException e) {
@@ -139,4 +260,16 @@ public class AirPlayServer {
             }
         }
     }
+    
+    /**
+     * Pack an IPv4 address into a long for the trace, or 0 for IPv6
+     */
+    private static long ipv4ToLong(InetAddress address) {
+        if (!(address instanceof Inet4Address)) {
+            return 0;
+        }
+        byte[] bytes = address.getAddress();
+        return ((bytes[0] & 0xFFL) << 24) | ((bytes[1] & 0xFFL) << 16)
+                | ((bytes[2] & 0xFFL) << 8) | (bytes[3] & 0xFFL);
+    }
 }
\ No newline at end of file
@@ -7,9 +7,11 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Binder;
 import android.os.Build;
 import android.os.IBinder;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
@@ -17,8 +19,21 @@ import androidx.core.app.NotificationCompat;
 
 import com.mediabox.airhome.R;
 import com.mediabox.airhome.audio.AudioHandler;
+import com.mediabox.airhome.audio.SpectrumAnalyzer;
+import com.mediabox.airhome.cast.CastSink;
+import com.mediabox.airhome.pairing.PairingSession;
+import com.mediabox.airhome.sync.RoomSyncFollower;
+import com.mediabox.airhome.sync.RoomSyncLeader;
 import com.mediabox.airhome.ui.MainActivity;
 import com.mediabox.airhome.util.ConfigManager;
+import com.mediabox.airhome.util.StartupOrchestrator;
+import com.mediabox.airhome.util.ThreadPolicy;
+import com.mediabox.airhome.util.TimerWheel;
+import com.mediabox.airhome.util.TraceRing;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 
 /**
  * Foreground service that handles the AirPlay functionality.
@@ -27,13 +42,50 @@ import com.mediabox.airhome.util.ConfigManager;
 public class AirPlayService extends Service {
     private static final String TAG = "AirPlayService";
     private static final int NOTIFICATION_ID = 1;
+    private static final int PIN_NOTIFICATION_ID = 2;
     private static final String CHANNEL_ID = "airhome_channel";
     
+    // One second resolution is plenty for idle timeouts measured in minutes
+    private static final long REAPER_TICK_MS = 1000;
+    private static final int REAPER_WHEEL_SIZE = 512;
+    
+    // Window decoded by "dumpsys ... trace" when no duration is given
+    private static final int DEFAULT_TRACE_SECONDS = 10;
+    
+    // How long teardown waits for startup stages that are already running
+    private static final long STARTUP_CANCEL_TIMEOUT_MS = 3000;
+    
     private PowerManager.WakeLock wakeLock;
+    private TimerWheel reaper;
     private MDNSManager mdnsManager;
     private AirPlayServer airPlayServer;
     private AudioHandler audioHandler;
-    private boolean isRunning = false;
+    private StatsPublisher statsPublisher;
+    private NowPlayingPublisher nowPlaying;
+    private SpectrumAnalyzer spectrumAnalyzer;
+    
+    // Created and started on startup threads, published only once running
+    // and read from the main and binder threads
+    private volatile RoomSyncLeader roomSyncLeader;
+    private volatile RoomSyncFollower roomSyncFollower;
+    private volatile CastSink castSink;
+    private StartupOrchestrator startup;
+    private volatile long discoverableAt;
+    private volatile long readyAt;
+    private final IBinder binder = new LocalBinder();
+    private volatile boolean isRunning = false;
+    
+    // Between onStartCommand and onDestroy, readable before binding
+    private static volatile boolean started = false;
+    
+    /**
+     * Binder handed to in-process clients such as the dashboard
+     */
+    public class LocalBinder extends Binder {
+        public AirPlayService getService() {
+            return AirPlayService.this;
+        }
+    }
     
     @Override
     public void onCreate() {
@@ -44,9 +96,19 @@ public class AirPlayService extends Service {
         createNotificationChannel();
         
         // Initialize handlers and managers
-        audioHandler = new AudioHandler(this);
+        reaper = new TimerWheel(REAPER_TICK_MS, REAPER_WHEEL_SIZE);
+        audioHandler = new AudioHandler(this, reaper);
+        spectrumAnalyzer = new SpectrumAnalyzer(audioHandler);
         mdnsManager = new MDNSManager(this);
-        airPlayServer = new AirPlayServer(this, audioHandler);
+        nowPlaying = new NowPlayingPublisher(this);
+        airPlayServer = new AirPlayServer(this, audioHandler, reaper, nowPlaying);
+        
+        // Publish live stats to bound clients
+        statsPublisher = new StatsPublisher(audioHandler);
+        audioHandler.setStatsChangeListener(statsPublisher);
+        
+        // Show the code a sender must enter to pair for good
+        PairingSession.setPinListener(this::showPairingPin);
         
         // Acquire wake lock to keep CPU running
         PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
@@ -58,24 +120,15 @@ public class AirPlayService extends Service {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "AirPlay service starting");
+        started = true;
         
         // Start as a foreground service with notification
         startForeground(NOTIFICATION_ID, createNotification());
         
-        if (!isRunning) {
-            // Acquire wake lock
-            wakeLock.acquire();
-            
-            // Initialize audio handler
-            audioHandler.initialize();
-            
-            // Start the AirPlay server
-            String deviceName = ConfigManager.getInstance().getDeviceName();
-            mdnsManager.startService(deviceName);
-            airPlayServer.start();
-            
-            isRunning = true;
-            Log.i(TAG, "AirPlay service started successfully");
+        // Everything else starts in the background
+        if (startup == null) {
+            startup = createStartup();
+            startup.start();
         }
         
         // Restart if killed
@@ -85,27 +138,58 @@ public class AirPlayService extends Service {
     @Override
     public void onDestroy() {
         Log.d(TAG, "AirPlay service destroying");
+        // Cleared first so the final stats below turn the dashboard switch off
+        started = false;
+        PairingSession.setPinListener(null);
+        showPairingPin(null);
+        
+        // Let startup stages already running finish before tearing down
+        if (startup != null) {
+            startup.cancel(STARTUP_CANCEL_TIMEOUT_MS);
+        }
         
         // Stop the AirPlay server
         if (airPlayServer != null) {
             airPlayServer.stop();
         }
         
+        stopCastSink();
+        
         // Stop mDNS service
         if (mdnsManager != null) {
             mdnsManager.stopService();
         }
         
+        stopRoomSync();
+        
+        if (spectrumAnalyzer != null) {
+            spectrumAnalyzer.stop();
+        }
+        
         // Cleanup audio handler
         if (audioHandler != null) {
             audioHandler.cleanup();
         }
         
+        // Stop the reaper once nothing is left to track
+        if (reaper != null) {
+            reaper.stop();
+        }
+        
         // Release wake lock
         if (wakeLock != null && wakeLock.isHeld()) {
             wakeLock.release();
         }
         
+        if (nowPlaying != null) {
+            nowPlaying.release();
+        }
+        
+        // Tell bound clients we are gone
+        if (statsPublisher != null) {
+            statsPublisher.shutdown();
+        }
+        
         isRunning = false;
         super.onDestroy();
     }
@@ -113,7 +197,236 @@ public class AirPlayService extends Service {
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return binder;
+    }
+    
+    /**
+     * Check if the AirPlay server has been started
+     */
+    public boolean isRunning() {
+        return isRunning;
+    }
+    
+    /**
+     * Check whether the service has been started and not destroyed, even
+     * if startup has not finished yet. Usable without binding.
+     */
+    public static boolean isStarted() {
+        return started;
+    }
+    
+    /**
+     * Register a listener for live stats, called on the main thread.
+     * The listener immediately receives the current stats.
+     */
+    public void addStatsListener(StatsPublisher.StatsListener listener) {
+        statsPublisher.addListener(listener);
+    }
+    
+    public void removeStatsListener(StatsPublisher.StatsListener listener) {
+        statsPublisher.removeListener(listener);
+    }
+    
+    /**
+     * Get the spectrum of the local output, for a visualizer to start while
+     * it is showing and stop afterwards
+     */
+    public SpectrumAnalyzer getSpectrumAnalyzer() {
+        return spectrumAnalyzer;
+    }
+    
+    /**
+     * Decode the event trace, invoked with
+     * {@code adb shell dumpsys activity service com.mediabox.airhome/.service.AirPlayService trace [seconds]},
+     * or print startup stats when the argument is {@code stats}
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (args != null && args.length >= 1 && "stats".equals(args[0])) {
+            dumpStartupStats(writer);
+            return;
+        }
+        
+        int seconds = DEFAULT_TRACE_SECONDS;
+        if (args != null && args.length >= 2 && "trace".equals(args[0])) {
+            try {
+                seconds = Integer.parseInt(args[1]);
+            } catch (NumberFormatException e) {
+                writer.println("Invalid duration: " + args[1]);
+                return;
+            }
+        }
+        
+        TraceRing.dump(writer, seconds);
+    }
+    
+    /**
+     * Build the startup graph. Settings load, audio setup and binding the
+     * port run in parallel; the service is announced over mDNS as soon as
+     * the port is bound, and senders that connect early wait in the accept
+     * backlog until audio is ready and the server starts accepting.
+     */
+    private StartupOrchestrator createStartup() {
+        StartupOrchestrator orchestrator = new StartupOrchestrator("AirHomeStartup", this::onStartupFinished);
+        
+        // Reading any setting waits for the preferences file to load
+        StartupOrchestrator.Stage config = orchestrator.addStage("config",
+                () -> nowPlaying.setEnabled(ConfigManager.getInstance().isNowPlayingEnabled()));
+        StartupOrchestrator.Stage locks = orchestrator.addStage("locks", () -> {
+            wakeLock.acquire();
+            reaper.start();
+        });
+        StartupOrchestrator.Stage audio = orchestrator.addStage("audio", audioHandler::initialize, config);
+        StartupOrchestrator.Stage bind = orchestrator.addStage("bind", () -> {
+            try {
+                airPlayServer.bind();
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to bind the AirPlay port", e);
+            }
+        }, config);
+        StartupOrchestrator.Stage announce = orchestrator.addStage("announce", () -> {
+            if (!mdnsManager.startService(ConfigManager.getInstance().getDeviceName())) {
+                throw new IllegalStateException("Unable to announce over mDNS");
+            }
+            discoverableAt = SystemClock.elapsedRealtime();
+        }, bind);
+        orchestrator.addStage("serve", airPlayServer::start, bind, audio, locks);
+        orchestrator.addStage("room sync", this::startRoomSync, audio);
+        orchestrator.addStage("cast", this::startCastSink, audio, announce);
+        return orchestrator;
+    }
+    
+    private void onStartupFinished() {
+        readyAt = SystemClock.elapsedRealtime();
+        isRunning = true;
+        statsPublisher.setRunning(true);
+        Log.i(TAG, "AirPlay service started " + (startup.hasFailed() ? "with failures" : "successfully")
+                + ", ready " + (readyAt - StartupOrchestrator.getProcessStartMillis()) + " ms after process start");
+    }
+    
+    /**
+     * Play through a Cast device, if configured; it is found over mDNS
+     */
+    private void startCastSink() {
+        String castDevice = ConfigManager.getInstance().getCastDevice();
+        if (!castDevice.isEmpty()) {
+            CastSink sink = new CastSink(audioHandler, mdnsManager, castDevice);
+            audioHandler.addOutputListener(sink);
+            sink.start();
+            castSink = sink;
+        }
+        // Teardown may have stopped waiting for this stage; do not leave it running
+        if (!started) {
+            stopCastSink();
+        }
+    }
+    
+    private synchronized void stopCastSink() {
+        if (castSink != null) {
+            audioHandler.removeOutputListener(castSink);
+            castSink.stop();
+            castSink = null;
+        }
+    }
+    
+    /**
+     * Start leading or following multi-room playback according to settings
+     */
+    private void startRoomSync() {
+        ConfigManager config = ConfigManager.getInstance();
+        String role = config.getRoomSyncRole();
+        try {
+            if (ConfigManager.ROOM_SYNC_LEADER.equals(role)) {
+                RoomSyncLeader leader = new RoomSyncLeader();
+                leader.start();
+                audioHandler.addOutputListener(leader);
+                roomSyncLeader = leader;
+            } else if (ConfigManager.ROOM_SYNC_FOLLOWER.equals(role) && !config.getRoomSyncLeader().isEmpty()) {
+                RoomSyncFollower follower = new RoomSyncFollower(config.getRoomSyncLeader());
+                follower.start();
+                roomSyncFollower = follower;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to start room sync as " + role, e);
+        }
+        // Teardown may have stopped waiting for this stage; do not leave it running
+        if (!started) {
+            stopRoomSync();
+        }
+    }
+    
+    private synchronized void stopRoomSync() {
+        if (roomSyncLeader != null) {
+            audioHandler.removeOutputListener(roomSyncLeader);
+            roomSyncLeader.stop();
+            roomSyncLeader = null;
+        }
+        if (roomSyncFollower != null) {
+            roomSyncFollower.stop();
+            roomSyncFollower = null;
+        }
+    }
+    
+    /**
+     * Print sender cache hit rates, time to first audio for warm and cold
+     * starts, the startup trace, admission control counters, and
+     * multi-room and Cast status
+     */
+    private void dumpStartupStats(PrintWriter writer) {
+        if (airPlayServer == null || audioHandler == null || startup == null) {
+            writer.println("Service not started");
+            return;
+        }
+        
+        // Elapsed realtime counts from boot
+        long processStart = StartupOrchestrator.getProcessStartMillis();
+        writer.println("Boot to discoverable: " + (discoverableAt != 0 ? discoverableAt + " ms" : "not yet"));
+        writer.println("Process start to ready: "
+                + (readyAt != 0 && processStart != 0 ? (readyAt - processStart) + " ms" : "not yet"));
+        startup.dump(writer);
+        
+        SenderCache senderCache = airPlayServer.getSenderCache();
+        int hits = senderCache.getHitCount();
+        int lookups = hits + senderCache.getMissCount();
+        writer.println("Sender cache: " + hits + "/" + lookups + " hits"
+                + (lookups > 0 ? " (" + (hits * 100 / lookups) + "%)" : ""));
+        writer.println("First audio, warm output: " + audioHandler.getWarmStartCount() + " sessions, avg "
+                + audioHandler.getAverageWarmStartMs() + " ms");
+        writer.println("First audio, cold output: " + audioHandler.getColdStartCount() + " sessions, avg "
+                + audioHandler.getAverageColdStartMs() + " ms");
+        writer.println("First audio since connecting, cached sender: " + audioHandler.getCachedSenderStartCount()
+                + " sessions, avg " + audioHandler.getAverageCachedSenderStartMs() + " ms; new sender: "
+                + audioHandler.getNewSenderStartCount() + " sessions, avg "
+                + audioHandler.getAverageNewSenderStartMs() + " ms");
+        writer.println("Resume after FLUSH: ranged avg " + audioHandler.getAverageRangedFlushResumeMs()
+                + " ms, full avg " + audioHandler.getAverageFullFlushResumeMs() + " ms");
+        
+        AdmissionControl admission = airPlayServer.getAdmissionControl();
+        if (admission != null) {
+            admission.dump(writer);
+        }
+        writer.println("Audio shed from full queues: " + audioHandler.getShedAudioBytes() + " bytes");
+        writer.println("Audio queue chunks allocated: " + audioHandler.getChunkAllocations());
+        writer.println("Output buffer resizes: " + audioHandler.getOutputBufferGrows() + " grown, "
+                + audioHandler.getOutputBufferShrinks() + " shrunk");
+        writer.println("SET_PARAMETER handling: avg " + RAOPConnection.getSetParameterAverageMicros()
+                + " us, max " + RAOPConnection.getSetParameterMaxMicros() + " us; now playing "
+                + nowPlaying.getUpdatesReceived() + " updates, " + nowPlaying.getPublishCount() + " published");
+        
+        RoomSyncLeader leader = roomSyncLeader;
+        if (leader != null) {
+            leader.dump(writer);
+        }
+        RoomSyncFollower follower = roomSyncFollower;
+        if (follower != null) {
+            follower.dump(writer);
+        }
+        CastSink sink = castSink;
+        if (sink != null) {
+            sink.dump(writer);
+        }
+        spectrumAnalyzer.dump(writer);
+        ThreadPolicy.dump(writer);
     }
     
     private void createNotificationChannel() {
@@ -131,6 +444,26 @@ public class AirPlayService extends Service {
         }
     }
     
+    /**
+     * Show the pair-setup code in a notification, or remove it. Called on
+     * connection threads.
+     */
+    private void showPairingPin(String pin) {
+        NotificationManager notificationManager =
+                (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        if (pin == null) {
+            notificationManager.cancel(PIN_NOTIFICATION_ID);
+            return;
+        }
+        Notification notification = new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setContentTitle(getString(R.string.pairing_pin_title))
+                .setContentText(getString(R.string.pairing_pin_text, pin))
+                .setSmallIcon(R.drawable.ic_airplay)
+                .setPriority(NotificationCompat.PRIORITY_HIGH)
+                .build();
+        notificationManager.notify(PIN_NOTIFICATION_ID, notification);
+    }
+    
     private Notification createNotification() {
         Intent notificationIntent = new Intent(this, MainActivity.class);
         PendingIntent pendingIntent = PendingIntent.getActivity(
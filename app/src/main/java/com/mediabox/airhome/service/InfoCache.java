@@ -0,0 +1,80 @@
+package com.mediabox.airhome.service;
+
+import com.mediabox.airhome.pairing.PairingIdentity;
+import com.mediabox.airhome.util.BinaryPlistWriter;
+import com.mediabox.airhome.util.ConfigManager;
+
+import java.util.Map;
+
+/**
+ * Cached body of the GET /info response that AirPlay 2 senders use to
+ * probe a receiver.
+ *
+ * The binary plist is built from the same properties we advertise over
+ * mDNS and is only re-encoded when the configuration changes, so repeated
+ * probes from every sender on the network cost a single array write.
+ */
+final class InfoCache {
+
+    // Status flag advertised while the receiver is idle and reachable
+    private static final int STATUS_FLAGS = 0x4;
+
+    private static byte[] cachedBody;
+    private static int cachedRevision = -1;
+
+    private InfoCache() {
+        // Static utility
+    }
+
+    /**
+     * Get the encoded /info plist, re-encoding it if the configuration
+     * has changed since it was last built
+     */
+    static synchronized byte[] get() {
+        ConfigManager config = ConfigManager.getInstance();
+        int revision = config.getRevision();
+        if (cachedBody == null || revision != cachedRevision) {
+            cachedBody = encode(config.getDeviceName());
+            cachedRevision = revision;
+        }
+        return cachedBody;
+    }
+
+    static byte[] encode(String deviceName) {
+        Map<String, String> props = MDNSManager.createServiceProperties(deviceName);
+        byte[] publicKey = PairingIdentity.getInstance().getPublicKey();
+        BinaryPlistWriter writer = new BinaryPlistWriter();
+
+        String[] names = {
+                "deviceID", "features", "model", "name", "sourceVersion",
+                "protocolVersion", "statusFlags", "pk"
+        };
+        int[] keys = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            keys[i] = writer.writeString(names[i]);
+        }
+
+        int[] values = {
+                writer.writeString(props.get("deviceid")),
+                writer.writeInt(parseFeatures(props.get("features"))),
+                writer.writeString(props.get("model")),
+                writer.writeString(deviceName),
+                writer.writeString(props.get("srcvers")),
+                writer.writeString("1.1"),
+                writer.writeInt(STATUS_FLAGS),
+                writer.writeData(publicKey, 0, publicKey.length)
+        };
+
+        return writer.finish(writer.writeDict(keys, values, keys.length));
+    }
+
+    /**
+     * Combine the "low,high" feature words of the TXT record into one value
+     */
+    private static long parseFeatures(String features) {
+        String[] words = features.split(",");
+        long low = Long.decode(words[0].trim());
+        long high = words.length > 1 ? Long.decode(words[1].trim()) : 0;
+        return (high << 32) | low;
+    }
+}
@@ -6,6 +6,7 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -22,8 +23,10 @@ public class MDNSManager {
     private static final String SERVICE_TYPE = "_raop._tcp.local.";
     private static final int AIRPLAY_PORT = 5000;
     
+    private static final String CAST_SERVICE_TYPE = "_googlecast._tcp.local.";
+    
     private final Context context;
-    private JmDNS jmDNS;
+    private volatile JmDNS jmDNS;
     private WifiManager.MulticastLock multicastLock;
     private ServiceInfo serviceInfo;
     
@@ -35,8 +38,9 @@ public class MDNSManager {
      * Start advertising the AirPlay service on the network
      * 
      * @param deviceName The name to advertise on the network
+     * @return True if the service was registered
      */
-    public void startService(String deviceName) {
+    public boolean startService(String deviceName) {
         Log.d(TAG, "Starting mDNS service with name: " + deviceName);
         
         // Acquire multicast lock to receive multicast packets
@@ -67,9 +71,11 @@ public class MDNSManager {
             
             jmDNS.registerService(serviceInfo);
             Log.d(TAG, "mDNS service registered successfully as: " + serviceName);
+            return true;
             
         } catch (IOException e) {
             Log.e(TAG, "Failed to start mDNS service", e);
+            return false;
         }
     }
     
@@ -99,13 +105,49 @@ public class MDNSManager {
         }
     }
     
+    /**
+     * Find a Cast device by its friendly name. A name of the form
+     * {@code host:port} is used as an address directly, which allows
+     * pointing the Cast output at a local test endpoint. Blocks while
+     * the network is browsed, so call it off the main thread.
+     * 
+     * @param name Friendly name as shown in the Google Home app, or host:port
+     * @return The device's Cast address, or null if it was not found
+     */
+    public InetSocketAddress findCastDevice(String name) {
+        int colon = name.lastIndexOf(':');
+        if (colon > 0) {
+            try {
+                return new InetSocketAddress(name.substring(0, colon),
+                        Integer.parseInt(name.substring(colon + 1)));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid Cast device address: " + name);
+                return null;
+            }
+        }
+        
+        JmDNS dns = jmDNS;
+        if (dns == null) {
+            return null;
+        }
+        
+        for (ServiceInfo info : dns.list(CAST_SERVICE_TYPE)) {
+            String friendlyName = info.getPropertyString("fn");
+            if ((name.equals(friendlyName) || name.equals(info.getName()))
+                    && info.getInet4Addresses().length > 0) {
+                return new InetSocketAddress(info.getInet4Addresses()[0], info.getPort());
+            }
+        }
+        return null;
+    }
+    
     /**
      * Create service properties for AirPlay advertisement
      * 
      * @param deviceName The device name to advertise
      * @return Map of properties for AirPlay service
      */
-    private Map<String, String> createServiceProperties(String deviceName) {
+    static Map<String, String> createServiceProperties(String deviceName) {
         Map<String, String> props = new HashMap<>();
         
         // AirPlay service properties
@@ -137,7 +179,7 @@ public class MDNSManager {
      * 
      * @return String MAC address or a simulated one
      */
-    private String getMacAddress() {
+    static String getMacAddress() {
         // In a real app, you would get the device's MAC address
         // For privacy reasons, Android restricts this now, so you might
         // need to generate a stable identifier for your device
@@ -0,0 +1,309 @@
+package com.mediabox.airhome.service;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+import android.util.Log;
+
+import com.mediabox.airhome.util.ThreadPolicy;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Publishes what the sender is playing to the system through a
+ * {@link MediaSessionCompat}, so it shows up in the TV's now-playing UI.
+ *
+ * RTSP threads only swap a new immutable {@link NowPlaying} into a
+ * latest-value slot and, if no publish is pending, schedule one; they
+ * never block on the system server. Publishing runs on its own thread
+ * at most once per frame interval and sends whatever is latest, so a
+ * burst of metadata collapses into a single update. Artwork is decoded
+ * there too, downsampled to a size the system UI can use.
+ */
+public class NowPlayingPublisher {
+    private static final String TAG = "NowPlayingPublisher";
+
+    // At most one update reaches the system per display frame
+    private static final long FRAME_INTERVAL_MS = 16;
+
+    // Artwork larger than this on either side is downsampled when decoded
+    private static final int MAX_ARTWORK_SIZE = 512;
+
+    /**
+     * Everything shown for the current item. Replaced whole, never modified.
+     */
+    private static final class NowPlaying {
+        final String title;
+        final String artist;
+        final String album;
+        final long durationMs;
+        final byte[] artwork;
+        final boolean playing;
+        final long positionMs;
+        final long positionAt;
+
+        NowPlaying(String title, String artist, String album, long durationMs, byte[] artwork,
+                   boolean playing, long positionMs, long positionAt) {
+            this.title = title;
+            this.artist = artist;
+            this.album = album;
+            this.durationMs = durationMs;
+            this.artwork = artwork;
+            this.playing = playing;
+            this.positionMs = positionMs;
+            this.positionAt = positionAt;
+        }
+    }
+
+    private static final NowPlaying NOTHING = new NowPlaying(null, null, null, 0, null, false, 0, 0);
+
+    private final AtomicReference<NowPlaying> latest = new AtomicReference<>(NOTHING);
+    private final AtomicBoolean publishScheduled = new AtomicBoolean();
+    private final Runnable publishRunnable = this::publish;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final MediaSessionCompat session;
+    private volatile boolean enabled = true;
+    private volatile long lastPublishAt;
+
+    // Owned by the publishing thread
+    private NowPlaying published = NOTHING;
+    private byte[] decodedArtwork;
+    private Bitmap artworkBitmap;
+
+    private final AtomicLong updatesReceived = new AtomicLong();
+    private volatile long publishCount;
+
+    public NowPlayingPublisher(Context context) {
+        thread = new HandlerThread("NowPlaying");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        handler.post(() -> ThreadPolicy.enter(ThreadPolicy.Stage.METADATA));
+        session = new MediaSessionCompat(context.getApplicationContext(), TAG);
+    }
+
+    /**
+     * Create a publisher that posts to the given handler and has no media
+     * session or thread of its own, so JVM tests can time the RTSP side.
+     * It must not be released.
+     */
+    NowPlayingPublisher(Handler handler) {
+        thread = null;
+        this.handler = handler;
+        session = null;
+    }
+
+    /**
+     * Turn publishing on or off; while off, updates are ignored
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            clear();
+        }
+    }
+
+    public void release() {
+        handler.removeCallbacks(publishRunnable);
+        handler.post(() -> {
+            session.setActive(false);
+            session.release();
+            ThreadPolicy.leave();
+        });
+        thread.quitSafely();
+    }
+
+    /**
+     * Set the track details from the sender's DMAP metadata
+     */
+    public void setMetadata(String title, String artist, String album, long durationMs) {
+        if (!enabled) {
+            return;
+        }
+        NowPlaying current;
+        NowPlaying next;
+        do {
+            current = latest.get();
+            next = new NowPlaying(title, artist, album, durationMs > 0 ? durationMs : current.durationMs,
+                    current.artwork, current.playing, current.positionMs, current.positionAt);
+        } while (!latest.compareAndSet(current, next));
+        schedulePublish();
+    }
+
+    /**
+     * Set the cover art
+     *
+     * @param jpeg JPEG data, which is kept and must not be modified afterwards
+     */
+    public void setArtwork(byte[] jpeg) {
+        if (!enabled) {
+            return;
+        }
+        NowPlaying current;
+        NowPlaying next;
+        do {
+            current = latest.get();
+            next = new NowPlaying(current.title, current.artist, current.album, current.durationMs,
+                    jpeg, current.playing, current.positionMs, current.positionAt);
+        } while (!latest.compareAndSet(current, next));
+        schedulePublish();
+    }
+
+    /**
+     * Set the playback position within the current track
+     */
+    public void setProgress(long positionMs, long durationMs) {
+        if (!enabled) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        NowPlaying current;
+        NowPlaying next;
+        do {
+            current = latest.get();
+            next = new NowPlaying(current.title, current.artist, current.album,
+                    durationMs > 0 ? durationMs : current.durationMs, current.artwork,
+                    current.playing, positionMs, now);
+        } while (!latest.compareAndSet(current, next));
+        schedulePublish();
+    }
+
+    public void setPlaying(boolean playing) {
+        if (!enabled) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        NowPlaying current;
+        NowPlaying next;
+        do {
+            current = latest.get();
+            // Keep the position where it would have reached when pausing
+            long position = current.playing && current.positionAt != 0
+                    ? current.positionMs + now - current.positionAt : current.positionMs;
+            next = new NowPlaying(current.title, current.artist, current.album, current.durationMs,
+                    current.artwork, playing, position, now);
+        } while (!latest.compareAndSet(current, next));
+        schedulePublish();
+    }
+
+    /**
+     * Forget the current item, when the sender goes away
+     */
+    public void clear() {
+        latest.set(NOTHING);
+        schedulePublish();
+    }
+
+    public long getUpdatesReceived() {
+        return updatesReceived.get();
+    }
+
+    public long getPublishCount() {
+        return publishCount;
+    }
+
+    private void schedulePublish() {
+        updatesReceived.incrementAndGet();
+        if (publishScheduled.compareAndSet(false, true)) {
+            long delay = lastPublishAt + FRAME_INTERVAL_MS - SystemClock.elapsedRealtime();
+            handler.postDelayed(publishRunnable, Math.max(0, delay));
+        }
+    }
+
+    /**
+     * Push the latest state to the session, skipping parts that have not changed
+     */
+    private void publish() {
+        // Updates from here on schedule another publish
+        publishScheduled.set(false);
+        NowPlaying now = latest.get();
+        if (now == published) {
+            return;
+        }
+
+        try {
+            if (now == NOTHING) {
+                session.setActive(false);
+            } else {
+                if (now.title != published.title || now.artist != published.artist
+                        || now.album != published.album || now.durationMs != published.durationMs
+                        || now.artwork != published.artwork) {
+                    session.setMetadata(buildMetadata(now));
+                }
+                if (now.playing != published.playing || now.positionAt != published.positionAt) {
+                    session.setPlaybackState(new PlaybackStateCompat.Builder()
+                            .setState(now.playing ? PlaybackStateCompat.STATE_PLAYING : PlaybackStateCompat.STATE_PAUSED,
+                                    now.positionAt != 0 ? now.positionMs : PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN,
+                                    now.playing ? 1f : 0f, now.positionAt)
+                            .build());
+                }
+                session.setActive(true);
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error publishing now playing", e);
+        }
+
+        published = now;
+        lastPublishAt = SystemClock.elapsedRealtime();
+        publishCount++;
+    }
+
+    private MediaMetadataCompat buildMetadata(NowPlaying now) {
+        MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder();
+        if (now.title != null) {
+            builder.putString(MediaMetadataCompat.METADATA_KEY_TITLE, now.title);
+        }
+        if (now.artist != null) {
+            builder.putString(MediaMetadataCompat.METADATA_KEY_ARTIST, now.artist);
+        }
+        if (now.album != null) {
+            builder.putString(MediaMetadataCompat.METADATA_KEY_ALBUM, now.album);
+        }
+        if (now.durationMs > 0) {
+            builder.putLong(MediaMetadataCompat.METADATA_KEY_DURATION, now.durationMs);
+        }
+        Bitmap artwork = decodeArtwork(now.artwork);
+        if (artwork != null) {
+            builder.putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, artwork);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Decode artwork once per image, downsampled by a power of two
+     */
+    private Bitmap decodeArtwork(byte[] jpeg) {
+        if (jpeg == decodedArtwork) {
+            return artworkBitmap;
+        }
+        decodedArtwork = jpeg;
+        artworkBitmap = null;
+        if (jpeg == null || jpeg.length == 0) {
+            return null;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= MAX_ARTWORK_SIZE
+                || options.outHeight / (sampleSize * 2) >= MAX_ARTWORK_SIZE) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        artworkBitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        if (artworkBitmap == null) {
+            Log.w(TAG, "Unable to decode cover art");
+        }
+        return artworkBitmap;
+    }
+}
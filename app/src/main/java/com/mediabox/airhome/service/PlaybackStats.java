@@ -0,0 +1,86 @@
+package com.mediabox.airhome.service;
+
+/**
+ * Immutable snapshot of the receiver's playback state, published to
+ * bound clients such as the dashboard in {@link com.mediabox.airhome.ui.MainActivity}.
+ */
+public class PlaybackStats {
+    private final boolean running;
+    private final int activeSessions;
+    private final String senderName;
+    private final String codec;
+    private final int sampleRate;
+    private final long bufferedMillis;
+    private final long latencyMillis;
+    private final long packetsLost;
+    private final long cpuTimeMillis;
+
+    public PlaybackStats(boolean running, int activeSessions, String senderName,
+                         String codec, int sampleRate, long bufferedMillis,
+                         long latencyMillis, long packetsLost, long cpuTimeMillis) {
+        this.running = running;
+        this.activeSessions = activeSessions;
+        this.senderName = senderName;
+        this.codec = codec;
+        this.sampleRate = sampleRate;
+        this.bufferedMillis = bufferedMillis;
+        this.latencyMillis = latencyMillis;
+        this.packetsLost = packetsLost;
+        this.cpuTimeMillis = cpuTimeMillis;
+    }
+
+    /**
+     * Snapshot describing a service that has stopped
+     */
+    public static PlaybackStats stopped() {
+        return new PlaybackStats(false, 0, null, null, 0, 0, 0, 0, 0);
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getActiveSessions() {
+        return activeSessions;
+    }
+
+    /**
+     * Get the name of the sender that currently owns the output, or null
+     */
+    public String getSenderName() {
+        return senderName;
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Get the amount of audio queued ahead of the output track
+     */
+    public long getBufferedMillis() {
+        return bufferedMillis;
+    }
+
+    /**
+     * Get the estimated time from packet arrival to the speaker
+     */
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    public long getPacketsLost() {
+        return packetsLost;
+    }
+
+    /**
+     * Get the CPU time consumed by the whole process
+     */
+    public long getCpuTimeMillis() {
+        return cpuTimeMillis;
+    }
+}
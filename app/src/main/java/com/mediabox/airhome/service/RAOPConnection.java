@@ -1,19 +1,34 @@
 package com.mediabox.airhome.service;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.mediabox.airhome.audio.AudioHandler;
+import com.mediabox.airhome.audio.BufferedAudioReceiver;
+import com.mediabox.airhome.mirror.MirrorDisplay;
+import com.mediabox.airhome.mirror.MirrorStreamReceiver;
+import com.mediabox.airhome.pairing.EncryptedControlChannel;
+import com.mediabox.airhome.pairing.PairingSession;
+import com.mediabox.airhome.util.BinaryPlist;
+import com.mediabox.airhome.util.BinaryPlistWriter;
+import com.mediabox.airhome.util.Dmap;
+import com.mediabox.airhome.util.TimerWheel;
+import com.mediabox.airhome.util.TraceRing;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -29,21 +44,110 @@ public class RAOPConnection {
     private static final String OK = "200 OK";
     private static final String UNAUTHORIZED = "401 Unauthorized";
     private static final String NOT_IMPLEMENTED = "501 Not Implemented";
+    private static final String BAD_REQUEST = "400 Bad Request";
+    private static final String NOT_FOUND = "404 Not Found";
+    
+    // AirPlay 2 stream types
+    private static final int STREAM_TYPE_REALTIME = 96;
+    private static final int STREAM_TYPE_BUFFERED = 103;
+    private static final int STREAM_TYPE_MIRRORING = 110;
+    private static final int MIRROR_KEY_BYTES = 16;
+    
+    // Compression types ("ct") of a buffered stream. Only linear PCM can be
+    // played: the app has no AAC or ALAC decoder, so buffered AAC and ALAC
+    // streams, which is what senders usually ask for, are refused at SETUP
+    private static final int COMPRESSION_LPCM = 1;
+    private static final int COMPRESSION_ALAC = 2;
+    private static final int COMPRESSION_AAC = 4;
+    private static final int COMPRESSION_AAC_ELD = 8;
+    
+    private static final int DEFAULT_SAMPLE_RATE = 44100;
+    private static final String PAIRING_CONTENT_TYPE = "application/octet-stream";
+    
+    // Audio format line of the SDP in ANNOUNCE, e.g. "a=rtpmap:96 AppleLossless/44100"
+    private static final Pattern SDP_RTPMAP_PATTERN = Pattern.compile("a=rtpmap:(\\d+) ([\\w-]+)/(\\d+)");
+    
+    // ALAC parameters: frame length, compatible version, then bit depth
+    private static final Pattern SDP_ALAC_FMTP_PATTERN = Pattern.compile("a=fmtp:\\d+ \\d+ \\d+ (\\d+)");
+    
+    // Decoder parameters of a format, e.g. "a=fmtp:96 352 0 16 40 10 14 2 255 0 0 44100"
+    private static final Pattern SDP_FMTP_PATTERN = Pattern.compile("a=fmtp:(\\d+) ([^\\r\\n]*)");
+    
+    // Sequence number of the first packet to keep after a FLUSH
+    private static final Pattern RTP_INFO_SEQ_PATTERN = Pattern.compile("(?:^|;)\\s*seq=(\\d{1,9})");
+    
+    // Time spent handling SET_PARAMETER, across all connections
+    private static final AtomicLong setParameterCount = new AtomicLong();
+    private static final AtomicLong setParameterTotalNanos = new AtomicLong();
+    private static final AtomicLong setParameterMaxNanos = new AtomicLong();
     
     private final Socket clientSocket;
+    private final int connectionId;
     private final AudioHandler audioHandler;
-    private final Map<String, String> requestHeaders = new HashMap<>();
+    private final TimerWheel.Timeout idleTimeout;
+    private final SenderCache senderCache;
+    private final AdmissionControl admission;
+    private final AdmissionControl.Ticket ticket;
+    private final NowPlayingPublisher nowPlaying;
+    private final RtspRequestReader requestReader;
+    private final Map<String, String> requestHeaders;
+    
+    // A response with a body is assembled here and written in one go, so
+    // an encrypted channel seals it whole rather than headers and body apart
+    private final StringBuilder headerBuilder = new StringBuilder();
+    private final ByteArrayOutputStream responseBuffer = new ByteArrayOutputStream();
+    private OutputStream output;
     private String sessionId;
+    private BufferedAudioReceiver bufferedReceiver;
+    private MirrorStreamReceiver mirrorReceiver;
+    // Session key for mirroring, from the first SETUP's ekey
+    private byte[] mirrorSessionKey;
+    private boolean mirrorKeyWrapped;
+    private EncryptedControlChannel controlChannel;
+    private PairingSession pairingSession;
+    private String senderKey;
+    private SenderCache.Entry cachedSender;
+    private long connectedAt;
     
     /**
      * Create a new RAOP connection handler
      * 
      * @param clientSocket The client socket
+     * @param connectionId Numeric id used in the trace
      * @param audioHandler The audio handler to process audio data
+     * @param idleTimeout Reaper handle touched on every request, and by
+     *                    the audio session while it receives audio
+     * @param senderCache Formats negotiated with recently seen senders
+     * @param admission Admission control deciding whether sessions may start
+     * @param ticket This connection's admission, told about activity
+     * @param nowPlaying Publisher for track metadata, artwork and progress
      */
-    public RAOPConnection(Socket clientSocket, AudioHandler audioHandler) {
+    public RAOPConnection(Socket clientSocket, int connectionId, AudioHandler audioHandler,
+                          TimerWheel.Timeout idleTimeout, SenderCache senderCache,
+                          AdmissionControl admission, AdmissionControl.Ticket ticket,
+                          NowPlayingPublisher nowPlaying) {
         this.clientSocket = clientSocket;
+        this.connectionId = connectionId;
         this.audioHandler = audioHandler;
+        this.idleTimeout = idleTimeout;
+        this.senderCache = senderCache;
+        this.admission = admission;
+        this.ticket = ticket;
+        this.nowPlaying = nowPlaying;
+        requestReader = new RtspRequestReader(admission.getMaxRequestBodyBytes());
+        requestHeaders = requestReader.getHeaders();
+    }
+    
+    /**
+     * Get the average time spent handling a SET_PARAMETER, in microseconds
+     */
+    static long getSetParameterAverageMicros() {
+        long count = setParameterCount.get();
+        return count > 0 ? setParameterTotalNanos.get() / count / 1000 : 0;
+    }
+    
+    static long getSetParameterMaxMicros() {
+        return setParameterMaxNanos.get() / 1000;
     }
     
     /**
@@ -51,58 +155,76 @@ public class RAOPConnection {
      */
     public void process() {
         try (
-            BufferedReader reader = new BufferedReader(
-                new InputStreamReader(clientSocket.getInputStream()));
-            PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true)
+            InputStream rawInput = new BufferedInputStream(clientSocket.getInputStream());
+            OutputStream rawOutput = clientSocket.getOutputStream()
         ) {
-            String line;
+            // Plaintext until pairing completes, then encrypted frames
+            controlChannel = new EncryptedControlChannel(rawInput, rawOutput);
+            InputStream input = controlChannel.getInputStream();
+            OutputStream output = controlChannel.getOutputStream();
+            
+            // Responses are flushed whole so each one is sealed in as few frames as possible
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.US_ASCII));
+            this.output = output;
             
             while (isConnected()) {
-                // Read the request line
-                line = reader.readLine();
-                if (line == null) {
+                try {
+                    if (!requestReader.read(input)) {
+                        break;
+                    }
+                } catch (RtspRequestReader.RequestRejectedException e) {
+                    // The rest of the stream cannot be framed, so answer and hang up
+                    Log.w(TAG, "Rejecting request from " + getSenderName() + ": " + e.getMessage());
+                    sendResponse(writer, e.status, null);
                     break;
                 }
                 
-                // Parse the request
-                String[] requestParts = line.split(" ", 3);
-                if (requestParts.length < 3) {
-                    Log.e(TAG, "Invalid RTSP request: " + line);
-                    continue;
+                // Any request, including keep-alives, counts as activity
+                idleTimeout.touch();
+                ticket.touch();
+                if (sessionId != null) {
+                    audioHandler.touchAudioSession(sessionId);
                 }
                 
-                String method = requestParts[0];
-                String uri = requestParts[1];
+                String method = requestReader.getMethod();
+                String uri = requestReader.getUri();
+                byte[] body = requestReader.getBody();
                 
-                Log.d(TAG, "Received request: " + method + " " + uri);
-                
-                // Read headers
-                requestHeaders.clear();
-                while ((line = reader.readLine()) != null && !line.isEmpty()) {
-                    int colonPos = line.indexOf(':');
-                    if (colonPos > 0) {
-                        String key = line.substring(0, colonPos).trim();
-                        String value = line.substring(colonPos + 1).trim();
-                        requestHeaders.put(key, value);
-                    }
+                if (senderKey == null) {
+                    recognizeSender();
                 }
                 
+                TraceRing.record(TraceRing.RTSP_REQUEST, connectionId,
+                        TraceRing.rtspMethodIndex(method), getCSeq());
+                
                 // Handle the request based on the method
                 switch (method) {
                     case "OPTIONS":
                         handleOptions(writer);
                         break;
                     case "ANNOUNCE":
-                        handleAnnounce(reader, writer);
+                        handleAnnounce(writer, body);
                         break;
                     case "SETUP":
-                        handleSetup(writer, uri);
+                        if (BinaryPlist.CONTENT_TYPE.equals(requestHeaders.get("Content-Type"))) {
+                            handleBufferedSetup(writer, body);
+                        } else {
+                            handleSetup(writer, uri);
+                        }
                         break;
                     case "RECORD":
                         handleRecord(writer);
                         break;
                     case "SET_PARAMETER":
-                        handleSetParameter(reader, writer);
+                        long started = System.nanoTime();
+                        handleSetParameter(writer, body);
+                        recordSetParameterTime(System.nanoTime() - started);
+                        break;
+                    case "SETRATEANCHORTIME":
+                        handleSetRateAnchorTime(writer, body);
+                        break;
+                    case "FLUSHBUFFERED":
+                        handleFlushBuffered(writer, body);
                         break;
                     case "FLUSH":
                         handleFlush(writer);
@@ -113,6 +235,12 @@ public class RAOPConnection {
                     case "GET_PARAMETER":
                         handleGetParameter(writer);
                         break;
+                    case "GET":
+                        handleGet(writer, uri);
+                        break;
+                    case "POST":
+                        handlePost(writer, uri, body);
+                        break;
                     default:
                         sendResponse(writer, NOT_IMPLEMENTED, null);
                 }
@@ -120,6 +248,15 @@ public class RAOPConnection {
             
         } catch (IOException e) {
             Log.e(TAG, "Error processing RAOP connection", e);
+        } finally {
+            // The sender went away without a TEARDOWN, release its session
+            stopBufferedReceiver();
+            stopMirrorReceiver();
+            if (sessionId != null) {
+                audioHandler.stopAudioSession(sessionId);
+                sessionId = null;
+                nowPlaying.clear();
+            }
         }
     }
     
@@ -128,7 +265,8 @@ public class RAOPConnection {
      */
     private void handleOptions(PrintWriter writer) {
         Map<String, String> headers = new HashMap<>();
-        headers.put("Public", "ANNOUNCE, SETUP, RECORD, PAUSE, FLUSH, TEARDOWN, OPTIONS, GET_PARAMETER, SET_PARAMETER");
+        headers.put("Public", "ANNOUNCE, SETUP, RECORD, PAUSE, FLUSH, TEARDOWN, OPTIONS, GET_PARAMETER, SET_PARAMETER, "
+                + "SETRATEANCHORTIME, FLUSHBUFFERED");
         headers.put("Apple-Jack-Status", "connected; type=analog");
         
         sendResponse(writer, OK, headers);
@@ -137,22 +275,13 @@ public class RAOPConnection {
     /**
      * Handle ANNOUNCE request (session description)
      */
-    private void handleAnnounce(BufferedReader reader, PrintWriter writer) throws IOException {
-        // Read content length
-        int contentLength = getContentLength();
-        if (contentLength <= 0) {
-            sendResponse(writer, "400 Bad Request", null);
+    private void handleAnnounce(PrintWriter writer, byte[] body) {
+        if (body.length == 0) {
+            sendResponse(writer, BAD_REQUEST, null);
             return;
         }
         
-        // Read the SDP data
-        char[] sdpBuffer = new char[contentLength];
-        int read = reader.read(sdpBuffer, 0, contentLength);
-        if (read != contentLength) {
-            Log.w(TAG, "Incomplete SDP read: " + read + " of " + contentLength);
-        }
-        
-        String sdp = new String(sdpBuffer, 0, read);
+        String sdp = new String(body, StandardCharsets.UTF_8);
         
         // Parse SDP for audio format information
         // In a real implementation, you would extract codec, sample rate, etc.
@@ -187,6 +316,270 @@ public class RAOPConnection {
         sendResponse(writer, OK, responseHeaders);
     }
     
+    /**
+     * Handle an AirPlay 2 SETUP request carrying a binary plist. The first
+     * SETUP of a session has no streams; the second asks for a data stream,
+     * of which buffered audio (type 103) and screen mirroring (type 110)
+     * are supported here. Buffered audio is only accepted as linear PCM;
+     * a sender that will only send it as AAC or ALAC gets 501 and cannot
+     * use buffered playback with this receiver.
+     */
+    private void handleBufferedSetup(PrintWriter writer, byte[] body) throws IOException {
+        int streamType;
+        int sampleRate;
+        int compressionType;
+        int samplesPerFrame;
+        byte[] sharedKey = null;
+        long streamConnectionId = 0;
+        boolean hasStreams;
+        try {
+            BinaryPlist plist = new BinaryPlist(body, 0, body.length);
+            int streams = plist.dictValue(plist.root(), "streams");
+            hasStreams = streams >= 0 && plist.count(streams) > 0;
+            int stream = hasStreams ? plist.arrayElement(streams, 0) : -1;
+            streamType = hasStreams ? (int) plist.dictInt(stream, "type", STREAM_TYPE_REALTIME) : 0;
+            sampleRate = hasStreams ? (int) plist.dictInt(stream, "sr", DEFAULT_SAMPLE_RATE) : 0;
+            compressionType = hasStreams ? (int) plist.dictInt(stream, "ct", 0) : 0;
+            samplesPerFrame = hasStreams ? (int) plist.dictInt(stream, "spf", 0) : 0;
+            int keyRef = hasStreams ? plist.dictValue(stream, "shk") : -1;
+            if (keyRef >= 0) {
+                ByteBuffer key = plist.dataValue(keyRef);
+                sharedKey = new byte[key.remaining()];
+                key.get(sharedKey);
+            }
+            if (hasStreams) {
+                streamConnectionId = plist.dictInt(stream, "streamConnectionID", 0);
+            } else {
+                readMirrorSessionKey(plist);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Invalid SETUP plist", e);
+            sendResponse(writer, BAD_REQUEST, null);
+            return;
+        }
+        
+        if (sessionId == null) {
+            sessionId = UUID.randomUUID().toString();
+        }
+        
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Session", sessionId);
+        BinaryPlistWriter response = new BinaryPlistWriter();
+        
+        if (!hasStreams) {
+            // Session-level setup: we offer no separate event or timing channels
+            int[] keys = {response.writeString("eventPort"), response.writeString("timingPort")};
+            int[] values = {response.writeInt(0), response.writeInt(0)};
+            sendResponse(writer, OK, headers, BinaryPlist.CONTENT_TYPE,
+                    response.finish(response.writeDict(keys, values, keys.length)));
+            return;
+        }
+        
+        if (streamType == STREAM_TYPE_MIRRORING) {
+            handleMirrorSetup(writer, headers, response, streamConnectionId);
+            return;
+        }
+        if (streamType != STREAM_TYPE_BUFFERED) {
+            sendResponse(writer, NOT_IMPLEMENTED, null);
+            return;
+        }
+        if (compressionType != COMPRESSION_LPCM) {
+            // There is no decoder for them: compressed frames would be
+            // played as PCM noise, and the gap padding for lost packets
+            // only makes sense for PCM
+            Log.w(TAG, "Refusing buffered " + compressionName(compressionType) + " stream, "
+                    + samplesPerFrame + " samples per frame; no decoder, only PCM is supported");
+            sendResponse(writer, NOT_IMPLEMENTED, null);
+            return;
+        }
+        
+        // Buffered audio arrives on its own TCP connection
+        stopBufferedReceiver();
+        bufferedReceiver = new BufferedAudioReceiver(audioHandler, sessionId, sampleRate, sharedKey);
+        int dataPort = bufferedReceiver.start();
+        audioHandler.setAudioFormat("L16", sampleRate);
+        
+        int[] streamKeys = {
+                response.writeString("type"),
+                response.writeString("dataPort"),
+                response.writeString("controlPort"),
+                response.writeString("audioBufferSize")
+        };
+        int[] streamValues = {
+                response.writeInt(STREAM_TYPE_BUFFERED),
+                response.writeInt(dataPort),
+                response.writeInt(0),
+                response.writeInt(bufferedReceiver.getBufferSize())
+        };
+        int[] streamRefs = {response.writeDict(streamKeys, streamValues, streamKeys.length)};
+        int[] keys = {response.writeString("streams")};
+        int[] values = {response.writeArray(streamRefs, 1)};
+        
+        sendResponse(writer, OK, headers, BinaryPlist.CONTENT_TYPE,
+                response.finish(response.writeDict(keys, values, keys.length)));
+    }
+    
+    private static String compressionName(int compressionType) {
+        switch (compressionType) {
+            case COMPRESSION_LPCM:
+                return "PCM";
+            case COMPRESSION_ALAC:
+                return "ALAC";
+            case COMPRESSION_AAC:
+                return "AAC";
+            case COMPRESSION_AAC_ELD:
+                return "AAC-ELD";
+            default:
+                return "type " + compressionType;
+        }
+    }
+    
+    /**
+     * Remember the session key sent as "ekey" in the first SETUP. Only an
+     * unwrapped 16-byte key can be used; FairPlay-wrapped keys are not
+     * supported, and without a key the stream is taken as unencrypted.
+     */
+    private void readMirrorSessionKey(BinaryPlist plist) throws IOException {
+        mirrorSessionKey = null;
+        mirrorKeyWrapped = false;
+        int keyRef = plist.dictValue(plist.root(), "ekey");
+        if (keyRef < 0) {
+            return;
+        }
+        ByteBuffer key = plist.dataValue(keyRef);
+        if (key.remaining() == MIRROR_KEY_BYTES) {
+            mirrorSessionKey = new byte[MIRROR_KEY_BYTES];
+            key.get(mirrorSessionKey);
+        } else {
+            mirrorKeyWrapped = true;
+        }
+    }
+    
+    /**
+     * Set up a screen mirroring stream, which arrives on its own TCP
+     * connection
+     */
+    private void handleMirrorSetup(PrintWriter writer, Map<String, String> headers,
+            BinaryPlistWriter response, long streamConnectionId) throws IOException {
+        if (mirrorKeyWrapped) {
+            Log.w(TAG, "Screen mirroring with a FairPlay-wrapped key is not supported");
+            sendResponse(writer, NOT_IMPLEMENTED, null);
+            return;
+        }
+        
+        stopMirrorReceiver();
+        mirrorReceiver = new MirrorStreamReceiver(MirrorDisplay.createSink(), mirrorSessionKey,
+                streamConnectionId);
+        int dataPort = mirrorReceiver.start();
+        
+        int[] streamKeys = {response.writeString("type"), response.writeString("dataPort")};
+        int[] streamValues = {response.writeInt(STREAM_TYPE_MIRRORING), response.writeInt(dataPort)};
+        int[] streamRefs = {response.writeDict(streamKeys, streamValues, streamKeys.length)};
+        int[] keys = {response.writeString("streams")};
+        int[] values = {response.writeArray(streamRefs, 1)};
+        
+        sendResponse(writer, OK, headers, BinaryPlist.CONTENT_TYPE,
+                response.finish(response.writeDict(keys, values, keys.length)));
+    }
+    
+    /**
+     * Handle SETRATEANCHORTIME request (start, pause or re-anchor buffered playout)
+     */
+    private void handleSetRateAnchorTime(PrintWriter writer, byte[] body) {
+        if (bufferedReceiver == null) {
+            sendResponse(writer, BAD_REQUEST, null);
+            return;
+        }
+        
+        try {
+            BinaryPlist plist = new BinaryPlist(body, 0, body.length);
+            int root = plist.root();
+            float rate = (float) plist.dictReal(root, "rate", 0);
+            long rtpTime = plist.dictInt(root, "rtpTime", -1);
+            bufferedReceiver.setRateAnchor(rate, rtpTime);
+        } catch (IOException e) {
+            Log.e(TAG, "Invalid SETRATEANCHORTIME plist", e);
+            sendResponse(writer, BAD_REQUEST, null);
+            return;
+        }
+        
+        sendResponse(writer, OK, null);
+    }
+    
+    /**
+     * Handle FLUSHBUFFERED request (drop buffered audio before a sequence number)
+     */
+    private void handleFlushBuffered(PrintWriter writer, byte[] body) {
+        if (bufferedReceiver == null) {
+            sendResponse(writer, BAD_REQUEST, null);
+            return;
+        }
+        
+        int untilSeqNo = -1;
+        if (body.length > 0) {
+            try {
+                BinaryPlist plist = new BinaryPlist(body, 0, body.length);
+                untilSeqNo = (int) plist.dictInt(plist.root(), "flushUntilSeq", -1);
+            } catch (IOException e) {
+                Log.e(TAG, "Invalid FLUSHBUFFERED plist", e);
+            }
+        }
+        bufferedReceiver.flush(untilSeqNo);
+        
+        sendResponse(writer, OK, null);
+    }
+    
+    /**
+     * Handle GET request. Only /info, the AirPlay 2 capability probe, is served.
+     */
+    private void handleGet(PrintWriter writer, String uri) throws IOException {
+        if (!"/info".equals(uri)) {
+            sendResponse(writer, NOT_FOUND, null);
+            return;
+        }
+        
+        sendResponse(writer, OK, null, BinaryPlist.CONTENT_TYPE, InfoCache.get());
+    }
+    
+    /**
+     * Handle POST request. Serves pair-setup and pair-verify; once either
+     * completes, the rest of the connection is encrypted.
+     */
+    private void handlePost(PrintWriter writer, String uri, byte[] body) throws IOException {
+        if (pairingSession == null) {
+            pairingSession = new PairingSession(MDNSManager.getMacAddress());
+            if (cachedSender != null) {
+                pairingSession.setKnownController(cachedSender.controller);
+            }
+        }
+        
+        byte[] response;
+        try {
+            if ("/pair-setup".equals(uri)) {
+                response = pairingSession.handlePairSetup(body);
+            } else if ("/pair-verify".equals(uri)) {
+                response = pairingSession.handlePairVerify(body);
+            } else {
+                sendResponse(writer, NOT_FOUND, null);
+                return;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Invalid pairing request", e);
+            sendResponse(writer, BAD_REQUEST, null);
+            return;
+        }
+        
+        sendResponse(writer, OK, null, PAIRING_CONTENT_TYPE, response);
+        
+        if (pairingSession.isEstablished() && !controlChannel.isEncrypted()) {
+            controlChannel.enable(pairingSession.getReadKey(), pairingSession.getWriteKey());
+            Log.d(TAG, "Control channel encrypted");
+            if (pairingSession.getVerifiedController() != null) {
+                senderCache.rememberController(senderKey, pairingSession.getVerifiedController());
+            }
+        }
+    }
+    
     /**
      * Handle RECORD request (start streaming)
      */
@@ -196,11 +589,23 @@ public class RAOPConnection {
             return;
         }
         
+        // Refuse a new session past the limit rather than starve the others
+        if (!audioHandler.hasAudioSession(sessionId)
+                && !admission.admitSession(audioHandler.getActiveSessionCount())) {
+            Log.w(TAG, "Audio session limit reached, refusing RECORD from " + getSenderName());
+            sendResponse(writer, AdmissionControl.NOT_ENOUGH_BANDWIDTH, null);
+            return;
+        }
+        
         // Start audio streaming
-        audioHandler.startAudioSession(sessionId);
+        audioHandler.startAudioSession(sessionId, getSenderName(), idleTimeout,
+                connectedAt, cachedSender != null && cachedSender.hasFormat());
+        ticket.setHasSession(true);
+        nowPlaying.setPlaying(true);
         
         Map<String, String> headers = new HashMap<>();
-        headers.put("Audio-Latency", "0");
+        // Report how much later than usual a remote output will play
+        headers.put("Audio-Latency", String.valueOf(audioHandler.getSinkLatencyFrames()));
         
         sendResponse(writer, OK, headers);
     }
@@ -208,40 +613,32 @@ public class RAOPConnection {
     /**
      * Handle SET_PARAMETER request (metadata, volume, etc.)
      */
-    private void handleSetParameter(BufferedReader reader, PrintWriter writer) throws IOException {
+    private void handleSetParameter(PrintWriter writer, byte[] body) {
         String contentType = requestHeaders.get("Content-Type");
-        int contentLength = getContentLength();
         
-        if (contentType == null || contentLength <= 0) {
+        if (contentType == null || body.length == 0) {
             sendResponse(writer, OK, null);
             return;
         }
         
-        // Read the parameter content
-        char[] buffer = new char[contentLength];
-        int read = reader.read(buffer, 0, contentLength);
-        if (read != contentLength) {
-            Log.w(TAG, "Incomplete parameter data read: " + read + " of " + contentLength);
-        }
-        
-        String content = new String(buffer, 0, read);
-        
         // Handle different parameter types
         if (contentType.equalsIgnoreCase("text/parameters")) {
-            handleTextParameters(content);
+            handleTextParameters(new String(body, StandardCharsets.UTF_8));
         } else if (contentType.equalsIgnoreCase("image/jpeg")) {
             // Handle cover art
-            handleCoverArt(content.getBytes());
-        } else if (contentType.equalsIgnoreCase("application/x-dmap-tagged")) {
+            handleCoverArt(body);
+        } else if (contentType.equalsIgnoreCase(Dmap.CONTENT_TYPE)) {
             // Handle metadata
-            handleMetadata(content.getBytes());
+            handleMetadata(body);
         }
         
         sendResponse(writer, OK, null);
     }
     
     /**
-     * Handle FLUSH request (clear buffers)
+     * Handle FLUSH request (clear buffers). With an RTP-Info header, only
+     * audio before the given sequence number is dropped and the output
+     * keeps running for the sender's new position.
      */
     private void handleFlush(PrintWriter writer) {
         if (sessionId == null) {
@@ -249,8 +646,13 @@ public class RAOPConnection {
             return;
         }
         
-        // Flush audio buffer
-        audioHandler.flushAudioBuffer(sessionId);
+        String rtpInfo = requestHeaders.get("RTP-Info");
+        Matcher matcher = rtpInfo != null ? RTP_INFO_SEQ_PATTERN.matcher(rtpInfo) : null;
+        if (matcher != null && matcher.find()) {
+            audioHandler.flushAudioBuffer(sessionId, Integer.parseInt(matcher.group(1)) & 0xFFFF);
+        } else {
+            audioHandler.flushAudioBuffer(sessionId);
+        }
         
         sendResponse(writer, OK, null);
     }
@@ -265,8 +667,12 @@ public class RAOPConnection {
         }
         
         // Stop audio streaming
+        stopBufferedReceiver();
+        stopMirrorReceiver();
         audioHandler.stopAudioSession(sessionId);
         sessionId = null;
+        ticket.setHasSession(false);
+        nowPlaying.clear();
         
         sendResponse(writer, OK, null);
     }
@@ -283,33 +689,96 @@ public class RAOPConnection {
      * Send an RTSP response
      */
     private void sendResponse(PrintWriter writer, String status, Map<String, String> headers) {
-        writer.println("RTSP/1.0 " + status);
-        writer.println("CSeq: " + requestHeaders.getOrDefault("CSeq", "1"));
-        writer.println("Server: AirHome/1.0");
+        writer.print(formatHeaders(status, headers));
+        writer.flush();
+    }
+    
+    /**
+     * Send an RTSP response with a body
+     */
+    private void sendResponse(PrintWriter writer, String status, Map<String, String> headers,
+                              String contentType, byte[] body) throws IOException {
+        Map<String, String> allHeaders = headers != null ? headers : new HashMap<String, String>();
+        allHeaders.put("Content-Type", contentType);
+        allHeaders.put("Content-Length", String.valueOf(body.length));
         
+        String head = formatHeaders(status, allHeaders);
+        responseBuffer.reset();
+        for (int i = 0; i < head.length(); i++) {
+            responseBuffer.write(head.charAt(i));
+        }
+        responseBuffer.write(body, 0, body.length);
+        responseBuffer.writeTo(output);
+        output.flush();
+    }
+    
+    /**
+     * Format the status line and headers of a response, up to and
+     * including the blank line
+     */
+    private String formatHeaders(String status, Map<String, String> headers) {
+        headerBuilder.setLength(0);
+        headerBuilder.append("RTSP/1.0 ").append(status).append("\r\n");
+        headerBuilder.append("CSeq: ").append(requestHeaders.getOrDefault("CSeq", "1")).append("\r\n");
+        headerBuilder.append("Server: AirHome/1.0\r\n");
         if (headers != null) {
             for (Map.Entry<String, String> entry : headers.entrySet()) {
-                writer.println(entry.getKey() + ": " + entry.getValue());
+                headerBuilder.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
             }
         }
-        
-        writer.println();
-        writer.flush();
+        headerBuilder.append("\r\n");
+        return headerBuilder.toString();
+    }
+    
+    /**
+     * Stop the buffered audio receiver, if one was set up
+     */
+    private void stopBufferedReceiver() {
+        if (bufferedReceiver != null) {
+            bufferedReceiver.stop();
+            bufferedReceiver = null;
+        }
     }
     
     /**
-     * Get the content length from headers
+     * Stop the screen mirroring receiver, if one was set up
      */
-    private int getContentLength() {
-        String contentLengthStr = requestHeaders.get("Content-Length");
-        if (contentLengthStr != null) {
+    private void stopMirrorReceiver() {
+        if (mirrorReceiver != null) {
+            Log.i(TAG, "Mirroring stopped after " + mirrorReceiver.getFramesReceived() + " frames at "
+                    + mirrorReceiver.getFramesPerSecond() + " fps");
+            mirrorReceiver.stop();
+            mirrorReceiver = null;
+        }
+    }
+    
+    /**
+     * Get a display name for the sender from the request headers
+     */
+    private String getSenderName() {
+        String name = requestHeaders.get("X-Apple-Client-Name");
+        if (name == null) {
+            name = requestHeaders.get("User-Agent");
+        }
+        if (name == null) {
+            name = clientSocket.getInetAddress().getHostAddress();
+        }
+        return name;
+    }
+    
+    /**
+     * Get the CSeq header as a number for the trace, or -1 if missing
+     */
+    private long getCSeq() {
+        String cseq = requestHeaders.get("CSeq");
+        if (cseq != null) {
             try {
-                return Integer.parseInt(contentLengthStr);
+                return Long.parseLong(cseq);
             } catch (NumberFormatException e) {
-                Log.e(TAG, "Invalid Content-Length header: " + contentLengthStr);
+                // Fall through
             }
         }
-        return 0;
+        return -1;
     }
     
     /**
@@ -319,16 +788,57 @@ public class RAOPConnection {
         // This is a simplified version - real implementation would be more complex
         
         // Example: Extract audio format
-        Pattern formatPattern = Pattern.compile("a=rtpmap:(\\d+) ([\\w-]+)/(\\d+)");
-        Matcher matcher = formatPattern.matcher(sdp);
+        Matcher matcher = SDP_RTPMAP_PATTERN.matcher(sdp);
         
         if (matcher.find()) {
             String formatId = matcher.group(1);
             String codec = matcher.group(2);
-            String sampleRate = matcher.group(3);
+            int sampleRate = Integer.parseInt(matcher.group(3));
             
-            Log.d(TAG, "Audio format: " + codec + " at " + sampleRate + "Hz");
-            audioHandler.setAudioFormat(codec, Integer.parseInt(sampleRate));
+            // Linear PCM names its depth; ALAC carries it in fmtp
+            int bitDepth = 16;
+            if ("L24".equals(codec)) {
+                bitDepth = 24;
+            } else if ("AppleLossless".equals(codec)) {
+                Matcher fmtp = SDP_ALAC_FMTP_PATTERN.matcher(sdp);
+                if (fmtp.find()) {
+                    bitDepth = Integer.parseInt(fmtp.group(1));
+                }
+            }
+            
+            String formatParameters = null;
+            Matcher parameters = SDP_FMTP_PATTERN.matcher(sdp);
+            while (parameters.find()) {
+                if (parameters.group(1).equals(formatId)) {
+                    formatParameters = parameters.group(2).trim();
+                    break;
+                }
+            }
+            
+            audioHandler.setAudioFormat(codec, sampleRate, bitDepth);
+            senderCache.remember(senderKey, codec, sampleRate, bitDepth, formatParameters);
+        }
+    }
+    
+    /**
+     * Identify the sender from the first request and, if it connected
+     * recently, apply its last format and warm up the output right away.
+     * Its last verified controller is kept for pair-verify.
+     */
+    private void recognizeSender() {
+        connectedAt = SystemClock.elapsedRealtime();
+        senderKey = SenderCache.identify(requestHeaders.get("DACP-ID"), requestHeaders.get("Active-Remote"),
+                clientSocket.getInetAddress().getHostAddress());
+        
+        cachedSender = senderCache.lookup(senderKey);
+        if (cachedSender == null) {
+            TraceRing.record(TraceRing.SENDER_RECOGNIZED, connectionId, 0, 0);
+            return;
+        }
+        TraceRing.record(TraceRing.SENDER_RECOGNIZED, connectionId, 1, cachedSender.sampleRate);
+        if (cachedSender.hasFormat()) {
+            audioHandler.setAudioFormat(cachedSender.codec, cachedSender.sampleRate, cachedSender.bitDepth);
+            audioHandler.prewarmOutput();
         }
     }
     
@@ -340,28 +850,64 @@ public class RAOPConnection {
         if (content.startsWith("volume:")) {
             try {
                 float volume = Float.parseFloat(content.substring(7));
-                audioHandler.setVolume(volume);
+                audioHandler.setSessionVolume(sessionId, volume);
             } catch (NumberFormatException e) {
                 Log.e(TAG, "Invalid volume parameter: " + content);
             }
+        } else if (content.startsWith("progress:")) {
+            handleProgress(content.substring(9).trim());
         }
     }
     
+    /**
+     * Handle playback progress, given as start/current/end RTP timestamps
+     */
+    private void handleProgress(String progress) {
+        String[] parts = progress.split("/");
+        if (parts.length != 3) {
+            Log.e(TAG, "Invalid progress parameter: " + progress);
+            return;
+        }
+        try {
+            long start = Long.parseLong(parts[0].trim());
+            long current = Long.parseLong(parts[1].trim());
+            long end = Long.parseLong(parts[2].trim());
+            int rate = audioHandler.getSampleRate();
+            // RTP timestamps are unsigned 32-bit and may wrap
+            long position = ((current - start) & 0xFFFFFFFFL) * 1000 / rate;
+            long duration = ((end - start) & 0xFFFFFFFFL) * 1000 / rate;
+            nowPlaying.setProgress(position, duration);
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Invalid progress parameter: " + progress);
+        }
+    }
+    
+    private static void recordSetParameterTime(long nanos) {
+        setParameterCount.incrementAndGet();
+        setParameterTotalNanos.addAndGet(nanos);
+        long max;
+        do {
+            max = setParameterMaxNanos.get();
+        } while (nanos > max && !setParameterMaxNanos.compareAndSet(max, nanos));
+    }
+    
     /**
      * Handle cover art from the client
      */
     private void handleCoverArt(byte[] imageData) {
         // Process album artwork
         audioHandler.updateCoverArt(imageData);
+        nowPlaying.setArtwork(imageData);
     }
     
     /**
      * Handle metadata from the client
      */
     private void handleMetadata(byte[] metadataBytes) {
-        // Process metadata - in a real app, you'd parse the DMAP format
-        // This is complex and would require a DMAP parser
-        Log.d(TAG, "Received metadata (" + metadataBytes.length + " bytes)");
+        nowPlaying.setMetadata(Dmap.findString(metadataBytes, "minm"),
+                Dmap.findString(metadataBytes, "asar"),
+                Dmap.findString(metadataBytes, "asal"),
+                Dmap.findInteger(metadataBytes, "astm", 0));
     }
     
     /**
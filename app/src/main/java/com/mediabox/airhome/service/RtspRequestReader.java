@@ -0,0 +1,192 @@
+package com.mediabox.airhome.service;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads RTSP requests from a control connection: the request line,
+ * headers and body.
+ *
+ * Nothing a sender sends can make it buffer without limit. A line longer
+ * than {@link #MAX_LINE_LENGTH} or headers longer than
+ * {@link #MAX_HEADER_BYTES} in all fail with {@code 400 Bad Request}, and
+ * a body over the configured limit with {@code 413 Request Entity Too
+ * Large}, both before anything more is read. The connection is closed
+ * after either, as the rest of the stream can no longer be framed.
+ */
+class RtspRequestReader {
+    private static final String TAG = "RtspRequestReader";
+
+    static final String BAD_REQUEST = "400 Bad Request";
+    static final String REQUEST_TOO_LARGE = "413 Request Entity Too Large";
+
+    // Longest request or header line
+    static final int MAX_LINE_LENGTH = 8 * 1024;
+
+    // Most header bytes in one request, terminators included
+    static final int MAX_HEADER_BYTES = 64 * 1024;
+
+    private static final byte[] EMPTY_BODY = new byte[0];
+
+    /**
+     * A request refused before it was read in full, with the status to
+     * answer it with before closing the connection
+     */
+    static final class RequestRejectedException extends IOException {
+        final String status;
+
+        RequestRejectedException(String status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private final int maxBodyBytes;
+    private final Map<String, String> headers = new HashMap<>();
+    private final StringBuilder lineBuilder = new StringBuilder();
+    private String method;
+    private String uri;
+    private byte[] body = EMPTY_BODY;
+
+    /**
+     * @param maxBodyBytes Largest body accepted
+     */
+    RtspRequestReader(int maxBodyBytes) {
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    /**
+     * Read the next request, skipping lines that are not a request line
+     *
+     * @return False at end of stream
+     * @throws RequestRejectedException If the request is over a limit or
+     *         its length cannot be read
+     */
+    boolean read(InputStream input) throws IOException {
+        String line;
+        int methodEnd;
+        int uriEnd;
+        do {
+            line = readLine(input);
+            if (line == null) {
+                return false;
+            }
+            // Method, URI and protocol
+            methodEnd = line.indexOf(' ');
+            uriEnd = methodEnd > 0 ? line.indexOf(' ', methodEnd + 1) : -1;
+            if (uriEnd < 0) {
+                Log.e(TAG, "Invalid RTSP request: " + line);
+            }
+        } while (uriEnd < 0);
+
+        method = line.substring(0, methodEnd);
+        uri = line.substring(methodEnd + 1, uriEnd);
+
+        headers.clear();
+        int headerBytes = 0;
+        while ((line = readLine(input)) != null && !line.isEmpty()) {
+            headerBytes += line.length() + 2;
+            if (headerBytes > MAX_HEADER_BYTES) {
+                throw new RequestRejectedException(BAD_REQUEST, "Headers longer than " + MAX_HEADER_BYTES + " bytes");
+            }
+            int colonPos = line.indexOf(':');
+            if (colonPos > 0) {
+                String key = line.substring(0, colonPos).trim();
+                String value = line.substring(colonPos + 1).trim();
+                headers.put(key, value);
+            }
+        }
+
+        // Bodies are read as raw bytes; some of them are binary plists
+        body = readBody(input, getContentLength());
+        return true;
+    }
+
+    String getMethod() {
+        return method;
+    }
+
+    String getUri() {
+        return uri;
+    }
+
+    /**
+     * Get the headers of the last request. The map is reused for the next.
+     */
+    Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Read a CRLF or LF terminated header line as ASCII
+     *
+     * @return The line without its terminator, or null at end of stream
+     */
+    private String readLine(InputStream input) throws IOException {
+        lineBuilder.setLength(0);
+        int c;
+        while ((c = input.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                if (lineBuilder.length() >= MAX_LINE_LENGTH) {
+                    throw new RequestRejectedException(BAD_REQUEST, "Line longer than " + MAX_LINE_LENGTH + " bytes");
+                }
+                lineBuilder.append((char) c);
+            }
+        }
+
+        if (c == -1 && lineBuilder.length() == 0) {
+            return null;
+        }
+        return lineBuilder.toString();
+    }
+
+    /**
+     * Read a request body of the given length
+     */
+    private byte[] readBody(InputStream input, int length) throws IOException {
+        if (length <= 0) {
+            return EMPTY_BODY;
+        }
+
+        byte[] body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int count = input.read(body, read, length - read);
+            if (count < 0) {
+                throw new EOFException("Incomplete body: " + read + " of " + length);
+            }
+            read += count;
+        }
+        return body;
+    }
+
+    /**
+     * Get the content length from headers, checked against the limit
+     */
+    private int getContentLength() throws RequestRejectedException {
+        String contentLengthStr = headers.get("Content-Length");
+        if (contentLengthStr == null) {
+            return 0;
+        }
+        long length;
+        try {
+            length = Long.parseLong(contentLengthStr);
+        } catch (NumberFormatException e) {
+            throw new RequestRejectedException(BAD_REQUEST, "Invalid Content-Length header: " + contentLengthStr);
+        }
+        if (length > maxBodyBytes) {
+            throw new RequestRejectedException(REQUEST_TOO_LARGE,
+                    "Body of " + length + " bytes over the limit of " + maxBodyBytes);
+        }
+        return (int) Math.max(0, length);
+    }
+}
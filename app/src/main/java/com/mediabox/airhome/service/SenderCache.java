@@ -0,0 +1,153 @@
+package com.mediabox.airhome.service;
+
+import android.os.SystemClock;
+
+import com.mediabox.airhome.pairing.PairingSession;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Small LRU cache of what was negotiated with recently seen senders.
+ *
+ * Senders reconnect often (every time a phone wakes or the user picks a
+ * different track source), and almost always with the same format and
+ * pairing. A hit lets the connection apply the format and warm up the
+ * output as soon as the sender is recognized, instead of waiting for
+ * ANNOUNCE and RECORD, and lets pair-verify use the controller key it
+ * checked last time. Entries expire after a fixed time so stale formats
+ * are not reused.
+ */
+public class SenderCache {
+    static final int MAX_ENTRIES = 16;
+    static final long ENTRY_TTL_MS = 30 * 60 * 1000;
+
+    /**
+     * What we remember about one sender
+     */
+    public static final class Entry {
+        // Format, or a null codec if the sender has only paired so far
+        public final String codec;
+        public final int sampleRate;
+        public final int bitDepth;
+        // Decoder configuration: the fmtp parameters sent with the format, or null
+        public final String formatParameters;
+        // Controller that last completed pair-verify from this sender, or null
+        public final PairingSession.VerifiedController controller;
+        private final long storedAt;
+
+        Entry(String codec, int sampleRate, int bitDepth, String formatParameters,
+              PairingSession.VerifiedController controller, long storedAt) {
+            this.codec = codec;
+            this.sampleRate = sampleRate;
+            this.bitDepth = bitDepth;
+            this.formatParameters = formatParameters;
+            this.controller = controller;
+            this.storedAt = storedAt;
+        }
+
+        public boolean hasFormat() {
+            return codec != null;
+        }
+    }
+
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(MAX_ENTRIES, 0.75f, true);
+
+    private int hits;
+    private int misses;
+
+    /**
+     * Get the key a sender is cached under: its DACP-ID, else its
+     * Active-Remote, else its address
+     */
+    static String identify(String dacpId, String activeRemote, String address) {
+        if (dacpId != null) {
+            return dacpId;
+        }
+        return activeRemote != null ? activeRemote : address;
+    }
+
+    /**
+     * Look up a sender, counting the result as a hit or a miss
+     *
+     * @param key Sender identity (DACP-ID, Active-Remote or address)
+     * @return The cached entry, or null if unknown or expired
+     */
+    public Entry lookup(String key) {
+        return lookup(key, SystemClock.elapsedRealtime());
+    }
+
+    synchronized Entry lookup(String key, long now) {
+        Entry entry = entries.get(key);
+        if (entry != null && now - entry.storedAt > ENTRY_TTL_MS) {
+            entries.remove(key);
+            entry = null;
+        }
+
+        if (entry != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return entry;
+    }
+
+    /**
+     * Remember the format negotiated with a sender, keeping its controller
+     *
+     * @param formatParameters The fmtp parameters of the format, or null
+     */
+    public void remember(String key, String codec, int sampleRate, int bitDepth, String formatParameters) {
+        remember(key, codec, sampleRate, bitDepth, formatParameters, SystemClock.elapsedRealtime());
+    }
+
+    synchronized void remember(String key, String codec, int sampleRate, int bitDepth,
+                               String formatParameters, long now) {
+        Entry previous = entries.get(key);
+        put(key, new Entry(codec, sampleRate, bitDepth, formatParameters,
+                previous != null ? previous.controller : null, now), now);
+    }
+
+    /**
+     * Remember the controller that completed pair-verify from a sender,
+     * keeping its format
+     */
+    public void rememberController(String key, PairingSession.VerifiedController controller) {
+        rememberController(key, controller, SystemClock.elapsedRealtime());
+    }
+
+    synchronized void rememberController(String key, PairingSession.VerifiedController controller, long now) {
+        Entry previous = entries.get(key);
+        put(key, previous != null
+                ? new Entry(previous.codec, previous.sampleRate, previous.bitDepth,
+                        previous.formatParameters, controller, now)
+                : new Entry(null, 0, 0, null, controller, now), now);
+    }
+
+    private void put(String key, Entry entry, long now) {
+        entries.put(key, entry);
+
+        // Drop expired entries, then the least recently used beyond the limit
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry next = iterator.next().getValue();
+            if (entries.size() > MAX_ENTRIES || now - next.storedAt > ENTRY_TTL_MS) {
+                iterator.remove();
+            }
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized int getHitCount() {
+        return hits;
+    }
+
+    public synchronized int getMissCount() {
+        return misses;
+    }
+}
@@ -0,0 +1,130 @@
+package com.mediabox.airhome.service;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.mediabox.airhome.audio.AudioHandler;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Publishes {@link PlaybackStats} to listeners on the main thread.
+ *
+ * Audio and RTSP threads only mark the stats dirty. The first change after a
+ * publish schedules one snapshot for the next frame slot, so any number of
+ * changes in between are coalesced and listeners see at most one update per
+ * frame. A slow heartbeat keeps values such as CPU time moving while idle.
+ */
+public class StatsPublisher implements AudioHandler.StatsChangeListener {
+    private static final long FRAME_INTERVAL_MS = 16;
+    private static final long HEARTBEAT_INTERVAL_MS = 1000;
+
+    /**
+     * Receives stats updates on the main thread
+     */
+    public interface StatsListener {
+        void onStatsUpdated(PlaybackStats stats);
+    }
+
+    private final AudioHandler audioHandler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<StatsListener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+    private final Runnable publishRunnable = this::publish;
+    private final Runnable heartbeatRunnable = this::heartbeat;
+
+    private volatile long lastPublishTime;
+    private volatile boolean running;
+
+    public StatsPublisher(AudioHandler audioHandler) {
+        this.audioHandler = audioHandler;
+    }
+
+    /**
+     * Mark the service as running or stopped and publish immediately
+     */
+    public void setRunning(boolean running) {
+        this.running = running;
+        onStatsChanged();
+    }
+
+    public void addListener(StatsListener listener) {
+        listeners.add(listener);
+        listener.onStatsUpdated(snapshot());
+
+        if (listeners.size() == 1) {
+            mainHandler.postDelayed(heartbeatRunnable, HEARTBEAT_INTERVAL_MS);
+        }
+    }
+
+    public void removeListener(StatsListener listener) {
+        listeners.remove(listener);
+
+        if (listeners.isEmpty()) {
+            mainHandler.removeCallbacks(heartbeatRunnable);
+        }
+    }
+
+    /**
+     * Deliver a final snapshot and drop every listener. Must be called on
+     * the main thread.
+     */
+    public void shutdown() {
+        running = false;
+        mainHandler.removeCallbacks(publishRunnable);
+        mainHandler.removeCallbacks(heartbeatRunnable);
+
+        PlaybackStats stats = PlaybackStats.stopped();
+        for (StatsListener listener : listeners) {
+            listener.onStatsUpdated(stats);
+        }
+        listeners.clear();
+    }
+
+    @Override
+    public void onStatsChanged() {
+        if (listeners.isEmpty() || !dirty.compareAndSet(false, true)) {
+            return;
+        }
+
+        long delay = lastPublishTime + FRAME_INTERVAL_MS - SystemClock.uptimeMillis();
+        mainHandler.postDelayed(publishRunnable, Math.max(0, delay));
+    }
+
+    private void publish() {
+        dirty.set(false);
+        lastPublishTime = SystemClock.uptimeMillis();
+
+        PlaybackStats stats = snapshot();
+        for (StatsListener listener : listeners) {
+            listener.onStatsUpdated(stats);
+        }
+    }
+
+    private void heartbeat() {
+        onStatsChanged();
+        if (!listeners.isEmpty()) {
+            mainHandler.postDelayed(heartbeatRunnable, HEARTBEAT_INTERVAL_MS);
+        }
+    }
+
+    private PlaybackStats snapshot() {
+        if (!running) {
+            return PlaybackStats.stopped();
+        }
+        return new PlaybackStats(
+                true,
+                audioHandler.getActiveSessionCount(),
+                audioHandler.getActiveSenderName(),
+                audioHandler.getCodec(),
+                audioHandler.getSampleRate(),
+                audioHandler.getBufferedMillis(),
+                audioHandler.getLatencyMillis(),
+                audioHandler.getPacketsLost(),
+                Process.getElapsedCpuTime());
+    }
+}
@@ -0,0 +1,484 @@
+package com.mediabox.airhome.sync;
+
+import android.media.AudioFormat;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.util.Log;
+
+import com.mediabox.airhome.audio.AudioHandler;
+import com.mediabox.airhome.util.ThreadPolicy;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Follower side of multi-room playback.
+ *
+ * Keeps an estimate of the leader's clock from request/reply exchanges,
+ * taking the offset from whichever recent exchange had the shortest round
+ * trip since that one was least disturbed by queuing. Audio from the
+ * leader is queued and written to a dedicated output track; before each
+ * packet the follower works out when its speaker will actually play the
+ * next frame, from the track timestamp, and drops or pads frames so the
+ * packet starts at the leader's playout time. The remaining error is
+ * reported back to the leader as skew.
+ *
+ * A sequence number far from the last one, or any after a pause, means
+ * the leader restarted and began counting again; it is taken as a new
+ * stream rather than dropped as late.
+ */
+public class RoomSyncFollower {
+    private static final String TAG = "RoomSyncFollower";
+
+    private static final long HELLO_INTERVAL_MS = 1000;
+    private static final long CLOCK_INTERVAL_MS = 250;
+
+    // Clock offset is taken from the best of this many recent exchanges
+    private static final int CLOCK_SAMPLES = 16;
+
+    // Packets buffered between the receive and playout threads
+    private static final int QUEUE_PACKETS = 256;
+
+    // Corrections are only made for errors larger than this
+    private static final long TOLERANCE_NANOS = 2_000_000L;
+
+    // Packets further ahead than this are held back instead of padded
+    private static final long MAX_LEAD_NANOS = 1_000_000_000L;
+
+    // Skew reported to the leader is smoothed over roughly this many packets
+    private static final int SKEW_SMOOTHING = 32;
+
+    // A sequence jump larger than this either way, about 0.5 s of audio,
+    // is a restarted leader rather than reordering or loss
+    private static final int MAX_SEQ_JUMP = 64;
+
+    // Audio after this long without any starts a new stream whatever its
+    // sequence number
+    private static final long STREAM_IDLE_NANOS = 1_000_000_000L;
+
+    /**
+     * Where the audio is played: the platform's output track, or a
+     * simulated one when tests run followers side by side
+     */
+    interface Output {
+        /**
+         * Get ready to play at the given rate
+         *
+         * @return False if no output is available
+         */
+        boolean open(int sampleRate);
+
+        /**
+         * Write 16-bit stereo PCM, returning the number of bytes taken
+         */
+        int write(byte[] data, int offset, int length);
+
+        /**
+         * Estimate when the next frame written will reach the speaker, on
+         * the {@link System#nanoTime()} clock
+         */
+        long nextFramePlaysAt();
+
+        void release();
+    }
+
+    /**
+     * Output through a dedicated AudioTrack
+     */
+    private static final class TrackOutput implements Output {
+        private final AudioTimestamp timestamp = new AudioTimestamp();
+        private AudioTrack audioTrack;
+        private int trackSampleRate;
+        private long framesWritten;
+
+        @Override
+        public boolean open(int sampleRate) {
+            if (audioTrack != null && trackSampleRate == sampleRate) {
+                return true;
+            }
+            release();
+
+            audioTrack = AudioHandler.createOutputTrack(sampleRate, AudioFormat.ENCODING_PCM_16BIT);
+            if (audioTrack == null) {
+                return false;
+            }
+            trackSampleRate = sampleRate;
+            framesWritten = 0;
+            audioTrack.play();
+            return true;
+        }
+
+        @Override
+        public int write(byte[] data, int offset, int length) {
+            int written = audioTrack.write(data, offset, length);
+            if (written > 0) {
+                framesWritten += written / RoomSyncProtocol.BYTES_PER_FRAME;
+            }
+            return written;
+        }
+
+        @Override
+        public long nextFramePlaysAt() {
+            return AudioHandler.getPresentationNanos(audioTrack, timestamp, framesWritten, trackSampleRate);
+        }
+
+        @Override
+        public void release() {
+            if (audioTrack != null) {
+                audioTrack.release();
+                audioTrack = null;
+            }
+        }
+    }
+
+    /**
+     * A queued datagram, recycled through the pool
+     */
+    private static final class Packet {
+        final byte[] data = new byte[RoomSyncProtocol.MAX_PACKET_BYTES];
+        int length;
+    }
+
+    private final String leaderHost;
+    private final int leaderPort;
+    private final Output output;
+    private final ArrayDeque<Packet> queue = new ArrayDeque<>(QUEUE_PACKETS);
+    private final ArrayDeque<Packet> pool = new ArrayDeque<>(QUEUE_PACKETS);
+
+    private DatagramSocket socket;
+    private Thread receiveThread;
+    private Thread controlThread;
+    private Thread playoutThread;
+    private volatile boolean isRunning;
+
+    // Clock estimate: leader time minus our time
+    private final long[] sampleOffsets = new long[CLOCK_SAMPLES];
+    private final long[] sampleRoundTrips = new long[CLOCK_SAMPLES];
+    private int sampleCount;
+    private volatile long clockOffsetNanos;
+    private volatile long clockRoundTripNanos = -1;
+
+    // Playout state, owned by the playout thread
+    private int lastSeq;
+    private boolean hasLastSeq;
+    private long lastPacketNanos;
+    private final AtomicInteger streamRestarts = new AtomicInteger();
+    private final byte[] silence = new byte[RoomSyncProtocol.MAX_AUDIO_FRAMES * RoomSyncProtocol.BYTES_PER_FRAME];
+
+    private float smoothedSkewMicros;
+    private volatile int skewMicros;
+    private final AtomicInteger packetsLost = new AtomicInteger();
+
+    /**
+     * Create a follower of the leader at the given address
+     *
+     * @param leaderHost Host name or address of the leader
+     */
+    public RoomSyncFollower(String leaderHost) {
+        this(leaderHost, RoomSyncProtocol.LEADER_PORT, new TrackOutput());
+    }
+
+    /**
+     * Create a follower of a leader on any port, playing to the given
+     * output, as tests run several on one host
+     */
+    RoomSyncFollower(String leaderHost, int leaderPort, Output output) {
+        this.leaderHost = leaderHost;
+        this.leaderPort = leaderPort;
+        this.output = output;
+        for (int i = 0; i < QUEUE_PACKETS; i++) {
+            pool.add(new Packet());
+        }
+    }
+
+    /**
+     * Start following. The leader address is resolved on the control thread.
+     */
+    public void start() throws IOException {
+        socket = new DatagramSocket();
+        isRunning = true;
+
+        receiveThread = ThreadPolicy.newThread(ThreadPolicy.Stage.AUDIO_RECEIVE, "RoomSyncReceive", this::receiveLoop);
+        controlThread = ThreadPolicy.newThread(ThreadPolicy.Stage.CONTROL, "RoomSyncControl", this::controlLoop);
+        playoutThread = ThreadPolicy.newThread(ThreadPolicy.Stage.PLAYBACK, "RoomSyncPlayout", this::playoutLoop);
+        receiveThread.start();
+        controlThread.start();
+        playoutThread.start();
+    }
+
+    public void stop() {
+        isRunning = false;
+        if (socket != null) {
+            socket.close();
+        }
+        for (Thread thread : new Thread[] {receiveThread, controlThread, playoutThread}) {
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+        receiveThread = null;
+        controlThread = null;
+        playoutThread = null;
+    }
+
+    /**
+     * Get the smoothed difference between when audio should have played and
+     * when it did, in microseconds
+     */
+    public int getSkewMicros() {
+        return skewMicros;
+    }
+
+    /**
+     * Get how many times the leader's sequence started over
+     */
+    int getStreamRestarts() {
+        return streamRestarts.get();
+    }
+
+    /**
+     * Print the clock estimate and playout skew
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("Room sync follower of " + leaderHost);
+        writer.println("  Clock offset " + clockOffsetNanos / 1000 + " us, round trip "
+                + clockRoundTripNanos / 1000 + " us");
+        writer.println("  Skew " + skewMicros + " us, " + packetsLost.get() + " packets lost, "
+                + streamRestarts.get() + " leader restarts");
+    }
+
+    private void controlLoop() {
+        byte[] hello = new byte[RoomSyncProtocol.HELLO_BYTES];
+        byte[] request = new byte[RoomSyncProtocol.CLOCK_REQUEST_BYTES];
+        DatagramPacket helloPacket = new DatagramPacket(hello, hello.length);
+        DatagramPacket requestPacket = new DatagramPacket(request, request.length);
+        RoomSyncProtocol.putHeader(hello, RoomSyncProtocol.TYPE_HELLO);
+        RoomSyncProtocol.putHeader(request, RoomSyncProtocol.TYPE_CLOCK_REQUEST);
+        InetSocketAddress leader = null;
+        long lastHello = 0;
+
+        try {
+            while (isRunning) {
+                try {
+                    if (leader == null) {
+                        leader = new InetSocketAddress(InetAddress.getByName(leaderHost),
+                                leaderPort);
+                        helloPacket.setSocketAddress(leader);
+                        requestPacket.setSocketAddress(leader);
+                    }
+
+                    long now = System.nanoTime();
+                    if (now - lastHello >= HELLO_INTERVAL_MS * 1_000_000L) {
+                        RoomSyncProtocol.putInt(hello, 2, skewMicros);
+                        RoomSyncProtocol.putInt(hello, 6, packetsLost.get());
+                        socket.send(helloPacket);
+                        lastHello = now;
+                    }
+
+                    RoomSyncProtocol.putLong(request, 2, System.nanoTime());
+                    socket.send(requestPacket);
+                } catch (IOException e) {
+                    // Keep trying; the leader may not be up yet
+                    if (isRunning) {
+                        Log.w(TAG, "Error contacting leader " + leaderHost + ": " + e.getMessage());
+                    }
+                    Thread.sleep(HELLO_INTERVAL_MS);
+                }
+
+                Thread.sleep(CLOCK_INTERVAL_MS);
+            }
+        } catch (InterruptedException e) {
+            // Stopping
+        }
+    }
+
+    private void receiveLoop() {
+        byte[] buffer = new byte[RoomSyncProtocol.MAX_PACKET_BYTES];
+        DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+
+        while (isRunning) {
+            try {
+                datagram.setLength(buffer.length);
+                socket.receive(datagram);
+                long receivedAt = System.nanoTime();
+                int length = datagram.getLength();
+
+                switch (RoomSyncProtocol.getType(buffer, length)) {
+                    case RoomSyncProtocol.TYPE_CLOCK_REPLY:
+                        if (length >= RoomSyncProtocol.CLOCK_REPLY_BYTES) {
+                            updateClock(RoomSyncProtocol.getLong(buffer, 2), RoomSyncProtocol.getLong(buffer, 10),
+                                    RoomSyncProtocol.getLong(buffer, 18), receivedAt);
+                        }
+                        break;
+                    case RoomSyncProtocol.TYPE_AUDIO:
+                        if (length > RoomSyncProtocol.AUDIO_HEADER_BYTES) {
+                            enqueue(buffer, length);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            } catch (IOException e) {
+                if (isRunning) {
+                    Log.e(TAG, "Error receiving from leader", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add one exchange to the clock estimate
+     *
+     * @param t1 Request sent, our clock
+     * @param t2 Request received, leader clock
+     * @param t3 Reply sent, leader clock
+     * @param t4 Reply received, our clock
+     */
+    private void updateClock(long t1, long t2, long t3, long t4) {
+        int slot = sampleCount++ % CLOCK_SAMPLES;
+        sampleOffsets[slot] = ((t2 - t1) + (t3 - t4)) / 2;
+        sampleRoundTrips[slot] = (t4 - t1) - (t3 - t2);
+
+        int best = 0;
+        int samples = Math.min(sampleCount, CLOCK_SAMPLES);
+        for (int i = 1; i < samples; i++) {
+            if (sampleRoundTrips[i] < sampleRoundTrips[best]) {
+                best = i;
+            }
+        }
+        clockOffsetNanos = sampleOffsets[best];
+        clockRoundTripNanos = sampleRoundTrips[best];
+    }
+
+    private void enqueue(byte[] buffer, int length) {
+        synchronized (queue) {
+            Packet packet = pool.pollFirst();
+            if (packet == null) {
+                // Playout has fallen behind: drop the oldest
+                packet = queue.pollFirst();
+                packetsLost.incrementAndGet();
+            }
+            System.arraycopy(buffer, 0, packet.data, 0, length);
+            packet.length = length;
+            queue.addLast(packet);
+            queue.notify();
+        }
+    }
+
+    private void playoutLoop() {
+        try {
+            while (isRunning) {
+                Packet packet;
+                synchronized (queue) {
+                    while (isRunning && queue.isEmpty()) {
+                        queue.wait();
+                    }
+                    packet = queue.pollFirst();
+                }
+                if (packet == null) {
+                    continue;
+                }
+
+                if (clockRoundTripNanos >= 0) {
+                    play(packet.data, packet.length);
+                }
+
+                synchronized (queue) {
+                    pool.addLast(packet);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopping
+        } finally {
+            output.release();
+        }
+    }
+
+    /**
+     * Write one audio packet so that it starts playing at the leader's
+     * playout time, translated to our clock
+     */
+    private void play(byte[] data, int length) throws InterruptedException {
+        int seq = RoomSyncProtocol.getInt(data, 2);
+        long now = System.nanoTime();
+        if (hasLastSeq && now - lastPacketNanos > STREAM_IDLE_NANOS) {
+            hasLastSeq = false;
+            streamRestarts.incrementAndGet();
+        }
+        lastPacketNanos = now;
+        if (hasLastSeq) {
+            int gap = seq - lastSeq - 1;
+            if (gap < -MAX_SEQ_JUMP || gap > MAX_SEQ_JUMP) {
+                // The leader started over: play from here, counting nothing as lost
+                Log.i(TAG, "Leader sequence jumped from " + lastSeq + " to " + seq + ", new stream");
+                streamRestarts.incrementAndGet();
+            } else if (gap < 0) {
+                // Late or duplicate
+                return;
+            } else {
+                packetsLost.addAndGet(gap);
+            }
+        }
+        lastSeq = seq;
+        hasLastSeq = true;
+
+        int sampleRate = RoomSyncProtocol.getInt(data, 6);
+        if (!output.open(sampleRate)) {
+            return;
+        }
+
+        long playAt = RoomSyncProtocol.getLong(data, 10) - clockOffsetNanos;
+        long errorNanos = nextFramePlaysAt() - playAt;
+        recordSkew(errorNanos);
+        int offset = RoomSyncProtocol.AUDIO_HEADER_BYTES;
+
+        if (errorNanos > TOLERANCE_NANOS) {
+            // Behind: skip the part that should already have played
+            int skipFrames = (int) (errorNanos * sampleRate / 1_000_000_000L);
+            offset += skipFrames * RoomSyncProtocol.BYTES_PER_FRAME;
+            if (offset >= length) {
+                return;
+            }
+        } else if (errorNanos < -TOLERANCE_NANOS) {
+            // Ahead: hold back anything far off, then pad the rest with silence
+            long lead = -errorNanos;
+            if (lead > MAX_LEAD_NANOS) {
+                Thread.sleep((lead - MAX_LEAD_NANOS) / 1_000_000L);
+                lead = playAt - nextFramePlaysAt();
+            }
+            writeSilence((int) (Math.max(0, lead) * sampleRate / 1_000_000_000L));
+        }
+
+        output.write(data, offset, length - offset);
+    }
+
+    private long nextFramePlaysAt() {
+        return output.nextFramePlaysAt();
+    }
+
+    private void writeSilence(int frames) {
+        while (frames > 0) {
+            int count = Math.min(frames, RoomSyncProtocol.MAX_AUDIO_FRAMES);
+            int written = output.write(silence, 0, count * RoomSyncProtocol.BYTES_PER_FRAME);
+            if (written <= 0) {
+                return;
+            }
+            frames -= written / RoomSyncProtocol.BYTES_PER_FRAME;
+        }
+    }
+
+    /**
+     * Fold the error found before correcting a packet into the reported skew
+     */
+    private void recordSkew(long errorNanos) {
+        float micros = Math.abs(errorNanos) / 1000f;
+        smoothedSkewMicros += (micros - smoothedSkewMicros) / SKEW_SMOOTHING;
+        skewMicros = Math.round(smoothedSkewMicros);
+    }
+}
@@ -0,0 +1,235 @@
+package com.mediabox.airhome.sync;
+
+import android.util.Log;
+
+import com.mediabox.airhome.audio.AudioHandler;
+import com.mediabox.airhome.util.ThreadPolicy;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Leader side of multi-room playback.
+ *
+ * Every buffer the local output plays is forwarded to each follower by
+ * unicast UDP, stamped with the time the leader's own speaker will play
+ * it. Followers register with periodic HELLOs, which also carry the skew
+ * they measure, and synchronize their clocks to ours with a PTP-style
+ * request/reply exchange answered on the same socket.
+ */
+public class RoomSyncLeader implements AudioHandler.OutputListener {
+    private static final String TAG = "RoomSyncLeader";
+
+    // Followers that stop saying hello are dropped after this long
+    private static final long FOLLOWER_TIMEOUT_NANOS = 10_000_000_000L;
+
+    // How long stop() waits for the receive thread to let go of the port
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    /**
+     * A registered follower, updated by the receive thread
+     */
+    private static final class Follower {
+        final SocketAddress address;
+        volatile long lastSeenNanos;
+        volatile int skewMicros;
+        volatile int packetsLost;
+
+        Follower(SocketAddress address) {
+            this.address = address;
+        }
+    }
+
+    private final CopyOnWriteArrayList<Follower> followers = new CopyOnWriteArrayList<>();
+
+    private DatagramSocket socket;
+    private Thread receiveThread;
+    private volatile boolean isRunning;
+
+    // Audio send state, used by the playback thread only
+    private final byte[] audioPacket = new byte[RoomSyncProtocol.MAX_PACKET_BYTES];
+    private final DatagramPacket audioDatagram = new DatagramPacket(audioPacket, audioPacket.length);
+    private int nextSeq;
+
+    private final int port;
+
+    public RoomSyncLeader() {
+        this(RoomSyncProtocol.LEADER_PORT);
+    }
+
+    /**
+     * Create a leader on any port, as tests do, or 0 for any free one
+     */
+    RoomSyncLeader(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Bind the leader port and start answering followers
+     */
+    public void start() throws SocketException {
+        socket = new DatagramSocket(port);
+        isRunning = true;
+        receiveThread = ThreadPolicy.newThread(ThreadPolicy.Stage.CONTROL, "RoomSyncLeader", this::receiveLoop);
+        receiveThread.start();
+        Log.i(TAG, "Room sync leader listening on port " + socket.getLocalPort());
+    }
+
+    /**
+     * Get the port the leader is listening on, once started
+     */
+    int getPort() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Stop and release the port. The socket is only really closed once
+     * the receive thread has left it, so wait for that; a leader created
+     * right after can then bind the same port.
+     */
+    public void stop() {
+        isRunning = false;
+        if (socket != null) {
+            socket.close();
+        }
+        if (receiveThread != null) {
+            receiveThread.interrupt();
+            try {
+                receiveThread.join(STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            receiveThread = null;
+        }
+        followers.clear();
+    }
+
+    /**
+     * Forward one buffer of output to every live follower, split into
+     * datagrams that each carry their own playout time
+     */
+    @Override
+    public void onOutput(byte[] pcm, int length, int sampleRate, long playAtNanos) {
+        if (!isRunning || followers.isEmpty()) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        for (Follower follower : followers) {
+            if (now - follower.lastSeenNanos > FOLLOWER_TIMEOUT_NANOS) {
+                Log.i(TAG, "Follower timed out: " + follower.address);
+                followers.remove(follower);
+            }
+        }
+
+        int frames = length / RoomSyncProtocol.BYTES_PER_FRAME;
+        for (int frame = 0; frame < frames; frame += RoomSyncProtocol.MAX_AUDIO_FRAMES) {
+            int count = Math.min(RoomSyncProtocol.MAX_AUDIO_FRAMES, frames - frame);
+            int bytes = count * RoomSyncProtocol.BYTES_PER_FRAME;
+
+            RoomSyncProtocol.putHeader(audioPacket, RoomSyncProtocol.TYPE_AUDIO);
+            RoomSyncProtocol.putInt(audioPacket, 2, nextSeq++);
+            RoomSyncProtocol.putInt(audioPacket, 6, sampleRate);
+            RoomSyncProtocol.putLong(audioPacket, 10, playAtNanos + frame * 1_000_000_000L / sampleRate);
+            System.arraycopy(pcm, frame * RoomSyncProtocol.BYTES_PER_FRAME,
+                    audioPacket, RoomSyncProtocol.AUDIO_HEADER_BYTES, bytes);
+            audioDatagram.setLength(RoomSyncProtocol.AUDIO_HEADER_BYTES + bytes);
+
+            for (Follower follower : followers) {
+                audioDatagram.setSocketAddress(follower.address);
+                try {
+                    socket.send(audioDatagram);
+                } catch (IOException e) {
+                    Log.w(TAG, "Error sending to follower " + follower.address, e);
+                }
+            }
+        }
+    }
+
+    public int getFollowerCount() {
+        return followers.size();
+    }
+
+    /**
+     * Get the largest playout skew any follower reported, in microseconds
+     */
+    public int getMaxSkewMicros() {
+        int max = 0;
+        for (Follower follower : followers) {
+            max = Math.max(max, follower.skewMicros);
+        }
+        return max;
+    }
+
+    /**
+     * Print each follower with the skew and loss it last reported
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("Room sync leader, " + followers.size() + " followers");
+        for (Follower follower : followers) {
+            writer.println("  " + follower.address + ": skew " + follower.skewMicros + " us, "
+                    + follower.packetsLost + " packets lost");
+        }
+    }
+
+    private void receiveLoop() {
+        byte[] buffer = new byte[RoomSyncProtocol.CLOCK_REPLY_BYTES];
+        byte[] reply = new byte[RoomSyncProtocol.CLOCK_REPLY_BYTES];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        DatagramPacket replyPacket = new DatagramPacket(reply, reply.length);
+
+        while (isRunning) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                long receivedAt = System.nanoTime();
+
+                switch (RoomSyncProtocol.getType(buffer, packet.getLength())) {
+                    case RoomSyncProtocol.TYPE_CLOCK_REQUEST:
+                        if (packet.getLength() < RoomSyncProtocol.CLOCK_REQUEST_BYTES) {
+                            break;
+                        }
+                        RoomSyncProtocol.putHeader(reply, RoomSyncProtocol.TYPE_CLOCK_REPLY);
+                        RoomSyncProtocol.putLong(reply, 2, RoomSyncProtocol.getLong(buffer, 2));
+                        RoomSyncProtocol.putLong(reply, 10, receivedAt);
+                        RoomSyncProtocol.putLong(reply, 18, System.nanoTime());
+                        replyPacket.setSocketAddress(packet.getSocketAddress());
+                        socket.send(replyPacket);
+                        break;
+                    case RoomSyncProtocol.TYPE_HELLO:
+                        if (packet.getLength() >= RoomSyncProtocol.HELLO_BYTES) {
+                            Follower follower = getFollower(packet.getSocketAddress());
+                            follower.skewMicros = RoomSyncProtocol.getInt(buffer, 2);
+                            follower.packetsLost = RoomSyncProtocol.getInt(buffer, 6);
+                            follower.lastSeenNanos = receivedAt;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            } catch (IOException e) {
+                if (isRunning) {
+                    Log.e(TAG, "Error receiving from followers", e);
+                }
+            }
+        }
+    }
+
+    private Follower getFollower(SocketAddress address) {
+        for (Follower follower : followers) {
+            if (follower.address.equals(address)) {
+                return follower;
+            }
+        }
+        Follower follower = new Follower(address);
+        follower.lastSeenNanos = System.nanoTime();
+        followers.add(follower);
+        Log.i(TAG, "Follower joined: " + address);
+        return follower;
+    }
+}
@@ -0,0 +1,80 @@
+package com.mediabox.airhome.sync;
+
+/**
+ * Wire format shared by the multi-room leader and its followers.
+ *
+ * Every datagram starts with a one-byte type and a one-byte version;
+ * integers are big-endian. All times are {@link System#nanoTime()} on the
+ * clock of whichever node wrote them, which on Android is the same
+ * monotonic clock that {@code AudioTrack.getTimestamp} reports in.
+ *
+ * <pre>
+ * HELLO          follower -> leader   skew micros (int), packets lost (int)
+ * CLOCK_REQUEST  follower -> leader   t1 (long)
+ * CLOCK_REPLY    leader -> follower   t1, t2, t3 (long)
+ * AUDIO          leader -> follower   seq (int), sample rate (int),
+ *                                     play at (long), 16-bit stereo PCM
+ * </pre>
+ */
+final class RoomSyncProtocol {
+    /** UDP port the leader listens on */
+    static final int LEADER_PORT = 7010;
+
+    static final int VERSION = 1;
+
+    static final int TYPE_HELLO = 1;
+    static final int TYPE_CLOCK_REQUEST = 2;
+    static final int TYPE_CLOCK_REPLY = 3;
+    static final int TYPE_AUDIO = 4;
+
+    static final int HEADER_BYTES = 2;
+    static final int HELLO_BYTES = HEADER_BYTES + 8;
+    static final int CLOCK_REQUEST_BYTES = HEADER_BYTES + 8;
+    static final int CLOCK_REPLY_BYTES = HEADER_BYTES + 24;
+    static final int AUDIO_HEADER_BYTES = HEADER_BYTES + 16;
+
+    static final int BYTES_PER_FRAME = 4;
+
+    // 8 ms at 44.1 kHz keeps each datagram under a typical MTU
+    static final int MAX_AUDIO_FRAMES = 352;
+    static final int MAX_PACKET_BYTES = AUDIO_HEADER_BYTES + MAX_AUDIO_FRAMES * BYTES_PER_FRAME;
+
+    private RoomSyncProtocol() {
+    }
+
+    static void putHeader(byte[] buffer, int type) {
+        buffer[0] = (byte) type;
+        buffer[1] = (byte) VERSION;
+    }
+
+    /**
+     * Get the type of a received datagram, or -1 if it is from another version
+     */
+    static int getType(byte[] buffer, int length) {
+        if (length < HEADER_BYTES || buffer[1] != VERSION) {
+            return -1;
+        }
+        return buffer[0];
+    }
+
+    static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    static int getInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 24) | ((buffer[offset + 1] & 0xFF) << 16)
+                | ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+    }
+
+    static void putLong(byte[] buffer, int offset, long value) {
+        putInt(buffer, offset, (int) (value >>> 32));
+        putInt(buffer, offset + 4, (int) value);
+    }
+
+    static long getLong(byte[] buffer, int offset) {
+        return ((long) getInt(buffer, offset) << 32) | (getInt(buffer, offset + 4) & 0xFFFFFFFFL);
+    }
+}
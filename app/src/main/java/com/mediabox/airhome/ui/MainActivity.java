@@ -1,8 +1,11 @@
 package com.mediabox.airhome.ui;
 
 import android.app.Activity;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.view.KeyEvent;
 import android.view.View;
 import android.widget.CompoundButton;
@@ -13,8 +16,9 @@ import android.widget.Toast;
 
 import com.mediabox.airhome.R;
 import com.mediabox.airhome.service.AirPlayService;
+import com.mediabox.airhome.service.PlaybackStats;
+import com.mediabox.airhome.service.StatsPublisher;
 import com.mediabox.airhome.util.ConfigManager;
-import com.mediabox.airhome.util.ServiceUtils;
 
 /**
  * Main Activity for the Android TV AirHome app.
@@ -23,10 +27,36 @@ import com.mediabox.airhome.util.ServiceUtils;
 public class MainActivity extends Activity {
     
     private TextView statusText;
+    private TextView statsText;
     private EditText deviceNameInput;
     private Switch serviceSwitch;
     private Switch autoStartSwitch;
     private Switch transcodingSwitch;
+    private Switch partyModeSwitch;
+    private Switch audioSpillSwitch;
+    private SpectrumView spectrumView;
+    
+    private AirPlayService boundService;
+    private boolean updatingStatus = false;
+    
+    private final StatsPublisher.StatsListener statsListener = this::updateStatus;
+    
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            boundService = ((AirPlayService.LocalBinder) binder).getService();
+            boundService.addStatsListener(statsListener);
+            boundService.getSpectrumAnalyzer().start();
+            spectrumView.setAnalyzer(boundService.getSpectrumAnalyzer());
+        }
+        
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            boundService = null;
+            spectrumView.setAnalyzer(null);
+            updateStatus(PlaybackStats.stopped());
+        }
+    };
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -35,10 +65,14 @@ public class MainActivity extends Activity {
         
         // Initialize UI components
         statusText = findViewById(R.id.status_text);
+        statsText = findViewById(R.id.stats_text);
         deviceNameInput = findViewById(R.id.device_name_input);
         serviceSwitch = findViewById(R.id.service_switch);
         autoStartSwitch = findViewById(R.id.auto_start_switch);
         transcodingSwitch = findViewById(R.id.transcoding_switch);
+        partyModeSwitch = findViewById(R.id.party_mode_switch);
+        audioSpillSwitch = findViewById(R.id.audio_spill_switch);
+        spectrumView = findViewById(R.id.spectrum_view);
         
         // Load saved settings
         ConfigManager configManager = ConfigManager.getInstance();
@@ -58,14 +92,29 @@ public class MainActivity extends Activity {
             configManager.setTranscodingEnabled(isChecked);
         });
         
+        // Set party mode switch
+        partyModeSwitch.setChecked(configManager.isPartyModeEnabled());
+        partyModeSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            configManager.setPartyModeEnabled(isChecked);
+        });
+        
+        // Set low memory buffering switch
+        audioSpillSwitch.setChecked(configManager.isAudioSpillEnabled());
+        audioSpillSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            configManager.setAudioSpillEnabled(isChecked);
+        });
+        
         // Set service switch
+        // Status updates arrive from the bound service's stats stream
         serviceSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            if (updatingStatus) {
+                return;
+            }
             if (isChecked) {
                 startAirPlayService();
             } else {
                 stopAirPlayService();
             }
-            updateStatus();
         });
         
         // Save button click handler
@@ -76,9 +125,28 @@ public class MainActivity extends Activity {
     }
     
     @Override
-    protected void onResume() {
-        super.onResume();
-        updateStatus();
+    protected void onStart() {
+        super.onStart();
+        // Until bound, show whether the service was started rather than
+        // the stopped snapshot, which would flip the switch off
+        updateStatus(PlaybackStats.stopped());
+        
+        // Flags 0, not BIND_AUTO_CREATE: opening the dashboard must not
+        // create the service. The binding stays registered and connects as
+        // soon as the service is started, from the switch or at boot.
+        bindService(new Intent(this, AirPlayService.class), serviceConnection, 0);
+    }
+    
+    @Override
+    protected void onStop() {
+        if (boundService != null) {
+            boundService.removeStatsListener(statsListener);
+            boundService.getSpectrumAnalyzer().stop();
+            boundService = null;
+        }
+        spectrumView.setAnalyzer(null);
+        unbindService(serviceConnection);
+        super.onStop();
     }
     
     /**
@@ -100,20 +168,45 @@ public class MainActivity extends Activity {
     }
     
     /**
-     * Update service status display
+     * Update service status display and the live dashboard
      */
-    private void updateStatus() {
-        // Check if service is running
-        boolean isServiceRunning = ServiceUtils.isServiceRunning(this, AirPlayService.class);
-        serviceSwitch.setChecked(isServiceRunning);
+    private void updateStatus(PlaybackStats stats) {
+        boolean isServiceRunning = stats.isRunning();
+        
+        // Stats only report running once startup has finished; the switch
+        // follows whether the service was started so it does not flicker
+        updatingStatus = true;
+        serviceSwitch.setChecked(isServiceRunning || AirPlayService.isStarted());
+        updatingStatus = false;
         
         if (isServiceRunning) {
             statusText.setText(getString(R.string.status_running));
             statusText.setTextColor(getResources().getColor(R.color.status_running));
+        } else if (AirPlayService.isStarted()) {
+            statusText.setText(getString(R.string.status_starting));
+            statusText.setTextColor(getResources().getColor(R.color.status_running));
         } else {
             statusText.setText(getString(R.string.status_stopped));
             statusText.setTextColor(getResources().getColor(R.color.status_stopped));
         }
+        
+        if (isServiceRunning && stats.getActiveSessions() > 0) {
+            String none = getString(R.string.stats_none);
+            statsText.setText(getString(R.string.stats_format,
+                    stats.getActiveSessions(),
+                    stats.getSenderName() != null ? stats.getSenderName() : none,
+                    stats.getCodec() != null ? stats.getCodec() : none,
+                    stats.getSampleRate(),
+                    stats.getBufferedMillis(),
+                    stats.getLatencyMillis(),
+                    stats.getPacketsLost(),
+                    stats.getCpuTimeMillis()));
+            statsText.setVisibility(View.VISIBLE);
+            spectrumView.setVisibility(View.VISIBLE);
+        } else {
+            statsText.setVisibility(View.GONE);
+            spectrumView.setVisibility(View.GONE);
+        }
     }
     
     /**
@@ -0,0 +1,102 @@
+package com.mediabox.airhome.ui;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+import com.mediabox.airhome.R;
+import com.mediabox.airhome.audio.SpectrumAnalyzer;
+
+import java.util.Arrays;
+
+/**
+ * Bars showing the live spectrum from a {@link SpectrumAnalyzer}, redrawn
+ * every display frame while attached. Drawing reuses its buffers, so the
+ * animation does not allocate.
+ */
+public class SpectrumView extends View {
+    // Gap between bars as a fraction of a bar's slot
+    private static final float BAR_GAP = 0.2f;
+
+    private final Paint barPaint = new Paint();
+    private final float[] levels = new float[SpectrumAnalyzer.BANDS];
+    private SpectrumAnalyzer analyzer;
+    private boolean isAttached;
+    private boolean isAnimating;
+
+    private final Runnable frameCallback = new Runnable() {
+        @Override
+        public void run() {
+            if (!isAnimating) {
+                return;
+            }
+            analyzer.readBands(levels);
+            invalidate();
+            postOnAnimation(this);
+        }
+    };
+
+    public SpectrumView(Context context) {
+        this(context, null);
+    }
+
+    public SpectrumView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        barPaint.setColor(getResources().getColor(R.color.accent));
+    }
+
+    /**
+     * Show the given analyzer's spectrum, or nothing if null. The caller
+     * starts and stops the analyzer.
+     */
+    public void setAnalyzer(SpectrumAnalyzer analyzer) {
+        this.analyzer = analyzer;
+        if (analyzer == null) {
+            Arrays.fill(levels, 0f);
+            invalidate();
+        }
+        updateAnimating();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        isAttached = true;
+        updateAnimating();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        isAttached = false;
+        updateAnimating();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        int width = getWidth();
+        int height = getHeight();
+        float slot = (float) width / levels.length;
+        float barWidth = slot * (1f - BAR_GAP);
+        for (int band = 0; band < levels.length; band++) {
+            float left = band * slot + (slot - barWidth) / 2;
+            float top = height * (1f - levels[band]);
+            canvas.drawRect(left, top, left + barWidth, height, barPaint);
+        }
+    }
+
+    private void updateAnimating() {
+        boolean animate = analyzer != null && isAttached;
+        if (animate == isAnimating) {
+            return;
+        }
+        isAnimating = animate;
+        if (animate) {
+            postOnAnimation(frameCallback);
+        } else {
+            removeCallbacks(frameCallback);
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package com.mediabox.airhome.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * Read-only view of a binary property list ("bplist00").
+ *
+ * Objects are addressed by their index in the plist's object table rather
+ * than decoded into a tree. Callers walk from {@link #root()} with
+ * {@link #dictValue(int, String)} and {@link #arrayElement(int, int)} and
+ * only materialize the leaf values they need, so a lookup allocates nothing
+ * beyond the returned value.
+ *
+ * The data comes from the network, so every read is checked against the
+ * object area first and a malformed plist throws IOException rather than
+ * an unchecked index exception.
+ */
+public class BinaryPlist {
+    public static final String CONTENT_TYPE = "application/x-apple-binary-plist";
+
+    // Object types, from the high nibble of the marker byte
+    public static final int TYPE_SIMPLE = 0x0;
+    public static final int TYPE_INT = 0x1;
+    public static final int TYPE_REAL = 0x2;
+    public static final int TYPE_DATE = 0x3;
+    public static final int TYPE_DATA = 0x4;
+    public static final int TYPE_ASCII = 0x5;
+    public static final int TYPE_UTF16 = 0x6;
+    public static final int TYPE_UID = 0x8;
+    public static final int TYPE_ARRAY = 0xA;
+    public static final int TYPE_DICT = 0xD;
+
+    private static final int HEADER_LENGTH = 8;
+    private static final int TRAILER_LENGTH = 32;
+
+    // Integers wider than a long (0x14 markers) are not supported
+    private static final int MAX_INT_SIZE_LOG2 = 3;
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+
+    private final ByteBuffer buffer;
+    private final int offsetIntSize;
+    private final int objectRefSize;
+    private final int objectCount;
+    private final int topObject;
+    private final int offsetTableOffset;
+
+    /**
+     * Parse the header and trailer of a binary plist
+     *
+     * @param data Buffer positioned at the start of the plist and limited to its end
+     * @throws IOException If the data is not a well-formed binary plist
+     */
+    public BinaryPlist(ByteBuffer data) throws IOException {
+        this.buffer = data.slice().order(ByteOrder.BIG_ENDIAN);
+        int length = buffer.limit();
+
+        if (length < HEADER_LENGTH + TRAILER_LENGTH
+                || buffer.get(0) != 'b' || buffer.get(1) != 'p' || buffer.get(2) != 'l'
+                || buffer.get(3) != 'i' || buffer.get(4) != 's' || buffer.get(5) != 't'
+                || buffer.get(6) != '0' || buffer.get(7) != '0') {
+            throw new IOException("Not a binary plist");
+        }
+
+        int trailer = length - TRAILER_LENGTH;
+        offsetIntSize = buffer.get(trailer + 6) & 0xFF;
+        objectRefSize = buffer.get(trailer + 7) & 0xFF;
+        long count = buffer.getLong(trailer + 8);
+        long top = buffer.getLong(trailer + 16);
+        long tableOffset = buffer.getLong(trailer + 24);
+
+        if (offsetIntSize < 1 || offsetIntSize > 8 || objectRefSize < 1 || objectRefSize > 8
+                || count <= 0 || count > trailer || top < 0 || top >= count
+                || tableOffset < HEADER_LENGTH || tableOffset + count * offsetIntSize > trailer) {
+            throw new IOException("Corrupt binary plist trailer");
+        }
+
+        objectCount = (int) count;
+        topObject = (int) top;
+        offsetTableOffset = (int) tableOffset;
+    }
+
+    /**
+     * Parse a binary plist from a byte array
+     */
+    public BinaryPlist(byte[] data, int offset, int length) throws IOException {
+        this(ByteBuffer.wrap(data, offset, length));
+    }
+
+    /**
+     * Get the reference of the top-level object
+     */
+    public int root() {
+        return topObject;
+    }
+
+    /**
+     * Get the type of an object, one of the TYPE_ constants
+     */
+    public int type(int ref) throws IOException {
+        return (marker(ref) >> 4) & 0xF;
+    }
+
+    /**
+     * Get the element count of an array or dict, or the length of a string or data
+     */
+    public int count(int ref) throws IOException {
+        int offset = objectOffset(ref);
+        int marker = buffer.get(offset) & 0xFF;
+        int count = marker & 0xF;
+        if (count != 0xF) {
+            return count;
+        }
+
+        // Long form: an int object follows the marker
+        checkSpan(offset + 1, 1);
+        int intMarker = buffer.get(offset + 1) & 0xFF;
+        if ((intMarker >> 4) != TYPE_INT) {
+            throw new IOException("Bad length marker in object " + ref);
+        }
+        int size = intSize(intMarker);
+        checkSpan(offset + 2, size);
+        long length = readSizedInt(offset + 2, size);
+        if (length < 0 || length > offsetTableOffset) {
+            throw new IOException("Bad length in object " + ref + ": " + length);
+        }
+        return (int) length;
+    }
+
+    public boolean boolValue(int ref) throws IOException {
+        int marker = marker(ref);
+        if (marker == 0x09) {
+            return true;
+        } else if (marker == 0x08) {
+            return false;
+        }
+        throw new IOException("Object " + ref + " is not a boolean");
+    }
+
+    public long intValue(int ref) throws IOException {
+        int offset = objectOffset(ref);
+        int marker = buffer.get(offset) & 0xFF;
+        int type = marker >> 4;
+        if (type == TYPE_REAL) {
+            return (long) realValue(ref);
+        }
+        if (type != TYPE_INT && type != TYPE_UID) {
+            throw new IOException("Object " + ref + " is not an integer");
+        }
+        int size = type == TYPE_UID ? (marker & 0xF) + 1 : intSize(marker);
+        if (size > 8) {
+            throw new IOException("Object " + ref + " is wider than a long");
+        }
+        checkSpan(offset + 1, size);
+        return readSizedInt(offset + 1, size);
+    }
+
+    public double realValue(int ref) throws IOException {
+        int offset = objectOffset(ref);
+        int marker = buffer.get(offset) & 0xFF;
+        int type = marker >> 4;
+        if (type == TYPE_INT) {
+            return intValue(ref);
+        }
+        if (type != TYPE_REAL && type != TYPE_DATE) {
+            throw new IOException("Object " + ref + " is not a real");
+        }
+        boolean isFloat = (marker & 0xF) == 2;
+        checkSpan(offset + 1, isFloat ? 4 : 8);
+        return isFloat ? buffer.getFloat(offset + 1) : buffer.getDouble(offset + 1);
+    }
+
+    /**
+     * Decode a string object. This is the only accessor that allocates.
+     */
+    public String stringValue(int ref) throws IOException {
+        int type = type(ref);
+        int length = count(ref);
+        int start = contentOffset(ref);
+
+        if (type == TYPE_ASCII) {
+            checkSpan(start, length);
+            return decode(start, length, US_ASCII);
+        } else if (type == TYPE_UTF16) {
+            checkSpan(start, length * 2L);
+            return decode(start, length * 2, UTF_16BE);
+        }
+        throw new IOException("Object " + ref + " is not a string");
+    }
+
+    /**
+     * Get the contents of a data object as a view on the underlying buffer
+     */
+    public ByteBuffer dataValue(int ref) throws IOException {
+        if (type(ref) != TYPE_DATA) {
+            throw new IOException("Object " + ref + " is not data");
+        }
+        int start = contentOffset(ref);
+        int length = count(ref);
+        checkSpan(start, length);
+        ByteBuffer view = buffer.duplicate();
+        view.limit(start + length).position(start);
+        return view.slice();
+    }
+
+    /**
+     * Get the reference of an array element
+     */
+    public int arrayElement(int arrayRef, int index) throws IOException {
+        if (type(arrayRef) != TYPE_ARRAY) {
+            throw new IOException("Object " + arrayRef + " is not an array");
+        }
+        if (index < 0 || index >= count(arrayRef)) {
+            throw new IOException("Array index out of range: " + index);
+        }
+        long offset = contentOffset(arrayRef) + (long) index * objectRefSize;
+        checkSpan(offset, objectRefSize);
+        return readRef((int) offset);
+    }
+
+    /**
+     * Look up a value in a dict by key without decoding the other keys
+     *
+     * @return The value reference, or -1 if the key is absent
+     */
+    public int dictValue(int dictRef, String key) throws IOException {
+        if (type(dictRef) != TYPE_DICT) {
+            throw new IOException("Object " + dictRef + " is not a dict");
+        }
+
+        int count = count(dictRef);
+        int keys = contentOffset(dictRef);
+        checkSpan(keys, 2L * count * objectRefSize);
+        int values = keys + count * objectRefSize;
+
+        for (int i = 0; i < count; i++) {
+            if (keyEquals(readRef(keys + i * objectRefSize), key)) {
+                return readRef(values + i * objectRefSize);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the reference of the key at an index of a dict, for iteration
+     */
+    public int dictKey(int dictRef, int index) throws IOException {
+        return readRef(dictEntry(dictRef, index, false));
+    }
+
+    /**
+     * Get the reference of the value at an index of a dict, for iteration
+     */
+    public int dictValueAt(int dictRef, int index) throws IOException {
+        return readRef(dictEntry(dictRef, index, true));
+    }
+
+    /**
+     * Convenience lookup of an integer in a dict
+     */
+    public long dictInt(int dictRef, String key, long defaultValue) throws IOException {
+        int ref = dictValue(dictRef, key);
+        return ref >= 0 ? intValue(ref) : defaultValue;
+    }
+
+    /**
+     * Convenience lookup of a real in a dict
+     */
+    public double dictReal(int dictRef, String key, double defaultValue) throws IOException {
+        int ref = dictValue(dictRef, key);
+        return ref >= 0 ? realValue(ref) : defaultValue;
+    }
+
+    /**
+     * Convenience lookup of a string in a dict
+     */
+    public String dictString(int dictRef, String key) throws IOException {
+        int ref = dictValue(dictRef, key);
+        return ref >= 0 ? stringValue(ref) : null;
+    }
+
+    /**
+     * Get the offset of a key or value reference of a dict entry
+     */
+    private int dictEntry(int dictRef, int index, boolean value) throws IOException {
+        if (type(dictRef) != TYPE_DICT) {
+            throw new IOException("Object " + dictRef + " is not a dict");
+        }
+        int count = count(dictRef);
+        if (index < 0 || index >= count) {
+            throw new IOException("Dict index out of range: " + index);
+        }
+        long offset = contentOffset(dictRef) + ((value ? count : 0) + (long) index) * objectRefSize;
+        checkSpan(offset, objectRefSize);
+        return (int) offset;
+    }
+
+    private boolean keyEquals(int ref, String key) throws IOException {
+        int type = type(ref);
+        int length = count(ref);
+        if (length != key.length()) {
+            return false;
+        }
+
+        int start = contentOffset(ref);
+        checkSpan(start, type == TYPE_UTF16 ? length * 2L : length);
+        if (type == TYPE_ASCII) {
+            for (int i = 0; i < length; i++) {
+                if ((buffer.get(start + i) & 0xFF) != key.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (type == TYPE_UTF16) {
+            for (int i = 0; i < length; i++) {
+                if (buffer.getChar(start + i * 2) != key.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private int marker(int ref) throws IOException {
+        return buffer.get(objectOffset(ref)) & 0xFF;
+    }
+
+    /**
+     * Get the offset of an object's payload, after its marker and any long-form length
+     */
+    private int contentOffset(int ref) throws IOException {
+        int offset = objectOffset(ref);
+        int marker = buffer.get(offset) & 0xFF;
+        if ((marker & 0xF) != 0xF) {
+            return offset + 1;
+        }
+        checkSpan(offset + 1, 1);
+        int intMarker = buffer.get(offset + 1) & 0xFF;
+        return offset + 2 + intSize(intMarker);
+    }
+
+    /**
+     * Get the byte width of an int object from its marker
+     */
+    private static int intSize(int marker) throws IOException {
+        int sizeLog2 = marker & 0xF;
+        if (sizeLog2 > MAX_INT_SIZE_LOG2) {
+            throw new IOException("Unsupported integer width: " + (1 << sizeLog2));
+        }
+        return 1 << sizeLog2;
+    }
+
+    /**
+     * Check that a span lies within the object area, which ends where the
+     * offset table starts
+     */
+    private void checkSpan(long offset, long length) throws IOException {
+        if (offset < HEADER_LENGTH || length < 0 || offset + length > offsetTableOffset) {
+            throw new IOException("Object data out of range at offset " + offset);
+        }
+    }
+
+    private int objectOffset(int ref) throws IOException {
+        if (ref < 0 || ref >= objectCount) {
+            throw new IOException("Object reference out of range: " + ref);
+        }
+        long offset = readSizedInt(offsetTableOffset + ref * offsetIntSize, offsetIntSize);
+        if (offset < HEADER_LENGTH || offset >= offsetTableOffset) {
+            throw new IOException("Object offset out of range: " + offset);
+        }
+        return (int) offset;
+    }
+
+    private int readRef(int offset) {
+        return (int) readSizedInt(offset, objectRefSize);
+    }
+
+    private long readSizedInt(int offset, int size) {
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            value = (value << 8) | (buffer.get(offset + i) & 0xFF);
+        }
+        return value;
+    }
+
+    private String decode(int start, int length, Charset charset) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + start, length, charset);
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return new String(bytes, charset);
+    }
+}
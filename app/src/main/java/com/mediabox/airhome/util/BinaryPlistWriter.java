@@ -0,0 +1,189 @@
+package com.mediabox.airhome.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Streaming encoder for binary property lists ("bplist00").
+ *
+ * Objects are appended as they are produced and each write returns the
+ * object's reference. Containers are written after their children, from
+ * the references already returned, so no object tree is ever built.
+ * References are always two bytes wide, which allows up to 65535 objects.
+ */
+public class BinaryPlistWriter {
+    private static final int REF_SIZE = 2;
+    private static final int MAX_OBJECTS = 0xFFFF;
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+    private int[] offsets = new int[32];
+    private int objectCount;
+
+    public BinaryPlistWriter() {
+        reset();
+    }
+
+    /**
+     * Discard everything written so the writer can be reused
+     */
+    public void reset() {
+        out.reset();
+        objectCount = 0;
+        writeAscii("bplist00");
+    }
+
+    public int writeBool(boolean value) {
+        int ref = beginObject();
+        out.write(value ? 0x09 : 0x08);
+        return ref;
+    }
+
+    public int writeInt(long value) {
+        int ref = beginObject();
+        writeIntBody(value);
+        return ref;
+    }
+
+    public int writeReal(double value) {
+        int ref = beginObject();
+        out.write(0x23);
+        writeSized(Double.doubleToLongBits(value), 8);
+        return ref;
+    }
+
+    /**
+     * Write a string, as ASCII when possible and UTF-16 otherwise
+     */
+    public int writeString(String value) {
+        int ref = beginObject();
+        boolean ascii = true;
+        for (int i = 0; i < value.length() && ascii; i++) {
+            ascii = value.charAt(i) < 0x80;
+        }
+
+        if (ascii) {
+            writeMarker(BinaryPlist.TYPE_ASCII, value.length());
+            writeAscii(value);
+        } else {
+            writeMarker(BinaryPlist.TYPE_UTF16, value.length());
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                out.write(c >> 8);
+                out.write(c);
+            }
+        }
+        return ref;
+    }
+
+    public int writeData(byte[] data, int offset, int length) {
+        int ref = beginObject();
+        writeMarker(BinaryPlist.TYPE_DATA, length);
+        out.write(data, offset, length);
+        return ref;
+    }
+
+    /**
+     * Write an array of previously written objects
+     */
+    public int writeArray(int[] elementRefs, int count) {
+        int ref = beginObject();
+        writeMarker(BinaryPlist.TYPE_ARRAY, count);
+        for (int i = 0; i < count; i++) {
+            writeSized(elementRefs[i], REF_SIZE);
+        }
+        return ref;
+    }
+
+    /**
+     * Write a dict of previously written keys and values
+     */
+    public int writeDict(int[] keyRefs, int[] valueRefs, int count) {
+        int ref = beginObject();
+        writeMarker(BinaryPlist.TYPE_DICT, count);
+        for (int i = 0; i < count; i++) {
+            writeSized(keyRefs[i], REF_SIZE);
+        }
+        for (int i = 0; i < count; i++) {
+            writeSized(valueRefs[i], REF_SIZE);
+        }
+        return ref;
+    }
+
+    /**
+     * Append the offset table and trailer
+     *
+     * @param rootRef Reference of the top-level object
+     * @return The encoded plist
+     */
+    public byte[] finish(int rootRef) {
+        int tableOffset = out.size();
+        int offsetSize = tableOffset <= 0xFF ? 1 : tableOffset <= 0xFFFF ? 2 : 4;
+
+        for (int i = 0; i < objectCount; i++) {
+            writeSized(offsets[i], offsetSize);
+        }
+
+        // Trailer: 6 unused bytes, sizes, then three 64-bit fields
+        for (int i = 0; i < 6; i++) {
+            out.write(0);
+        }
+        out.write(offsetSize);
+        out.write(REF_SIZE);
+        writeSized(objectCount, 8);
+        writeSized(rootRef, 8);
+        writeSized(tableOffset, 8);
+
+        return out.toByteArray();
+    }
+
+    private int beginObject() {
+        if (objectCount == MAX_OBJECTS) {
+            throw new IllegalStateException("Too many plist objects");
+        }
+        if (objectCount == offsets.length) {
+            int[] grown = new int[offsets.length * 2];
+            System.arraycopy(offsets, 0, grown, 0, objectCount);
+            offsets = grown;
+        }
+        offsets[objectCount] = out.size();
+        return objectCount++;
+    }
+
+    private void writeMarker(int type, int count) {
+        if (count < 0xF) {
+            out.write((type << 4) | count);
+        } else {
+            out.write((type << 4) | 0xF);
+            writeIntBody(count);
+        }
+    }
+
+    private void writeIntBody(long value) {
+        if (value >= 0 && value <= 0xFF) {
+            out.write(0x10);
+            writeSized(value, 1);
+        } else if (value >= 0 && value <= 0xFFFF) {
+            out.write(0x11);
+            writeSized(value, 2);
+        } else if (value >= 0 && value <= 0xFFFFFFFFL) {
+            out.write(0x12);
+            writeSized(value, 4);
+        } else {
+            out.write(0x13);
+            writeSized(value, 8);
+        }
+    }
+
+    private void writeSized(long value, int size) {
+        for (int shift = (size - 1) * 8; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+
+    private void writeAscii(String value) {
+        byte[] bytes = value.getBytes(US_ASCII);
+        out.write(bytes, 0, bytes.length);
+    }
+}
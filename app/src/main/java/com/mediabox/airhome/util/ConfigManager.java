@@ -1,8 +1,12 @@
 package com.mediabox.airhome.util;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Configuration manager for storing and retrieving application settings.
  * Uses the Singleton pattern for global access.
@@ -12,9 +16,37 @@ public class ConfigManager {
     private static final String KEY_AUTO_START = "auto_start_enabled";
     private static final String KEY_DEVICE_NAME = "device_name";
     private static final String KEY_TRANSCODING_ENABLED = "transcoding_enabled";
+    private static final String KEY_PARTY_MODE = "party_mode_enabled";
+    private static final String KEY_AUDIO_SPILL = "audio_spill_enabled";
+    private static final String KEY_PAIRING_SECRET = "pairing_secret";
+    private static final String KEY_CONTROLLER_PREFIX = "paired_controller_";
+    private static final String KEY_CONTROLLER_ORDER = "paired_controller_order";
+    private static final String KEY_EQ_BANDS = "eq_bands";
+    private static final String KEY_LOUDNESS_ENABLED = "loudness_enabled";
+    private static final String KEY_LOUDNESS_TARGET = "loudness_target_db";
+    private static final String KEY_ROOM_SYNC_ROLE = "room_sync_role";
+    private static final String KEY_ROOM_SYNC_LEADER = "room_sync_leader";
+    private static final String KEY_CAST_DEVICE = "cast_device";
+    private static final String KEY_MAX_CONNECTIONS = "max_connections";
+    private static final String KEY_MAX_CONNECTS_PER_MINUTE = "max_connects_per_minute";
+    private static final String KEY_MAX_AUDIO_SESSIONS = "max_audio_sessions";
+    private static final String KEY_MAX_QUEUED_AUDIO_BYTES = "max_queued_audio_bytes";
+    private static final String KEY_MAX_REQUEST_BODY_BYTES = "max_request_body_bytes";
+    private static final String KEY_NOW_PLAYING = "now_playing_enabled";
+    
+    /** Multi-room roles */
+    public static final String ROOM_SYNC_OFF = "off";
+    public static final String ROOM_SYNC_LEADER = "leader";
+    public static final String ROOM_SYNC_FOLLOWER = "follower";
     
     private static ConfigManager instance;
     private SharedPreferences prefs;
+    private boolean lowRamDevice;
+    
+    // Bumped on every settings change so derived caches can tell they are stale
+    private volatile int revision;
+    private final SharedPreferences.OnSharedPreferenceChangeListener changeListener =
+            (sharedPreferences, key) -> revision++;
     
     private ConfigManager() {
         // Private constructor for singleton
@@ -28,8 +60,30 @@ public class ConfigManager {
     }
     
     public void init(Context context) {
-        prefs = context.getApplicationContext()
-                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        init(context.getApplicationContext()
+                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        lowRamDevice = activityManager != null && activityManager.isLowRamDevice();
+    }
+    
+    /**
+     * Keep settings in the given preferences, as JVM tests do in place of
+     * the app's own
+     */
+    public void init(SharedPreferences preferences) {
+        if (prefs != null) {
+            prefs.unregisterOnSharedPreferenceChangeListener(changeListener);
+        }
+        prefs = preferences;
+        prefs.registerOnSharedPreferenceChangeListener(changeListener);
+    }
+    
+    /**
+     * Get a counter that changes whenever any setting changes
+     */
+    public int getRevision() {
+        return revision;
     }
     
     public boolean isAutoStartEnabled() {
@@ -55,4 +109,231 @@ public class ConfigManager {
     public void setTranscodingEnabled(boolean enabled) {
         prefs.edit().putBoolean(KEY_TRANSCODING_ENABLED, enabled).apply();
     }
+    
+    public boolean isPartyModeEnabled() {
+        return prefs.getBoolean(KEY_PARTY_MODE, false);
+    }
+    
+    public void setPartyModeEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_PARTY_MODE, enabled).apply();
+    }
+    
+    /**
+     * Whether deep session buffers spill to a file in the cache directory.
+     * Defaults to on for devices the system reports as low on RAM.
+     */
+    public boolean isAudioSpillEnabled() {
+        return prefs.getBoolean(KEY_AUDIO_SPILL, lowRamDevice);
+    }
+    
+    public void setAudioSpillEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_AUDIO_SPILL, enabled).apply();
+    }
+    
+    /**
+     * Whether what senders play is published to the system's media session
+     */
+    public boolean isNowPlayingEnabled() {
+        return prefs.getBoolean(KEY_NOW_PLAYING, true);
+    }
+    
+    public void setNowPlayingEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_NOW_PLAYING, enabled).apply();
+    }
+    
+    /**
+     * Get the hex-encoded long-term pairing secret, or null if none was created yet
+     */
+    public String getPairingSecret() {
+        return prefs.getString(KEY_PAIRING_SECRET, null);
+    }
+    
+    public void setPairingSecret(String secret) {
+        prefs.edit().putString(KEY_PAIRING_SECRET, secret).apply();
+    }
+    
+    /**
+     * Get the hex-encoded public key of a paired controller, or null if unknown
+     */
+    public String getPairedControllerKey(String identifier) {
+        return prefs.getString(KEY_CONTROLLER_PREFIX + identifier, null);
+    }
+    
+    /**
+     * Store a paired controller's key, as the most recently paired
+     */
+    public synchronized void setPairedControllerKey(String identifier, String publicKey) {
+        List<String> order = getPairedControllers();
+        order.remove(identifier);
+        order.add(identifier);
+        prefs.edit()
+                .putString(KEY_CONTROLLER_PREFIX + identifier, publicKey)
+                .putString(KEY_CONTROLLER_ORDER, join(order))
+                .apply();
+    }
+    
+    public synchronized void removePairedController(String identifier) {
+        List<String> order = getPairedControllers();
+        order.remove(identifier);
+        prefs.edit()
+                .remove(KEY_CONTROLLER_PREFIX + identifier)
+                .putString(KEY_CONTROLLER_ORDER, join(order))
+                .apply();
+    }
+    
+    /**
+     * Get the identifiers of paired controllers, the longest paired first.
+     * Controllers stored before the order was kept come first.
+     */
+    public synchronized List<String> getPairedControllers() {
+        List<String> order = new ArrayList<>();
+        for (String key : prefs.getAll().keySet()) {
+            if (key.startsWith(KEY_CONTROLLER_PREFIX) && !key.equals(KEY_CONTROLLER_ORDER)) {
+                order.add(key.substring(KEY_CONTROLLER_PREFIX.length()));
+            }
+        }
+        String stored = prefs.getString(KEY_CONTROLLER_ORDER, "");
+        if (!stored.isEmpty()) {
+            for (String identifier : stored.split("\n")) {
+                // Move each known controller to its place in pairing order
+                if (order.remove(identifier)) {
+                    order.add(identifier);
+                }
+            }
+        }
+        return order;
+    }
+    
+    private static String join(List<String> identifiers) {
+        StringBuilder joined = new StringBuilder();
+        for (String identifier : identifiers) {
+            if (joined.length() > 0) {
+                joined.append('\n');
+            }
+            joined.append(identifier);
+        }
+        return joined.toString();
+    }
+    
+    /**
+     * Get the parametric EQ bands as frequency:gain:Q triples separated by
+     * semicolons, for example "80:-4:1.0;2500:2:0.7", or empty for none
+     */
+    public String getEqBands() {
+        return prefs.getString(KEY_EQ_BANDS, "");
+    }
+    
+    public void setEqBands(String bands) {
+        prefs.edit().putString(KEY_EQ_BANDS, bands).apply();
+    }
+    
+    public boolean isLoudnessEnabled() {
+        return prefs.getBoolean(KEY_LOUDNESS_ENABLED, false);
+    }
+    
+    public void setLoudnessEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_LOUDNESS_ENABLED, enabled).apply();
+    }
+    
+    /**
+     * Get the level loudness normalization aims for, in dB relative to full scale
+     */
+    public float getLoudnessTargetDb() {
+        return prefs.getFloat(KEY_LOUDNESS_TARGET, -16f);
+    }
+    
+    public void setLoudnessTargetDb(float targetDb) {
+        prefs.edit().putFloat(KEY_LOUDNESS_TARGET, targetDb).apply();
+    }
+    
+    /**
+     * Get the multi-room role: {@link #ROOM_SYNC_OFF}, {@link #ROOM_SYNC_LEADER}
+     * or {@link #ROOM_SYNC_FOLLOWER}
+     */
+    public String getRoomSyncRole() {
+        return prefs.getString(KEY_ROOM_SYNC_ROLE, ROOM_SYNC_OFF);
+    }
+    
+    public void setRoomSyncRole(String role) {
+        prefs.edit().putString(KEY_ROOM_SYNC_ROLE, role).apply();
+    }
+    
+    /**
+     * Get the host name or address of the leader a follower plays along with
+     */
+    public String getRoomSyncLeader() {
+        return prefs.getString(KEY_ROOM_SYNC_LEADER, "");
+    }
+    
+    public void setRoomSyncLeader(String host) {
+        prefs.edit().putString(KEY_ROOM_SYNC_LEADER, host).apply();
+    }
+    
+    /**
+     * Get the Cast device to play through, by friendly name or as host:port,
+     * or an empty string to play locally
+     */
+    public String getCastDevice() {
+        return prefs.getString(KEY_CAST_DEVICE, "");
+    }
+    
+    public void setCastDevice(String device) {
+        prefs.edit().putString(KEY_CAST_DEVICE, device).apply();
+    }
+    
+    /**
+     * Get the most control connections served at once
+     */
+    public int getMaxConnections() {
+        return prefs.getInt(KEY_MAX_CONNECTIONS, 16);
+    }
+    
+    public void setMaxConnections(int maxConnections) {
+        prefs.edit().putInt(KEY_MAX_CONNECTIONS, maxConnections).apply();
+    }
+    
+    /**
+     * Get how many times a minute one client may connect
+     */
+    public int getMaxConnectsPerMinute() {
+        return prefs.getInt(KEY_MAX_CONNECTS_PER_MINUTE, 30);
+    }
+    
+    public void setMaxConnectsPerMinute(int maxConnects) {
+        prefs.edit().putInt(KEY_MAX_CONNECTS_PER_MINUTE, maxConnects).apply();
+    }
+    
+    /**
+     * Get the most audio sessions playing or mixed at once
+     */
+    public int getMaxAudioSessions() {
+        return prefs.getInt(KEY_MAX_AUDIO_SESSIONS, 4);
+    }
+    
+    public void setMaxAudioSessions(int maxSessions) {
+        prefs.edit().putInt(KEY_MAX_AUDIO_SESSIONS, maxSessions).apply();
+    }
+    
+    /**
+     * Get the most audio one session may queue before the oldest is dropped
+     */
+    public int getMaxQueuedAudioBytes() {
+        return prefs.getInt(KEY_MAX_QUEUED_AUDIO_BYTES, 16 * 1024 * 1024);
+    }
+    
+    public void setMaxQueuedAudioBytes(int maxBytes) {
+        prefs.edit().putInt(KEY_MAX_QUEUED_AUDIO_BYTES, maxBytes).apply();
+    }
+    
+    /**
+     * Get the largest RTSP request body accepted, which leaves room for
+     * cover art
+     */
+    public int getMaxRequestBodyBytes() {
+        return prefs.getInt(KEY_MAX_REQUEST_BODY_BYTES, 4 * 1024 * 1024);
+    }
+    
+    public void setMaxRequestBodyBytes(int maxBytes) {
+        prefs.edit().putInt(KEY_MAX_REQUEST_BODY_BYTES, maxBytes).apply();
+    }
 }
@@ -0,0 +1,104 @@
+package com.mediabox.airhome.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reader for the DMAP-tagged metadata senders push with SET_PARAMETER
+ * ("application/x-dmap-tagged").
+ *
+ * DMAP is a flat run of items, each a four-character code, a big-endian
+ * 32-bit length and that many bytes of data. Containers such as
+ * {@code mlit} hold further items. Only the few now-playing fields are
+ * looked for; everything else is skipped without being decoded.
+ */
+public final class Dmap {
+    public static final String CONTENT_TYPE = "application/x-dmap-tagged";
+
+    private static final int ITEM_HEADER_BYTES = 8;
+
+    private Dmap() {
+    }
+
+    /**
+     * Find the first string item with the given code, searching inside
+     * containers
+     *
+     * @param data DMAP data
+     * @param code Four-character item code, such as {@code minm} for the title
+     * @return The string, or null if there is no such item
+     */
+    public static String findString(byte[] data, String code) {
+        int item = find(data, 0, data.length, code);
+        if (item < 0) {
+            return null;
+        }
+        return new String(data, item + ITEM_HEADER_BYTES, getLength(data, item), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Find the first integer item with the given code, searching inside
+     * containers
+     *
+     * @return The value, or the default if there is no such item
+     */
+    public static long findInteger(byte[] data, String code, long defaultValue) {
+        int item = find(data, 0, data.length, code);
+        if (item < 0) {
+            return defaultValue;
+        }
+        int length = getLength(data, item);
+        if (length == 0 || length > 8) {
+            return defaultValue;
+        }
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (data[item + ITEM_HEADER_BYTES + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Offset of the first matching item in the given range, or -1
+     */
+    private static int find(byte[] data, int start, int end, String code) {
+        int position = start;
+        while (position + ITEM_HEADER_BYTES <= end) {
+            int length = getLength(data, position);
+            // Compared against what is left, as position + length can overflow
+            if (length < 0 || length > end - position - ITEM_HEADER_BYTES) {
+                return -1;
+            }
+            int next = position + ITEM_HEADER_BYTES + length;
+            if (matches(data, position, code)) {
+                return position;
+            }
+            if (isContainer(data, position)) {
+                int found = find(data, position + ITEM_HEADER_BYTES, next, code);
+                if (found >= 0) {
+                    return found;
+                }
+            }
+            position = next;
+        }
+        return -1;
+    }
+
+    private static boolean isContainer(byte[] data, int item) {
+        return matches(data, item, "mlit") || matches(data, item, "mlcl")
+                || matches(data, item, "cmst") || matches(data, item, "adbs");
+    }
+
+    private static boolean matches(byte[] data, int item, String code) {
+        for (int i = 0; i < 4; i++) {
+            if (data[item + i] != (byte) code.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int getLength(byte[] data, int item) {
+        return ((data[item + 4] & 0xFF) << 24) | ((data[item + 5] & 0xFF) << 16)
+                | ((data[item + 6] & 0xFF) << 8) | (data[item + 7] & 0xFF);
+    }
+}
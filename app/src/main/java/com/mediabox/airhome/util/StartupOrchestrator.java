@@ -0,0 +1,263 @@
+package com.mediabox.airhome.util;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs startup work off the main thread as a graph of stages.
+ *
+ * Each stage declares the stages it depends on and is started as soon as
+ * they have all finished, so independent stages run in parallel on a
+ * small pool. A stage that throws is logged and everything depending on
+ * it is skipped. Start and finish times of every stage are kept and
+ * printed by {@link #dump(PrintWriter)} relative to process start.
+ *
+ * Stages are added before {@link #start()} and the graph is run once.
+ */
+public class StartupOrchestrator {
+    private static final String TAG = "StartupOrchestrator";
+
+    private static final int THREADS = 3;
+
+    // Stand-in for the process start time on releases that do not report it
+    private static volatile long processMarkedAt;
+
+    /**
+     * One unit of startup work
+     */
+    public static final class Stage {
+        private final String name;
+        private final Runnable work;
+        private final List<Stage> dependents = new ArrayList<>();
+        private final AtomicInteger pendingDependencies = new AtomicInteger();
+        private volatile long startedAt;
+        private volatile long finishedAt;
+        private volatile String outcome = "pending";
+
+        Stage(String name, Runnable work) {
+            this.name = name;
+            this.work = work;
+        }
+
+        /**
+         * Get when this stage finished, in elapsed realtime, or 0 if it has not
+         */
+        public long getFinishedAt() {
+            return finishedAt;
+        }
+    }
+
+    private final String name;
+    private final List<Stage> stages = new ArrayList<>();
+    private final AtomicInteger remaining = new AtomicInteger();
+    private final Runnable onFinished;
+    private ExecutorService executor;
+    private volatile boolean cancelled;
+    private volatile boolean failed;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+
+    /**
+     * @param name Name used for threads and logs
+     * @param onFinished Run on a startup thread once every stage has
+     *                   finished or been skipped
+     */
+    public StartupOrchestrator(String name, Runnable onFinished) {
+        this.name = name;
+        this.onFinished = onFinished;
+    }
+
+    /**
+     * Record the process start where the platform cannot report it; call
+     * first thing in {@code Application.onCreate()}
+     */
+    public static void markProcessStart() {
+        if (processMarkedAt == 0) {
+            processMarkedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Get when this process started, in elapsed realtime
+     */
+    public static long getProcessStartMillis() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return Process.getStartElapsedRealtime();
+        }
+        return processMarkedAt;
+    }
+
+    /**
+     * Add a stage that runs once all of the given stages have finished
+     */
+    public Stage addStage(String stageName, Runnable work, Stage... dependencies) {
+        Stage stage = new Stage(stageName, work);
+        stage.pendingDependencies.set(dependencies.length);
+        for (Stage dependency : dependencies) {
+            dependency.dependents.add(stage);
+        }
+        stages.add(stage);
+        return stage;
+    }
+
+    /**
+     * Start every stage without dependencies; the rest follow as they
+     * become ready
+     */
+    public void start() {
+        startedAt = SystemClock.elapsedRealtime();
+        remaining.set(stages.size());
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), ThreadPolicy.factory(ThreadPolicy.Stage.CONTROL, name));
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+
+        for (Stage stage : stages) {
+            if (stage.pendingDependencies.get() == 0) {
+                submit(stage);
+            }
+        }
+    }
+
+    /**
+     * Skip stages that have not started yet and wait a bounded time for
+     * running ones, so teardown does not race startup
+     */
+    public void cancel(long timeoutMillis) {
+        cancelled = true;
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, name + " still running after cancel");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Whether any stage failed or was skipped
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * Print each stage's start and finish relative to process start
+     */
+    public void dump(PrintWriter writer) {
+        long origin = getProcessStartMillis();
+        if (origin == 0) {
+            origin = startedAt;
+        }
+        writer.println(name + ": started +" + (startedAt - origin) + " ms"
+                + (finishedAt != 0 ? ", finished +" + (finishedAt - origin) + " ms" : ", running"));
+        for (Stage stage : stages) {
+            writer.print("  " + stage.name + ": " + stage.outcome);
+            if (stage.startedAt != 0) {
+                writer.print(", +" + (stage.startedAt - origin) + " ms");
+                if (stage.finishedAt != 0) {
+                    writer.print(" to +" + (stage.finishedAt - origin) + " ms ("
+                            + (stage.finishedAt - stage.startedAt) + " ms)");
+                }
+            }
+            writer.println();
+        }
+    }
+
+    private void submit(Stage stage) {
+        if (cancelled) {
+            skip(stage, "cancelled");
+            return;
+        }
+        try {
+            executor.execute(() -> run(stage));
+        } catch (RejectedExecutionException e) {
+            skip(stage, "cancelled");
+        }
+    }
+
+    private void run(Stage stage) {
+        if (cancelled) {
+            skip(stage, "cancelled");
+            return;
+        }
+
+        // A stage skipped through one failed dependency can still be
+        // submitted when its other dependencies finish
+        synchronized (stage) {
+            if (!"pending".equals(stage.outcome)) {
+                return;
+            }
+            stage.outcome = "running";
+        }
+        stage.startedAt = SystemClock.elapsedRealtime();
+        try {
+            stage.work.run();
+        } catch (RuntimeException e) {
+            Log.e(TAG, name + " stage failed: " + stage.name, e);
+            stage.finishedAt = SystemClock.elapsedRealtime();
+            stage.outcome = "failed";
+            failed = true;
+            for (Stage dependent : stage.dependents) {
+                skip(dependent, "skipped");
+            }
+            finishOne();
+            return;
+        }
+        stage.finishedAt = SystemClock.elapsedRealtime();
+        stage.outcome = "done";
+
+        for (Stage dependent : stage.dependents) {
+            if (dependent.pendingDependencies.decrementAndGet() == 0) {
+                submit(dependent);
+            }
+        }
+        finishOne();
+    }
+
+    /**
+     * Mark a stage and everything after it as not run. A stage reachable
+     * along several paths is only counted once.
+     */
+    private void skip(Stage stage, String outcome) {
+        synchronized (stage) {
+            if (!"pending".equals(stage.outcome)) {
+                return;
+            }
+            stage.outcome = outcome;
+        }
+        failed = true;
+        for (Stage dependent : stage.dependents) {
+            skip(dependent, outcome);
+        }
+        finishOne();
+    }
+
+    private void finishOne() {
+        if (remaining.decrementAndGet() == 0) {
+            finishedAt = SystemClock.elapsedRealtime();
+            Log.i(TAG, name + " finished in " + (finishedAt - startedAt) + " ms"
+                    + (failed ? " with failures" : ""));
+            executor.shutdown();
+            if (onFinished != null && !cancelled) {
+                onFinished.run();
+            }
+        }
+    }
+}
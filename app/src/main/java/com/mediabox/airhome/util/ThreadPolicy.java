@@ -0,0 +1,173 @@
+package com.mediabox.airhome.util;
+
+import android.os.Debug;
+import android.os.Process;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates the app's threads and sets their scheduling by the pipeline
+ * stage they work for.
+ *
+ * Playback runs at urgent-audio priority and the threads feeding it at
+ * audio priority, so neither has to wait behind RTSP handling or artwork
+ * decoding when the device is busy; metadata work runs in the background.
+ * Every thread is named and registered with its stage while it runs, and
+ * the CPU time of live and finished threads is added up per stage for
+ * {@link #dump(PrintWriter)}.
+ */
+public final class ThreadPolicy {
+    private static final String TAG = "ThreadPolicy";
+
+    /**
+     * What a thread works on, which decides its priority
+     */
+    public enum Stage {
+        // Writes to output tracks
+        PLAYBACK(Process.THREAD_PRIORITY_URGENT_AUDIO),
+        // Receives, decrypts and times audio for playback
+        AUDIO_RECEIVE(Process.THREAD_PRIORITY_AUDIO),
+        // Receives and decodes mirrored video
+        VIDEO(Process.THREAD_PRIORITY_DISPLAY),
+        // RTSP, discovery, Cast and sync control traffic
+        CONTROL(Process.THREAD_PRIORITY_DEFAULT),
+        // Now playing info and artwork
+        METADATA(Process.THREAD_PRIORITY_BACKGROUND),
+        // Startup and housekeeping
+        BACKGROUND(Process.THREAD_PRIORITY_BACKGROUND);
+
+        final int priority;
+        final AtomicLong finishedCpuNanos = new AtomicLong();
+
+        Stage(int priority) {
+            this.priority = priority;
+        }
+    }
+
+    // Live threads by kernel thread ID
+    private static final Map<Integer, Stage> liveThreads = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Stage> currentStage = new ThreadLocal<>();
+
+    private ThreadPolicy() {
+    }
+
+    /**
+     * Create a thread for the given stage. It is not started.
+     */
+    public static Thread newThread(Stage stage, String name, Runnable runnable) {
+        return new Thread(() -> {
+            enter(stage);
+            try {
+                runnable.run();
+            } finally {
+                leave();
+            }
+        }, name);
+    }
+
+    /**
+     * Get a factory for pool threads of the given stage, named with the
+     * given prefix and a number
+     */
+    public static ThreadFactory factory(Stage stage, String namePrefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> newThread(stage, namePrefix + "-" + count.incrementAndGet(), runnable);
+    }
+
+    /**
+     * Set the calling thread's priority for the given stage and count its
+     * CPU time toward it, for threads not created here such as a
+     * HandlerThread. Balance with {@link #leave()} on the same thread.
+     */
+    public static void enter(Stage stage) {
+        try {
+            Process.setThreadPriority(stage.priority);
+        } catch (SecurityException | IllegalArgumentException e) {
+            Log.w(TAG, "Unable to set priority for " + stage, e);
+        }
+        currentStage.set(stage);
+        liveThreads.put(Process.myTid(), stage);
+    }
+
+    /**
+     * Add the calling thread's CPU time to its stage and stop tracking it
+     */
+    public static void leave() {
+        Stage stage = currentStage.get();
+        if (stage == null) {
+            return;
+        }
+        currentStage.remove();
+        liveThreads.remove(Process.myTid());
+        stage.finishedCpuNanos.addAndGet(Debug.threadCpuTimeNanos());
+    }
+
+    /**
+     * Print CPU time per stage, finished threads included
+     */
+    public static void dump(PrintWriter writer) {
+        long[] cpuNanos = new long[Stage.values().length];
+        int[] threads = new int[cpuNanos.length];
+        long nanosPerTick = 1_000_000_000L / Math.max(1, Os.sysconf(OsConstants._SC_CLK_TCK));
+        for (Map.Entry<Integer, Stage> entry : liveThreads.entrySet()) {
+            long ticks = readCpuTicks(entry.getKey());
+            if (ticks >= 0) {
+                cpuNanos[entry.getValue().ordinal()] += ticks * nanosPerTick;
+                threads[entry.getValue().ordinal()]++;
+            }
+        }
+
+        writer.println("CPU by stage:");
+        for (Stage stage : Stage.values()) {
+            long total = cpuNanos[stage.ordinal()] + stage.finishedCpuNanos.get();
+            writer.println("  " + stage + ": " + total / 1_000_000 + " ms, "
+                    + threads[stage.ordinal()] + " live threads");
+        }
+    }
+
+    /**
+     * Read a thread's user and system CPU time in clock ticks from procfs
+     *
+     * @return The ticks, or -1 if the thread has gone
+     */
+    private static long readCpuTicks(int tid) {
+        byte[] buffer = new byte[512];
+        int length;
+        try (FileInputStream input = new FileInputStream("/proc/self/task/" + tid + "/stat")) {
+            length = input.read(buffer);
+        } catch (IOException e) {
+            return -1;
+        }
+        if (length <= 0) {
+            return -1;
+        }
+
+        // The name in parentheses may contain spaces, so count fields from
+        // after it: state is field 3, utime 14 and stime 15
+        String stat = new String(buffer, 0, length, StandardCharsets.US_ASCII);
+        int nameEnd = stat.lastIndexOf(')');
+        if (nameEnd < 0) {
+            return -1;
+        }
+        String[] fields = stat.substring(nameEnd + 2).split(" ");
+        if (fields.length < 13) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
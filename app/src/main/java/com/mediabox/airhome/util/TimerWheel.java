@@ -0,0 +1,251 @@
+package com.mediabox.airhome.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timer wheel used to reap idle connections and sessions.
+ *
+ * Each tracked object gets a {@link Timeout} that is touched on activity.
+ * Touching only records a timestamp; the wheel lazily reschedules the entry
+ * when its bucket comes round, so activity never takes a lock and each tick
+ * only visits the entries that hash into the current bucket.
+ */
+public class TimerWheel {
+    private static final String TAG = "TimerWheel";
+
+    private final long tickMillis;
+    private final Timeout[] buckets;
+    private final Object lock = new Object();
+
+    private ScheduledExecutorService ticker;
+    private long currentTick;
+    private int size;
+
+    /**
+     * Create a new timer wheel
+     *
+     * @param tickMillis Resolution of the wheel in milliseconds
+     * @param wheelSize Number of buckets in the wheel
+     */
+    public TimerWheel(long tickMillis, int wheelSize) {
+        this.tickMillis = tickMillis;
+        this.buckets = new Timeout[wheelSize];
+    }
+
+    /**
+     * Start the ticker thread
+     */
+    public synchronized void start() {
+        if (ticker != null) {
+            return;
+        }
+
+        synchronized (lock) {
+            currentTick = now() / tickMillis;
+        }
+
+        ticker = Executors.newSingleThreadScheduledExecutor(
+                r -> ThreadPolicy.newThread(ThreadPolicy.Stage.CONTROL, "TimerWheelTicker", r));
+        ticker.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the ticker thread. Pending timeouts are dropped without firing.
+     */
+    public synchronized void stop() {
+        if (ticker == null) {
+            return;
+        }
+
+        ticker.shutdownNow();
+        ticker = null;
+
+        synchronized (lock) {
+            for (int i = 0; i < buckets.length; i++) {
+                Timeout timeout = buckets[i];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    timeout.prev = null;
+                    timeout.next = null;
+                    timeout.bucket = -1;
+                    timeout = next;
+                }
+                buckets[i] = null;
+            }
+            size = 0;
+        }
+    }
+
+    /**
+     * Track a new object that expires after the given idle time
+     *
+     * @param idleTimeoutMillis Time without {@link Timeout#touch()} before expiry
+     * @param onExpired Callback run on the ticker thread when the object expires
+     * @return Handle used to report activity or cancel tracking
+     */
+    public Timeout schedule(long idleTimeoutMillis, Runnable onExpired) {
+        Timeout timeout = new Timeout(idleTimeoutMillis, onExpired);
+        synchronized (lock) {
+            insert(timeout, (timeout.lastActivity + idleTimeoutMillis) / tickMillis);
+        }
+        return timeout;
+    }
+
+    /**
+     * Get the number of tracked objects
+     */
+    public int size() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+
+    /**
+     * Advance the wheel by every tick that has elapsed and fire expired
+     * entries. Run by the ticker; tests call it directly.
+     */
+    void tick() {
+        Timeout expired = null;
+        long nowMillis = now();
+        long targetTick = nowMillis / tickMillis;
+
+        synchronized (lock) {
+            // Catch up on ticks missed while the thread was descheduled,
+            // but never walk the wheel more than once per call
+            long firstTick = Math.max(currentTick + 1, targetTick - buckets.length + 1);
+            for (long t = firstTick; t <= targetTick; t++) {
+                expired = expireBucket(t, nowMillis, expired);
+            }
+            currentTick = targetTick;
+        }
+
+        // Run callbacks outside the lock so they may cancel or schedule
+        while (expired != null) {
+            Timeout next = expired.next;
+            expired.next = null;
+            try {
+                expired.onExpired.run();
+            } catch (Exception e) {
+                Log.e(TAG, "Error running expiry callback", e);
+            }
+            expired = next;
+        }
+    }
+
+    /**
+     * Visit one bucket, moving entries that saw activity and chaining expired
+     * entries onto the given list. Must be called with the lock held.
+     */
+    private Timeout expireBucket(long tick, long nowMillis, Timeout expired) {
+        int index = (int) (tick % buckets.length);
+        Timeout timeout = buckets[index];
+
+        while (timeout != null) {
+            Timeout next = timeout.next;
+
+            if (timeout.deadlineTick <= tick) {
+                long deadline = timeout.lastActivity + timeout.idleTimeoutMillis;
+                unlink(timeout);
+
+                if (deadline <= nowMillis) {
+                    timeout.expired = true;
+                    timeout.next = expired;
+                    expired = timeout;
+                } else {
+                    insert(timeout, Math.max(deadline / tickMillis, tick + 1));
+                }
+            }
+
+            timeout = next;
+        }
+
+        return expired;
+    }
+
+    private void insert(Timeout timeout, long deadlineTick) {
+        int index = (int) (deadlineTick % buckets.length);
+        timeout.deadlineTick = deadlineTick;
+        timeout.bucket = index;
+        timeout.prev = null;
+        timeout.next = buckets[index];
+        if (buckets[index] != null) {
+            buckets[index].prev = timeout;
+        }
+        buckets[index] = timeout;
+        size++;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        size--;
+    }
+
+    /**
+     * Current time in milliseconds; tests substitute a simulated clock
+     */
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Handle for a single tracked object
+     */
+    public final class Timeout {
+        private final long idleTimeoutMillis;
+        private final Runnable onExpired;
+        private volatile long lastActivity;
+        private volatile boolean expired;
+
+        // Guarded by the wheel lock
+        private Timeout prev;
+        private Timeout next;
+        private long deadlineTick;
+        private int bucket = -1;
+
+        private Timeout(long idleTimeoutMillis, Runnable onExpired) {
+            this.idleTimeoutMillis = idleTimeoutMillis;
+            this.onExpired = onExpired;
+            this.lastActivity = now();
+        }
+
+        /**
+         * Record activity, pushing the expiry back by the idle timeout
+         */
+        public void touch() {
+            lastActivity = now();
+        }
+
+        /**
+         * Stop tracking without firing the expiry callback
+         */
+        public void cancel() {
+            synchronized (lock) {
+                if (bucket >= 0) {
+                    unlink(this);
+                }
+            }
+        }
+
+        /**
+         * Check whether this timeout has fired
+         */
+        public boolean isExpired() {
+            return expired;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.mediabox.airhome.util;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free in-memory trace of protocol and session events.
+ *
+ * Hot paths record fixed-size binary records (timestamp, event id, session
+ * id and two arguments) instead of building log strings. Writers claim a
+ * slot with a single atomic increment and never block or allocate; the ring
+ * simply overwrites the oldest records. Each record is stamped with its
+ * sequence number before and after its fields, and a dump skips any
+ * record whose stamps disagree, so a record being overwritten, even by
+ * two writers at once after the ring has lapped, is never shown torn.
+ * Records are decoded to text only when dumped, e.g. with
+ * {@code adb shell dumpsys activity service .service.AirPlayService trace 10}.
+ */
+public final class TraceRing {
+
+    // Event ids
+    public static final int CONNECTION_ACCEPTED = 1;   // arg1: IPv4 address, arg2: port
+    public static final int CONNECTION_CLOSED = 2;
+    public static final int CONNECTION_REAPED = 3;
+    public static final int RTSP_REQUEST = 4;          // arg1: method index, arg2: CSeq
+    public static final int SESSION_STARTED = 5;       // arg1: 1 if mixed
+    public static final int SESSION_STOPPED = 6;
+    public static final int SESSION_PREEMPTED = 7;     // arg1: preempting session
+    public static final int SESSION_REAPED = 8;
+    public static final int SESSION_FLUSHED = 9;
+    public static final int SWITCHOVER = 10;           // arg1: latency ms
+    public static final int PACKETS_LOST = 11;         // arg1: gap, arg2: sequence number
+    public static final int FORMAT_CHANGED = 12;       // arg1: sample rate
+    public static final int VOLUME_CHANGED = 13;       // arg1: volume in milli-dB
+    public static final int COVER_ART = 14;            // arg1: bytes
+    public static final int CONNECTION_REJECTED = 15;  // arg1: reason, arg2: IPv4 address
+    public static final int SENDER_RECOGNIZED = 16;    // arg1: 1 if cached, arg2: cached sample rate
+
+    private static final String[] EVENT_NAMES = {
+            "?",
+            "CONNECTION_ACCEPTED",
+            "CONNECTION_CLOSED",
+            "CONNECTION_REAPED",
+            "RTSP_REQUEST",
+            "SESSION_STARTED",
+            "SESSION_STOPPED",
+            "SESSION_PREEMPTED",
+            "SESSION_REAPED",
+            "SESSION_FLUSHED",
+            "SWITCHOVER",
+            "PACKETS_LOST",
+            "FORMAT_CHANGED",
+            "VOLUME_CHANGED",
+            "COVER_ART",
+            "CONNECTION_REJECTED",
+            "SENDER_RECOGNIZED",
+    };
+
+    /** RTSP methods, indexed by the first argument of {@link #RTSP_REQUEST} */
+    public static final String[] RTSP_METHODS = {
+            "OTHER",
+            "OPTIONS",
+            "ANNOUNCE",
+            "SETUP",
+            "RECORD",
+            "SET_PARAMETER",
+            "FLUSH",
+            "TEARDOWN",
+            "GET_PARAMETER",
+            "SETRATEANCHORTIME",
+            "FLUSHBUFFERED",
+            "GET",
+            "POST",
+    };
+
+    // Power of two so the slot is a mask of the sequence number
+    static final int CAPACITY = 4096;
+    private static final int MASK = CAPACITY - 1;
+
+    // Per record: sequence stamp, timestamp, event/session, arg1, arg2,
+    // sequence stamp again
+    private static final int STRIDE = 6;
+    private static final int END_STAMP = STRIDE - 1;
+
+    private static final AtomicLongArray records = new AtomicLongArray(CAPACITY * STRIDE);
+    private static final AtomicLong cursor = new AtomicLong();
+
+    private TraceRing() {
+        // Static utility
+    }
+
+    /**
+     * Record an event. Safe to call from any thread without locking.
+     *
+     * @param event One of the event id constants
+     * @param session Numeric id of the connection or session, or 0
+     * @param arg1 First event-specific argument
+     * @param arg2 Second event-specific argument
+     */
+    public static void record(int event, int session, long arg1, long arg2) {
+        record(event, session, arg1, arg2, SystemClock.elapsedRealtimeNanos());
+    }
+
+    static void record(int event, int session, long arg1, long arg2, long time) {
+        long seq = cursor.getAndIncrement();
+        int base = (int) (seq & MASK) * STRIDE;
+
+        // The leading stamp is published before the fields and the trailing
+        // one after them, so a dump that reads both the same around the
+        // fields has read them from this record alone
+        records.set(base, seq);
+        records.lazySet(base + 1, time);
+        records.lazySet(base + 2, ((long) event << 32) | (session & 0xFFFFFFFFL));
+        records.lazySet(base + 3, arg1);
+        records.lazySet(base + 4, arg2);
+        records.lazySet(base + END_STAMP, seq);
+    }
+
+    /**
+     * Get the index of an RTSP method in {@link #RTSP_METHODS}, or 0 if unknown
+     */
+    public static int rtspMethodIndex(String method) {
+        for (int i = 1; i < RTSP_METHODS.length; i++) {
+            if (RTSP_METHODS[i].equals(method)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Decode recorded events from the last few seconds, oldest first
+     *
+     * @param writer Destination for the decoded text
+     * @param windowSeconds How far back to look
+     */
+    public static void dump(PrintWriter writer, int windowSeconds) {
+        dump(writer, windowSeconds, SystemClock.elapsedRealtimeNanos());
+    }
+
+    static void dump(PrintWriter writer, int windowSeconds, long now) {
+        long since = now - windowSeconds * 1_000_000_000L;
+        long end = cursor.get();
+        long start = Math.max(0, end - CAPACITY);
+        int printed = 0;
+
+        writer.println("Trace: last " + windowSeconds + " s, " + end + " events recorded");
+
+        for (long seq = start; seq < end; seq++) {
+            int base = (int) (seq & MASK) * STRIDE;
+
+            if (records.get(base) != seq) {
+                continue;
+            }
+            long time = records.get(base + 1);
+            long eventSession = records.get(base + 2);
+            long arg1 = records.get(base + 3);
+            long arg2 = records.get(base + 4);
+            if (records.get(base + END_STAMP) != seq || records.get(base) != seq || time < since) {
+                // Still being written, overwritten while reading, or outside the window
+                continue;
+            }
+
+            int event = (int) (eventSession >>> 32);
+            int session = (int) eventSession;
+
+            writer.print(String.format("%10.3f ", (time - now) / 1e9));
+            writer.print(event > 0 && event < EVENT_NAMES.length ? EVENT_NAMES[event] : "EVENT_" + event);
+            writer.print(" #" + session);
+            writer.println(" " + describe(event, arg1, arg2));
+            printed++;
+        }
+
+        writer.println(printed + " events shown");
+    }
+
+    private static String describe(int event, long arg1, long arg2) {
+        switch (event) {
+            case CONNECTION_ACCEPTED:
+                return ((arg1 >>> 24) & 0xFF) + "." + ((arg1 >>> 16) & 0xFF) + "."
+                        + ((arg1 >>> 8) & 0xFF) + "." + (arg1 & 0xFF) + ":" + arg2;
+            case RTSP_REQUEST:
+                String method = arg1 >= 0 && arg1 < RTSP_METHODS.length
+                        ? RTSP_METHODS[(int) arg1] : "OTHER";
+                return method + " CSeq=" + arg2;
+            case VOLUME_CHANGED:
+                return (arg1 / 1000f) + " dB";
+            default:
+                return arg1 + " " + arg2;
+        }
+    }
+}
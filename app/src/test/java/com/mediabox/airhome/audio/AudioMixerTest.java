@@ -0,0 +1,112 @@
+package com.mediabox.airhome.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AudioMixerTest {
+    // Enough for the mixer to prime an input: 100 ms at 44.1 kHz
+    private static final int PRIME_FRAMES = 4410;
+
+    private static byte[] constantPcm(int frames, short value) {
+        byte[] pcm = new byte[frames * 4];
+        for (int i = 0; i < pcm.length; i += 2) {
+            pcm[i] = (byte) value;
+            pcm[i + 1] = (byte) (value >> 8);
+        }
+        return pcm;
+    }
+
+    private static void feed(AudioMixer.Input input, int frames, short value) {
+        byte[] pcm = constantPcm(frames, value);
+        assertEquals(pcm.length, input.write(pcm, 0, pcm.length));
+    }
+
+    @Test
+    public void sumsInputsAndSaturates() {
+        AudioMixer mixer = new AudioMixer();
+        AudioMixer.Input first = mixer.acquireInput();
+        AudioMixer.Input second = mixer.acquireInput();
+        feed(first, PRIME_FRAMES, (short) 1000);
+        feed(second, PRIME_FRAMES, (short) 2000);
+
+        assertEquals(2, mixer.mixPeriod());
+        assertEquals(3000, mixer.getPeriodOutput()[0]);
+
+        AudioMixer.Input third = mixer.acquireInput();
+        feed(third, PRIME_FRAMES, Short.MAX_VALUE);
+        assertEquals(3, mixer.mixPeriod());
+        assertEquals(Short.MAX_VALUE, mixer.getPeriodOutput()[0]);
+        assertNull("only three inputs", mixer.acquireInput());
+    }
+
+    @Test
+    public void appliesGain() {
+        AudioMixer mixer = new AudioMixer();
+        AudioMixer.Input input = mixer.acquireInput();
+        input.setGain(0.5f);
+        feed(input, PRIME_FRAMES, (short) 10000);
+
+        mixer.mixPeriod();
+        assertEquals(5000, mixer.getPeriodOutput()[1]);
+    }
+
+    @Test
+    public void reusedInputPrimesAgain() {
+        AudioMixer mixer = new AudioMixer();
+        AudioMixer.Input input = mixer.acquireInput();
+        feed(input, PRIME_FRAMES, (short) 100);
+        assertEquals(1, mixer.mixPeriod());
+
+        // Hand the input to a new stream with less than a priming fill
+        input.close();
+        AudioMixer.Input reused = mixer.acquireInput();
+        assertNotNull(reused);
+        feed(reused, PRIME_FRAMES / 2, (short) 100);
+        assertEquals("new stream mixed before priming", 0, mixer.mixPeriod());
+
+        feed(reused, PRIME_FRAMES / 2, (short) 100);
+        assertEquals(1, mixer.mixPeriod());
+    }
+
+    /**
+     * Cost of mixing one stream for one 10 ms period, the figure the
+     * mixer reports as mix nanos per stream period
+     */
+    @Test
+    public void benchmarkMixCostPerStreamPeriod() {
+        AudioMixer mixer = new AudioMixer();
+        AudioMixer.Input[] inputs = new AudioMixer.Input[AudioMixer.MAX_INPUTS];
+        byte[] period = constantPcm(441, (short) 1234);
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = mixer.acquireInput();
+            feed(inputs[i], PRIME_FRAMES, (short) 1234);
+        }
+
+        int periods = 50_000;
+        long elapsed = 0;
+        long mixed = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            // The first pass warms up the JIT and is not counted
+            elapsed = 0;
+            mixed = 0;
+            for (int i = 0; i < periods; i++) {
+                for (AudioMixer.Input input : inputs) {
+                    input.write(period, 0, period.length);
+                }
+                long start = System.nanoTime();
+                mixed += mixer.mixPeriod();
+                elapsed += System.nanoTime() - start;
+            }
+        }
+
+        long nanosPerStreamPeriod = elapsed / mixed;
+        System.out.println("AudioMixer: " + nanosPerStreamPeriod + " ns per stream per 10 ms period");
+        // A period lasts 10 ms; mixing must stay a small fraction of it
+        assertTrue("mixing too slow: " + nanosPerStreamPeriod + " ns",
+                nanosPerStreamPeriod < 500_000);
+    }
+}
@@ -0,0 +1,426 @@
+package com.mediabox.airhome.audio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.mediabox.airhome.util.AllocationMeter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class AudioSpillQueueTest {
+    // The sizes the audio session uses: 2 s window, 32 MB file
+    private static final int WINDOW_BYTES = 2000 * 176;
+    private static final int SPILL_BYTES = 32 * 1024 * 1024;
+
+    // One 352-frame stereo packet
+    private static final int CHUNK_BYTES = 1408;
+
+    private static final File MAPS = new File("/proc/self/maps");
+    private static final File STATUS = new File("/proc/self/status");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AudioSpillQueue newQueue() {
+        return new AudioSpillQueue(folder.getRoot(), WINDOW_BYTES, SPILL_BYTES, Long.MAX_VALUE);
+    }
+
+    private static byte[] chunk(int index) {
+        byte[] data = new byte[CHUNK_BYTES];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (index + i);
+        }
+        return data;
+    }
+
+    /**
+     * Queue enough to fill the window and spill the given amount to the file
+     */
+    private static int spill(AudioSpillQueue queue, int spilledBytes) {
+        int chunks = (WINDOW_BYTES + spilledBytes) / CHUNK_BYTES;
+        for (int i = 0; i < chunks; i++) {
+            byte[] data = chunk(i);
+            queue.offer(data, 0, data.length);
+        }
+        return chunks;
+    }
+
+    private static int countSpillMappings() throws IOException {
+        int count = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(MAPS))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.contains("audio-spill")) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static long residentKilobytes() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(STATUS))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void spilledAudioComesBackInOrderWithGaps() {
+        AudioSpillQueue queue = newQueue();
+        int chunks = spill(queue, 1024 * 1024);
+        queue.offerGap(CHUNK_BYTES, 1);
+
+        for (int i = 0; i < chunks; i++) {
+            byte[] data = queue.poll();
+            assertArrayEquals("chunk " + i, chunk(i), data);
+            assertFalse(queue.wasGap());
+            queue.recycle(data);
+        }
+        assertEquals(CHUNK_BYTES, queue.poll().length);
+        assertTrue(queue.wasGap());
+        assertNull(queue.poll());
+        queue.close();
+    }
+
+    /**
+     * Queue packets 0-9, lose 10-14, queue 15-19, then make a ranged
+     * FLUSH to 12 the way the session does: keep the packets from 12 on.
+     * Only the last three lost packets and 15-19 may come out.
+     */
+    private static void flushIntoAGap(AudioSpillQueue queue) {
+        for (int i = 0; i < 10; i++) {
+            queue.offer(chunk(i), 0, CHUNK_BYTES);
+        }
+        queue.offerGap(5 * CHUNK_BYTES, 5);
+        for (int i = 15; i < 20; i++) {
+            queue.offer(chunk(i), 0, CHUNK_BYTES);
+        }
+
+        queue.retainNewest(19 - 12 + 1);
+        assertEquals(8 * CHUNK_BYTES, queue.getQueuedBytes());
+
+        byte[] gap = queue.poll();
+        assertTrue("pre-flush audio kept", queue.wasGap());
+        assertEquals(3 * CHUNK_BYTES, gap.length);
+        for (int i = 15; i < 20; i++) {
+            assertArrayEquals("packet " + i, chunk(i), queue.poll());
+            assertFalse(queue.wasGap());
+        }
+        assertNull(queue.poll());
+        queue.close();
+    }
+
+    @Test
+    public void rangedFlushCutsAGapInMemory() {
+        flushIntoAGap(new AudioSpillQueue(null, WINDOW_BYTES, 0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void rangedFlushCutsAGapInTheFile() {
+        // A window of four packets puts the gap and what follows in the file
+        flushIntoAGap(new AudioSpillQueue(folder.getRoot(), 4 * CHUNK_BYTES, SPILL_BYTES, Long.MAX_VALUE));
+    }
+
+    /**
+     * A loss too long to conceal queues no audio but still counts, so a
+     * FLUSH to a point after it keeps nothing from before it
+     */
+    @Test
+    public void rangedFlushCountsSkippedLosses() {
+        AudioSpillQueue queue = newQueue();
+        for (int i = 0; i < 10; i++) {
+            queue.offer(chunk(i), 0, CHUNK_BYTES);
+        }
+        queue.offerGap(0, 100);
+        for (int i = 110; i < 115; i++) {
+            queue.offer(chunk(i), 0, CHUNK_BYTES);
+        }
+
+        queue.retainNewest(114 - 105 + 1);
+        for (int i = 110; i < 115; i++) {
+            assertArrayEquals("packet " + i, chunk(i), queue.poll());
+        }
+        assertNull(queue.poll());
+
+        // Unflushed, the skipped loss never reaches the reader
+        queue.offer(chunk(1), 0, CHUNK_BYTES);
+        queue.offerGap(0, 50);
+        queue.offer(chunk(2), 0, CHUNK_BYTES);
+        assertArrayEquals(chunk(1), queue.poll());
+        assertArrayEquals(chunk(2), queue.poll());
+        assertFalse(queue.wasGap());
+        queue.close();
+    }
+
+    @Test
+    public void closedQueueHandsItsMappingOn() {
+        // Make sure one mapping exists, then cycle sessions through it
+        AudioSpillQueue first = newQueue();
+        spill(first, CHUNK_BYTES * 4);
+        first.close();
+
+        int created = AudioSpillQueue.getMappingsCreated();
+        for (int session = 0; session < 10; session++) {
+            AudioSpillQueue queue = newQueue();
+            int chunks = spill(queue, 256 * 1024);
+            for (int i = 0; i < chunks; i++) {
+                assertArrayEquals(chunk(i), queue.poll());
+            }
+            queue.close();
+        }
+        assertEquals("sessions mapped new files", created, AudioSpillQueue.getMappingsCreated());
+    }
+
+    @Test
+    public void unmapReleasesTheMappingRightAway() throws IOException {
+        assumeTrue(MAPS.canRead());
+        File file = folder.newFile("audio-spill-unmap.pcm");
+        int before = countSpillMappings();
+        MappedByteBuffer mapping;
+        try (RandomAccessFile access = new RandomAccessFile(file, "rw")) {
+            access.setLength(1024 * 1024);
+            mapping = access.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 1024 * 1024);
+        }
+        mapping.put(0, (byte) 1);
+        assertEquals(before + 1, countSpillMappings());
+
+        assertTrue("no way to unmap on this runtime", AudioSpillQueue.unmap(mapping));
+        assertEquals(before, countSpillMappings());
+    }
+
+    /**
+     * Resident memory across many sessions that each spill most of the
+     * file. Mappings left for the collector would each keep their touched
+     * pages resident; reused, the growth is bounded by one file.
+     */
+    @Test
+    public void residentMemoryStaysFlatAcrossSessions() throws IOException {
+        assumeTrue(STATUS.canRead() && MAPS.canRead());
+        // Warm up so the first mapping is not counted as growth
+        AudioSpillQueue warm = newQueue();
+        spill(warm, SPILL_BYTES / 2);
+        warm.close();
+
+        long before = residentKilobytes();
+        for (int session = 0; session < 16; session++) {
+            AudioSpillQueue queue = newQueue();
+            spill(queue, SPILL_BYTES / 2);
+            queue.close();
+        }
+        long growth = residentKilobytes() - before;
+        System.out.println("AudioSpillQueue: RSS grew " + growth + " kB over 16 sessions spilling "
+                + SPILL_BYTES / 2 / 1024 + " kB each; " + countSpillMappings() + " mapping(s) left");
+
+        assertTrue("more than one idle mapping", countSpillMappings() <= 1);
+        // Sixteen leaked mappings would add 16 x 16 MB
+        assertTrue("RSS grew " + growth + " kB", growth < 2 * SPILL_BYTES / 1024);
+    }
+
+    /**
+     * Once a few spare chunks exist, queueing a packet and handing it back
+     * allocates nothing, in memory or through the file
+     */
+    @Test
+    public void steadyStreamDoesNotAllocate() throws Exception {
+        assumeTrue(AllocationMeter.isSupported());
+        byte[] data = chunk(0);
+
+        AudioSpillQueue memory = new AudioSpillQueue(null, WINDOW_BYTES, 0, Long.MAX_VALUE);
+        double memoryBytes = AllocationMeter.bytesPerOperation(100_000, () -> {
+            memory.offer(data, 0, data.length);
+            memory.recycle(memory.poll());
+        });
+
+        AudioSpillQueue spilling = newQueue();
+        // Keep the window full so every packet passes through the file
+        spill(spilling, 0);
+        double spilledBytes = AllocationMeter.bytesPerOperation(100_000, () -> {
+            spilling.offer(data, 0, data.length);
+            spilling.recycle(spilling.poll());
+        });
+        spilling.close();
+
+        System.out.println(String.format("AudioSpillQueue: %.2f bytes allocated per packet in memory, "
+                + "%.2f through the file", memoryBytes, spilledBytes));
+        assertTrue(memoryBytes + " bytes per packet", memoryBytes < 1);
+        assertTrue(spilledBytes + " bytes per packet", spilledBytes < 1);
+    }
+
+    /**
+     * Cost per packet of audio that goes through the file, and of a
+     * session starting to spill and closing
+     */
+    @Test
+    public void benchmarkSpillCost() {
+        AudioSpillQueue queue = newQueue();
+        byte[] data = chunk(0);
+        // Keep the window full so everything offered passes through the file
+        spill(queue, 0);
+
+        int packets = 200_000;
+        long nanosPerPacket = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            // The first pass warms up the JIT and is not counted
+            long start = System.nanoTime();
+            for (int i = 0; i < packets; i++) {
+                queue.offer(data, 0, data.length);
+                queue.recycle(queue.poll());
+            }
+            nanosPerPacket = (System.nanoTime() - start) / packets;
+        }
+        queue.close();
+
+        int sessions = 50;
+        long start = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            AudioSpillQueue session = newQueue();
+            spill(session, CHUNK_BYTES);
+            session.close();
+        }
+        long microsPerSession = (System.nanoTime() - start) / sessions / 1000;
+
+        System.out.println("AudioSpillQueue: " + nanosPerPacket + " ns per spilled packet, "
+                + microsPerSession + " us per session open, spill and close");
+        // A packet lasts 8 ms
+        assertTrue("spilling too slow: " + nanosPerPacket + " ns", nanosPerPacket < 100_000);
+    }
+
+    /**
+     * The session's playback thread around a FLUSH, on a simulated clock:
+     * audio from the sender in real time, through a queue, into a
+     * {@link SimulatedSink} with an 80 ms buffer
+     */
+    private static final class FlushScenario {
+        static final int RATE = 44100;
+        static final int PACKET_FRAMES = CHUNK_BYTES / 4;
+        static final long PACKET_MICROS = PACKET_FRAMES * 1_000_000L / RATE;
+        // The session keeps the track fed with 10 ms blocks below 20 ms
+        static final int BLOCK_FRAMES = RATE / 100;
+        static final int LOW_WATER_FRAMES = 2 * BLOCK_FRAMES;
+
+        final AudioSpillQueue queue = new AudioSpillQueue(null, WINDOW_BYTES, 0, Long.MAX_VALUE);
+        final SimulatedSink sink = new SimulatedSink(RATE, 4, 4 * 1764);
+        final ByteBuffer direct = ByteBuffer.allocateDirect(CHUNK_BYTES);
+        final byte[] packet = new byte[CHUNK_BYTES];
+        long framesWritten;
+        long nextArrivalMicros;
+        boolean ranged;
+        boolean markPending;
+
+        FlushScenario() {
+            sink.setBufferSizeInFrames(2 * 1764);
+        }
+
+        /**
+         * Run the playback loop until the given time
+         */
+        void playUntil(long endMicros) {
+            while (sink.getNowMicros() < endMicros) {
+                while (nextArrivalMicros <= sink.getNowMicros()) {
+                    queue.offer(packet, 0, packet.length);
+                    nextArrivalMicros += PACKET_MICROS;
+                }
+                byte[] chunk = queue.poll();
+                if (chunk != null) {
+                    if (markPending) {
+                        sink.markNextFrame();
+                        markPending = false;
+                    }
+                    write(chunk.length);
+                    queue.recycle(chunk);
+                } else if (ranged && framesWritten - sink.getFramesPlayed() < LOW_WATER_FRAMES) {
+                    write(BLOCK_FRAMES * 4);
+                } else {
+                    sink.advance(10_000);
+                }
+            }
+        }
+
+        private void write(int bytes) {
+            sink.write(direct, bytes);
+            framesWritten += bytes / 4;
+        }
+
+        /**
+         * Play for a second, then FLUSH. The sender may already have sent
+         * some packets from the new position; it sends the rest in real
+         * time after the given delay.
+         *
+         * @return Microseconds from the FLUSH to the first audio from the
+         *         new position playing, and how many packets of it were lost
+         */
+        long[] flush(boolean ranged, long senderDelayMillis, int packetsAhead) {
+            playUntil(1_000_000L);
+            long flushAt = sink.getNowMicros();
+            for (int i = 0; i < packetsAhead; i++) {
+                queue.offer(packet, 0, packet.length);
+            }
+            long queuedAhead = queue.getQueuedBytes() / CHUNK_BYTES;
+            this.ranged = ranged;
+            if (ranged) {
+                queue.retainNewest(packetsAhead);
+            } else {
+                queue.clear();
+                sink.flush();
+                framesWritten = sink.getFramesPlayed();
+            }
+            long lost = Math.min(packetsAhead, queuedAhead) - queue.getQueuedBytes() / CHUNK_BYTES;
+            markPending = true;
+            nextArrivalMicros = flushAt + (packetsAhead > 0 ? PACKET_MICROS : senderDelayMillis * 1000);
+            playUntil(flushAt + 2_000_000L);
+            assertTrue("new position never played", sink.getMarkedPlayedAtMicros() > 0);
+            return new long[] {sink.getMarkedPlayedAtMicros() - flushAt, lost};
+        }
+    }
+
+    /**
+     * Time from a FLUSH to the first audio from the new position reaching
+     * the speaker, with the full flush the session used to do on every
+     * seek and skip, and with the ranged flush it now does when the FLUSH
+     * carries RTP-Info. A full flush empties the queue and the track,
+     * which then has to fill its buffer again before it plays; a ranged
+     * flush keeps the track playing, on silence once the old audio has
+     * run out. The sender is taken to resume 30 ms after a seek and
+     * 250 ms after a skip, or to have got ahead of its FLUSH.
+     */
+    @Test
+    public void benchmarkResumeAfterFlush() {
+        String[] names = {"seek", "skip", "sender ahead"};
+        long[] delays = {30, 250, 0};
+        int[] ahead = {0, 0, 4};
+        StringBuilder report = new StringBuilder("AudioSpillQueue: resume after FLUSH, full -> ranged:");
+        for (int i = 0; i < names.length; i++) {
+            long[] full = new FlushScenario().flush(false, delays[i], ahead[i]);
+            long[] ranged = new FlushScenario().flush(true, delays[i], ahead[i]);
+            report.append(String.format(" %s %d -> %d ms", names[i], full[0] / 1000, ranged[0] / 1000));
+            if (full[1] + ranged[1] > 0) {
+                report.append(String.format(" (%d -> %d packets of the new position lost)", full[1], ranged[1]));
+            }
+            report.append(';');
+            assertTrue(names[i] + " no faster", ranged[0] < full[0]);
+            assertEquals(names[i] + " lost audio", 0, ranged[1]);
+        }
+        System.out.println(report);
+    }
+}
@@ -0,0 +1,105 @@
+package com.mediabox.airhome.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.mediabox.airhome.util.AllocationMeter;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+public class BufferedAudioReceiverTest {
+    // One 352-frame stereo packet behind its RTP header
+    private static final int RTP_HEADER_BYTES = 12;
+    private static final int PAYLOAD_BYTES = 1408;
+    private static final int PACKET_BYTES = RTP_HEADER_BYTES + PAYLOAD_BYTES;
+
+    /**
+     * Packets as the sender writes them: a 2-byte length that counts
+     * itself, then the RTP header and payload
+     */
+    private static ByteBuffer stream(int packets) {
+        ByteBuffer stream = ByteBuffer.allocateDirect(packets * (2 + PACKET_BYTES));
+        for (int seqNo = 0; seqNo < packets; seqNo++) {
+            stream.putShort((short) (2 + PACKET_BYTES));
+            stream.put((byte) 0x80);
+            stream.put((byte) (seqNo >> 16)).put((byte) (seqNo >> 8)).put((byte) seqNo);
+            stream.putInt(seqNo * 352);
+            stream.putInt(0x12345678);
+            for (int i = 0; i < PAYLOAD_BYTES; i++) {
+                stream.put((byte) (seqNo + i));
+            }
+        }
+        stream.flip();
+        return stream;
+    }
+
+    private static Thread findThread(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (name.equals(thread.getName())) {
+                return thread;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Fill most of the ring over a loopback connection, with no anchor set
+     * so nothing plays out, and see what it costs the heap. Packets go
+     * from the socket straight into the off-heap ring, so the heap should
+     * barely notice megabytes of audio arriving.
+     */
+    @Test
+    public void fillingTheRingStaysOffTheHeap() throws Exception {
+        assumeTrue(AllocationMeter.isSupported());
+        BufferedAudioReceiver receiver = new BufferedAudioReceiver(null, "buffered-test", 44100, null);
+        int packets = receiver.getBufferSize() * 9 / 10 / PACKET_BYTES;
+        ByteBuffer stream = stream(packets);
+        int port = receiver.start();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+        try (SocketChannel sender = SocketChannel.open(new InetSocketAddress("127.0.0.1", port))) {
+            // Settle the heap, then count from the first packet in
+            System.gc();
+            long heapBefore = memory.getHeapMemoryUsage().getUsed();
+            long collectionsBefore = AllocationMeter.collectionCount();
+            long start = System.nanoTime();
+
+            while (stream.hasRemaining()) {
+                sender.write(stream);
+            }
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (receiver.getBufferedBytes() < packets * PACKET_BYTES
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            long nanos = System.nanoTime() - start;
+            Thread receiveThread = findThread("BufferedAudioReceive");
+            assertNotNull("receive thread", receiveThread);
+            long receiveAllocated = AllocationMeter.allocatedBytes(receiveThread);
+            long heapGrowth = memory.getHeapMemoryUsage().getUsed() - heapBefore;
+            long collections = AllocationMeter.collectionCount() - collectionsBefore;
+
+            assertEquals(packets * PACKET_BYTES, receiver.getBufferedBytes());
+            int bufferedKilobytes = receiver.getBufferedBytes() / 1024;
+            System.out.println(String.format("BufferedAudioReceiver: %d kB buffered (%.1f s of PCM) in %d ms;"
+                            + " heap grew %d kB, %d collections, receive thread allocated %d bytes in total",
+                    bufferedKilobytes, packets * 352 / 44100.0, nanos / 1_000_000,
+                    heapGrowth / 1024, collections, receiveAllocated));
+
+            // Its one log line and the accept, whatever the amount of audio
+            assertTrue(receiveAllocated + " bytes allocated receiving", receiveAllocated < 64 * 1024);
+            // Copies on the heap would grow it by the buffered amount
+            assertTrue("heap grew " + heapGrowth / 1024 + " kB", heapGrowth < bufferedKilobytes * 1024L / 8);
+        } finally {
+            receiver.stop();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.mediabox.airhome.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class DspChainTest {
+    private static final int RATE = 44100;
+
+    // One packet's worth of interleaved stereo samples, as the playback
+    // thread hands them over
+    private static final int BUFFER_SAMPLES = 352 * 2;
+
+    private static DspChain chain(String bands, boolean loudness, float targetDb) {
+        DspChain chain = new DspChain(RATE, null);
+        chain.configure(bands, loudness, targetDb);
+        return chain;
+    }
+
+    /**
+     * Run a sine through the chain and measure its gain in dB once the
+     * filters have settled
+     */
+    private static double gainDb(DspChain chain, double frequency) {
+        float[] buffer = new float[BUFFER_SAMPLES];
+        double inputPower = 0;
+        double outputPower = 0;
+        long frame = 0;
+        // Half a second to settle, then half a second measured
+        int buffers = RATE / (BUFFER_SAMPLES / 2);
+        for (int b = 0; b < buffers; b++) {
+            for (int i = 0; i < BUFFER_SAMPLES; i += 2, frame++) {
+                float value = (float) (0.1 * Math.sin(2 * Math.PI * frequency * frame / RATE));
+                buffer[i] = value;
+                buffer[i + 1] = value;
+                if (b >= buffers / 2) {
+                    inputPower += value * value;
+                }
+            }
+            chain.process(buffer, BUFFER_SAMPLES);
+            if (b >= buffers / 2) {
+                for (int i = 0; i < BUFFER_SAMPLES; i += 2) {
+                    outputPower += buffer[i] * buffer[i];
+                }
+            }
+        }
+        return 10 * Math.log10(outputPower / inputPower);
+    }
+
+    @Test
+    public void peakingBandHasItsGainAtTheCenterOnly() {
+        DspChain boost = chain("1000:6:1.0", false, 0f);
+        assertEquals(6.0, gainDb(boost, 1000), 0.1);
+        assertEquals(0.0, gainDb(chain("1000:6:1.0", false, 0f), 30), 0.2);
+        assertEquals(0.0, gainDb(chain("1000:6:1.0", false, 0f), 18000), 0.2);
+
+        assertEquals(-9.0, gainDb(chain("250:-9:2.0", false, 0f), 250), 0.1);
+    }
+
+    @Test
+    public void bandsCascade() {
+        // Two bands far apart each keep their own gain
+        assertEquals(4.0, gainDb(chain("100:4:1.0;8000:-3:1.0", false, 0f), 100), 0.2);
+        assertEquals(-3.0, gainDb(chain("100:4:1.0;8000:-3:1.0", false, 0f), 8000), 0.2);
+        // Two identical bands add up
+        assertEquals(6.0, gainDb(chain("1000:3:1.0;1000:3:1.0", false, 0f), 1000), 0.1);
+    }
+
+    @Test
+    public void invalidBandsAreSkipped() {
+        float[] buffer = new float[BUFFER_SAMPLES];
+        for (int i = 0; i < buffer.length; i++) {
+            buffer[i] = (float) Math.sin(i * 0.01);
+        }
+        float[] expected = buffer.clone();
+        // Flat, no Q, above Nyquist, negative frequency, malformed
+        chain("1000:0:1.0;1000:6:0;30000:6:1.0;-5:6:1.0;abc:1:1", false, 0f)
+                .process(buffer, buffer.length);
+        for (int i = 0; i < buffer.length; i++) {
+            assertEquals(expected[i], buffer[i], 0f);
+        }
+    }
+
+    @Test
+    public void limiterHoldsTheCeiling() {
+        // A target far above the signal drives the gain to its +12 dB limit
+        DspChain chain = chain("", true, 0f);
+        float[] buffer = new float[BUFFER_SAMPLES];
+        float loudest = 0;
+        long frame = 0;
+        for (int b = 0; b < 1000; b++) {
+            for (int i = 0; i < BUFFER_SAMPLES; i += 2, frame++) {
+                // A steady tone with occasional full-scale spikes
+                float value = (float) (0.3 * Math.sin(2 * Math.PI * 440 * frame / RATE));
+                if (frame % 5000 == 0) {
+                    value = 1f;
+                }
+                buffer[i] = value;
+                buffer[i + 1] = -value;
+            }
+            chain.process(buffer, BUFFER_SAMPLES);
+            for (float sample : buffer) {
+                loudest = Math.max(loudest, Math.abs(sample));
+            }
+        }
+        assertTrue("peak " + loudest + " above the ceiling", loudest <= DspChain.LIMITER_CEILING + 1e-6f);
+        assertTrue("limiter not engaged: " + loudest, loudest > DspChain.LIMITER_CEILING * 0.99f);
+    }
+
+    /**
+     * Cost of one EQ band on one packet-sized buffer, and of loudness
+     * normalization with the limiter
+     */
+    @Test
+    public void benchmarkCostPerBandPerBuffer() {
+        float[] buffer = new float[BUFFER_SAMPLES];
+        for (int i = 0; i < buffer.length; i++) {
+            buffer[i] = (float) Math.sin(i * 0.05) * 0.2f;
+        }
+        StringBuilder bands = new StringBuilder();
+        for (int band = 0; band < DspChain.MAX_BANDS; band++) {
+            if (band > 0) {
+                bands.append(';');
+            }
+            bands.append(100 * (band + 1)).append(band % 2 == 0 ? ":3:1.0" : ":-3:1.0");
+        }
+
+        int buffers = 50_000;
+        DspChain eq = chain(bands.toString(), false, 0f);
+        DspChain loudness = chain("", true, -20f);
+        long eqNanos = 0;
+        long loudnessNanos = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            // The first pass warms up the JIT and is not counted
+            long start = System.nanoTime();
+            for (int i = 0; i < buffers; i++) {
+                eq.process(buffer, BUFFER_SAMPLES);
+            }
+            long middle = System.nanoTime();
+            for (int i = 0; i < buffers; i++) {
+                loudness.process(buffer, BUFFER_SAMPLES);
+            }
+            eqNanos = middle - start;
+            loudnessNanos = System.nanoTime() - middle;
+        }
+
+        long perBand = eqNanos / buffers / DspChain.MAX_BANDS;
+        long perLoudness = loudnessNanos / buffers;
+        System.out.println("DspChain: " + perBand + " ns per band per 352-frame buffer, "
+                + perLoudness + " ns for loudness and limiter");
+        // A buffer lasts 8 ms; eight bands must stay a small fraction of it
+        assertTrue("EQ too slow: " + perBand + " ns per band", perBand < 100_000);
+    }
+}
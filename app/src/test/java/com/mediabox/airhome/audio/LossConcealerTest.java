@@ -0,0 +1,221 @@
+package com.mediabox.airhome.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import static org.junit.Assume.assumeTrue;
+
+import com.mediabox.airhome.util.AllocationMeter;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class LossConcealerTest {
+    private static final int RATE = 44100;
+
+    // One AirPlay packet: 352 stereo frames, about 8 ms
+    private static final int PACKET_FRAMES = 352;
+    private static final int PACKET_SAMPLES = PACKET_FRAMES * 2;
+
+    // Output is judged in 5 ms blocks, shorter than a packet so a lost
+    // packet always covers one; a block this far below the signal's level
+    // is heard as a dropout
+    private static final int BLOCK_FRAMES = 220;
+    private static final double GAP_LEVEL = 0.25;
+
+    private static final double AMPLITUDE = 0.5;
+
+    /**
+     * A voiced, periodic test signal: 220 Hz with its second harmonic
+     */
+    private static float signal(long frame) {
+        double t = frame / (double) RATE;
+        return (float) (AMPLITUDE * (0.7 * Math.sin(2 * Math.PI * 220 * t)
+                + 0.3 * Math.sin(2 * Math.PI * 440 * t)));
+    }
+
+    private static void fillPacket(float[] samples, long firstFrame) {
+        for (int frame = 0; frame < PACKET_FRAMES; frame++) {
+            float value = signal(firstFrame + frame);
+            samples[frame * 2] = value;
+            samples[frame * 2 + 1] = value;
+        }
+    }
+
+    private static double rms(float[] samples, int from, int count) {
+        double sum = 0;
+        for (int i = from; i < from + count; i++) {
+            sum += samples[i] * samples[i];
+        }
+        return Math.sqrt(sum / count);
+    }
+
+    /**
+     * Count runs of quiet blocks: each run is one audible gap
+     */
+    private static int countGaps(float[] output, int frames) {
+        double reference = AMPLITUDE * Math.sqrt((0.7 * 0.7 + 0.3 * 0.3) / 2);
+        int gaps = 0;
+        boolean inGap = false;
+        for (int block = 0; block + BLOCK_FRAMES <= frames; block += BLOCK_FRAMES) {
+            boolean quiet = rms(output, block * 2, BLOCK_FRAMES * 2) < reference * GAP_LEVEL;
+            if (quiet && !inGap) {
+                gaps++;
+            }
+            inGap = quiet;
+        }
+        return gaps;
+    }
+
+    /**
+     * Play a stream through the concealer the way the playback thread
+     * does. Packets are lost at the given rate, and packets that arrive
+     * later than the buffer depth allows are lost too.
+     *
+     * @return The output, interleaved
+     */
+    private static float[] play(int packets, double lossRate, int bufferMillis, boolean conceal, long seed) {
+        Random random = new Random(seed);
+        LossConcealer concealer = new LossConcealer();
+        float[] output = new float[packets * PACKET_SAMPLES];
+        float[] samples = new float[PACKET_SAMPLES];
+
+        for (int packet = 0; packet < packets; packet++) {
+            // Network delay beyond the minimum: mostly small, with a long tail
+            double jitterMillis = -12 * Math.log(1 - random.nextDouble());
+            boolean lost = random.nextDouble() < lossRate || jitterMillis > bufferMillis;
+
+            if (lost) {
+                if (conceal) {
+                    concealer.conceal(samples, PACKET_SAMPLES);
+                } else {
+                    Arrays.fill(samples, 0f);
+                }
+            } else {
+                fillPacket(samples, (long) packet * PACKET_FRAMES);
+                if (conceal) {
+                    concealer.accept(samples, PACKET_SAMPLES);
+                }
+            }
+            System.arraycopy(samples, 0, output, packet * PACKET_SAMPLES, PACKET_SAMPLES);
+        }
+        return output;
+    }
+
+    @Test
+    public void concealmentKeepsTheSignalLevel() {
+        LossConcealer concealer = new LossConcealer();
+        float[] samples = new float[PACKET_SAMPLES];
+        for (int packet = 0; packet < 20; packet++) {
+            fillPacket(samples, (long) packet * PACKET_FRAMES);
+            concealer.accept(samples, PACKET_SAMPLES);
+        }
+        double real = rms(samples, 0, PACKET_SAMPLES);
+
+        concealer.conceal(samples, PACKET_SAMPLES);
+        double concealed = rms(samples, 0, PACKET_SAMPLES);
+        // The first packet of concealment has faded by at most 13%
+        assertTrue("concealment too quiet: " + concealed + " vs " + real, concealed > real * 0.75);
+    }
+
+    @Test
+    public void longDropoutFadesToSilence() {
+        LossConcealer concealer = new LossConcealer();
+        float[] samples = new float[PACKET_SAMPLES];
+        for (int packet = 0; packet < 20; packet++) {
+            fillPacket(samples, (long) packet * PACKET_FRAMES);
+            concealer.accept(samples, PACKET_SAMPLES);
+        }
+        // 60 ms of fade ends within the eighth packet
+        for (int packet = 0; packet < 8; packet++) {
+            assertTrue(concealer.canConcealMore());
+            concealer.conceal(samples, PACKET_SAMPLES);
+        }
+        assertFalse("no drone after the fade", concealer.canConcealMore());
+        concealer.conceal(samples, PACKET_SAMPLES);
+        assertEquals(0.0, rms(samples, 0, PACKET_SAMPLES), 0.0);
+    }
+
+    @Test
+    public void realAudioBlendsBackInWithoutAJump() {
+        LossConcealer concealer = new LossConcealer();
+        float[] samples = new float[PACKET_SAMPLES];
+        for (int packet = 0; packet < 20; packet++) {
+            fillPacket(samples, (long) packet * PACKET_FRAMES);
+            concealer.accept(samples, PACKET_SAMPLES);
+        }
+        concealer.conceal(samples, PACKET_SAMPLES);
+        float last = samples[PACKET_SAMPLES - 2];
+
+        fillPacket(samples, 21L * PACKET_FRAMES);
+        concealer.accept(samples, PACKET_SAMPLES);
+        // A hard cut could jump by up to twice the amplitude
+        assertTrue("discontinuity of " + Math.abs(samples[0] - last),
+                Math.abs(samples[0] - last) < 0.1);
+    }
+
+    /**
+     * Accepting real audio and concealing a loss run on the playback
+     * thread for every packet and must not allocate
+     */
+    @Test
+    public void concealmentDoesNotAllocate() throws Exception {
+        assumeTrue(AllocationMeter.isSupported());
+        LossConcealer concealer = new LossConcealer();
+        float[] samples = new float[PACKET_SAMPLES];
+        long[] frame = {0};
+        double bytes = AllocationMeter.bytesPerOperation(20_000, () -> {
+            fillPacket(samples, frame[0]);
+            frame[0] += PACKET_FRAMES;
+            concealer.accept(samples, PACKET_SAMPLES);
+            // Every fourth packet is lost
+            if (frame[0] % (4 * PACKET_FRAMES) == 0) {
+                concealer.conceal(samples, PACKET_SAMPLES);
+            }
+        });
+        System.out.println(String.format("LossConcealer: %.2f bytes allocated per packet", bytes));
+        assertTrue(bytes + " bytes per packet", bytes < 1);
+    }
+
+    /**
+     * Audible gaps per minute by loss rate and buffer depth, with and
+     * without concealment. A loss in the first 25 ms, before there is
+     * enough history to find a period, is still heard.
+     */
+    @Test
+    public void audibleGapsByLossRateAndBufferDepth() {
+        double[] lossRates = {0.01, 0.05, 0.10, 0.20};
+        int[] bufferMillis = {20, 50, 100, 200};
+        // One minute of packets
+        int packets = 60 * RATE / PACKET_FRAMES;
+
+        StringBuilder table = new StringBuilder("LossConcealer: audible gaps per minute, concealed / silent fill\n");
+        table.append("  loss  ");
+        for (int depth : bufferMillis) {
+            table.append(String.format("%12s", depth + " ms"));
+        }
+        table.append('\n');
+
+        for (double lossRate : lossRates) {
+            table.append(String.format("  %3.0f%%  ", lossRate * 100));
+            for (int depth : bufferMillis) {
+                int concealed = countGaps(play(packets, lossRate, depth, true, 1), packets * PACKET_FRAMES);
+                int silent = countGaps(play(packets, lossRate, depth, false, 1), packets * PACKET_FRAMES);
+                table.append(String.format("%12s", concealed + " / " + silent));
+
+                assertTrue("concealment added gaps at " + lossRate + ", " + depth + " ms",
+                        concealed <= silent);
+                if (depth >= 50 && lossRate <= 0.05) {
+                    // Isolated losses are bridged; only long bursts should be heard
+                    assertTrue(concealed + " gaps at " + lossRate + ", " + depth + " ms",
+                            concealed <= silent / 10);
+                }
+            }
+            table.append('\n');
+        }
+        System.out.print(table);
+    }
+}
@@ -0,0 +1,161 @@
+package com.mediabox.airhome.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Drives the controller against a {@link SimulatedSink} on a simulated
+ * clock, which underruns whenever the playback thread stalls for longer
+ * than its buffer lasts
+ */
+public class OutputBufferControllerTest {
+    private static final int RATE = 48000;
+    private static final int BYTES_PER_FRAME = 4;
+    private static final int PACKET_FRAMES = 352;
+    private static final long CHECK_INTERVAL_MILLIS = 100;
+
+    // 170 ms of capacity, starting at half of it as sessions do
+    private static final int CAPACITY = 8192;
+    private static final int START = CAPACITY / 2;
+
+    /**
+     * The playback thread: writes packets as fast as the track takes
+     * them, stalling now and then, and checks the buffer every interval
+     * as the session does
+     */
+    private static final class Player {
+        final SimulatedSink sink;
+        final OutputBufferController controller;
+        final ByteBuffer packet = ByteBuffer.allocateDirect(PACKET_FRAMES * BYTES_PER_FRAME);
+        long nextCheckAt;
+        int grows;
+        int shrinks;
+
+        Player(int capacity, int start) {
+            sink = new SimulatedSink(RATE, BYTES_PER_FRAME, capacity);
+            controller = new OutputBufferController(start, capacity, 0);
+            controller.start(sink, 0);
+            nextCheckAt = CHECK_INTERVAL_MILLIS;
+        }
+
+        /**
+         * Play for the given time, stalling for the given time once per
+         * period, and return the underruns the track counted meanwhile
+         *
+         * @param starved Whether the stalls are the sender's, with no
+         *                audio to write, rather than the playback thread's
+         */
+        int play(long millis, long stallMillis, long periodMillis, boolean starved) {
+            int underrunsBefore = sink.getUnderrunCount();
+            long end = sink.getNowMillis() + millis;
+            long nextStallAt = sink.getNowMillis() + periodMillis;
+            boolean starvedSinceCheck = false;
+            while (sink.getNowMillis() < end) {
+                if (stallMillis > 0 && sink.getNowMillis() >= nextStallAt) {
+                    sink.advance(stallMillis * 1000);
+                    nextStallAt += periodMillis;
+                    starvedSinceCheck |= starved;
+                }
+                sink.write(packet, packet.capacity());
+                if (sink.getNowMillis() >= nextCheckAt) {
+                    nextCheckAt = sink.getNowMillis() + CHECK_INTERVAL_MILLIS;
+                    int previous = controller.getTargetFrames();
+                    int frames = controller.check(sink, starvedSinceCheck, sink.getNowMillis());
+                    starvedSinceCheck = false;
+                    if (frames > 0) {
+                        if (frames > previous) {
+                            grows++;
+                        } else {
+                            shrinks++;
+                        }
+                    }
+                }
+            }
+            return sink.getUnderrunCount() - underrunsBefore;
+        }
+
+        long bufferMillis() {
+            return controller.getTargetFrames() * 1000L / RATE;
+        }
+    }
+
+    @Test
+    public void startsAtTheStartingSize() {
+        Player player = new Player(CAPACITY, START);
+        assertEquals(START, player.controller.getTargetFrames());
+        assertEquals(START, player.sink.getBufferFrames());
+        // A steady thread never underruns and never resizes
+        assertEquals(0, player.play(30_000, 0, 1000, false));
+        assertEquals(0, player.grows + player.shrinks);
+    }
+
+    /**
+     * Stalls longer than the buffer underrun until it has grown past
+     * them, then stop; the buffer stays within the track's capacity
+     */
+    @Test
+    public void growsUntilStallsNoLongerUnderrun() {
+        Player player = new Player(CAPACITY, CAPACITY / 8);
+        // 50 ms stalls every half second against a 21 ms buffer
+        int early = player.play(5_000, 50, 500, false);
+        int late = player.play(5_000, 50, 500, false);
+
+        System.out.println("OutputBufferController: " + early + " underruns in the first 5 s, " + late
+                + " in the next, buffer grown " + player.grows + " times to " + player.bufferMillis() + " ms");
+        assertTrue("no underruns to react to", early > 0);
+        assertEquals("still underrunning", 0, late);
+        assertTrue(player.bufferMillis() >= 50);
+        assertTrue(player.controller.getTargetFrames() <= CAPACITY);
+    }
+
+    /**
+     * Once the stalls stop the buffer shrinks back to where it started,
+     * a step at a time and only after a stable run
+     */
+    @Test
+    public void shrinksBackAfterRecovery() {
+        Player player = new Player(CAPACITY, CAPACITY / 8);
+        player.play(5_000, 50, 500, false);
+        int grown = player.controller.getTargetFrames();
+        assertTrue(grown > CAPACITY / 8);
+
+        // The last growth was within the 5 s above, so this is still
+        // short of a stable run and nothing changes yet
+        player.play(OutputBufferController.STABLE_MILLIS - 5_500, 0, 1000, false);
+        assertEquals(grown, player.controller.getTargetFrames());
+
+        assertEquals(0, player.play(120_000, 0, 1000, false));
+        assertEquals(CAPACITY / 8, player.controller.getTargetFrames());
+        assertTrue("shrank in one step", player.shrinks > 1);
+    }
+
+    /**
+     * Underruns while the sender had nothing to send are not the
+     * buffer's fault and leave it alone
+     */
+    @Test
+    public void starvedUnderrunsAreIgnored() {
+        Player player = new Player(CAPACITY, START);
+        int underruns = player.play(10_000, 200, 1000, true);
+        assertTrue(underruns > 0);
+        assertEquals(0, player.grows);
+        assertEquals(START, player.controller.getTargetFrames());
+    }
+
+    /**
+     * Stalls longer than the whole capacity grow the buffer to the
+     * capacity and no further
+     */
+    @Test
+    public void growthStopsAtCapacity() {
+        Player player = new Player(CAPACITY, START);
+        int underruns = player.play(10_000, 400, 1000, false);
+        assertTrue(underruns > 0);
+        assertEquals(CAPACITY, player.controller.getTargetFrames());
+        assertEquals(CAPACITY, player.sink.getBufferFrames());
+    }
+}
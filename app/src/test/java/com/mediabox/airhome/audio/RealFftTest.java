@@ -0,0 +1,120 @@
+package com.mediabox.airhome.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.mediabox.airhome.util.AllocationMeter;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class RealFftTest {
+    /**
+     * Magnitudes of bins 0 to N/2 - 1 by the plain definition
+     */
+    private static float[] dft(float[] input) {
+        int n = input.length;
+        float[] magnitudes = new float[n / 2];
+        for (int k = 0; k < n / 2; k++) {
+            double re = 0;
+            double im = 0;
+            for (int t = 0; t < n; t++) {
+                double angle = -2 * Math.PI * k * t / n;
+                re += input[t] * Math.cos(angle);
+                im += input[t] * Math.sin(angle);
+            }
+            magnitudes[k] = (float) Math.hypot(re, im);
+        }
+        return magnitudes;
+    }
+
+    @Test
+    public void matchesTheDefinition() {
+        Random random = new Random(1);
+        for (int size = 4; size <= 1024; size *= 2) {
+            float[] input = new float[size];
+            for (int i = 0; i < size; i++) {
+                input[i] = random.nextFloat() * 2 - 1;
+            }
+            float[] copy = input.clone();
+            float[] magnitudes = new float[size / 2];
+            new RealFft(size).magnitudes(input, magnitudes);
+
+            float[] expected = dft(input);
+            for (int k = 0; k < size / 2; k++) {
+                assertEquals("size " + size + " bin " + k, expected[k], magnitudes[k], 1e-3f * size);
+            }
+            for (int i = 0; i < size; i++) {
+                assertEquals("input changed", copy[i], input[i], 0f);
+            }
+        }
+    }
+
+    @Test
+    public void sineLandsInItsBin() {
+        int size = 1024;
+        float[] input = new float[size];
+        float[] magnitudes = new float[size / 2];
+        RealFft fft = new RealFft(size);
+        for (int bin : new int[] {1, 37, 100, 511}) {
+            for (int i = 0; i < size; i++) {
+                input[i] = (float) Math.cos(2 * Math.PI * bin * i / size);
+            }
+            fft.magnitudes(input, magnitudes);
+            // A full-scale cosine on a bin holds half the block's energy there
+            assertEquals(size / 2f, magnitudes[bin], 0.01f * size);
+            for (int k = 0; k < size / 2; k++) {
+                if (k != bin) {
+                    assertTrue("leak into bin " + k + ": " + magnitudes[k], magnitudes[k] < 0.01f);
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sizeMustBeAPowerOfTwo() {
+        new RealFft(1000);
+    }
+
+    @Test
+    public void transformDoesNotAllocate() throws Exception {
+        assumeTrue(AllocationMeter.isSupported());
+        RealFft fft = new RealFft(1024);
+        float[] input = new float[1024];
+        float[] magnitudes = new float[512];
+        double bytes = AllocationMeter.bytesPerOperation(10_000, () -> fft.magnitudes(input, magnitudes));
+        assertTrue(bytes + " bytes per transform", bytes < 1);
+    }
+
+    /**
+     * Cost of one transform of the analyzer's block size, against the
+     * 16 ms between analyses
+     */
+    @Test
+    public void benchmarkTransform() {
+        RealFft fft = new RealFft(1024);
+        float[] input = new float[1024];
+        Random random = new Random(2);
+        for (int i = 0; i < input.length; i++) {
+            input[i] = random.nextFloat() * 2 - 1;
+        }
+        float[] magnitudes = new float[512];
+
+        int transforms = 50_000;
+        long nanos = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            // The first pass warms up the JIT and is not counted
+            long start = System.nanoTime();
+            for (int i = 0; i < transforms; i++) {
+                fft.magnitudes(input, magnitudes);
+            }
+            nanos = (System.nanoTime() - start) / transforms;
+        }
+
+        System.out.println("RealFft: " + nanos / 1000.0 + " us per 1024-sample transform");
+        // Analysis runs once per 16 ms frame
+        assertTrue("FFT too slow: " + nanos + " ns", nanos < 1_000_000);
+    }
+}
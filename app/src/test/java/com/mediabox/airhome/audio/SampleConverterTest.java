@@ -0,0 +1,185 @@
+package com.mediabox.airhome.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import static org.junit.Assume.assumeTrue;
+
+import com.mediabox.airhome.util.AllocationMeter;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class SampleConverterTest {
+
+    private static short pcm16(byte[] pcm, int sample) {
+        return (short) ((pcm[sample * 2] & 0xFF) | (pcm[sample * 2 + 1] << 8));
+    }
+
+    @Test
+    public void decodes16BitExactly() {
+        byte[] in = new byte[65536 * 2];
+        for (int value = Short.MIN_VALUE, p = 0; value <= Short.MAX_VALUE; value++, p += 2) {
+            in[p] = (byte) value;
+            in[p + 1] = (byte) (value >> 8);
+        }
+        float[] out = new float[65536];
+        assertEquals(65536, SampleConverter.decode(in, 0, in.length, 16, out));
+        for (int i = 0; i < out.length; i++) {
+            assertEquals((i + Short.MIN_VALUE) / 32768f, out[i], 0f);
+        }
+    }
+
+    @Test
+    public void signExtends24BitSamples() {
+        // Little-endian 24-bit: most negative, -1, 0, +1, most positive
+        byte[] in = {
+                0x00, 0x00, (byte) 0x80,
+                (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                0x00, 0x00, 0x00,
+                0x01, 0x00, 0x00,
+                (byte) 0xFF, (byte) 0xFF, 0x7F,
+                // A partial trailing sample is ignored
+                0x12
+        };
+        float[] out = new float[5];
+        assertEquals(5, SampleConverter.decode(in, 0, in.length, 24, out));
+        assertEquals(-1f, out[0], 0f);
+        assertEquals(-1f / 8388608f, out[1], 0f);
+        assertEquals(0f, out[2], 0f);
+        assertEquals(1f / 8388608f, out[3], 0f);
+        assertEquals(8388607f / 8388608f, out[4], 0f);
+    }
+
+    @Test
+    public void decodes32BitAndHonorsOffset() {
+        byte[] in = {0x55, 0x00, 0x00, 0x00, (byte) 0x80, 0x00, 0x00, 0x00, 0x40};
+        float[] out = new float[2];
+        assertEquals(2, SampleConverter.decode(in, 1, 8, 32, out));
+        assertEquals(-1f, out[0], 0f);
+        assertEquals(0.5f, out[1], 0f);
+    }
+
+    @Test
+    public void encodeSaturatesOutOfRangeSamples() {
+        float[] in = {2f, 1f, -1f, -2f, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        byte[] out = new byte[in.length * 2];
+        new SampleConverter().encodePcm16(in, in.length, out);
+        assertEquals(Short.MAX_VALUE, pcm16(out, 0));
+        assertEquals(Short.MAX_VALUE, pcm16(out, 1));
+        assertEquals(Short.MIN_VALUE, pcm16(out, 2));
+        assertEquals(Short.MIN_VALUE, pcm16(out, 3));
+        assertEquals(Short.MAX_VALUE, pcm16(out, 4));
+        assertEquals(Short.MIN_VALUE, pcm16(out, 5));
+    }
+
+    @Test
+    public void ditherStaysWithinOneLsbAndAveragesOut() {
+        SampleConverter converter = new SampleConverter();
+        int count = 100_000;
+        float[] in = new float[count];
+        // Between two codes, where truncation would always round the same way
+        float value = 1000.25f / 32768f;
+        Arrays.fill(in, value);
+        byte[] out = new byte[count * 2];
+        converter.encodePcm16(in, count, out);
+
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            int sample = pcm16(out, i);
+            assertTrue("dither too large: " + sample, sample >= 999 && sample <= 1001);
+            sum += sample;
+        }
+        assertEquals(1000.25, sum / (double) count, 0.01);
+    }
+
+    @Test
+    public void roundTripOf16BitIsWithinOneLsb() {
+        byte[] in = new byte[4096];
+        for (int i = 0; i < in.length; i++) {
+            in[i] = (byte) (i * 37);
+        }
+        float[] samples = new float[in.length / 2];
+        SampleConverter.decode(in, 0, in.length, 16, samples);
+        byte[] out = new byte[in.length];
+        new SampleConverter().encodePcm16(samples, samples.length, out);
+        for (int i = 0; i < samples.length; i++) {
+            assertTrue(Math.abs(pcm16(in, i) - pcm16(out, i)) <= 1);
+        }
+    }
+
+    /**
+     * The kernels run for every packet on the playback thread and must not
+     * allocate
+     */
+    @Test
+    public void kernelsDoNotAllocate() throws Exception {
+        assumeTrue(AllocationMeter.isSupported());
+        byte[] pcm = new byte[352 * 2 * 3];
+        float[] samples = new float[352 * 2];
+        SampleConverter converter = new SampleConverter();
+
+        double decode16 = AllocationMeter.bytesPerOperation(100_000,
+                () -> SampleConverter.decode(pcm, 0, samples.length * 2, 16, samples));
+        double decode24 = AllocationMeter.bytesPerOperation(100_000,
+                () -> SampleConverter.decode(pcm, 0, pcm.length, 24, samples));
+        double encode = AllocationMeter.bytesPerOperation(100_000,
+                () -> converter.encodePcm16(samples, samples.length, pcm));
+
+        System.out.println(String.format("SampleConverter: bytes allocated per packet decode16 %.2f, "
+                + "decode24 %.2f, encodePcm16 %.2f", decode16, decode24, encode));
+        assertTrue(decode16 < 1);
+        assertTrue(decode24 < 1);
+        assertTrue(encode < 1);
+    }
+
+    /**
+     * Cost per million samples of each kernel, the unit the playback
+     * thread's budget is worked out in
+     */
+    @Test
+    public void benchmarkKernelsPerMillionSamples() {
+        int samples = 1 << 20;
+        byte[] pcm16 = new byte[samples * 2];
+        byte[] pcm24 = new byte[samples * 3];
+        for (int i = 0; i < pcm24.length; i++) {
+            pcm24[i] = (byte) (i * 31);
+            if (i < pcm16.length) {
+                pcm16[i] = (byte) (i * 17);
+            }
+        }
+        float[] floats = new float[samples];
+        SampleConverter converter = new SampleConverter();
+
+        long decode16 = 0;
+        long decode24 = 0;
+        long encode16 = 0;
+        int rounds = 20;
+        for (int pass = 0; pass < 2; pass++) {
+            // The first pass warms up the JIT and is not counted
+            decode16 = 0;
+            decode24 = 0;
+            encode16 = 0;
+            for (int round = 0; round < rounds; round++) {
+                long start = System.nanoTime();
+                SampleConverter.decode(pcm16, 0, pcm16.length, 16, floats);
+                long decoded16 = System.nanoTime();
+                converter.encodePcm16(floats, samples, pcm16);
+                long encoded = System.nanoTime();
+                SampleConverter.decode(pcm24, 0, pcm24.length, 24, floats);
+                decode24 += System.nanoTime() - encoded;
+                encode16 += encoded - decoded16;
+                decode16 += decoded16 - start;
+            }
+        }
+
+        double scale = 1e6 / samples / rounds / 1000;
+        System.out.println(String.format("SampleConverter: per million samples decode16 %.0f us, "
+                        + "decode24 %.0f us, encodePcm16 %.0f us",
+                decode16 * scale, decode24 * scale, encode16 * scale));
+        // A million samples is about 11 s of stereo audio at 44.1 kHz
+        assertTrue(encode16 * scale < 100_000);
+        assertTrue(decode24 * scale < 100_000);
+    }
+}
@@ -0,0 +1,138 @@
+package com.mediabox.airhome.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SessionRegistryTest {
+    private static final class TestSession implements SessionRegistry.Session {
+        final String id;
+        final SessionLifecycle lifecycle = new SessionLifecycle();
+        final AtomicInteger preemptedBy = new AtomicInteger();
+
+        TestSession(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public String getSessionId() {
+            return id;
+        }
+
+        @Override
+        public SessionLifecycle getLifecycle() {
+            return lifecycle;
+        }
+    }
+
+    @Test
+    public void takeoverPreemptsThePreviousOwner() {
+        SessionRegistry<TestSession> registry = new SessionRegistry<>();
+        TestSession first = new TestSession("a");
+        TestSession second = new TestSession("b");
+
+        assertTrue(registry.add(first));
+        assertNull(registry.takeOver(first));
+        assertTrue(first.lifecycle.start());
+
+        assertTrue(registry.add(second));
+        assertSame(first, registry.takeOver(second));
+        assertEquals(SessionState.PREEMPTED, first.lifecycle.get());
+        assertNull("preempted session still addressable", registry.get("a"));
+        assertSame(second, registry.getActive());
+    }
+
+    @Test
+    public void removingTheOwnerReleasesTheOutput() {
+        SessionRegistry<TestSession> registry = new SessionRegistry<>();
+        TestSession session = new TestSession("a");
+        registry.add(session);
+        registry.takeOver(session);
+
+        assertSame(session, registry.remove("a"));
+        assertNull(registry.getActive());
+    }
+
+    @Test
+    public void concurrentTakeoversLeaveOneOwner() throws Exception {
+        int threads = 8;
+        int rounds = 20_000;
+        SessionRegistry<TestSession> registry = new SessionRegistry<>();
+        ConcurrentLinkedQueue<TestSession> all = new ConcurrentLinkedQueue<>();
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            Thread worker = new Thread(() -> {
+                Random random = new Random(thread);
+                try {
+                    go.await();
+                    for (int round = 0; round < rounds; round++) {
+                        TestSession session = new TestSession(thread + "-" + round);
+                        all.add(session);
+                        registry.add(session);
+                        TestSession previous = registry.takeOver(session);
+                        if (previous != null) {
+                            previous.preemptedBy.incrementAndGet();
+                        }
+                        session.lifecycle.start();
+
+                        // Senders tear down their own sessions at random
+                        // points, racing other senders' takeovers
+                        if (random.nextInt(3) == 0) {
+                            TestSession removed = registry.remove(session.id);
+                            if (removed != null) {
+                                removed.lifecycle.stop();
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        go.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+
+        int live = 0;
+        for (TestSession session : all) {
+            // Each owner is handed to at most one newcomer to preempt
+            assertTrue(session.preemptedBy.get() <= 1);
+            SessionState state = session.lifecycle.get();
+            if (state == SessionState.PREEMPTED) {
+                assertEquals(1, session.preemptedBy.get());
+                assertNull("preempted session still registered", registry.get(session.id));
+            }
+            if (state == SessionState.PLAYING) {
+                live++;
+                assertSame("playing session does not own the output", session, registry.getActive());
+            }
+        }
+        assertTrue("more than one session playing: " + live, live <= 1);
+
+        TestSession owner = registry.getActive();
+        if (owner != null) {
+            assertNotEquals(SessionState.STOPPED, owner.lifecycle.get());
+            assertSame(owner, registry.get(owner.id));
+        }
+        assertEquals(threads * rounds, all.size());
+    }
+}
@@ -0,0 +1,128 @@
+package com.mediabox.airhome.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A stand-in output track with its own clock in microseconds. It plays in
+ * real time out of a buffer of the size it was last granted, rounded to
+ * 64-frame bursts, and counts an underrun whenever it runs empty. Writes
+ * block by moving the clock on until the buffer has room, as a blocking
+ * track write does in real time.
+ *
+ * Like a platform track, it stays silent until its buffer has been
+ * filled, when created and again after each flush.
+ */
+final class SimulatedSink implements OutputSink {
+    private final int sampleRate;
+    private final int bytesPerFrame;
+    private final int capacity;
+    private int bufferFrames;
+    private long nowMicros;
+    private long framesWritten;
+    private long framesPlayed;
+    private boolean playing;
+    private int underruns;
+
+    // A frame to time, and when it reached the speaker
+    private long markedFrame = -1;
+    private long markedPlayedAtMicros = -1;
+
+    SimulatedSink(int sampleRate, int bytesPerFrame, int capacity) {
+        this.sampleRate = sampleRate;
+        this.bytesPerFrame = bytesPerFrame;
+        this.capacity = capacity;
+        this.bufferFrames = capacity;
+    }
+
+    /**
+     * Let the given time pass with the track playing
+     */
+    void advance(long micros) {
+        long startMicros = nowMicros;
+        nowMicros += micros;
+        if (!playing) {
+            return;
+        }
+        long played = framesPlayed + micros * sampleRate / 1_000_000L;
+        if (played > framesWritten) {
+            if (framesPlayed < framesWritten) {
+                underruns++;
+            }
+            played = framesWritten;
+        }
+        if (markedFrame >= framesPlayed && markedFrame < played) {
+            markedPlayedAtMicros = startMicros + (markedFrame - framesPlayed) * 1_000_000L / sampleRate;
+        }
+        framesPlayed = played;
+    }
+
+    /**
+     * Drop everything buffered, as pause, flush and play do on a track
+     */
+    void flush() {
+        framesWritten = framesPlayed;
+        playing = false;
+    }
+
+    /**
+     * Time the next frame written, until it is played
+     */
+    void markNextFrame() {
+        markedFrame = framesWritten;
+        markedPlayedAtMicros = -1;
+    }
+
+    /**
+     * Get when the marked frame was played, or -1 if it has not been
+     */
+    long getMarkedPlayedAtMicros() {
+        return markedPlayedAtMicros;
+    }
+
+    long getNowMicros() {
+        return nowMicros;
+    }
+
+    long getNowMillis() {
+        return nowMicros / 1000;
+    }
+
+    int getBufferFrames() {
+        return bufferFrames;
+    }
+
+    @Override
+    public int write(ByteBuffer data, int bytes) {
+        int frames = bytes / bytesPerFrame;
+        long over = framesWritten + frames - framesPlayed - bufferFrames;
+        if (over > 0) {
+            // A flushed track starts once its buffer is full
+            playing = true;
+            advance((over * 1_000_000L + sampleRate - 1) / sampleRate);
+        }
+        framesWritten += frames;
+        return bytes;
+    }
+
+    @Override
+    public long getFramesPlayed() {
+        return framesPlayed;
+    }
+
+    @Override
+    public int getUnderrunCount() {
+        return underruns;
+    }
+
+    @Override
+    public int getBufferCapacityInFrames() {
+        return capacity;
+    }
+
+    @Override
+    public int setBufferSizeInFrames(int frames) {
+        // Tracks round to their burst size; 64 frames is typical
+        bufferFrames = Math.min(capacity, Math.max(64, (frames + 63) / 64 * 64));
+        return bufferFrames;
+    }
+}
@@ -0,0 +1,193 @@
+package com.mediabox.airhome.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.mediabox.airhome.util.AllocationMeter;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * Runs the analyzer without a handler: the test calls the tap as the
+ * playback thread would, and steps the analysis itself
+ */
+public class SpectrumAnalyzerTest {
+    private static final int RATE = 44100;
+    private static final int PACKET_FRAMES = 352;
+
+    private static final class Tone {
+        final byte[] pcm = new byte[PACKET_FRAMES * 4];
+        final double frequency;
+        final double amplitude;
+        long frame;
+
+        Tone(double frequency, double amplitude) {
+            this.frequency = frequency;
+            this.amplitude = amplitude;
+        }
+
+        byte[] next() {
+            for (int i = 0; i < PACKET_FRAMES; i++, frame++) {
+                short sample = (short) (amplitude * 32767 * Math.sin(2 * Math.PI * frequency * frame / RATE));
+                pcm[i * 4] = (byte) sample;
+                pcm[i * 4 + 1] = (byte) (sample >> 8);
+                pcm[i * 4 + 2] = (byte) sample;
+                pcm[i * 4 + 3] = (byte) (sample >> 8);
+            }
+            return pcm;
+        }
+    }
+
+    /**
+     * The band a frequency falls in, from the analyzer's log spacing.
+     * Below about 1 kHz bands are widened to a whole bin and no longer
+     * follow it.
+     */
+    private static int bandOf(double frequency) {
+        double ratio = Math.pow(16000 / 40.0, 1.0 / SpectrumAnalyzer.BANDS);
+        return (int) Math.floor(Math.log(frequency / 40.0) / Math.log(ratio));
+    }
+
+    private static int loudest(float[] bands) {
+        int loudest = 0;
+        for (int band = 1; band < bands.length; band++) {
+            if (bands[band] > bands[loudest]) {
+                loudest = band;
+            }
+        }
+        return loudest;
+    }
+
+    @Test
+    public void toneLightsItsBand() {
+        for (double frequency : new double[] {1000, 3000, 8000}) {
+            SpectrumAnalyzer analyzer = new SpectrumAnalyzer(null);
+            Tone tone = new Tone(frequency, 0.9);
+            // A snapshot is 1024 frames
+            for (int i = 0; i < 3; i++) {
+                analyzer.onOutput(tone.next(), PACKET_FRAMES * 4, RATE, 0);
+            }
+            analyzer.analyzeOnce();
+            float[] bands = new float[SpectrumAnalyzer.BANDS];
+            analyzer.readBands(bands);
+
+            assertEquals(frequency + " Hz in " + Arrays.toString(bands), bandOf(frequency), loudest(bands), 1);
+            assertTrue(frequency + " Hz too quiet: " + bands[loudest(bands)], bands[loudest(bands)] > 0.9f);
+            int far = bandOf(frequency) < SpectrumAnalyzer.BANDS / 2 ? SpectrumAnalyzer.BANDS - 1 : 0;
+            assertTrue("band " + far + " lit: " + bands[far], bands[far] < 0.5f);
+        }
+    }
+
+    @Test
+    public void barsFallWhenNothingPlays() {
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer(null);
+        Tone tone = new Tone(1000, 0.9);
+        for (int i = 0; i < 3; i++) {
+            analyzer.onOutput(tone.next(), PACKET_FRAMES * 4, RATE, 0);
+        }
+        analyzer.analyzeOnce();
+        float[] bands = new float[SpectrumAnalyzer.BANDS];
+        analyzer.readBands(bands);
+        float peak = bands[loudest(bands)];
+
+        // No new snapshot: each pass lowers the bars a step
+        analyzer.analyzeOnce();
+        analyzer.readBands(bands);
+        assertEquals(peak - 0.04f, bands[loudest(bands)], 1e-4f);
+        for (int i = 0; i < 30; i++) {
+            analyzer.analyzeOnce();
+        }
+        analyzer.readBands(bands);
+        assertEquals(0f, bands[loudest(bands)], 0f);
+    }
+
+    @Test
+    public void tapAndAnalysisDoNotAllocate() throws Exception {
+        assumeTrue(AllocationMeter.isSupported());
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer(null);
+        byte[] pcm = new Tone(440, 0.5).next();
+        double tapBytes = AllocationMeter.bytesPerOperation(100_000,
+                () -> analyzer.onOutput(pcm, pcm.length, RATE, 0));
+        double analysisBytes = AllocationMeter.bytesPerOperation(10_000, () -> {
+            for (int i = 0; i < 3; i++) {
+                analyzer.onOutput(pcm, pcm.length, RATE, 0);
+            }
+            analyzer.analyzeOnce();
+        });
+        assertTrue(tapBytes + " bytes per tap", tapBytes < 1);
+        assertTrue(analysisBytes + " bytes per analysis", analysisBytes < 1);
+    }
+
+    /**
+     * What the playback thread does per packet, DSP and conversion, timed
+     * with the visualizer off and then on, with its analysis running on
+     * another thread at display rate as it does on the device
+     */
+    @Test
+    public void benchmarkPlaybackThreadTiming() throws Exception {
+        int packets = 10_000;
+        Tone tone = new Tone(440, 0.5);
+        float[] decoded = new float[PACKET_FRAMES * 2];
+        float[] samples = new float[decoded.length];
+        byte[] pcm = tone.next();
+        SampleConverter.decode(pcm, 0, pcm.length, 16, decoded);
+        DspChain dsp = new DspChain(RATE, null);
+        dsp.configure("100:3:1.0;1000:-3:1.0;8000:2:1.0", true, -20f);
+        SampleConverter converter = new SampleConverter();
+        byte[] output = new byte[samples.length * 2];
+
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer(null);
+        long[][] nanos = new long[2][packets];
+        for (int visualizer = 0; visualizer < 2; visualizer++) {
+            boolean on = visualizer == 1;
+            Thread analysis = null;
+            if (on) {
+                analysis = new Thread(() -> {
+                    try {
+                        while (!Thread.currentThread().isInterrupted()) {
+                            analyzer.analyzeOnce();
+                            Thread.sleep(16);
+                        }
+                    } catch (InterruptedException e) {
+                        // Stopped
+                    }
+                }, "SpectrumAnalyzer");
+                analysis.setPriority(Thread.MIN_PRIORITY);
+                analysis.start();
+            }
+            for (int pass = 0; pass < 2; pass++) {
+                // The first pass warms up the JIT and is not counted
+                for (int i = 0; i < packets; i++) {
+                    long start = System.nanoTime();
+                    System.arraycopy(decoded, 0, samples, 0, samples.length);
+                    dsp.process(samples, samples.length);
+                    converter.encodePcm16(samples, samples.length, output);
+                    if (on) {
+                        analyzer.onOutput(output, output.length, RATE, 0);
+                    }
+                    nanos[visualizer][i] = System.nanoTime() - start;
+                }
+            }
+            if (analysis != null) {
+                analysis.interrupt();
+                analysis.join();
+            }
+            Arrays.sort(nanos[visualizer]);
+        }
+
+        long[] off = nanos[0];
+        long[] on = nanos[1];
+        System.out.println(String.format("SpectrumAnalyzer: per packet on the playback thread, visualizer off"
+                        + " p50 %.1f us p99 %.1f us, on p50 %.1f us p99 %.1f us",
+                off[packets / 2] / 1000.0, off[packets * 99 / 100] / 1000.0,
+                on[packets / 2] / 1000.0, on[packets * 99 / 100] / 1000.0));
+        // The tap is a copy of one packet; it must not show against the
+        // 8 ms a packet lasts
+        assertTrue("visualizer slows the playback thread",
+                on[packets / 2] - off[packets / 2] < 50_000);
+        assertTrue("playback thread p99 " + on[packets * 99 / 100] + " ns", on[packets * 99 / 100] < 2_000_000);
+    }
+}
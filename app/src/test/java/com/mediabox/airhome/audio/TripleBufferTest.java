@@ -0,0 +1,101 @@
+package com.mediabox.airhome.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TripleBufferTest {
+    private static TripleBuffer<long[]> buffer(int length) {
+        return new TripleBuffer<>(new long[][] {new long[length], new long[length], new long[length]});
+    }
+
+    @Test
+    public void readerGetsOnlyTheLatest() {
+        TripleBuffer<long[]> buffer = buffer(1);
+        assertFalse("nothing published yet", buffer.take());
+
+        for (long value = 1; value <= 3; value++) {
+            buffer.writeSlot()[0] = value;
+            buffer.publish();
+        }
+        assertTrue(buffer.take());
+        assertEquals(3, buffer.readSlot()[0]);
+        assertFalse("taken twice", buffer.take());
+        assertEquals(3, buffer.readSlot()[0]);
+
+        buffer.writeSlot()[0] = 4;
+        buffer.publish();
+        assertTrue(buffer.take());
+        assertEquals(4, buffer.readSlot()[0]);
+    }
+
+    @Test
+    public void writerNeverFillsTheReadersSlot() {
+        TripleBuffer<long[]> buffer = buffer(1);
+        buffer.publish();
+        buffer.take();
+        for (int i = 0; i < 10; i++) {
+            assertNotSame(buffer.readSlot(), buffer.writeSlot());
+            buffer.publish();
+            assertNotSame(buffer.readSlot(), buffer.writeSlot());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsThreeSlots() {
+        new TripleBuffer<>(new long[][] {new long[1], new long[1]});
+    }
+
+    /**
+     * A writer and a reader flat out on two threads: every snapshot the
+     * reader takes is whole, and they only move forward
+     */
+    @Test
+    public void snapshotsAreNeverTornAcrossThreads() throws Exception {
+        int length = 256;
+        long published = 2_000_000;
+        TripleBuffer<long[]> buffer = buffer(length);
+        AtomicReference<String> failure = new AtomicReference<>();
+
+        Thread writer = new Thread(() -> {
+            for (long value = 1; value <= published; value++) {
+                long[] slot = buffer.writeSlot();
+                for (int i = 0; i < length; i++) {
+                    slot[i] = value;
+                }
+                buffer.publish();
+            }
+        }, "TripleBufferWriter");
+        writer.start();
+
+        long last = 0;
+        long taken = 0;
+        while (last < published && failure.get() == null) {
+            if (!buffer.take()) {
+                continue;
+            }
+            long[] slot = buffer.readSlot();
+            long value = slot[0];
+            for (int i = 1; i < length; i++) {
+                if (slot[i] != value) {
+                    failure.set("torn snapshot: " + value + " and " + slot[i]);
+                }
+            }
+            if (value <= last) {
+                failure.set("went back from " + last + " to " + value);
+            }
+            last = value;
+            taken++;
+        }
+        writer.join();
+
+        assertEquals(null, failure.get());
+        assertEquals(published, last);
+        assertTrue(taken > 0);
+    }
+}
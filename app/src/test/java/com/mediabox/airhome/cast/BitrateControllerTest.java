@@ -0,0 +1,250 @@
+package com.mediabox.airhome.cast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+
+/**
+ * Drives the controller as the stream server does, over a simulated link
+ * whose capacity the test sets, with a receiver that buffers before it
+ * plays and stalls when it runs dry
+ */
+public class BitrateControllerTest {
+    private static final long STEP_MILLIS = 10;
+
+    // 44.1 kHz stereo into the server's ring, taken in its chunk size
+    private static final int PCM_BYTES_PER_SECOND = 44100 * 4;
+    private static final int RING_BYTES = 512 * 1024;
+    private static final int CHUNK_BYTES = 8192;
+
+    // Each 20 ms packet goes on a page of its own: 27 bytes of header and
+    // one lacing value
+    private static final int PAGE_BYTES_PER_SECOND = 50 * 28;
+
+    // What the socket takes before a write blocks
+    private static final int SOCKET_BYTES = 16 * 1024;
+
+    // Audio the receiver buffers before it starts, and after a stall.
+    // When the link slows to a crawl, what is already in the socket takes
+    // seconds to get out before a lower rate can help.
+    private static final double START_MILLIS = 4000;
+
+    private static final class Stream {
+        final BitrateController controller;
+        int bitrate = BitrateController.BITRATES[BitrateController.BITRATES.length - 1];
+        long now;
+        long nextCheck = 1000;
+
+        // Encoded chunks in the socket: bytes left to send, and the audio
+        // they carry in milliseconds
+        final ArrayDeque<double[]> socket = new ArrayDeque<>();
+        double socketBytes;
+
+        long ring;
+        long dropped;
+        long sent;
+        long worstLagMillis;
+        int changes;
+        long millisAtOrBelow64k;
+
+        double receiverMillis;
+        boolean playing;
+        boolean started;
+        int stalls;
+        long stalledMillis;
+
+        Stream(boolean adaptive) {
+            controller = adaptive ? new BitrateController(0) : null;
+        }
+
+        /**
+         * Stream until the given time over a link of the given capacity
+         */
+        void run(long untilMillis, long linkBitsPerSecond) {
+            for (; now < untilMillis; now += STEP_MILLIS) {
+                // The playback thread offers audio, dropping it if the ring is full
+                ring += PCM_BYTES_PER_SECOND * STEP_MILLIS / 1000;
+                if (ring > RING_BYTES) {
+                    dropped += ring - RING_BYTES;
+                    ring = RING_BYTES;
+                }
+
+                // The link sends what it can, and the receiver gets whole chunks
+                double budget = linkBitsPerSecond / 8.0 * STEP_MILLIS / 1000;
+                while (budget > 0 && !socket.isEmpty()) {
+                    double[] chunk = socket.peekFirst();
+                    double sending = Math.min(budget, chunk[0]);
+                    chunk[0] -= sending;
+                    socketBytes -= sending;
+                    budget -= sending;
+                    if (chunk[0] <= 0) {
+                        receiverMillis += chunk[1];
+                        socket.pollFirst();
+                    }
+                }
+
+                // The serving thread encodes from the ring while the socket has room
+                while (socketBytes < SOCKET_BYTES && ring > 0) {
+                    long lagMillis = ring / 4 * 1000 / 44100;
+                    worstLagMillis = Math.max(worstLagMillis, lagMillis);
+                    long length = Math.min(ring, CHUNK_BYTES);
+                    ring -= length;
+                    double audioMillis = length * 1000.0 / PCM_BYTES_PER_SECOND;
+                    double bytes = audioMillis * (bitrate / 8.0 + PAGE_BYTES_PER_SECOND) / 1000;
+                    socket.addLast(new double[] {bytes, audioMillis});
+                    socketBytes += bytes;
+                    sent += (long) bytes;
+                    if (controller != null && now >= nextCheck) {
+                        int next = controller.update(lagMillis, dropped, sent, now);
+                        if (next > 0) {
+                            bitrate = next;
+                            changes++;
+                        }
+                        nextCheck = now + 1000;
+                    }
+                }
+
+                // The receiver plays in real time once it has buffered enough
+                if (!playing && receiverMillis >= START_MILLIS) {
+                    playing = true;
+                    started = true;
+                }
+                if (playing) {
+                    if (receiverMillis >= STEP_MILLIS) {
+                        receiverMillis -= STEP_MILLIS;
+                    } else {
+                        playing = false;
+                        stalls++;
+                    }
+                }
+                if (started && !playing) {
+                    stalledMillis += STEP_MILLIS;
+                }
+                if (bitrate <= 64_000) {
+                    millisAtOrBelow64k += STEP_MILLIS;
+                }
+            }
+        }
+    }
+
+    // Past the hold the controller starts with
+    private static final long START = BitrateController.HOLD_MILLIS;
+
+    @Test
+    public void stepsDownOnLagAndWaitsBeforeStepping() {
+        BitrateController controller = new BitrateController(0);
+        assertEquals(-1, controller.update(BitrateController.LAG_HIGH_MILLIS + 1, 0, 0, 1_000));
+        assertEquals(-1, controller.update(BitrateController.LAG_HIGH_MILLIS + 1, 0, 0, 2_000));
+        // 40 kbps went out while the backlog grew
+        int bitrate = controller.update(BitrateController.LAG_HIGH_MILLIS + 1, 0, 5_000, START);
+        assertEquals(32_000, bitrate);
+        assertEquals(32_000, controller.getBitrate());
+        // Still behind, but the lower rate has not had time to drain it
+        assertEquals(-1, controller.update(BitrateController.LAG_HIGH_MILLIS + 1, 0, 10_000, START + 1_000));
+    }
+
+    @Test
+    public void dropStepsDownEvenWithoutLag() {
+        BitrateController controller = new BitrateController(0);
+        assertEquals(96_000, controller.update(0, 4096, 3_000_000, START));
+    }
+
+    /**
+     * Bytes sent by a given time at a steady 40 kbps
+     */
+    private static long sentBy(long now) {
+        return 5_000 * now / 1_000;
+    }
+
+    private static long runUntilChange(BitrateController controller, long now, long lagMillis) {
+        do {
+            now += 1_000;
+        } while (controller.update(lagMillis, 0, sentBy(now), now) < 0);
+        return now;
+    }
+
+    @Test
+    public void probesUpOnlyAfterAStableRun() {
+        BitrateController controller = new BitrateController(0);
+        controller.update(BitrateController.LAG_HIGH_MILLIS + 1, 0, sentBy(START), START);
+        long probe = runUntilChange(controller, START, 0);
+        assertEquals(START + BitrateController.STABLE_MILLIS, probe);
+        assertEquals(48_000, controller.getBitrate());
+    }
+
+    @Test
+    public void failedProbesBackOff() {
+        BitrateController controller = new BitrateController(0);
+        long now = START;
+        controller.update(BitrateController.LAG_HIGH_MILLIS + 1, 0, sentBy(now), now);
+        long wait = BitrateController.STABLE_MILLIS;
+        for (int probe = 0; probe < 6; probe++) {
+            long troubleAt = now;
+            now = runUntilChange(controller, now, 0);
+            assertEquals("probe " + probe, troubleAt + wait, now);
+            assertEquals(48_000, controller.getBitrate());
+            // The link cannot carry it
+            now = runUntilChange(controller, now + BitrateController.HOLD_MILLIS - 1_000,
+                    BitrateController.LAG_HIGH_MILLIS + 1);
+            assertEquals(32_000, controller.getBitrate());
+            wait = Math.min(wait * 2, BitrateController.MAX_STABLE_MILLIS);
+        }
+
+        // One that holds puts the next step back on the usual wait
+        now = runUntilChange(controller, now, 0);
+        now = runUntilChange(controller, now, 0);
+        assertEquals(64_000, controller.getBitrate());
+    }
+
+    /**
+     * A link fast enough for the top rate drops to 48 kbps for a
+     * minute and then recovers
+     */
+    @Test
+    public void throttledLinkNeverStallsPlayback() {
+        Stream fixed = new Stream(false);
+        Stream adaptive = new Stream(true);
+        for (Stream stream : new Stream[] {fixed, adaptive}) {
+            stream.run(30_000, 1_000_000);
+            stream.run(90_000, 48_000);
+        }
+        int throttledBitrate = adaptive.bitrate;
+        adaptive.run(240_000, 1_000_000);
+
+        System.out.println(String.format("BitrateController: link 1 Mbps then 48 kbps for 60 s;"
+                        + " fixed 128 kbps stalled %d times for %.1f s and dropped %.1f s of audio,"
+                        + " adaptive settled at %d kbps with %d stalls, %.1f s dropped, worst backlog %d ms,"
+                        + " back to %d kbps 150 s after the link recovered, %d changes",
+                fixed.stalls, fixed.stalledMillis / 1000.0, fixed.dropped / (double) PCM_BYTES_PER_SECOND,
+                throttledBitrate / 1000, adaptive.stalls, adaptive.dropped / (double) PCM_BYTES_PER_SECOND,
+                adaptive.worstLagMillis, adaptive.bitrate / 1000, adaptive.changes));
+        assertTrue("fixed rate kept up on a throttled link", fixed.stalls > 0 && fixed.dropped > 0);
+        assertEquals("adaptive stalls", 0, adaptive.stalls);
+        assertEquals("adaptive dropped bytes", 0, adaptive.dropped);
+        assertTrue("throttled bitrate " + throttledBitrate,
+                throttledBitrate / 8 + PAGE_BYTES_PER_SECOND <= 48_000 / 8);
+        assertEquals(128_000, adaptive.bitrate);
+    }
+
+    /**
+     * A link between two steps: the controller probes the higher one now
+     * and then but spends most of its time below, without a stall
+     */
+    @Test
+    public void linkBetweenStepsSettlesBelow() {
+        Stream stream = new Stream(true);
+        stream.run(300_000, 100_000);
+
+        System.out.println(String.format("BitrateController: 100 kbps link for 300 s, %d stalls, %.1f s dropped,"
+                        + " %d%% of the time at 64 kbps or less, %d changes, worst backlog %d ms",
+                stream.stalls, stream.dropped / (double) PCM_BYTES_PER_SECOND,
+                stream.millisAtOrBelow64k * 100 / 300_000, stream.changes, stream.worstLagMillis));
+        assertEquals("stalls", 0, stream.stalls);
+        assertEquals("dropped bytes", 0, stream.dropped);
+        assertTrue("time at 64 kbps or less", stream.millisAtOrBelow64k > 150_000);
+        assertTrue("changes " + stream.changes, stream.changes <= 15);
+    }
+}
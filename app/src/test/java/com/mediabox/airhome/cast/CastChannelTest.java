@@ -0,0 +1,240 @@
+package com.mediabox.airhome.cast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.KeyStore;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Runs a {@link CastChannel} against a TLS server on loopback that plays
+ * the device's side, with a self-signed certificate as real devices'
+ * are not publicly trusted either
+ */
+public class CastChannelTest {
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SSLServerSocket serverSocket;
+    private Thread serverThread;
+    private final AtomicReference<Throwable> serverError = new AtomicReference<>();
+
+    private final BlockingQueue<CastMessage> received = new LinkedBlockingQueue<>();
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private final CastChannel.MessageListener listener = new CastChannel.MessageListener() {
+        @Override
+        public void onMessage(CastMessage message) {
+            received.add(message);
+        }
+
+        @Override
+        public void onClosed() {
+            closed.countDown();
+        }
+    };
+
+    /**
+     * What the device does once the connection is up
+     */
+    private interface DeviceScript {
+        void run(DataInputStream input, OutputStream output) throws IOException;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        File keystore = new File(folder.getRoot(), "device.p12");
+        File keytool = new File(System.getProperty("java.home"), "bin/keytool");
+        assumeTrue("no keytool in this JDK", keytool.canExecute());
+        Process process = new ProcessBuilder(keytool.getPath(), "-genkeypair", "-alias", "device",
+                "-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=cast-device", "-validity", "2",
+                "-storetype", "PKCS12", "-keystore", keystore.getPath(),
+                "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+                .redirectErrorStream(true).start();
+        drain(process.getInputStream());
+        assertEquals("keytool failed", 0, process.waitFor());
+
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(keystore)) {
+            store.load(in, PASSWORD);
+        }
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(store, PASSWORD);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), null, null);
+        serverSocket = (SSLServerSocket) context.getServerSocketFactory()
+                .createServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        serverSocket.close();
+        if (serverThread != null) {
+            serverThread.join(5000);
+        }
+        Throwable error = serverError.get();
+        if (error != null) {
+            throw new AssertionError("device side failed", error);
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[1024];
+        while (in.read(buffer) >= 0) {
+            // Discard keytool's chatter
+        }
+    }
+
+    private void startDevice(DeviceScript script) {
+        serverThread = new Thread(() -> {
+            try (SSLSocket socket = (SSLSocket) serverSocket.accept()) {
+                socket.setTcpNoDelay(true);
+                socket.startHandshake();
+                script.run(new DataInputStream(socket.getInputStream()), socket.getOutputStream());
+            } catch (Throwable e) {
+                serverError.set(e);
+            }
+        }, "CastDevice");
+        serverThread.start();
+    }
+
+    private CastChannel connect() throws IOException {
+        CastChannel channel = new CastChannel(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()), listener);
+        channel.connect();
+        return channel;
+    }
+
+    private static void writeFrame(OutputStream output, CastMessage message) throws IOException {
+        byte[] body = message.encode();
+        byte[] frame = new byte[4 + body.length];
+        frame[0] = (byte) (body.length >>> 24);
+        frame[1] = (byte) (body.length >>> 16);
+        frame[2] = (byte) (body.length >>> 8);
+        frame[3] = (byte) body.length;
+        System.arraycopy(body, 0, frame, 4, body.length);
+        output.write(frame);
+        output.flush();
+    }
+
+    private static CastMessage readFrame(DataInputStream input) throws IOException {
+        byte[] body = new byte[input.readInt()];
+        input.readFully(body);
+        return CastMessage.decode(body, body.length);
+    }
+
+    @Test
+    public void exchangesMessagesAndAnswersHeartbeats() throws Exception {
+        startDevice((input, output) -> {
+            CastMessage connect = readFrame(input);
+            assertEquals(CastChannel.SOURCE_ID, connect.sourceId);
+            assertEquals(CastChannel.NAMESPACE_CONNECTION, connect.namespace);
+
+            writeFrame(output, new CastMessage("receiver-0", CastChannel.SOURCE_ID,
+                    CastChannel.NAMESPACE_HEARTBEAT, "{\"type\":\"PING\"}"));
+            CastMessage pong = readFrame(input);
+            assertEquals("receiver-0", pong.destinationId);
+            assertEquals(CastChannel.NAMESPACE_HEARTBEAT, pong.namespace);
+            assertTrue(pong.payload, pong.payload.contains("PONG"));
+
+            writeFrame(output, new CastMessage("receiver-0", CastChannel.SOURCE_ID,
+                    CastChannel.NAMESPACE_RECEIVER, "{\"type\":\"RECEIVER_STATUS\"}"));
+        });
+
+        CastChannel channel = connect();
+        assertTrue(channel.getLocalAddress().isLoopbackAddress());
+        channel.send("receiver-0", CastChannel.NAMESPACE_CONNECTION, "{\"type\":\"CONNECT\"}");
+
+        // The ping is answered inside the channel; only the status comes out
+        CastMessage status = received.poll(5, TimeUnit.SECONDS);
+        assertEquals(CastChannel.NAMESPACE_RECEIVER, status.namespace);
+        assertTrue(status.payload.contains("RECEIVER_STATUS"));
+
+        assertTrue("device closing not reported", closed.await(5, TimeUnit.SECONDS));
+        assertNull(received.poll());
+        channel.close();
+    }
+
+    @Test
+    public void oversizedMessageClosesTheChannel() throws Exception {
+        startDevice((input, output) -> {
+            // A length prefix of 1 MB, beyond what the channel accepts
+            output.write(new byte[] {0, 0x10, 0, 0});
+            output.write(new byte[1024]);
+            output.flush();
+            // Hold the connection open until the channel gives up on it
+            try {
+                while (input.read() >= 0) {
+                    // Nothing is expected
+                }
+            } catch (IOException e) {
+                // Closed by the channel
+            }
+        });
+
+        CastChannel channel = connect();
+        assertTrue("oversized message not rejected", closed.await(5, TimeUnit.SECONDS));
+        assertNull(received.poll());
+        channel.close();
+    }
+
+    /**
+     * Round trip of a media message through the channel and the device,
+     * the cost of each command the sink sends
+     */
+    @Test
+    public void benchmarkRoundTrip() throws Exception {
+        int messages = 2000;
+        startDevice((input, output) -> {
+            for (int i = 0; i < messages * 2; i++) {
+                CastMessage message = readFrame(input);
+                writeFrame(output, new CastMessage(message.destinationId, message.sourceId,
+                        message.namespace, message.payload));
+            }
+        });
+
+        CastChannel channel = connect();
+        String payload = "{\"type\":\"GET_STATUS\",\"requestId\":1}";
+        long nanosPerRoundTrip = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            // The first pass warms up the JIT and is not counted
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                channel.send("receiver-0", CastChannel.NAMESPACE_MEDIA, payload);
+                CastMessage reply = received.poll(5, TimeUnit.SECONDS);
+                assertEquals(payload, reply.payload);
+            }
+            nanosPerRoundTrip = (System.nanoTime() - start) / messages;
+        }
+        channel.close();
+
+        System.out.println("CastChannel: " + nanosPerRoundTrip / 1000 + " us per message round trip over TLS");
+        assertTrue("round trip too slow: " + nanosPerRoundTrip / 1000 + " us", nanosPerRoundTrip < 20_000_000L);
+    }
+}
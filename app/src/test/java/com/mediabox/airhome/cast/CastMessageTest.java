@@ -0,0 +1,52 @@
+package com.mediabox.airhome.cast;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class CastMessageTest {
+
+    @Test
+    public void roundTripsEveryField() throws IOException {
+        CastMessage message = new CastMessage("sender-0", "receiver-0", CastChannel.NAMESPACE_MEDIA,
+                "{\"type\":\"LOAD\",\"title\":\"K\u00fcche\"}");
+        byte[] data = message.encode();
+        CastMessage decoded = CastMessage.decode(data, data.length);
+        assertEquals("sender-0", decoded.sourceId);
+        assertEquals("receiver-0", decoded.destinationId);
+        assertEquals(CastChannel.NAMESPACE_MEDIA, decoded.namespace);
+        assertEquals(message.payload, decoded.payload);
+    }
+
+    @Test
+    public void skipsFieldsItDoesNotUse() throws IOException {
+        byte[] known = new CastMessage("a", "b", "c", "d").encode();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // Binary payload (field 7), a fixed64 and a fixed32 field
+        out.write(new byte[] {7 << 3 | 2, 3, 1, 2, 3});
+        out.write(new byte[] {8 << 3 | 1, 0, 0, 0, 0, 0, 0, 0, 0});
+        out.write(new byte[] {9 << 3 | 5, 0, 0, 0, 0});
+        out.write(known);
+        byte[] data = out.toByteArray();
+        CastMessage decoded = CastMessage.decode(data, data.length);
+        assertEquals("a", decoded.sourceId);
+        assertEquals("d", decoded.payload);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedMessageThrowsIOException() throws IOException {
+        byte[] data = new CastMessage("sender-0", "receiver-0", "ns", "payload").encode();
+        CastMessage.decode(Arrays.copyOf(data, data.length - 3), data.length - 3);
+    }
+
+    @Test(expected = IOException.class)
+    public void hugeLengthThrowsIOException() throws IOException {
+        // Field 2 claiming 0x7FFFFFFF bytes, which overflows position + size
+        byte[] data = {2 << 3 | 2, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 0};
+        CastMessage.decode(data, data.length);
+    }
+}
@@ -0,0 +1,73 @@
+package com.mediabox.airhome.mirror;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class DirectBufferPoolTest {
+
+    @Test
+    public void buffersAreSizedInPowersOfTwoAndReused() {
+        DirectBufferPool pool = new DirectBufferPool(4);
+        DirectBufferPool.Entry entry = pool.acquire(100_000);
+        assertEquals(128 * 1024, entry.buffer.capacity());
+        assertEquals(100_000, entry.buffer.limit());
+        pool.release(entry);
+
+        // Anything that fits comes from the pool, cleared to the new size
+        DirectBufferPool.Entry again = pool.acquire(70_000);
+        assertSame(entry, again);
+        assertEquals(0, again.buffer.position());
+        assertEquals(70_000, again.buffer.limit());
+        assertEquals(1, pool.getAllocations());
+    }
+
+    @Test
+    public void fullPoolKeepsTheLargestBuffers() {
+        DirectBufferPool pool = new DirectBufferPool(2);
+        DirectBufferPool.Entry small = pool.acquire(1000);
+        DirectBufferPool.Entry medium = pool.acquire(200_000);
+        DirectBufferPool.Entry large = pool.acquire(1_000_000);
+        pool.release(small);
+        pool.release(medium);
+        pool.release(large);
+
+        // The small buffer made way, so a large frame needs no allocation
+        assertSame(large, pool.acquire(900_000));
+        assertSame(medium, pool.acquire(150_000));
+        assertEquals(3, pool.getAllocations());
+    }
+
+    /**
+     * Cost of taking and returning a buffer per frame, with the mix of
+     * frame sizes a mirroring stream has
+     */
+    @Test
+    public void benchmarkAcquireRelease() {
+        DirectBufferPool pool = new DirectBufferPool(4);
+        int[] sizes = new int[1024];
+        Random random = new Random(9);
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = i % 60 == 0 ? 200_000 : 8_000 + random.nextInt(40_000);
+        }
+
+        int iterations = 2_000_000;
+        long nanos = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            // The first pass warms up the JIT and is not counted
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                pool.release(pool.acquire(sizes[i & (sizes.length - 1)]));
+            }
+            nanos = System.nanoTime() - start;
+        }
+        System.out.println("DirectBufferPool: " + nanos / iterations + " ns per acquire and release, "
+                + pool.getAllocations() + " buffers allocated over " + 2 * iterations + " frames");
+        assertTrue(pool.getAllocations() <= 2);
+        assertTrue(nanos / iterations < 10_000);
+    }
+}
@@ -0,0 +1,250 @@
+package com.mediabox.airhome.mirror;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the receiver over loopback the way a sender does: a codec
+ * config packet, then video frames of length-prefixed NAL units
+ */
+public class MirrorStreamReceiverTest {
+    private static final byte[] SESSION_KEY = new byte[16];
+    private static final long STREAM_ID = 0x1234_5678_9ABCL;
+
+    /**
+     * Counts like the null sink and reports when the stream ends
+     */
+    private static class ClosingSink extends NullVideoSink {
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+    /**
+     * Keeps a copy of every frame
+     */
+    private static final class RecordingSink extends ClosingSink {
+        final List<byte[]> frames = new ArrayList<>();
+        byte[] sps;
+        byte[] pps;
+
+        @Override
+        public void onCodecConfig(ByteBuffer sps, ByteBuffer pps) {
+            this.sps = copy(sps);
+            this.pps = copy(pps);
+        }
+
+        @Override
+        public void onFrame(ByteBuffer frame, long presentationNanos) {
+            super.onFrame(frame, presentationNanos);
+            frames.add(copy(frame));
+        }
+
+        private static byte[] copy(ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            return bytes;
+        }
+    }
+
+    /**
+     * The sender's side of one connection
+     */
+    private static final class Sender implements AutoCloseable {
+        private final SocketChannel channel;
+        private final AesCtrStream cipher;
+        private final ByteBuffer header = ByteBuffer.allocate(128).order(ByteOrder.LITTLE_ENDIAN);
+        // Encrypted here so the caller's frames can be sent again
+        private final ByteBuffer scratch = ByteBuffer.allocate(1024 * 1024);
+
+        Sender(int port, boolean encrypted) throws IOException {
+            channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            channel.socket().setTcpNoDelay(true);
+            cipher = encrypted ? new AesCtrStream(
+                    MirrorStreamReceiver.deriveKey("AirPlayStreamKey", STREAM_ID, SESSION_KEY),
+                    MirrorStreamReceiver.deriveKey("AirPlayStreamIV", STREAM_ID, SESSION_KEY)) : null;
+        }
+
+        void send(int type, ByteBuffer payload) throws IOException {
+            header.clear();
+            header.putInt(0, payload.remaining());
+            header.putShort(4, (short) type);
+            header.putLong(8, 1L << 32);
+            if (type == 0 && cipher != null) {
+                scratch.clear();
+                scratch.put(payload).flip();
+                cipher.apply(scratch);
+                payload = scratch;
+            }
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            while (payload.hasRemaining()) {
+                channel.write(payload);
+            }
+        }
+
+        void sendCodecConfig(byte[] sps, byte[] pps) throws IOException {
+            ByteBuffer config = ByteBuffer.allocate(11 + sps.length + pps.length);
+            config.put((byte) 1).put((byte) 0x64).put((byte) 0).put((byte) 0x28).put((byte) 0xFF);
+            config.put((byte) 0xE1).putShort((short) sps.length).put(sps);
+            config.put((byte) 1).putShort((short) pps.length).put(pps);
+            config.flip();
+            send(1, config);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * A frame of the given NAL units, each with a 4-byte big-endian length
+     */
+    private static ByteBuffer frame(byte[]... nals) {
+        int size = 0;
+        for (byte[] nal : nals) {
+            size += 4 + nal.length;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(size);
+        for (byte[] nal : nals) {
+            frame.putInt(nal.length).put(nal);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    private static byte[] annexB(byte[]... nals) {
+        ByteBuffer frame = frame(nals);
+        for (int position = 0; position < frame.limit(); ) {
+            int length = frame.getInt(position);
+            frame.putInt(position, 1);
+            position += 4 + length;
+        }
+        return frame.array();
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void encryptedFramesArriveInAnnexBForm() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        MirrorStreamReceiver receiver = new MirrorStreamReceiver(sink, SESSION_KEY, STREAM_ID);
+        int port = receiver.start();
+        byte[] sps = bytes(20, 1);
+        byte[] pps = bytes(4, 2);
+        byte[][] first = {bytes(9, 3), bytes(30_000, 4)};
+        // Odd sizes so the keystream carries across frames mid-block
+        byte[][] second = {bytes(1001, 5)};
+        try (Sender sender = new Sender(port, true)) {
+            sender.sendCodecConfig(sps, pps);
+            sender.send(0, frame(first));
+            sender.send(2, ByteBuffer.allocate(0));
+            sender.send(0, frame(second));
+        }
+        assertTrue(sink.closed.await(5, TimeUnit.SECONDS));
+        receiver.stop();
+
+        assertArrayEquals(sps, sink.sps);
+        assertArrayEquals(pps, sink.pps);
+        assertEquals(2, sink.frames.size());
+        assertArrayEquals(annexB(first), sink.frames.get(0));
+        assertArrayEquals(annexB(second), sink.frames.get(1));
+        assertEquals(3, sink.getNalUnits());
+        assertEquals(2, receiver.getFramesReceived());
+    }
+
+    @Test
+    public void frameWithBadNalLengthIsDropped() throws Exception {
+        ClosingSink sink = new ClosingSink();
+        MirrorStreamReceiver receiver = new MirrorStreamReceiver(sink, null, STREAM_ID);
+        int port = receiver.start();
+        try (Sender sender = new Sender(port, false)) {
+            ByteBuffer bad = frame(bytes(100, 6));
+            bad.putInt(0, 101);
+            sender.send(0, bad);
+            sender.send(0, frame(bytes(100, 7)));
+        }
+        assertTrue(sink.closed.await(5, TimeUnit.SECONDS));
+        receiver.stop();
+
+        assertEquals(1, receiver.getFramesDropped());
+        assertEquals(1, receiver.getFramesReceived());
+    }
+
+    /**
+     * Demux throughput over loopback into the null sink, with and without
+     * decryption. Frame sizes vary as in a real stream: mostly small
+     * P-frames and a large I-frame every second.
+     */
+    @Test
+    public void benchmarkDemuxThroughput() throws Exception {
+        int frames = 3000;
+        ByteBuffer[] payloads = new ByteBuffer[60];
+        Random random = new Random(8);
+        long streamBytes = 0;
+        for (int i = 0; i < payloads.length; i++) {
+            int size = i == 0 ? 200_000 : 8_000 + random.nextInt(40_000);
+            payloads[i] = frame(bytes(12, i), bytes(size, i + 100));
+        }
+        for (int i = 0; i < frames; i++) {
+            streamBytes += payloads[i % payloads.length].limit();
+        }
+
+        StringBuilder report = new StringBuilder("MirrorStreamReceiver:");
+        for (boolean encrypted : new boolean[] {false, true}) {
+            long nanos = 0;
+            long allocations = 0;
+            for (int pass = 0; pass < 2; pass++) {
+                // The first pass warms up the JIT and is not counted
+                ClosingSink sink = new ClosingSink();
+                MirrorStreamReceiver receiver = new MirrorStreamReceiver(sink, encrypted ? SESSION_KEY : null,
+                        STREAM_ID);
+                int port = receiver.start();
+                long start = System.nanoTime();
+                try (Sender sender = new Sender(port, encrypted)) {
+                    for (int i = 0; i < frames; i++) {
+                        ByteBuffer payload = payloads[i % payloads.length];
+                        sender.send(0, payload.duplicate());
+                    }
+                }
+                assertTrue(sink.closed.await(30, TimeUnit.SECONDS));
+                nanos = System.nanoTime() - start;
+                receiver.stop();
+                assertEquals(frames, sink.getFrames());
+                allocations = receiver.getBufferAllocations();
+            }
+            report.append(String.format(" %s %.0f MB/s, %d us per frame, %d buffers allocated;",
+                    encrypted ? "encrypted" : "plain", streamBytes * 1000.0 / nanos, nanos / frames / 1000,
+                    allocations));
+            // 60 fps of these frames needs about 1.7 MB/s
+            assertTrue("demux too slow", streamBytes * 1000.0 / nanos > 10);
+            // Buffers are reused once the sizes the stream needs are pooled
+            assertTrue("buffers not reused: " + allocations, allocations <= 4);
+        }
+        System.out.println(report);
+    }
+}
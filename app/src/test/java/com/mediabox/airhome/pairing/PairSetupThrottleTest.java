@@ -0,0 +1,61 @@
+package com.mediabox.airhome.pairing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PairSetupThrottleTest {
+    @Test
+    public void freeAttemptsThenDoublingWaits() {
+        PairSetupThrottle throttle = new PairSetupThrottle();
+        long now = 1_000;
+        for (int i = 1; i < PairSetupThrottle.FREE_ATTEMPTS; i++) {
+            throttle.recordFailure(now);
+            assertEquals("failure " + i, 0, throttle.getRetryDelay(now));
+        }
+
+        long delay = PairSetupThrottle.BASE_DELAY_MILLIS;
+        for (int i = 0; i < 12; i++) {
+            throttle.recordFailure(now);
+            assertEquals(delay, throttle.getRetryDelay(now));
+            assertEquals(1, throttle.getRetryDelay(now + delay - 1));
+            now += delay;
+            assertEquals(0, throttle.getRetryDelay(now));
+            delay = Math.min(delay * 2, PairSetupThrottle.MAX_DELAY_MILLIS);
+        }
+        assertEquals(PairSetupThrottle.MAX_DELAY_MILLIS, delay);
+    }
+
+    @Test
+    public void tooManyFailuresStopPairSetup() {
+        PairSetupThrottle throttle = new PairSetupThrottle();
+        for (int i = 0; i < PairSetupThrottle.MAX_ATTEMPTS; i++) {
+            throttle.recordFailure(0);
+        }
+        assertEquals(Long.MAX_VALUE, throttle.getRetryDelay(Long.MAX_VALUE / 2));
+    }
+
+    @Test
+    public void successClearsTheCount() {
+        PairSetupThrottle throttle = new PairSetupThrottle();
+        for (int i = 0; i < PairSetupThrottle.FREE_ATTEMPTS + 3; i++) {
+            throttle.recordFailure(0);
+        }
+        throttle.recordSuccess();
+        assertEquals(0, throttle.getRetryDelay(0));
+        throttle.recordFailure(0);
+        assertEquals(0, throttle.getRetryDelay(0));
+    }
+
+    @Test
+    public void laterAttemptSupersedesEarlier() {
+        PairSetupThrottle throttle = new PairSetupThrottle();
+        int first = throttle.startAttempt();
+        assertTrue(throttle.isCurrent(first));
+        int second = throttle.startAttempt();
+        assertFalse(throttle.isCurrent(first));
+        assertTrue(throttle.isCurrent(second));
+    }
+}
@@ -0,0 +1,420 @@
+package com.mediabox.airhome.pairing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.mediabox.airhome.util.ConfigManager;
+import com.mediabox.airhome.util.MemoryPreferences;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.math.ec.rfc7748.X25519;
+import org.bouncycastle.math.ec.rfc8032.Ed25519;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+
+/**
+ * Pair-setup and pair-verify against a controller written out from the
+ * protocol, as a sender runs them
+ */
+public class PairingSessionTest {
+    private static final String ACCESSORY_ID = "AA:BB:CC:DD:EE:FF";
+    private static final int FLAG_TRANSIENT = 0x10;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private volatile String shownPin;
+
+    /**
+     * A sender with its own long-term identity
+     */
+    private static final class Controller {
+        final String id;
+        final byte[] secretKey = new byte[Ed25519.SECRET_KEY_SIZE];
+        final byte[] publicKey = new byte[Ed25519.PUBLIC_KEY_SIZE];
+
+        // From the last pair-setup or pair-verify
+        byte[] sessionKey;
+        byte[] accessoryKey;
+        byte[] readKey;
+        byte[] writeKey;
+
+        Controller(String id) {
+            this.id = id;
+            Ed25519.generatePrivateKey(RANDOM, secretKey);
+            Ed25519.generatePublicKey(secretKey, 0, publicKey, 0);
+        }
+
+        byte[] sign(byte[] message) {
+            byte[] signature = new byte[Ed25519.SIGNATURE_SIZE];
+            Ed25519.sign(secretKey, 0, message, 0, message.length, signature, 0);
+            return signature;
+        }
+
+        /**
+         * Run M1 and M2
+         *
+         * @return The M2 items
+         */
+        byte[][] setupStart(PairingSession session, boolean transientPairing) throws IOException {
+            Tlv8.Writer m1 = new Tlv8.Writer().add(Tlv8.STATE, 1).add(Tlv8.METHOD, 0);
+            if (transientPairing) {
+                m1.add(Tlv8.FLAGS, FLAG_TRANSIENT);
+            }
+            return Tlv8.decode(session.handlePairSetup(m1.toByteArray()));
+        }
+
+        /**
+         * Run M3 and M4 with the given code
+         *
+         * @return The M4 items
+         */
+        byte[][] setupProve(PairingSession session, byte[][] m2, String pin) throws IOException {
+            SrpClient srp = new SrpClient("Pair-Setup", pin, m2[Tlv8.SALT], m2[Tlv8.PUBLIC_KEY], RANDOM);
+            byte[][] m4 = Tlv8.decode(session.handlePairSetup(new Tlv8.Writer()
+                    .add(Tlv8.STATE, 3)
+                    .add(Tlv8.PUBLIC_KEY, srp.getPublicKey())
+                    .add(Tlv8.PROOF, srp.getProof())
+                    .toByteArray()));
+            if (m4[Tlv8.ERROR] == null) {
+                assertTrue("server proof", srp.verifyServer(m4[Tlv8.PROOF]));
+                sessionKey = srp.getSessionKey();
+                readKey = PairingSession.hkdf(sessionKey, "Control-Salt", "Control-Read-Encryption-Key");
+                writeKey = PairingSession.hkdf(sessionKey, "Control-Salt", "Control-Write-Encryption-Key");
+            }
+            return m4;
+        }
+
+        /**
+         * Run M5 and M6, offering this controller's long-term key
+         *
+         * @return The M6 items, with the accessory's key checked if it sent one
+         */
+        byte[][] setupExchange(PairingSession session) throws IOException, InvalidCipherTextException {
+            ChaChaCipher cipher = new ChaChaCipher(
+                    PairingSession.hkdf(sessionKey, "Pair-Setup-Encrypt-Salt", "Pair-Setup-Encrypt-Info"));
+            byte[] idBytes = ascii(id);
+            byte[] x = PairingSession.hkdf(sessionKey,
+                    "Pair-Setup-Controller-Sign-Salt", "Pair-Setup-Controller-Sign-Info");
+            byte[] inner = new Tlv8.Writer()
+                    .add(Tlv8.IDENTIFIER, idBytes)
+                    .add(Tlv8.PUBLIC_KEY, publicKey)
+                    .add(Tlv8.SIGNATURE, sign(concat(x, idBytes, publicKey)))
+                    .toByteArray();
+            byte[][] m6 = Tlv8.decode(session.handlePairSetup(new Tlv8.Writer()
+                    .add(Tlv8.STATE, 5)
+                    .add(Tlv8.ENCRYPTED_DATA, cipher.seal(ascii("PS-Msg05"), inner))
+                    .toByteArray()));
+            if (m6[Tlv8.ERROR] == null) {
+                byte[][] accessory = Tlv8.decode(cipher.open(ascii("PS-Msg06"), m6[Tlv8.ENCRYPTED_DATA]));
+                byte[] accessoryX = PairingSession.hkdf(sessionKey,
+                        "Pair-Setup-Accessory-Sign-Salt", "Pair-Setup-Accessory-Sign-Info");
+                assertEquals(ACCESSORY_ID, new String(accessory[Tlv8.IDENTIFIER], StandardCharsets.US_ASCII));
+                assertTrue("accessory signature", PairingIdentity.verify(accessory[Tlv8.PUBLIC_KEY],
+                        concat(accessoryX, accessory[Tlv8.IDENTIFIER], accessory[Tlv8.PUBLIC_KEY]),
+                        accessory[Tlv8.SIGNATURE]));
+                accessoryKey = accessory[Tlv8.PUBLIC_KEY];
+            }
+            return m6;
+        }
+
+        /**
+         * Run pair-verify
+         *
+         * @return The M4 items
+         */
+        byte[][] verify(PairingSession session) throws IOException, InvalidCipherTextException {
+            byte[] privateKey = new byte[X25519.SCALAR_SIZE];
+            X25519.generatePrivateKey(RANDOM, privateKey);
+            byte[] ownKey = new byte[X25519.POINT_SIZE];
+            X25519.generatePublicKey(privateKey, 0, ownKey, 0);
+
+            byte[][] m2 = Tlv8.decode(session.handlePairVerify(new Tlv8.Writer()
+                    .add(Tlv8.STATE, 1)
+                    .add(Tlv8.PUBLIC_KEY, ownKey)
+                    .toByteArray()));
+            byte[] accessoryEphemeral = m2[Tlv8.PUBLIC_KEY];
+            byte[] shared = new byte[X25519.POINT_SIZE];
+            assertTrue(X25519.calculateAgreement(privateKey, 0, accessoryEphemeral, 0, shared, 0));
+            ChaChaCipher cipher = new ChaChaCipher(
+                    PairingSession.hkdf(shared, "Pair-Verify-Encrypt-Salt", "Pair-Verify-Encrypt-Info"));
+
+            byte[][] accessory = Tlv8.decode(cipher.open(ascii("PV-Msg02"), m2[Tlv8.ENCRYPTED_DATA]));
+            assertTrue("accessory signature", PairingIdentity.verify(accessoryKey,
+                    concat(accessoryEphemeral, accessory[Tlv8.IDENTIFIER], ownKey), accessory[Tlv8.SIGNATURE]));
+
+            byte[] idBytes = ascii(id);
+            byte[] inner = new Tlv8.Writer()
+                    .add(Tlv8.IDENTIFIER, idBytes)
+                    .add(Tlv8.SIGNATURE, sign(concat(ownKey, idBytes, accessoryEphemeral)))
+                    .toByteArray();
+            byte[][] m4 = Tlv8.decode(session.handlePairVerify(new Tlv8.Writer()
+                    .add(Tlv8.STATE, 3)
+                    .add(Tlv8.ENCRYPTED_DATA, cipher.seal(ascii("PV-Msg03"), inner))
+                    .toByteArray()));
+            readKey = PairingSession.hkdf(shared, "Control-Salt", "Control-Read-Encryption-Key");
+            writeKey = PairingSession.hkdf(shared, "Control-Salt", "Control-Write-Encryption-Key");
+            return m4;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        MemoryPreferences.install();
+        PairingSession.setPinListener(pin -> {
+            if (pin != null) {
+                shownPin = pin;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        PairingSession.setPinListener(null);
+    }
+
+    private static PairingSession newSession() {
+        return new PairingSession(ACCESSORY_ID, new PairSetupThrottle());
+    }
+
+    /**
+     * Pair-setup that stores the controller, with the code shown on screen
+     */
+    private void pair(Controller controller) throws Exception {
+        PairingSession session = newSession();
+        byte[][] m2 = controller.setupStart(session, false);
+        assertNull(m2[Tlv8.ERROR]);
+        assertNull(controller.setupProve(session, m2, shownPin)[Tlv8.ERROR]);
+        assertNull(controller.setupExchange(session)[Tlv8.ERROR]);
+    }
+
+    @Test
+    public void transientPairingEncryptsWithTheFixedCode() throws Exception {
+        PairingSession session = newSession();
+        Controller controller = new Controller("transient-sender");
+        shownPin = null;
+        byte[][] m2 = controller.setupStart(session, true);
+        assertNull("code shown for a transient pairing", shownPin);
+        assertNull(controller.setupProve(session, m2, "3939")[Tlv8.ERROR]);
+
+        assertTrue(session.isEstablished());
+        assertArrayEquals(controller.writeKey, session.getReadKey());
+        assertArrayEquals(controller.readKey, session.getWriteKey());
+    }
+
+    /**
+     * The fixed code must not get a controller stored: M5 after a
+     * transient M4 is refused, even correctly sealed and signed
+     */
+    @Test
+    public void transientPairingCannotStoreAController() throws Exception {
+        PairingSession session = newSession();
+        Controller controller = new Controller("intruder");
+        byte[][] m2 = controller.setupStart(session, true);
+        assertNull(controller.setupProve(session, m2, "3939")[Tlv8.ERROR]);
+
+        byte[][] m6 = controller.setupExchange(session);
+        assertEquals(6, Tlv8.byteValue(m6, Tlv8.STATE));
+        assertEquals(Tlv8.ERROR_AUTHENTICATION, Tlv8.byteValue(m6, Tlv8.ERROR));
+        assertNull(m6[Tlv8.ENCRYPTED_DATA]);
+        assertTrue(ConfigManager.getInstance().getPairedControllers().isEmpty());
+
+        // Nor can it pair-verify afterwards
+        controller.accessoryKey = PairingIdentity.getInstance().getPublicKey();
+        byte[][] m4 = controller.verify(newSession());
+        assertEquals(Tlv8.ERROR_AUTHENTICATION, Tlv8.byteValue(m4, Tlv8.ERROR));
+    }
+
+    @Test
+    public void storedPairingThenVerify() throws Exception {
+        Controller controller = new Controller("sender-1");
+        pair(controller);
+        assertEquals(1, ConfigManager.getInstance().getPairedControllers().size());
+        assertArrayEquals(controller.publicKey,
+                PairingIdentity.getInstance().getControllerKey(controller.id));
+
+        PairingSession session = newSession();
+        byte[][] m4 = controller.verify(session);
+        assertNull(m4[Tlv8.ERROR]);
+        assertEquals(4, Tlv8.byteValue(m4, Tlv8.STATE));
+        assertTrue(session.isEstablished());
+        assertArrayEquals(controller.writeKey, session.getReadKey());
+        assertArrayEquals(controller.readKey, session.getWriteKey());
+    }
+
+    @Test
+    public void verifyRejectsAnUnpairedController() throws Exception {
+        pair(new Controller("sender-1"));
+        Controller stranger = new Controller("stranger");
+        stranger.accessoryKey = PairingIdentity.getInstance().getPublicKey();
+
+        PairingSession session = newSession();
+        byte[][] m4 = stranger.verify(session);
+        assertEquals(Tlv8.ERROR_AUTHENTICATION, Tlv8.byteValue(m4, Tlv8.ERROR));
+        assertFalse(session.isEstablished());
+    }
+
+    /**
+     * A controller that claims a paired identifier but signs with another key
+     */
+    @Test
+    public void verifyRejectsAForgedIdentity() throws Exception {
+        Controller owner = new Controller("sender-1");
+        pair(owner);
+        Controller impostor = new Controller("sender-1");
+        impostor.accessoryKey = owner.accessoryKey;
+
+        PairingSession session = newSession();
+        assertEquals(Tlv8.ERROR_AUTHENTICATION, Tlv8.byteValue(impostor.verify(session), Tlv8.ERROR));
+        assertFalse(session.isEstablished());
+    }
+
+    @Test
+    public void wrongCodesBackOff() throws Exception {
+        PairSetupThrottle throttle = new PairSetupThrottle();
+        Controller controller = new Controller("guesser");
+        for (int i = 0; i < PairSetupThrottle.FREE_ATTEMPTS; i++) {
+            PairingSession session = new PairingSession(ACCESSORY_ID, throttle);
+            byte[][] m2 = controller.setupStart(session, false);
+            assertNull("attempt " + i, m2[Tlv8.ERROR]);
+            String wrong = shownPin.equals("0000") ? "0001" : "0000";
+            assertEquals(Tlv8.ERROR_AUTHENTICATION,
+                    Tlv8.byteValue(controller.setupProve(session, m2, wrong), Tlv8.ERROR));
+        }
+
+        byte[][] m2 = controller.setupStart(new PairingSession(ACCESSORY_ID, throttle), false);
+        assertEquals(2, Tlv8.byteValue(m2, Tlv8.STATE));
+        assertEquals(Tlv8.ERROR_BACKOFF, Tlv8.byteValue(m2, Tlv8.ERROR));
+        assertEquals(PairSetupThrottle.BASE_DELAY_MILLIS / 1000, Tlv8.byteValue(m2, Tlv8.RETRY_DELAY));
+        assertNull(m2[Tlv8.PUBLIC_KEY]);
+
+        // Transient pairings have nothing to guess and are not held up
+        assertNull(controller.setupStart(new PairingSession(ACCESSORY_ID, throttle), true)[Tlv8.ERROR]);
+    }
+
+    /**
+     * Codes fetched on many connections at once cannot be guessed later:
+     * only the attempt whose code is on screen can complete
+     */
+    @Test
+    public void onlyTheLatestAttemptCanComplete() throws Exception {
+        PairSetupThrottle throttle = new PairSetupThrottle();
+        Controller controller = new Controller("sender-1");
+        PairingSession first = new PairingSession(ACCESSORY_ID, throttle);
+        byte[][] firstM2 = controller.setupStart(first, false);
+        String firstPin = shownPin;
+        controller.setupStart(new PairingSession(ACCESSORY_ID, throttle), false);
+
+        byte[][] m4 = controller.setupProve(first, firstM2, firstPin);
+        assertEquals(Tlv8.ERROR_BACKOFF, Tlv8.byteValue(m4, Tlv8.ERROR));
+        assertNull(m4[Tlv8.PROOF]);
+    }
+
+    /**
+     * Time for each handshake with the server's side on this thread. The
+     * client's work is included, so the figures overstate the receiver's
+     * share.
+     */
+    /**
+     * The controller a sender verified as last time spares looking its
+     * key up, but only while the settings it was read from are unchanged
+     */
+    @Test
+    public void rememberedControllerLapsesWhenSettingsChange() throws Exception {
+        Controller controller = new Controller("sender-1");
+        pair(controller);
+        PairingSession first = newSession();
+        assertNull(controller.verify(first)[Tlv8.ERROR]);
+        PairingSession.VerifiedController verified = first.getVerifiedController();
+        assertEquals(controller.id, verified.getIdentifier());
+
+        // Trusted as given: a key never stored still verifies
+        Controller remembered = new Controller("remembered");
+        remembered.accessoryKey = controller.accessoryKey;
+        PairingSession second = newSession();
+        second.setKnownController(new PairingSession.VerifiedController(remembered.id, remembered.publicKey,
+                ConfigManager.getInstance().getRevision()));
+        assertNull(remembered.verify(second)[Tlv8.ERROR]);
+
+        PairingSession third = newSession();
+        third.setKnownController(verified);
+        assertNull(controller.verify(third)[Tlv8.ERROR]);
+
+        ConfigManager.getInstance().removePairedController(controller.id);
+        PairingSession fourth = newSession();
+        fourth.setKnownController(verified);
+        assertEquals(Tlv8.ERROR_AUTHENTICATION, Tlv8.byteValue(controller.verify(fourth), Tlv8.ERROR));
+        assertNull(fourth.getVerifiedController());
+    }
+
+    @Test
+    public void benchmarkHandshakes() throws Exception {
+        int rounds = 20;
+        Controller controller = new Controller("benchmark-sender");
+        long transientNanos = 0;
+        long setupNanos = 0;
+        long verifyNanos = 0;
+        long rememberedNanos = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            // The first pass warms up the JIT and is not counted
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                PairingSession session = newSession();
+                controller.setupProve(session, controller.setupStart(session, true), "3939");
+            }
+            transientNanos = (System.nanoTime() - start) / rounds;
+
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                pair(controller);
+            }
+            setupNanos = (System.nanoTime() - start) / rounds;
+
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                PairingSession session = newSession();
+                assertNull(controller.verify(session)[Tlv8.ERROR]);
+            }
+            verifyNanos = (System.nanoTime() - start) / rounds;
+
+            // As a sender found in the sender cache reconnects
+            PairingSession.VerifiedController verified = null;
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                PairingSession session = newSession();
+                session.setKnownController(verified);
+                assertNull(controller.verify(session)[Tlv8.ERROR]);
+                verified = session.getVerifiedController();
+            }
+            rememberedNanos = (System.nanoTime() - start) / rounds;
+        }
+
+        System.out.println(String.format("PairingSession: transient pair-setup %.1f ms, stored pair-setup %.1f ms,"
+                        + " pair-verify %.2f ms, %.2f ms with the controller remembered, both sides on one core",
+                transientNanos / 1e6, setupNanos / 1e6, verifyNanos / 1e6, rememberedNanos / 1e6));
+        // A sender gives up on a handshake after a few seconds
+        assertTrue("pair-setup " + setupNanos + " ns", setupNanos < 1_000_000_000L);
+        assertTrue("pair-verify " + verifyNanos + " ns", verifyNanos < 100_000_000L);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
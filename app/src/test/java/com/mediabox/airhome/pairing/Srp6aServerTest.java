@@ -0,0 +1,50 @@
+package com.mediabox.airhome.pairing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.security.SecureRandom;
+
+public class Srp6aServerTest {
+    private final SecureRandom random = new SecureRandom();
+
+    @Test
+    public void clientWithThePasswordAgreesOnTheKey() {
+        for (int i = 0; i < 5; i++) {
+            Srp6aServer server = new Srp6aServer("Pair-Setup", "3939", random);
+            SrpClient client = new SrpClient("Pair-Setup", "3939", server.getSalt(), server.getPublicKey(), random);
+
+            assertTrue(server.verifyClient(client.getPublicKey(), client.getProof()));
+            assertArrayEquals(client.getSessionKey(), server.getSessionKey());
+            assertTrue("server proof", client.verifyServer(server.getServerProof()));
+        }
+    }
+
+    @Test
+    public void wrongPasswordIsRejected() {
+        Srp6aServer server = new Srp6aServer("Pair-Setup", "1234", random);
+        SrpClient client = new SrpClient("Pair-Setup", "1235", server.getSalt(), server.getPublicKey(), random);
+
+        assertFalse(server.verifyClient(client.getPublicKey(), client.getProof()));
+        assertNull(server.getSessionKey());
+        assertNull(server.getServerProof());
+    }
+
+    /**
+     * A public value of zero or a multiple of N would fix the shared secret
+     * whatever the password
+     */
+    @Test
+    public void degenerateClientKeyIsRejected() {
+        Srp6aServer server = new Srp6aServer("Pair-Setup", "3939", random);
+        byte[] proof = new byte[64];
+        assertFalse(server.verifyClient(new byte[384], proof));
+        assertFalse(server.verifyClient(SrpClient.pad(Srp6aServer.N), proof));
+        assertFalse(server.verifyClient(SrpClient.unsigned(Srp6aServer.N.shiftLeft(1)), proof));
+        assertNull(server.getSessionKey());
+    }
+}
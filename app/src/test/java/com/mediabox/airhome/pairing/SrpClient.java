@@ -0,0 +1,99 @@
+package com.mediabox.airhome.pairing;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Client side of SRP-6a written out from RFC 5054 and the pair-setup
+ * proof, independently of {@link Srp6aServer}, as a sender computes it
+ */
+final class SrpClient {
+    private static final int N_BYTES = 384;
+
+    private final byte[] publicKey;
+    private final byte[] proof;
+    private final byte[] sessionKey;
+    private final byte[] expectedServerProof;
+
+    /**
+     * Answer the server's salt and public key
+     */
+    SrpClient(String username, String password, byte[] salt, byte[] serverPublicKey, SecureRandom random) {
+        BigInteger n = Srp6aServer.N;
+        BigInteger g = Srp6aServer.G;
+        byte[] secret = new byte[32];
+        random.nextBytes(secret);
+        BigInteger a = new BigInteger(1, secret);
+        BigInteger bigA = g.modPow(a, n);
+        BigInteger bigB = new BigInteger(1, serverPublicKey);
+
+        BigInteger k = new BigInteger(1, sha512(pad(n), pad(g)));
+        BigInteger x = new BigInteger(1, sha512(salt, sha512(ascii(username + ":" + password))));
+        BigInteger u = new BigInteger(1, sha512(pad(bigA), pad(bigB)));
+        // S = (B - k * g^x) ^ (a + u * x)
+        BigInteger base = bigB.subtract(k.multiply(g.modPow(x, n))).mod(n);
+        BigInteger s = base.modPow(a.add(u.multiply(x)), n);
+
+        publicKey = pad(bigA);
+        sessionKey = sha512(unsigned(s));
+        byte[] hashN = sha512(unsigned(n));
+        byte[] hashG = sha512(unsigned(g));
+        for (int i = 0; i < hashN.length; i++) {
+            hashN[i] ^= hashG[i];
+        }
+        proof = sha512(hashN, sha512(ascii(username)), salt, unsigned(bigA), unsigned(bigB), sessionKey);
+        expectedServerProof = sha512(unsigned(bigA), proof, sessionKey);
+    }
+
+    byte[] getPublicKey() {
+        return publicKey;
+    }
+
+    byte[] getProof() {
+        return proof;
+    }
+
+    byte[] getSessionKey() {
+        return sessionKey;
+    }
+
+    boolean verifyServer(byte[] serverProof) {
+        return MessageDigest.isEqual(expectedServerProof, serverProof);
+    }
+
+    static byte[] sha512(byte[]... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-512");
+            for (byte[] part : parts) {
+                digest.update(part);
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte[] pad(BigInteger value) {
+        byte[] bytes = unsigned(value);
+        byte[] padded = new byte[N_BYTES];
+        System.arraycopy(bytes, 0, padded, N_BYTES - bytes.length, bytes.length);
+        return padded;
+    }
+
+    static byte[] unsigned(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0) {
+            byte[] trimmed = new byte[bytes.length - 1];
+            System.arraycopy(bytes, 1, trimmed, 0, trimmed.length);
+            return trimmed;
+        }
+        return bytes;
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,297 @@
+package com.mediabox.airhome.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContextWrapper;
+
+import com.mediabox.airhome.audio.AudioSpillQueue;
+import com.mediabox.airhome.util.ConfigManager;
+import com.mediabox.airhome.util.MemoryPreferences;
+import com.mediabox.airhome.util.SimulatedTimerWheel;
+import com.mediabox.airhome.util.ThreadPolicy;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class AdmissionControlTest {
+    private static final int MAX_CONNECTIONS = 8;
+    private static final int CONNECTS_PER_MINUTE = 30;
+
+    // Playback as a session does it: 352-frame stereo packets at 44.1 kHz
+    // into the session queue, out to a track with an 80 ms buffer
+    private static final int RATE = 44100;
+    private static final int PACKET_FRAMES = 352;
+    private static final long PACKET_NANOS = PACKET_FRAMES * 1_000_000_000L / RATE;
+    private static final int TRACK_FRAMES = RATE * 80 / 1000;
+    // Audio queued before playback starts, as the sender's latency allows
+    private static final long PREBUFFER_NANOS = 250_000_000L;
+
+    /**
+     * An unconnected socket that reports the given peer
+     */
+    private static Socket socketFrom(InetAddress address) {
+        return new Socket() {
+            @Override
+            public InetAddress getInetAddress() {
+                return address;
+            }
+        };
+    }
+
+    private static InetAddress address(int index) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[] {10, (byte) (index >> 16), (byte) (index >> 8), (byte) index});
+    }
+
+    @Test
+    public void clientOverItsRateIsRejected() throws UnknownHostException {
+        AdmissionControl admission = new AdmissionControl(MAX_CONNECTIONS, CONNECTS_PER_MINUTE, 4, 1024);
+        InetAddress client = address(1);
+        for (int i = 0; i < CONNECTS_PER_MINUTE; i++) {
+            AdmissionControl.Ticket ticket = admission.admit(socketFrom(client), i, 0);
+            assertNotNull("connect " + i, ticket);
+            admission.release(i);
+        }
+        assertNull(admission.admit(socketFrom(client), CONNECTS_PER_MINUTE, 0));
+        assertEquals(1, admission.getConnectionsRateLimited());
+    }
+
+    /**
+     * Connections from a flood of addresses, each admitted one closed again
+     * as a handler would. The playing sender keeps its connection and
+     * session, and the tracked clients stay bounded.
+     */
+    @Test
+    public void floodFromManyAddressesLeavesPlaybackAlone() throws UnknownHostException {
+        AdmissionControl admission = new AdmissionControl(MAX_CONNECTIONS, CONNECTS_PER_MINUTE, 4, 1024);
+        InetAddress player = InetAddress.getByAddress(new byte[] {(byte) 192, (byte) 168, 1, 20});
+        Socket playerSocket = socketFrom(player);
+        AdmissionControl.Ticket playing = admission.admit(playerSocket, 0, 0);
+        assertNotNull(playing);
+        playing.setHasSession(true);
+        assertTrue(admission.admitSession(0));
+
+        int flood = 200_000;
+        int admitted = 0;
+        long start = System.nanoTime();
+        for (int i = 1; i <= flood; i++) {
+            // Each address connects twice, as senders retry
+            InetAddress attacker = address(i / 2);
+            AdmissionControl.Ticket ticket = admission.admit(socketFrom(attacker), i, 0);
+            if (ticket != null) {
+                admitted++;
+                admission.release(i);
+            }
+        }
+        long nanosPerConnect = (System.nanoTime() - start) / flood;
+
+        System.out.println("AdmissionControl: " + flood + " connects from " + flood / 2 + " addresses, "
+                + admission.getTrackedClients() + " clients tracked, " + nanosPerConnect + " ns per admit");
+
+        assertEquals(flood, admitted);
+        assertTrue(admission.getTrackedClients() <= AdmissionControl.MAX_TRACKED_CLIENTS);
+        // The playing connection was never shed, and its sender can still
+        // open another connection and session
+        assertFalse(playerSocket.isClosed());
+        assertEquals(0, admission.getIdleConnectionsClosed());
+        assertNotNull(admission.admit(socketFrom(player), flood + 1, 0));
+        assertTrue(admission.admitSession(1));
+    }
+
+    /**
+     * A session's audio path in real time, fed and drained by its own
+     * threads. The track is modelled by the wall clock: it plays from when
+     * its buffer first fills, and underruns whenever it has played
+     * everything written.
+     */
+    private static final class Playback {
+        final AudioSpillQueue queue = new AudioSpillQueue(null, 64 * 1024, 0, Long.MAX_VALUE);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        volatile long packets;
+        volatile int underruns;
+        volatile long longestWaitNanos;
+
+        // The receive thread, queueing packets as they arrive from the sender
+        final Thread receiver = ThreadPolicy.newThread(ThreadPolicy.Stage.AUDIO_RECEIVE, "TestReceive", () -> {
+            byte[] packet = new byte[PACKET_FRAMES * 4];
+            long next = System.nanoTime();
+            while (running.get()) {
+                queue.offer(packet, 0, packet.length);
+                next += PACKET_NANOS;
+                LockSupport.parkNanos(next - System.nanoTime());
+            }
+        });
+
+        // The playback thread, writing queued packets to the track
+        final Thread player = ThreadPolicy.newThread(ThreadPolicy.Stage.PLAYBACK, "TestPlayback", () -> {
+            LockSupport.parkNanos(PREBUFFER_NANOS);
+            long framesWritten = 0;
+            long startedAt = -1;
+            boolean empty = false;
+            long last = System.nanoTime();
+            while (running.get()) {
+                long now = System.nanoTime();
+                longestWaitNanos = Math.max(longestWaitNanos, now - last);
+                last = now;
+                long framesPlayed = startedAt < 0 ? 0
+                        : Math.min(framesWritten, (now - startedAt) * RATE / 1_000_000_000L);
+                if (startedAt >= 0 && framesPlayed >= framesWritten) {
+                    if (!empty) {
+                        underruns++;
+                    }
+                    empty = true;
+                    // It plays on from here once written to again
+                    startedAt = now - framesWritten * 1_000_000_000L / RATE;
+                }
+
+                if (framesWritten - framesPlayed + PACKET_FRAMES > TRACK_FRAMES) {
+                    // A blocking write waits for room
+                    LockSupport.parkNanos(PACKET_NANOS / 4);
+                    continue;
+                }
+                byte[] chunk = queue.poll();
+                if (chunk == null) {
+                    LockSupport.parkNanos(1_000_000L);
+                    continue;
+                }
+                framesWritten += chunk.length / 4;
+                queue.recycle(chunk);
+                packets++;
+                empty = false;
+                if (startedAt < 0 && framesWritten >= TRACK_FRAMES - PACKET_FRAMES) {
+                    startedAt = System.nanoTime();
+                }
+            }
+        });
+
+        void start() {
+            receiver.start();
+            player.start();
+        }
+
+        void stop() throws InterruptedException {
+            running.set(false);
+            receiver.join();
+            player.join();
+            queue.close();
+        }
+    }
+
+    /**
+     * Read one response up to the blank line after its headers, or null if
+     * the server hung up first
+     */
+    private static String readHeaders(InputStream input) throws IOException {
+        StringBuilder response = new StringBuilder();
+        while (response.length() < 4 || !response.substring(response.length() - 4).equals("\r\n\r\n")) {
+            int b = input.read();
+            if (b < 0) {
+                return null;
+            }
+            response.append((char) b);
+        }
+        return response.toString();
+    }
+
+    /**
+     * A session plays through its queue while clients hammer the server
+     * with connections over loopback. Rejecting them costs the accept
+     * thread a write and a close each, which must not starve the audio
+     * threads. On a device those also run at audio priority; on the JVM
+     * they compete evenly, which makes this the harder test.
+     */
+    @Test
+    public void connectionFloodDoesNotUnderrunPlayback() throws Exception {
+        MemoryPreferences.install();
+        ConfigManager.getInstance().setMaxConnections(MAX_CONNECTIONS);
+        ConfigManager.getInstance().setMaxConnectsPerMinute(CONNECTS_PER_MINUTE);
+        AirPlayServer server = new AirPlayServer(new ContextWrapper(null), null,
+                new SimulatedTimerWheel(1000, 512), null, 0);
+        server.start();
+        int port = server.getPort();
+        Playback playback = new Playback();
+        AtomicBoolean flooding = new AtomicBoolean(true);
+        AtomicLong attempts = new AtomicLong();
+        List<Thread> flooders = new ArrayList<>();
+        byte[] options = "OPTIONS * RTSP/1.0\r\nCSeq: 1\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+        try (Socket sender = new Socket("127.0.0.1", port)) {
+            // The playing sender connected first and keeps its connection
+            sender.setSoTimeout(10_000);
+            OutputStream control = sender.getOutputStream();
+            control.write(options);
+            assertTrue(readHeaders(sender.getInputStream()).startsWith("RTSP/1.0 200"));
+            playback.start();
+
+            for (int i = 0; i < 4; i++) {
+                Thread flooder = new Thread(() -> {
+                    while (flooding.get()) {
+                        try (Socket socket = new Socket("127.0.0.1", port)) {
+                            socket.setSoTimeout(10_000);
+                            socket.getOutputStream().write(options);
+                            readHeaders(socket.getInputStream());
+                        } catch (IOException e) {
+                            // Reset by the rejection, as a flood would be
+                        }
+                        attempts.incrementAndGet();
+                    }
+                }, "Flooder-" + i);
+                flooders.add(flooder);
+                flooder.start();
+            }
+
+            long end = System.nanoTime() + 3_000_000_000L;
+            while (System.nanoTime() < end) {
+                Thread.sleep(500);
+                // Keep-alives from the playing sender are still answered
+                control.write(options);
+                assertTrue(readHeaders(sender.getInputStream()).startsWith("RTSP/1.0 200"));
+            }
+        } finally {
+            flooding.set(false);
+            for (Thread flooder : flooders) {
+                flooder.join();
+            }
+            playback.stop();
+            server.stop();
+        }
+
+        AdmissionControl admission = server.getAdmissionControl();
+        System.out.println("AdmissionControl: " + attempts.get() + " connects in 3 s, "
+                + admission.getConnectionsRateLimited() + " rate limited; playback " + playback.packets
+                + " packets, " + playback.underruns + " underruns, longest wait "
+                + playback.longestWaitNanos / 1_000_000 + " ms");
+
+        assertTrue(admission.getConnectionsRateLimited() > 0);
+        // Three seconds of audio, less the prebuffer, all played
+        assertTrue(playback.packets + " packets played",
+                playback.packets > (3_000_000_000L - PREBUFFER_NANOS) / PACKET_NANOS * 9 / 10);
+        assertEquals(0, playback.underruns);
+    }
+
+    @Test
+    public void fullServerRejectsWhenNothingIsIdle() throws UnknownHostException {
+        AdmissionControl admission = new AdmissionControl(MAX_CONNECTIONS, CONNECTS_PER_MINUTE, 4, 1024);
+        for (int i = 0; i < MAX_CONNECTIONS; i++) {
+            assertNotNull(admission.admit(socketFrom(address(i)), i, 0));
+        }
+        // Every connection was just active, so none can be shed
+        assertNull(admission.admit(socketFrom(address(100)), 100, 0));
+        assertEquals(1, admission.getConnectionsRejected());
+    }
+}
@@ -0,0 +1,138 @@
+package com.mediabox.airhome.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContextWrapper;
+
+import com.mediabox.airhome.util.ConfigManager;
+import com.mediabox.airhome.util.MemoryPreferences;
+import com.mediabox.airhome.util.SimulatedTimerWheel;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+public class AirPlayServerTest {
+    private static final int MAX_CONNECTIONS = 8;
+
+    private static final byte[] OPTIONS =
+            "OPTIONS * RTSP/1.0\r\nCSeq: 1\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Read one response up to the blank line after its headers
+     */
+    private static String readHeaders(InputStream input) throws IOException {
+        StringBuilder response = new StringBuilder();
+        while (response.length() < 4 || !response.substring(response.length() - 4).equals("\r\n\r\n")) {
+            int b = input.read();
+            if (b < 0) {
+                throw new IOException("Closed after " + response);
+            }
+            response.append((char) b);
+        }
+        return response.toString();
+    }
+
+    private static int countThreads(String prefix) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(prefix) && thread.isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void awaitReleased(AdmissionControl admission) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (admission.getConnectionCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals("connections still admitted", 0, admission.getConnectionCount());
+    }
+
+    private static long settledHeap(MemoryMXBean memory) {
+        System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Senders connect over loopback, ask for OPTIONS and vanish without a
+     * TEARDOWN, round after round. Once the reaper closes them, every
+     * handler thread goes back to the pool and its connection is released,
+     * so threads and heap stay where the first round left them however
+     * many connections are abandoned.
+     */
+    @Test
+    public void abandonedConnectionsAreReapedWithoutGrowth() throws Exception {
+        MemoryPreferences.install();
+        ConfigManager config = ConfigManager.getInstance();
+        config.setMaxConnections(MAX_CONNECTIONS);
+        // Every sender here is 127.0.0.1
+        config.setMaxConnectsPerMinute(Integer.MAX_VALUE);
+
+        SimulatedTimerWheel reaper = new SimulatedTimerWheel(1000, 512);
+        AirPlayServer server = new AirPlayServer(new ContextWrapper(null), null, reaper, null, 0);
+        server.start();
+        AdmissionControl admission = server.getAdmissionControl();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        int rounds = 40;
+        int threadsAfterFirstRound = 0;
+        long heapAfterFirstRound = 0;
+        int maxHandlerThreads = 0;
+
+        try {
+            for (int round = 0; round < rounds; round++) {
+                Socket[] senders = new Socket[MAX_CONNECTIONS];
+                for (int i = 0; i < senders.length; i++) {
+                    senders[i] = new Socket("127.0.0.1", server.getPort());
+                    senders[i].setSoTimeout(10_000);
+                    OutputStream output = senders[i].getOutputStream();
+                    output.write(OPTIONS);
+                    output.flush();
+                    assertTrue(readHeaders(senders[i].getInputStream()).startsWith("RTSP/1.0 200"));
+                }
+                assertEquals(MAX_CONNECTIONS, reaper.size());
+                maxHandlerThreads = Math.max(maxHandlerThreads, countThreads("RAOPConnection"));
+
+                // Nothing more from any of them until the idle timeout passes
+                reaper.advanceTo(reaper.time + AirPlayServer.CONNECTION_IDLE_TIMEOUT_MS + 2000);
+                for (Socket sender : senders) {
+                    assertEquals("not reaped", -1, sender.getInputStream().read());
+                    sender.close();
+                }
+                awaitReleased(admission);
+                assertEquals(0, reaper.size());
+
+                if (round == 0) {
+                    threadsAfterFirstRound = Thread.activeCount();
+                    heapAfterFirstRound = settledHeap(memory);
+                }
+            }
+
+            int threads = Thread.activeCount();
+            long heapGrowth = settledHeap(memory) - heapAfterFirstRound;
+            System.out.println("AirPlayServer: " + rounds * MAX_CONNECTIONS + " connections abandoned and reaped, "
+                    + maxHandlerThreads + " handler threads at most, " + threads + " threads against "
+                    + threadsAfterFirstRound + " after the first round, heap grew " + heapGrowth / 1024 + " kB");
+
+            assertTrue(maxHandlerThreads + " handler threads",
+                    maxHandlerThreads <= MAX_CONNECTIONS + AirPlayServer.HANDLER_THREAD_HEADROOM);
+            // Handler threads are reused, not started afresh for each round,
+            // beyond the few a round can start while the last is unwinding
+            assertTrue(threads + " threads",
+                    threads <= threadsAfterFirstRound + AirPlayServer.HANDLER_THREAD_HEADROOM);
+            assertTrue("heap grew " + heapGrowth / 1024 + " kB", heapGrowth < 4 * 1024 * 1024);
+            assertEquals(0, admission.getConnectionsRejected());
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.mediabox.airhome.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.mediabox.airhome.pairing.PairingIdentity;
+import com.mediabox.airhome.util.BinaryPlist;
+import com.mediabox.airhome.util.ConfigManager;
+import com.mediabox.airhome.util.MemoryPreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class InfoCacheTest {
+
+    @Before
+    public void setUp() {
+        MemoryPreferences.install();
+    }
+
+    /**
+     * A sender reads the body back with the fields it needs to pair
+     */
+    @Test
+    public void infoBodyDecodes() throws IOException {
+        ConfigManager.getInstance().setDeviceName("Living Room");
+        byte[] body = InfoCache.get();
+        BinaryPlist plist = new BinaryPlist(body, 0, body.length);
+        int root = plist.root();
+
+        assertEquals(MDNSManager.getMacAddress(), plist.dictString(root, "deviceID"));
+        // The TXT record's "0x5A7FFFF7,0x1E" as one 64-bit value
+        assertEquals(0x1E5A7FFFF7L, plist.dictInt(root, "features", 0));
+        assertEquals("Living Room", plist.dictString(root, "name"));
+        assertEquals("AndroidTV", plist.dictString(root, "model"));
+
+        ByteBuffer pk = plist.dataValue(plist.dictValue(root, "pk"));
+        byte[] key = new byte[pk.remaining()];
+        pk.get(key);
+        assertArrayEquals(PairingIdentity.getInstance().getPublicKey(), key);
+    }
+
+    @Test
+    public void reEncodedOnlyWhenSettingsChange() throws IOException {
+        ConfigManager config = ConfigManager.getInstance();
+        config.setDeviceName("Kitchen");
+        byte[] first = InfoCache.get();
+        assertSame(first, InfoCache.get());
+
+        config.setDeviceName("Study");
+        byte[] renamed = InfoCache.get();
+        assertNotSame(first, renamed);
+        BinaryPlist plist = new BinaryPlist(renamed, 0, renamed.length);
+        assertEquals("Study", plist.dictString(plist.root(), "name"));
+        assertSame(renamed, InfoCache.get());
+
+        // Any setting, not only the name, since the cache cannot tell which matter
+        int revision = config.getRevision();
+        config.setMaxConnections(config.getMaxConnections() + 1);
+        assertTrue(config.getRevision() != revision);
+        assertNotSame(renamed, InfoCache.get());
+    }
+
+    /**
+     * What the cache saves each probe: encoding the body afresh against
+     * handing out the cached one
+     */
+    @Test
+    public void benchmarkCachedAgainstEncoded() {
+        ConfigManager.getInstance().setDeviceName("Living Room");
+        int iterations = 200_000;
+        long sink = 0;
+        long encodeNanos = 0;
+        long cachedNanos = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            // The first pass warms up the JIT and is not counted
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += InfoCache.encode("Living Room").length;
+            }
+            encodeNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += InfoCache.get().length;
+            }
+            cachedNanos = System.nanoTime() - start;
+        }
+        System.out.println(String.format("InfoCache: encode %.0f ns, cached %.0f ns per /info body (%d)",
+                encodeNanos / (double) iterations, cachedNanos / (double) iterations, sink % 10));
+        assertTrue("cache slower than encoding", cachedNanos < encodeNanos);
+    }
+}
@@ -0,0 +1,141 @@
+package com.mediabox.airhome.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import com.mediabox.airhome.util.AllocationMeter;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class RtspRequestReaderTest {
+    private static final int MAX_BODY = 1024;
+
+    private static ByteArrayInputStream stream(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Read a request that must be refused, returning the status it is
+     * refused with
+     */
+    private static String rejectStatus(ByteArrayInputStream input) throws IOException {
+        try {
+            new RtspRequestReader(MAX_BODY).read(input);
+            fail("request accepted");
+            return null;
+        } catch (RtspRequestReader.RequestRejectedException e) {
+            return e.status;
+        }
+    }
+
+    @Test
+    public void readsRequestsBackToBack() throws IOException {
+        ByteArrayInputStream input = stream("SET_PARAMETER rtsp://10.0.0.2/1 RTSP/1.0\r\n"
+                + "CSeq: 7\r\nContent-Type: text/parameters\r\nContent-Length: 11\r\n\r\n"
+                + "volume: -15"
+                + "garbage\n"
+                + "OPTIONS * RTSP/1.0\nCSeq: 8\n\n");
+        RtspRequestReader reader = new RtspRequestReader(MAX_BODY);
+
+        assertTrue(reader.read(input));
+        assertEquals("SET_PARAMETER", reader.getMethod());
+        assertEquals("rtsp://10.0.0.2/1", reader.getUri());
+        assertEquals("7", reader.getHeaders().get("CSeq"));
+        assertEquals("volume: -15", new String(reader.getBody(), StandardCharsets.US_ASCII));
+
+        // A line that is not a request line is skipped
+        assertTrue(reader.read(input));
+        assertEquals("OPTIONS", reader.getMethod());
+        assertEquals("8", reader.getHeaders().get("CSeq"));
+        assertEquals(null, reader.getHeaders().get("Content-Type"));
+        assertEquals(0, reader.getBody().length);
+
+        assertFalse(reader.read(input));
+    }
+
+    @Test
+    public void bodyAtTheLimitIsRead() throws IOException {
+        byte[] body = new byte[MAX_BODY];
+        Arrays.fill(body, (byte) 'x');
+        ByteArrayInputStream input = stream("POST /pair-setup RTSP/1.0\r\nContent-Length: " + MAX_BODY + "\r\n\r\n"
+                + new String(body, StandardCharsets.US_ASCII));
+        RtspRequestReader reader = new RtspRequestReader(MAX_BODY);
+        assertTrue(reader.read(input));
+        assertArrayEquals(body, reader.getBody());
+    }
+
+    @Test
+    public void oversizedBodyIsRefusedUnread() throws IOException {
+        ByteArrayInputStream input = stream("SET_PARAMETER * RTSP/1.0\r\nContent-Length: " + (MAX_BODY + 1)
+                + "\r\n\r\n" + new String(new byte[MAX_BODY + 1], StandardCharsets.US_ASCII));
+        assertEquals(RtspRequestReader.REQUEST_TOO_LARGE, rejectStatus(input));
+        // Nothing of the body was read
+        assertEquals(MAX_BODY + 1, input.available());
+
+        // Lengths that do not fit an int are refused the same way
+        assertEquals(RtspRequestReader.REQUEST_TOO_LARGE,
+                rejectStatus(stream("SETUP * RTSP/1.0\r\nContent-Length: 99999999999\r\n\r\n")));
+    }
+
+    @Test
+    public void unreadableLengthIsABadRequest() throws IOException {
+        assertEquals(RtspRequestReader.BAD_REQUEST,
+                rejectStatus(stream("SETUP * RTSP/1.0\r\nContent-Length: 12x\r\n\r\n")));
+    }
+
+    @Test
+    public void longLineIsABadRequest() throws IOException {
+        char[] uri = new char[RtspRequestReader.MAX_LINE_LENGTH];
+        Arrays.fill(uri, 'a');
+        // Endless input: the reader must stop at the limit, not at a newline
+        ByteArrayInputStream input = stream("GET /" + new String(uri) + new String(uri) + new String(uri));
+        assertEquals(RtspRequestReader.BAD_REQUEST, rejectStatus(input));
+        assertTrue(input.available() > RtspRequestReader.MAX_LINE_LENGTH);
+    }
+
+    @Test
+    public void tooManyHeaderBytesIsABadRequest() throws IOException {
+        StringBuilder request = new StringBuilder("OPTIONS * RTSP/1.0\r\n");
+        for (int i = 0; request.length() < 2 * RtspRequestReader.MAX_HEADER_BYTES; i++) {
+            request.append("X-Header-").append(i).append(": value\r\n");
+        }
+        assertEquals(RtspRequestReader.BAD_REQUEST, rejectStatus(stream(request.toString())));
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedBodyThrowsEof() throws IOException {
+        new RtspRequestReader(MAX_BODY).read(stream("ANNOUNCE * RTSP/1.0\r\nContent-Length: 100\r\n\r\nv=0"));
+    }
+
+    /**
+     * Heap allocated to parse a volume change, the request a sender sends
+     * most often mid-stream. The strings the request is handed on as are
+     * unavoidable; the budget catches buffers or maps created per request.
+     */
+    @Test
+    public void parsingStaysWithinItsAllocationBudget() throws Exception {
+        assumeTrue(AllocationMeter.isSupported());
+        ByteArrayInputStream input = stream("SET_PARAMETER rtsp://10.0.0.2/1 RTSP/1.0\r\n"
+                + "CSeq: 42\r\nDACP-ID: 14413BE4996FEA4D\r\nActive-Remote: 2543110914\r\n"
+                + "Content-Type: text/parameters\r\nContent-Length: 18\r\n"
+                + "User-Agent: AirPlay/665.13.1\r\n\r\n"
+                + "volume: -11.123456");
+        RtspRequestReader reader = new RtspRequestReader(MAX_BODY);
+        double bytes = AllocationMeter.bytesPerOperation(100_000, () -> {
+            input.reset();
+            reader.read(input);
+        });
+        System.out.println(String.format("RtspRequestReader: %.0f bytes allocated per SET_PARAMETER", bytes));
+        assertTrue("parsing allocates " + bytes + " bytes per request", bytes < 3072);
+    }
+}
@@ -0,0 +1,100 @@
+package com.mediabox.airhome.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.mediabox.airhome.pairing.PairingSession;
+
+import org.junit.Test;
+
+public class SenderCacheTest {
+    private static final String ALAC_PARAMETERS = "352 0 16 40 10 14 2 255 0 0 44100";
+
+    @Test
+    public void entriesExpireAfterTheirTime() {
+        SenderCache cache = new SenderCache();
+        cache.remember("sender", "AppleLossless", 44100, 16, ALAC_PARAMETERS, 1_000);
+
+        assertNotNull(cache.lookup("sender", 1_000 + SenderCache.ENTRY_TTL_MS));
+        assertNull(cache.lookup("sender", 1_000 + SenderCache.ENTRY_TTL_MS + 1));
+        // Gone, not just hidden
+        assertNull(cache.lookup("sender", 1_000));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void rememberingAgainRestartsTheTime() {
+        SenderCache cache = new SenderCache();
+        cache.remember("sender", "AppleLossless", 44100, 16, ALAC_PARAMETERS, 0);
+        cache.remember("sender", "AppleLossless", 44100, 16, ALAC_PARAMETERS, SenderCache.ENTRY_TTL_MS);
+        assertNotNull(cache.lookup("sender", 2 * SenderCache.ENTRY_TTL_MS));
+    }
+
+    @Test
+    public void leastRecentlyUsedGoesFirst() {
+        SenderCache cache = new SenderCache();
+        for (int i = 0; i < SenderCache.MAX_ENTRIES; i++) {
+            cache.remember("sender-" + i, "L16", 44100, 16, null, 0);
+        }
+        // Using the oldest makes sender-1 the least recently used
+        assertNotNull(cache.lookup("sender-0", 0));
+        cache.remember("newcomer", "L16", 44100, 16, null, 0);
+
+        assertEquals(SenderCache.MAX_ENTRIES, cache.size());
+        assertNotNull(cache.lookup("sender-0", 0));
+        assertNull(cache.lookup("sender-1", 0));
+        assertNotNull(cache.lookup("newcomer", 0));
+    }
+
+    @Test
+    public void expiredEntriesAreDroppedWhenAnotherIsStored() {
+        SenderCache cache = new SenderCache();
+        cache.remember("old", "L16", 44100, 16, null, 0);
+        cache.remember("new", "L16", 44100, 16, null, SenderCache.ENTRY_TTL_MS + 1);
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void sendersAreKnownByDacpIdThenActiveRemoteThenAddress() {
+        assertEquals("dacp", SenderCache.identify("dacp", "remote", "192.168.1.20"));
+        assertEquals("remote", SenderCache.identify(null, "remote", "192.168.1.20"));
+        assertEquals("192.168.1.20", SenderCache.identify(null, null, "192.168.1.20"));
+    }
+
+    @Test
+    public void formatAndControllerAreKeptTogether() {
+        SenderCache cache = new SenderCache();
+        PairingSession.VerifiedController controller = verified();
+
+        // Pair-verify comes before ANNOUNCE
+        cache.rememberController("sender", controller, 0);
+        SenderCache.Entry paired = cache.lookup("sender", 0);
+        assertFalse(paired.hasFormat());
+        assertSame(controller, paired.controller);
+
+        cache.remember("sender", "AppleLossless", 48000, 24, ALAC_PARAMETERS, 0);
+        SenderCache.Entry entry = cache.lookup("sender", 0);
+        assertTrue(entry.hasFormat());
+        assertEquals("AppleLossless", entry.codec);
+        assertEquals(48000, entry.sampleRate);
+        assertEquals(24, entry.bitDepth);
+        assertEquals(ALAC_PARAMETERS, entry.formatParameters);
+        assertSame(controller, entry.controller);
+
+        // And the other way round on the next connection
+        PairingSession.VerifiedController again = verified();
+        cache.rememberController("sender", again, 0);
+        entry = cache.lookup("sender", 0);
+        assertEquals(ALAC_PARAMETERS, entry.formatParameters);
+        assertSame(again, entry.controller);
+    }
+
+    private static PairingSession.VerifiedController verified() {
+        return new PairingSession.VerifiedController("controller", new byte[32], 0);
+    }
+}
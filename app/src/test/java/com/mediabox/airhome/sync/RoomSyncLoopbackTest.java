@@ -0,0 +1,240 @@
+package com.mediabox.airhome.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class RoomSyncLoopbackTest {
+    private static final int RATE = 44100;
+    private static final int BUFFER_FRAMES = 352;
+    private static final long BUFFER_NANOS = BUFFER_FRAMES * 1_000_000_000L / RATE;
+
+    // The leader schedules output this far ahead, as its own track would
+    private static final long LEADER_DELAY_NANOS = 250_000_000L;
+
+    // Each buffer starts with a marker frame carrying its index, so the
+    // moment every follower plays it can be compared
+    private static final short MARKER = 0x7FFF;
+
+    /**
+     * An output that consumes audio in real time behind a fixed speaker
+     * latency, and notes when each marker frame reaches the speaker
+     */
+    private static final class SimulatedOutput implements RoomSyncFollower.Output {
+        private final long latencyNanos;
+        private final long bufferNanos = 100_000_000L;
+        private final Map<Integer, Long> markerNanos = new HashMap<>();
+        private int sampleRate;
+        private long endNanos;
+        private long audioFrames;
+
+        SimulatedOutput(long latencyNanos) {
+            this.latencyNanos = latencyNanos;
+        }
+
+        @Override
+        public boolean open(int sampleRate) {
+            this.sampleRate = sampleRate;
+            return true;
+        }
+
+        @Override
+        public int write(byte[] data, int offset, int length) {
+            long now = System.nanoTime();
+            if (endNanos < now) {
+                // Underrun: playback restarts from whatever comes next
+                endNanos = now;
+            }
+            int frames = length / RoomSyncProtocol.BYTES_PER_FRAME;
+            synchronized (this) {
+                for (int frame = 0; frame < frames; frame++) {
+                    int p = offset + frame * RoomSyncProtocol.BYTES_PER_FRAME;
+                    short left = (short) ((data[p] & 0xFF) | (data[p + 1] << 8));
+                    short right = (short) ((data[p + 2] & 0xFF) | (data[p + 3] << 8));
+                    if (right == MARKER) {
+                        markerNanos.put((int) left, endNanos + latencyNanos + frame * 1_000_000_000L / sampleRate);
+                    }
+                    if (right != 0) {
+                        audioFrames++;
+                    }
+                }
+            }
+            endNanos += frames * 1_000_000_000L / sampleRate;
+
+            // Block while the buffer is full, as a track write does
+            long ahead = endNanos - System.nanoTime() - bufferNanos;
+            if (ahead > 0) {
+                try {
+                    Thread.sleep(ahead / 1_000_000L, (int) (ahead % 1_000_000L));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return length;
+        }
+
+        @Override
+        public long nextFramePlaysAt() {
+            return Math.max(endNanos, System.nanoTime()) + latencyNanos;
+        }
+
+        @Override
+        public void release() {
+        }
+
+        synchronized Map<Integer, Long> markers() {
+            return new HashMap<>(markerNanos);
+        }
+
+        synchronized long audioFrames() {
+            return audioFrames;
+        }
+    }
+
+    /**
+     * Feed the leader real-time output for the given time, numbering the
+     * buffers from the given index
+     */
+    private static int stream(RoomSyncLeader leader, int firstIndex, long millis) throws InterruptedException {
+        byte[] pcm = new byte[BUFFER_FRAMES * RoomSyncProtocol.BYTES_PER_FRAME];
+        for (int frame = 1; frame < BUFFER_FRAMES; frame++) {
+            // Quiet non-zero audio between the markers
+            pcm[frame * 4 + 2] = 1;
+        }
+        long start = System.nanoTime();
+        int index = firstIndex;
+        for (long next = start; next - start < millis * 1_000_000L; next += BUFFER_NANOS, index++) {
+            pcm[0] = (byte) index;
+            pcm[1] = (byte) ((index >> 8) & 0x7F);
+            pcm[2] = (byte) MARKER;
+            pcm[3] = (byte) (MARKER >> 8);
+            leader.onOutput(pcm, pcm.length, RATE, next + LEADER_DELAY_NANOS);
+            long sleep = next + BUFFER_NANOS - System.nanoTime();
+            if (sleep > 0) {
+                Thread.sleep(sleep / 1_000_000L, (int) (sleep % 1_000_000L));
+            }
+        }
+        return index;
+    }
+
+    private static void awaitFollowers(RoomSyncLeader leader, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (leader.getFollowerCount() < count && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals("followers registered", count, leader.getFollowerCount());
+    }
+
+    /**
+     * Three followers with different speaker latencies on one host play
+     * the same buffers at the same moment. Reports the skew each follower
+     * measures, what the leader collects, and the spread of actual marker
+     * play times across followers.
+     */
+    @Test
+    public void followersPlayInStepOverLoopback() throws Exception {
+        RoomSyncLeader leader = new RoomSyncLeader(0);
+        leader.start();
+        long[] latencies = {20_000_000L, 45_000_000L, 80_000_000L};
+        RoomSyncFollower[] followers = new RoomSyncFollower[latencies.length];
+        SimulatedOutput[] outputs = new SimulatedOutput[latencies.length];
+        try {
+            for (int i = 0; i < followers.length; i++) {
+                outputs[i] = new SimulatedOutput(latencies[i]);
+                followers[i] = new RoomSyncFollower("127.0.0.1", leader.getPort(), outputs[i]);
+                followers[i].start();
+            }
+            awaitFollowers(leader, followers.length);
+            // Let the clock estimates settle before measuring
+            Thread.sleep(500);
+
+            int buffers = stream(leader, 0, 4000);
+            Thread.sleep(LEADER_DELAY_NANOS / 1_000_000L + 200);
+
+            // Compare the second half, after the first corrections
+            long worstSpread = 0;
+            int compared = 0;
+            for (int index = buffers / 2; index < buffers; index++) {
+                long earliest = Long.MAX_VALUE;
+                long latest = Long.MIN_VALUE;
+                boolean everywhere = true;
+                for (SimulatedOutput output : outputs) {
+                    Long at = output.markers().get(index & 0x7FFF);
+                    if (at == null) {
+                        everywhere = false;
+                        break;
+                    }
+                    earliest = Math.min(earliest, at);
+                    latest = Math.max(latest, at);
+                }
+                if (everywhere) {
+                    worstSpread = Math.max(worstSpread, latest - earliest);
+                    compared++;
+                }
+            }
+
+            StringBuilder report = new StringBuilder("RoomSync: follower skew");
+            for (RoomSyncFollower follower : followers) {
+                report.append(' ').append(follower.getSkewMicros()).append(" us");
+            }
+            report.append(", leader max ").append(leader.getMaxSkewMicros()).append(" us, marker spread ")
+                    .append(worstSpread / 1000).append(" us over ").append(compared).append(" buffers");
+            System.out.println(report);
+
+            assertTrue("too few buffers played everywhere: " + compared, compared > buffers / 4);
+            // Loopback clocks agree; what is left is scheduling jitter
+            assertTrue("followers " + worstSpread / 1000 + " us apart", worstSpread < 10_000_000L);
+            for (RoomSyncFollower follower : followers) {
+                assertTrue("skew " + follower.getSkewMicros() + " us", follower.getSkewMicros() < 10_000);
+            }
+        } finally {
+            for (RoomSyncFollower follower : followers) {
+                if (follower != null) {
+                    follower.stop();
+                }
+            }
+            leader.stop();
+        }
+    }
+
+    /**
+     * A recreated leader numbers its packets from zero again; the
+     * follower must take that as a new stream, not as late packets
+     */
+    @Test
+    public void followerKeepsPlayingAfterTheLeaderRestarts() throws Exception {
+        RoomSyncLeader leader = new RoomSyncLeader(0);
+        leader.start();
+        int port = leader.getPort();
+        SimulatedOutput output = new SimulatedOutput(20_000_000L);
+        RoomSyncFollower follower = new RoomSyncFollower("127.0.0.1", port, output);
+        follower.start();
+        try {
+            awaitFollowers(leader, 1);
+            Thread.sleep(300);
+            stream(leader, 0, 2000);
+            leader.stop();
+
+            leader = new RoomSyncLeader(port);
+            leader.start();
+            awaitFollowers(leader, 1);
+            long before = output.audioFrames();
+            stream(leader, 0, 1500);
+            Thread.sleep(LEADER_DELAY_NANOS / 1_000_000L + 200);
+            long after = output.audioFrames() - before;
+
+            System.out.println("RoomSync: " + after + " frames played after the leader restarted, "
+                    + follower.getStreamRestarts() + " new stream(s) seen");
+            assertTrue("new stream not detected", follower.getStreamRestarts() >= 1);
+            // Most of the 1.5 s streamed after the restart is heard
+            assertTrue("only " + after + " frames after restart", after > RATE);
+        } finally {
+            follower.stop();
+            leader.stop();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.mediabox.airhome.util;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures heap allocated by the calling thread, for tests that hold a
+ * code path to a per-operation allocation budget. Needs a HotSpot-style
+ * JVM; tests should assume {@link #isSupported()}.
+ */
+public final class AllocationMeter {
+    private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+    /**
+     * One operation under test
+     */
+    public interface Operation {
+        void run() throws Exception;
+    }
+
+    private AllocationMeter() {
+    }
+
+    private static com.sun.management.ThreadMXBean threads() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+        if (!hotspot.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        hotspot.setThreadAllocatedMemoryEnabled(true);
+        return hotspot;
+    }
+
+    public static boolean isSupported() {
+        return THREADS != null;
+    }
+
+    /**
+     * Run the operation the given number of times and report the bytes
+     * allocated per run. A first pass of the same length warms up the JIT
+     * so escape analysis has had its chance, and is not counted.
+     */
+    public static double bytesPerOperation(int iterations, Operation operation) throws Exception {
+        long threadId = Thread.currentThread().getId();
+        long allocated = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            long before = THREADS.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < iterations; i++) {
+                operation.run();
+            }
+            allocated = THREADS.getThreadAllocatedBytes(threadId) - before;
+        }
+        return allocated / (double) iterations;
+    }
+
+    /**
+     * Get the bytes the given thread has allocated so far, for code that
+     * runs on its own threads
+     */
+    public static long allocatedBytes(Thread thread) {
+        return THREADS.getThreadAllocatedBytes(thread.getId());
+    }
+
+    /**
+     * Get the number of garbage collections so far, across all collectors
+     */
+    public static long collectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+}
@@ -0,0 +1,202 @@
+package com.mediabox.airhome.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class BinaryPlistTest {
+
+    /**
+     * A buffered audio SETUP as a sender posts it: one stream with its
+     * type, format and 32-byte shared key
+     */
+    private static byte[] setupPlist() {
+        BinaryPlistWriter writer = new BinaryPlistWriter();
+        int[] streamKeys = {
+                writer.writeString("type"),
+                writer.writeString("ct"),
+                writer.writeString("sr"),
+                writer.writeString("spf"),
+                writer.writeString("shk"),
+                writer.writeString("streamConnectionID"),
+                writer.writeString("supportsDynamicStreamID")
+        };
+        int[] streamValues = {
+                writer.writeInt(103),
+                writer.writeInt(1),
+                writer.writeInt(44100),
+                writer.writeInt(352),
+                writer.writeData(new byte[32], 0, 32),
+                writer.writeInt(0x123456789ABCL),
+                writer.writeBool(true)
+        };
+        int[] streams = {writer.writeDict(streamKeys, streamValues, streamKeys.length)};
+        int[] keys = {writer.writeString("streams"), writer.writeString("name")};
+        int[] values = {writer.writeArray(streams, 1), writer.writeString("K\u00fcche")};
+        return writer.finish(writer.writeDict(keys, values, keys.length));
+    }
+
+    @Test
+    public void readsSetupFields() throws IOException {
+        byte[] data = setupPlist();
+        BinaryPlist plist = new BinaryPlist(data, 0, data.length);
+        int stream = plist.arrayElement(plist.dictValue(plist.root(), "streams"), 0);
+
+        assertEquals(103, plist.dictInt(stream, "type", 0));
+        assertEquals(1, plist.dictInt(stream, "ct", 0));
+        assertEquals(352, plist.dictInt(stream, "spf", 0));
+        assertEquals(0x123456789ABCL, plist.dictInt(stream, "streamConnectionID", 0));
+        assertEquals(32, plist.dataValue(plist.dictValue(stream, "shk")).remaining());
+        assertTrue(plist.boolValue(plist.dictValue(stream, "supportsDynamicStreamID")));
+        assertEquals(-1, plist.dictValue(stream, "missing"));
+        assertEquals("K\u00fcche", plist.dictString(plist.root(), "name"));
+        assertEquals("type", plist.stringValue(plist.dictKey(stream, 0)));
+        assertEquals(103, plist.intValue(plist.dictValueAt(stream, 0)));
+    }
+
+    @Test(expected = IOException.class)
+    public void dictIndexOutOfRangeThrowsIOException() throws IOException {
+        byte[] data = setupPlist();
+        BinaryPlist plist = new BinaryPlist(data, 0, data.length);
+        plist.dictKey(plist.root(), 2);
+    }
+
+    @Test(expected = IOException.class)
+    public void hugeObjectCountThrowsIOException() throws IOException {
+        byte[] data = setupPlist();
+        // Object count in the trailer, large enough to overflow the table size
+        ByteBuffer.wrap(data).putLong(data.length - 24, Long.MAX_VALUE / 2);
+        new BinaryPlist(data, 0, data.length);
+    }
+
+    /**
+     * Walk every object of the plist the way a request handler might
+     */
+    private static void walk(BinaryPlist plist, int ref, int depth) throws IOException {
+        if (depth > 8) {
+            throw new IOException("Too deep");
+        }
+        switch (plist.type(ref)) {
+            case BinaryPlist.TYPE_INT:
+                plist.intValue(ref);
+                break;
+            case BinaryPlist.TYPE_REAL:
+                plist.realValue(ref);
+                break;
+            case BinaryPlist.TYPE_ASCII:
+            case BinaryPlist.TYPE_UTF16:
+                plist.stringValue(ref);
+                break;
+            case BinaryPlist.TYPE_DATA:
+                plist.dataValue(ref);
+                break;
+            case BinaryPlist.TYPE_ARRAY:
+                for (int i = 0; i < plist.count(ref); i++) {
+                    walk(plist, plist.arrayElement(ref, i), depth + 1);
+                }
+                break;
+            case BinaryPlist.TYPE_DICT:
+                plist.dictValue(ref, "streams");
+                for (int i = 0; i < plist.count(ref); i++) {
+                    walk(plist, plist.dictKey(ref, i), depth + 1);
+                    walk(plist, plist.dictValueAt(ref, i), depth + 1);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Corrupted and truncated plists must only ever fail with IOException,
+     * which the SETUP handler answers with 400
+     */
+    @Test
+    public void corruptPlistsOnlyThrowIOException() {
+        byte[] original = setupPlist();
+        Random random = new Random(42);
+        int rejected = 0;
+        for (int trial = 0; trial < 100_000; trial++) {
+            byte[] data = original.clone();
+            int length = data.length;
+            if (trial % 4 == 0) {
+                // Cut off anywhere past the smallest possible plist
+                length = 40 + random.nextInt(data.length - 40);
+            }
+            for (int flips = 1 + random.nextInt(4); flips > 0; flips--) {
+                data[random.nextInt(length)] = (byte) random.nextInt(256);
+            }
+            try {
+                BinaryPlist plist = new BinaryPlist(data, 0, length);
+                walk(plist, plist.root(), 0);
+            } catch (IOException e) {
+                rejected++;
+            } catch (RuntimeException e) {
+                throw new AssertionError("trial " + trial + " threw " + e, e);
+            }
+        }
+        assertTrue("corruption never detected", rejected > 0);
+    }
+
+    /**
+     * Cost of the lookups a buffered SETUP makes, with the bounds checks
+     */
+    @Test
+    public void benchmarkSetupLookups() throws IOException {
+        byte[] data = setupPlist();
+        int iterations = 500_000;
+        long sink = 0;
+        long nanosPerSetup = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            // The first pass warms up the JIT and is not counted
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                BinaryPlist plist = new BinaryPlist(data, 0, data.length);
+                int stream = plist.arrayElement(plist.dictValue(plist.root(), "streams"), 0);
+                sink += plist.dictInt(stream, "type", 0);
+                sink += plist.dictInt(stream, "sr", 0);
+                sink += plist.dictInt(stream, "ct", 0);
+                sink += plist.dictInt(stream, "spf", 0);
+                sink += plist.dataValue(plist.dictValue(stream, "shk")).remaining();
+                sink += plist.dictInt(stream, "streamConnectionID", 0);
+            }
+            nanosPerSetup = (System.nanoTime() - start) / iterations;
+        }
+        System.out.println("BinaryPlist: " + nanosPerSetup + " ns per SETUP parse and lookups ("
+                + sink % 10 + ")");
+        assertTrue("lookups too slow: " + nanosPerSetup + " ns", nanosPerSetup < 50_000);
+    }
+
+    /**
+     * Cost of encoding a plist the size of a SETUP request or an /info
+     * response, writer and all
+     */
+    @Test
+    public void benchmarkEncode() throws Exception {
+        int iterations = 200_000;
+        long sink = 0;
+        long nanosPerPlist = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            // The first pass warms up the JIT and is not counted
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += setupPlist().length;
+            }
+            nanosPerPlist = (System.nanoTime() - start) / iterations;
+        }
+
+        String allocation = "";
+        if (AllocationMeter.isSupported()) {
+            double bytes = AllocationMeter.bytesPerOperation(20_000, () -> setupPlist());
+            allocation = String.format(", %.0f bytes allocated", bytes);
+        }
+        System.out.println("BinaryPlist: " + nanosPerPlist + " ns per " + setupPlist().length
+                + "-byte plist encoded" + allocation + " (" + sink % 10 + ")");
+        assertTrue("encoding too slow: " + nanosPerPlist + " ns", nanosPerPlist < 50_000);
+    }
+}
@@ -0,0 +1,80 @@
+package com.mediabox.airhome.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+public class DmapTest {
+
+    private static byte[] item(String code, byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(code.getBytes(StandardCharsets.US_ASCII), 0, 4);
+        out.write(data.length >>> 24);
+        out.write(data.length >>> 16);
+        out.write(data.length >>> 8);
+        out.write(data.length);
+        out.write(data, 0, data.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Now-playing metadata as a sender pushes it: a listing item holding
+     * an unrelated field, the title and the duration
+     */
+    private static byte[] metadata() {
+        return item("mlit", concat(
+                item("asai", new byte[8]),
+                item("minm", "Song".getBytes(StandardCharsets.UTF_8)),
+                item("astm", new byte[] {0, 3, 0x0D, 0x40})));
+    }
+
+    @Test
+    public void findsItemsInsideContainers() {
+        byte[] data = metadata();
+        assertEquals("Song", Dmap.findString(data, "minm"));
+        assertEquals(200_000, Dmap.findInteger(data, "astm", -1));
+        assertNull(Dmap.findString(data, "asar"));
+        assertEquals(-1, Dmap.findInteger(data, "asar", -1));
+    }
+
+    @Test
+    public void lengthThatWouldOverflowIsRejected() {
+        byte[] data = metadata();
+        // The first inner item claims almost 2 GB; position + length wraps
+        // negative, which passed the old end check
+        data[12] = 0x7F;
+        data[13] = (byte) 0xFF;
+        data[14] = (byte) 0xFF;
+        data[15] = (byte) 0xF8;
+        assertNull(Dmap.findString(data, "minm"));
+        assertEquals(-1, Dmap.findInteger(data, "astm", -1));
+    }
+
+    @Test
+    public void corruptDataNeverThrows() {
+        byte[] original = metadata();
+        Random random = new Random(7);
+        for (int trial = 0; trial < 100_000; trial++) {
+            byte[] data = Arrays.copyOf(original, 8 + random.nextInt(original.length - 8));
+            for (int flips = 1 + random.nextInt(3); flips > 0; flips--) {
+                data[random.nextInt(data.length)] = (byte) random.nextInt(256);
+            }
+            Dmap.findString(data, "minm");
+            Dmap.findInteger(data, "astm", 0);
+        }
+    }
+}
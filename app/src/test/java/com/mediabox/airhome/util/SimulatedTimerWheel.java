@@ -0,0 +1,27 @@
+package com.mediabox.airhome.util;
+
+/**
+ * A timer wheel on a clock the test moves by hand. Nothing ticks on its
+ * own; each {@link #advanceTo(long)} fires whatever has expired by then.
+ */
+public class SimulatedTimerWheel extends TimerWheel {
+    // Read by connection threads touching and scheduling timeouts
+    public volatile long time;
+
+    public SimulatedTimerWheel(long tickMillis, int wheelSize) {
+        super(tickMillis, wheelSize);
+    }
+
+    @Override
+    long now() {
+        return time;
+    }
+
+    /**
+     * Move the clock on and fire the timeouts that expired
+     */
+    public void advanceTo(long millis) {
+        time = millis;
+        tick();
+    }
+}
@@ -0,0 +1,122 @@
+package com.mediabox.airhome.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class StartupOrchestratorTest {
+
+    /**
+     * Records when each stage's work finished, on the nanosecond clock, as
+     * elapsed realtime is not available off the device
+     */
+    private static final class Clock {
+        final long origin = System.nanoTime();
+        final Map<String, Long> finished = new ConcurrentHashMap<>();
+
+        Runnable work(String name, long millis) {
+            return () -> {
+                sleep(millis);
+                finished.put(name, (System.nanoTime() - origin) / 1_000_000L);
+            };
+        }
+
+        long at(String name) {
+            Long millis = finished.get(name);
+            return millis != null ? millis : -1;
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void stagesWaitForTheirDependencies() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        StartupOrchestrator orchestrator = new StartupOrchestrator("Test", done::countDown);
+        Clock clock = new Clock();
+        StartupOrchestrator.Stage first = orchestrator.addStage("first", clock.work("first", 50));
+        StartupOrchestrator.Stage other = orchestrator.addStage("other", clock.work("other", 50));
+        orchestrator.addStage("last", clock.work("last", 0), first, other);
+        orchestrator.start();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(orchestrator.hasFailed());
+        assertTrue(clock.at("last") >= Math.max(clock.at("first"), clock.at("other")));
+        // Independent stages ran side by side
+        assertTrue("stages ran one after another", clock.at("last") < 95);
+    }
+
+    @Test
+    public void failedStageSkipsItsDependents() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        StartupOrchestrator orchestrator = new StartupOrchestrator("Test", done::countDown);
+        AtomicBoolean dependentRan = new AtomicBoolean();
+        AtomicBoolean independentRan = new AtomicBoolean();
+        StartupOrchestrator.Stage broken = orchestrator.addStage("broken", () -> {
+            throw new IllegalStateException("no port");
+        });
+        orchestrator.addStage("dependent", () -> dependentRan.set(true), broken);
+        orchestrator.addStage("independent", () -> independentRan.set(true));
+        orchestrator.start();
+
+        assertTrue("finish not reported", done.await(5, TimeUnit.SECONDS));
+        assertTrue(orchestrator.hasFailed());
+        assertFalse(dependentRan.get());
+        assertTrue(independentRan.get());
+    }
+
+    @Test
+    public void cancelSkipsStagesNotYetStarted() {
+        StartupOrchestrator orchestrator = new StartupOrchestrator("Test", null);
+        AtomicBoolean laterRan = new AtomicBoolean();
+        StartupOrchestrator.Stage slow = orchestrator.addStage("slow", () -> sleep(100));
+        orchestrator.addStage("later", () -> laterRan.set(true), slow);
+        orchestrator.start();
+        orchestrator.cancel(5000);
+
+        assertFalse(laterRan.get());
+        assertTrue(orchestrator.hasFailed());
+    }
+
+    /**
+     * The service's startup graph with each stage's work modelled as a
+     * fixed delay. Discoverable is when the mDNS announce finishes; room
+     * sync and Cast hang off audio and must not hold it up.
+     */
+    @Test
+    public void benchmarkServiceGraphToDiscoverable() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        StartupOrchestrator orchestrator = new StartupOrchestrator("Test", done::countDown);
+        Clock clock = new Clock();
+        StartupOrchestrator.Stage config = orchestrator.addStage("config", clock.work("config", 30));
+        StartupOrchestrator.Stage locks = orchestrator.addStage("locks", clock.work("locks", 5));
+        StartupOrchestrator.Stage audio = orchestrator.addStage("audio", clock.work("audio", 80), config);
+        StartupOrchestrator.Stage bind = orchestrator.addStage("bind", clock.work("bind", 10), config);
+        StartupOrchestrator.Stage announce = orchestrator.addStage("announce", clock.work("announce", 60), bind);
+        orchestrator.addStage("serve", clock.work("serve", 5), bind, audio, locks);
+        orchestrator.addStage("room sync", clock.work("room sync", 40), audio);
+        orchestrator.addStage("cast", clock.work("cast", 50), audio, announce);
+        orchestrator.start();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        long serial = 30 + 5 + 80 + 10 + 60 + 5 + 40 + 50;
+        System.out.println("StartupOrchestrator: discoverable at " + clock.at("announce") + " ms, room sync at "
+                + clock.at("room sync") + " ms, cast at " + clock.at("cast") + " ms; " + serial
+                + " ms of work in all");
+        // Config, bind and announce are the critical path: 100 ms
+        assertTrue("announce held up: " + clock.at("announce") + " ms", clock.at("announce") < 150);
+    }
+}
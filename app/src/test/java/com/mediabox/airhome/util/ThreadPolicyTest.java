@@ -0,0 +1,192 @@
+package com.mediabox.airhome.util;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Playback against an artificial CPU hog on the host, with every thread at
+ * the default priority as before the policy, and with the priorities the
+ * policy gives each stage.
+ *
+ * On the JVM the policy's priority call does nothing, so each thread here
+ * sets its own niceness with renice, which is what
+ * {@code Process.setThreadPriority} does on Android. Raising priority
+ * needs root; the test is skipped where that is refused.
+ */
+public class ThreadPolicyTest {
+    // A packet's worth of audio every 8 ms into a 20 ms output buffer
+    private static final long PACKET_NANOS = 8_000_000L;
+    private static final long BUFFER_NANOS = 20_000_000L;
+    private static final long RUN_MILLIS = 3000;
+
+    // CPU each packet takes: more than a fair share against the hog, so
+    // playback keeps up only if the scheduler favors it
+    private static final long WORK_NANOS = 3_000_000L;
+
+    private static final class Result {
+        int packets;
+        int underruns;
+        long worstLateNanos;
+    }
+
+    /**
+     * Get the calling thread's kernel thread ID
+     */
+    private static int tid() throws IOException {
+        return Integer.parseInt(new File("/proc/thread-self").getCanonicalFile().getName());
+    }
+
+    /**
+     * Set the calling thread's niceness, as the platform does for a
+     * priority, and check that it took
+     */
+    private static boolean setNice(int nice) {
+        try {
+            int tid = tid();
+            Process renice = new ProcessBuilder("renice", "-n", Integer.toString(nice), "-p", Integer.toString(tid))
+                    .redirectErrorStream(true).start();
+            while (renice.getInputStream().read() >= 0) {
+                // Discard its report
+            }
+            if (renice.waitFor() != 0) {
+                return false;
+            }
+            // After the name in parentheses, niceness is the 17th field
+            String stat = new String(Files.readAllBytes(new File("/proc/self/task/" + tid + "/stat").toPath()),
+                    StandardCharsets.US_ASCII);
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return Integer.parseInt(fields[16]) == nice;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * A packet's worth of DSP-like work
+     */
+    private static void work(float[] samples, int passes) {
+        for (int pass = 0; pass < passes; pass++) {
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = samples[i] * 0.999f + 0.001f;
+            }
+        }
+    }
+
+    /**
+     * Play for a while with hog threads keeping every core busy
+     *
+     * @param prioritized Whether threads take their stage's priority
+     */
+    /**
+     * Find how many passes of the work take {@link #WORK_NANOS} on an idle
+     * CPU
+     */
+    private static int calibrate() {
+        float[] samples = new float[704];
+        int passes = 100;
+        for (int round = 0; round < 10; round++) {
+            long start = System.nanoTime();
+            work(samples, passes);
+            long nanos = Math.max(1, System.nanoTime() - start);
+            passes = (int) Math.max(1, Math.min(1_000_000, passes * WORK_NANOS / nanos));
+        }
+        return passes;
+    }
+
+    private static Result run(boolean prioritized, int passes) throws InterruptedException {
+        int hogs = 4 * Runtime.getRuntime().availableProcessors();
+        CountDownLatch ready = new CountDownLatch(hogs + 1);
+        boolean[] applied = {true};
+        Result result = new Result();
+        List<Thread> threads = new ArrayList<>();
+        AtomicBoolean stop = new AtomicBoolean();
+
+        for (int i = 0; i < hogs; i++) {
+            // Control traffic stands in for whatever else keeps the CPU busy
+            threads.add(ThreadPolicy.newThread(ThreadPolicy.Stage.CONTROL, "Hog-" + i, () -> {
+                if (prioritized && !setNice(ThreadPolicy.Stage.CONTROL.priority)) {
+                    applied[0] = false;
+                }
+                ready.countDown();
+                while (!stop.get()) {
+                    // Spin
+                }
+            }));
+        }
+        threads.add(ThreadPolicy.newThread(ThreadPolicy.Stage.PLAYBACK, "Playback", () -> {
+            if (prioritized && !setNice(ThreadPolicy.Stage.PLAYBACK.priority)) {
+                applied[0] = false;
+            }
+            ready.countDown();
+            float[] samples = new float[704];
+            try {
+                ready.await();
+                long end = System.nanoTime() + BUFFER_NANOS;
+                while (!stop.get()) {
+                    work(samples, passes);
+                    long now = System.nanoTime();
+                    if (now > end) {
+                        // The buffer ran dry before this packet was written
+                        result.underruns++;
+                        result.worstLateNanos = Math.max(result.worstLateNanos, now - end);
+                        end = now;
+                    }
+                    end += PACKET_NANOS;
+                    result.packets++;
+                    // The write blocks until the buffer has room
+                    long sleep = end - BUFFER_NANOS - System.nanoTime();
+                    if (sleep > 0) {
+                        Thread.sleep(sleep / 1_000_000L, (int) (sleep % 1_000_000L));
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        ready.await(5, TimeUnit.SECONDS);
+        Thread.sleep(RUN_MILLIS);
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assumeTrue("cannot set thread priorities here", applied[0]);
+        return result;
+    }
+
+    @Test
+    public void benchmarkUnderrunsUnderCpuHog() throws Exception {
+        assumeTrue("needs Linux procfs and renice", new File("/proc/thread-self").exists()
+                && new File("/usr/bin/renice").canExecute());
+        int passes = calibrate();
+        Result before = run(false, passes);
+        Result after = run(true, passes);
+
+        System.out.println(String.format("ThreadPolicy: %d ms of work per 8 ms packet under a %d-thread CPU hog,"
+                        + " %d of %d packets underran"
+                        + " (worst %d ms late) at default priority, %d of %d (worst %d ms) with stage priorities",
+                WORK_NANOS / 1_000_000L, 4 * Runtime.getRuntime().availableProcessors(), before.underruns, before.packets,
+                before.worstLateNanos / 1_000_000L, after.underruns, after.packets,
+                after.worstLateNanos / 1_000_000L));
+        assertTrue("no more than a few underruns with priorities: " + after.underruns,
+                after.underruns <= Math.max(2, before.underruns / 10));
+    }
+}
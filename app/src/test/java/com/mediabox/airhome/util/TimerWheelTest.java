@@ -0,0 +1,113 @@
+package com.mediabox.airhome.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Drives the wheel with a simulated clock, so hours of reaping run in a
+ * fraction of a second.
+ */
+public class TimerWheelTest {
+    private static final long TICK_MILLIS = 10;
+    private static final int WHEEL_SIZE = 64;
+
+    @Test
+    public void soakFiresEachTimeoutOnceAndNeverEarly() {
+        SimulatedTimerWheel wheel = new SimulatedTimerWheel(TICK_MILLIS, WHEEL_SIZE);
+        Random random = new Random(42);
+        int count = 5000;
+        long[] idle = new long[count];
+        long[] lastActivity = new long[count];
+        long[] activeUntil = new long[count];
+        long[] firedAt = new long[count];
+        boolean[] cancelled = new boolean[count];
+        TimerWheel.Timeout[] timeouts = new TimerWheel.Timeout[count];
+
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            idle[i] = 100 + random.nextInt(5000);
+            // Some entries stay busy well past their idle time, wrapping the wheel many times
+            activeUntil[i] = random.nextInt(4) == 0 ? random.nextInt(60_000) : 0;
+            timeouts[i] = wheel.schedule(idle[i], () -> {
+                assertEquals("fired twice", 0, firedAt[index]);
+                firedAt[index] = wheel.time;
+            });
+        }
+        assertEquals(count, wheel.size());
+
+        long end = 120_000;
+        while (wheel.time < end) {
+            // Mostly one tick at a time, with the odd stall of several
+            long step = random.nextInt(50) == 0 ? TICK_MILLIS * (1 + random.nextInt(30)) : TICK_MILLIS;
+            long now = wheel.time + step;
+            wheel.time = now;
+            for (int i = random.nextInt(count); i < count; i += 1 + random.nextInt(200)) {
+                if (firedAt[i] == 0 && !cancelled[i] && now < activeUntil[i]) {
+                    timeouts[i].touch();
+                    lastActivity[i] = now;
+                }
+            }
+            if (random.nextInt(100) == 0) {
+                int i = random.nextInt(count);
+                if (firedAt[i] == 0 && !cancelled[i]) {
+                    timeouts[i].cancel();
+                    cancelled[i] = true;
+                }
+            }
+            wheel.advanceTo(now);
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (cancelled[i]) {
+                assertEquals("cancelled timeout fired", 0, firedAt[i]);
+                assertFalse(timeouts[i].isExpired());
+                continue;
+            }
+            long deadline = lastActivity[i] + idle[i];
+            assertTrue("timeout " + i + " never fired", firedAt[i] > 0);
+            assertTrue("timeout " + i + " fired early", firedAt[i] >= deadline);
+            // Late by at most a tick plus the longest simulated stall
+            assertTrue("timeout " + i + " fired late", firedAt[i] <= deadline + TICK_MILLIS * 31);
+            assertTrue(timeouts[i].isExpired());
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void touchedTimeoutOutlivesItsIdleTime() {
+        SimulatedTimerWheel wheel = new SimulatedTimerWheel(TICK_MILLIS, WHEEL_SIZE);
+        boolean[] fired = new boolean[1];
+        TimerWheel.Timeout timeout = wheel.schedule(1000, () -> fired[0] = true);
+
+        for (long t = TICK_MILLIS; t <= 10_000; t += TICK_MILLIS) {
+            wheel.time = t;
+            if (t % 500 == 0) {
+                timeout.touch();
+            }
+            wheel.advanceTo(t);
+        }
+        assertFalse(fired[0]);
+
+        wheel.advanceTo(11_010);
+        assertTrue(fired[0]);
+    }
+
+    @Test
+    public void longStallCatchesUpWithoutWalkingTheWheelTwice() {
+        SimulatedTimerWheel wheel = new SimulatedTimerWheel(TICK_MILLIS, WHEEL_SIZE);
+        int[] fired = new int[1];
+        for (int i = 0; i < 100; i++) {
+            wheel.schedule(100 + i * 10, () -> fired[0]++);
+        }
+
+        // Far more than one revolution of the wheel in one go
+        wheel.advanceTo(TICK_MILLIS * WHEEL_SIZE * 10);
+        assertEquals(100, fired[0]);
+        assertEquals(0, wheel.size());
+    }
+}
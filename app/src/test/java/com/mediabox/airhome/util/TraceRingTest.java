@@ -0,0 +1,206 @@
+package com.mediabox.airhome.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.util.Log;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TraceRingTest {
+    // Event ids no code records, so other tests' events can be told apart
+    private static final int STRESS_EVENT = 90;
+    private static final int WRAP_EVENT = 91;
+    private static final int WINDOW_EVENT = 92;
+
+    private static final long SECOND = 1_000_000_000L;
+
+    /**
+     * Dumped records of one event, as {session, arg1, arg2}
+     */
+    private static List<long[]> dumped(int event, int windowSeconds, long now) {
+        StringWriter text = new StringWriter();
+        TraceRing.dump(new PrintWriter(text), windowSeconds, now);
+        List<long[]> found = new ArrayList<>();
+        String name = " EVENT_" + event + " #";
+        for (String line : text.toString().split("\n")) {
+            int at = line.indexOf(name);
+            if (at < 0) {
+                continue;
+            }
+            String[] fields = line.substring(at + name.length()).trim().split(" ");
+            found.add(new long[] {
+                    Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2])
+            });
+        }
+        return found;
+    }
+
+    /**
+     * Second argument a writer derives from its session and first
+     * argument, so a record mixing two writes does not add up
+     */
+    private static long check(long session, long arg1) {
+        return (session * 0x9E3779B97F4A7C15L) ^ (arg1 * 31);
+    }
+
+    /**
+     * Many threads record at once, lapping the ring many times over while
+     * another thread keeps dumping it. Every record shown must have all
+     * its fields from the same write.
+     */
+    @Test
+    public void concurrentWritersNeverDumpTornRecords() throws Exception {
+        int writers = Math.max(4, Runtime.getRuntime().availableProcessors());
+        int perWriter = 200_000;
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicReference<String> torn = new AtomicReference<>();
+        AtomicInteger checked = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            int session = w + 1;
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (long i = 0; i < perWriter; i++) {
+                    TraceRing.record(STRESS_EVENT, session, i, check(session, i), 0);
+                }
+            }));
+        }
+        Thread dumper = new Thread(() -> {
+            while (writing.get()) {
+                for (long[] record : dumped(STRESS_EVENT, 1, 0)) {
+                    if (record[2] != check(record[0], record[1])) {
+                        torn.compareAndSet(null, "#" + record[0] + " " + record[1] + " " + record[2]);
+                    }
+                    checked.incrementAndGet();
+                }
+            }
+        });
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        dumper.start();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        writing.set(false);
+        dumper.join();
+
+        System.out.println("TraceRing: " + writers + " writers, " + writers * perWriter + " records, "
+                + checked.get() + " checked while being written");
+        assertEquals("torn record dumped", null, torn.get());
+        assertTrue("nothing dumped while writing", checked.get() > 0);
+    }
+
+    /**
+     * Past its capacity the ring keeps only the newest records, oldest first
+     */
+    @Test
+    public void wrapsAroundKeepingTheNewest() {
+        int total = TraceRing.CAPACITY + 1000;
+        for (int i = 0; i < total; i++) {
+            TraceRing.record(WRAP_EVENT, 7, i, check(7, i), 0);
+        }
+
+        List<long[]> found = dumped(WRAP_EVENT, 1, 0);
+        // Anything else recorded meanwhile takes a slot too
+        assertTrue(found.size() + " shown", found.size() > TraceRing.CAPACITY - 64);
+        assertTrue(found.size() <= TraceRing.CAPACITY);
+        assertEquals(total - 1, found.get(found.size() - 1)[1]);
+        long previous = -1;
+        for (long[] record : found) {
+            assertTrue("out of order", record[1] > previous);
+            assertTrue("overwritten record shown", record[1] >= total - TraceRing.CAPACITY);
+            previous = record[1];
+        }
+    }
+
+    @Test
+    public void dumpShowsOnlyTheWindow() {
+        long now = 1000 * SECOND;
+        TraceRing.record(WINDOW_EVENT, 1, 1, 0, now - 5 * SECOND);
+        TraceRing.record(WINDOW_EVENT, 1, 2, 0, now - 2 * SECOND);
+        TraceRing.record(WINDOW_EVENT, 1, 3, 0, now - SECOND / 2);
+
+        List<long[]> lastSecond = dumped(WINDOW_EVENT, 1, now);
+        assertEquals(1, lastSecond.size());
+        assertEquals(3, lastSecond.get(0)[1]);
+
+        List<long[]> lastThree = dumped(WINDOW_EVENT, 3, now);
+        assertEquals(2, lastThree.size());
+        assertEquals(2, lastThree.get(0)[1]);
+        assertEquals(3, lastThree.get(1)[1]);
+
+        assertEquals(3, dumped(WINDOW_EVENT, 10, now).size());
+    }
+
+    @Test
+    public void dumpDescribesEvents() {
+        TraceRing.record(TraceRing.RTSP_REQUEST, 42, TraceRing.rtspMethodIndex("SETUP"), 5, 0);
+        StringWriter text = new StringWriter();
+        TraceRing.dump(new PrintWriter(text), 1, 0);
+        assertTrue(text.toString(), text.toString().contains("RTSP_REQUEST #42 SETUP CSeq=5"));
+        assertFalse(text.toString().contains("EVENT_" + TraceRing.RTSP_REQUEST));
+    }
+
+    /**
+     * Cost of recording an event against what logging it used to cost on
+     * the calling thread: building the message for Log.d. The platform's
+     * write to the log daemon comes on top of that on a device and is not
+     * counted here.
+     */
+    @Test
+    public void benchmarkRecordAgainstLog() throws Exception {
+        int iterations = 1_000_000;
+        long recordNanos = 0;
+        long logNanos = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            // The first pass warms up the JIT and is not counted
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                TraceRing.record(TraceRing.PACKETS_LOST, 3, i & 31, i);
+            }
+            recordNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                Log.d("AudioHandler", "Session 3 lost " + (i & 31) + " packets before " + i);
+            }
+            logNanos = System.nanoTime() - start;
+        }
+
+        String allocation = "";
+        double recordBytes = 0;
+        if (AllocationMeter.isSupported()) {
+            recordBytes = AllocationMeter.bytesPerOperation(100_000,
+                    () -> TraceRing.record(TraceRing.PACKETS_LOST, 3, 1, 2));
+            double logBytes = AllocationMeter.bytesPerOperation(100_000,
+                    () -> Log.d("AudioHandler", "Session 3 lost " + System.nanoTime() + " packets"));
+            allocation = String.format("; %.1f vs %.1f bytes allocated", recordBytes, logBytes);
+        }
+        System.out.println(String.format("TraceRing: record %.1f ns, Log.d message %.1f ns per event%s",
+                recordNanos / (double) iterations, logNanos / (double) iterations, allocation));
+
+        assumeTrue(AllocationMeter.isSupported());
+        assertTrue(recordBytes + " bytes per record", recordBytes < 1);
+    }
+}